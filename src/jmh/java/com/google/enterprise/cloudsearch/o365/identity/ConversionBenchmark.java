@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectFixtures;
+import com.google.enterprise.cloudsearch.o365.model.Member;
+import com.google.enterprise.cloudsearch.o365.model.User;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
+import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Conversion of decoded users and members to Cloud Identity objects.
+ *
+ * <p>The {@link RepositoryContext} is a stub-only mock that returns a fixed {@link IdentityUser}
+ * and builds group {@link EntityKey}s, so its cost is small and the same for every run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+  /** Users, or members of a single group. */
+  @Param({"50", "999"})
+  public int size;
+
+  /** Percentage of the members that are groups. */
+  @Param({"10"})
+  public int groupPercent;
+
+  private RepositoryContext context;
+  private List<User> users;
+  private List<Member> members;
+
+  @Setup
+  public void setUp() {
+    context = mock(RepositoryContext.class, withSettings().stubOnly());
+    IdentityUser identityUser = mock(IdentityUser.class, withSettings().stubOnly());
+    when(context.buildIdentityUser(anyString(), anyString())).thenReturn(identityUser);
+    when(context.buildEntityKeyForGroup(anyString()))
+        .thenAnswer(
+            invocation -> new EntityKey().setId(invocation.getArgument(0)).setNamespace("ns"));
+    users = DirectoryObjectFixtures.users(size);
+    members = DirectoryObjectFixtures.members(size, groupPercent);
+  }
+
+  @Benchmark
+  public void convertToIdentityUser(Blackhole blackhole) {
+    for (User user : users) {
+      blackhole.consume(O365IdentityRepository.convertToIdentityUser(context, user));
+    }
+  }
+
+  @Benchmark
+  public void isValidMember(Blackhole blackhole) {
+    for (Member member : members) {
+      blackhole.consume(O365IdentityRepository.isValidMember(member));
+    }
+  }
+
+  @Benchmark
+  public Set<Membership> buildMemberships() {
+    return O365IdentityRepository.buildMemberships(context, members);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.enterprise.cloudsearch.o365.ApiConnection;
+import com.google.enterprise.cloudsearch.o365.Endpoints;
+import com.google.enterprise.cloudsearch.o365.testing.FakeGraphServer;
+import com.google.enterprise.cloudsearch.o365.testing.SyntheticTenant;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
+import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full sync of all users, groups and memberships from a {@link FakeGraphServer}.
+ *
+ * <p>The default tenant has about a million memberships. Every sync runs against a new {@link
+ * O365IdentityRepository}, so it includes fetching the access token and building the clients.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class FullSyncBenchmark {
+  @Param({"100000"})
+  public int users;
+
+  @Param({"10000"})
+  public int groups;
+
+  @Param({"100"})
+  public int meanGroupSize;
+
+  @Param({"0"})
+  public int nestingDepth;
+
+  /** Delay of every response of the server. */
+  @Param({"0"})
+  public int latencyMillis;
+
+  /** Fraction of Graph requests answered with 429. */
+  @Param({"0"})
+  public double throttleRate;
+
+  @Param({"999"})
+  public int pageSize;
+
+  @Param({"8"})
+  public int memberFetchConcurrency;
+
+  @Param({"1", "20"})
+  public int memberBatchSize;
+
+  private FakeGraphServer server;
+  private RepositoryContext repositoryContext;
+
+  @Setup
+  public void setUp() throws Exception {
+    SyntheticTenant tenant =
+        new SyntheticTenant.Builder()
+            .setUsers(users)
+            .setGroups(groups)
+            .setMeanGroupSize(meanGroupSize)
+            .setNestingDepth(nestingDepth)
+            .build();
+    server =
+        new FakeGraphServer.Builder(tenant)
+            .setLatencyMillis(latencyMillis)
+            .setThrottleRate(throttleRate)
+            .setRetryAfterSeconds(0)
+            .setThreads(Math.max(16, memberFetchConcurrency * 2))
+            .start();
+    Properties config = new Properties();
+    config.put(ApiConnection.CLIENT_ID, "client id");
+    config.put(ApiConnection.CLIENT_SECRET, "secret");
+    config.put(ApiConnection.TENANT, tenant.getName());
+    config.put(Endpoints.GRAPH_BASE_URL_CONFIG, server.getGraphBaseUrl());
+    config.put(Endpoints.LOGIN_BASE_URL_CONFIG, server.getLoginBaseUrl());
+    config.put("o365.userPaginationSize", Integer.toString(pageSize));
+    config.put("o365.groupPaginationSize", Integer.toString(pageSize));
+    config.put("o365.memberPaginationSize", Integer.toString(pageSize));
+    config.put(
+        O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG,
+        Integer.toString(memberFetchConcurrency));
+    config.put(O365IdentityRepository.MEMBER_BATCH_SIZE_CONFIG, Integer.toString(memberBatchSize));
+    SetupConfigRule.uninitialized().initConfig(config);
+
+    repositoryContext = mock(RepositoryContext.class, withSettings().stubOnly());
+    IdentityUser identityUser = mock(IdentityUser.class, withSettings().stubOnly());
+    when(repositoryContext.buildIdentityUser(anyString(), anyString())).thenReturn(identityUser);
+    IdentityGroup identityGroup = mock(IdentityGroup.class, withSettings().stubOnly());
+    when(repositoryContext.buildIdentityGroup(anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              // Memberships are fetched when the SDK asks for them, during the sync.
+              Supplier<Set<Membership>> members = invocation.getArgument(1);
+              members.get();
+              return identityGroup;
+            });
+    when(repositoryContext.buildEntityKeyForGroup(anyString()))
+        .thenAnswer(invocation -> new EntityKey().setId(invocation.getArgument(0)));
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.close();
+  }
+
+  @Benchmark
+  public void fullSync(Blackhole blackhole) throws Exception {
+    O365IdentityRepository repository = new O365IdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      byte[] checkpoint = null;
+      CheckpointCloseableIterable<IdentityUser> userPage;
+      do {
+        userPage = repository.listUsers(checkpoint);
+        userPage.forEach(blackhole::consume);
+        checkpoint = userPage.getCheckpoint();
+      } while (userPage.hasMore());
+      checkpoint = null;
+      CheckpointCloseableIterable<IdentityGroup> groupPage;
+      do {
+        groupPage = repository.listGroups(checkpoint);
+        groupPage.forEach(blackhole::consume);
+        checkpoint = groupPage.getCheckpoint();
+      } while (groupPage.hasMore());
+    } finally {
+      repository.close();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic Microsoft Graph users and members for benchmarks. Fixtures of the same size and seed
+ * are identical across runs.
+ */
+public final class DirectoryObjectFixtures {
+  private static final long SEED = 20180601L;
+
+  private DirectoryObjectFixtures() {}
+
+  /** Returns a page of {@code size} users as returned by {@code /users}. */
+  public static String usersPage(int size) {
+    StringBuilder page = pageStart("users");
+    Random random = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        page.append(',');
+      }
+      page.append("{\"id\":\"")
+          .append(randomId(random))
+          .append("\",\"mail\":\"user")
+          .append(i)
+          .append("@example.com\",\"userPrincipalName\":\"user")
+          .append(i)
+          .append("@example.onmicrosoft.com\",\"accountEnabled\":true}");
+    }
+    return pageEnd(page);
+  }
+
+  /**
+   * Returns a page of {@code size} members as returned by {@code /groups/{id}/members}, of which
+   * {@code groupPercent} percent are groups and the rest users.
+   */
+  public static String membersPage(int size, int groupPercent) {
+    StringBuilder page = pageStart("directoryObjects");
+    Random random = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        page.append(',');
+      }
+      boolean group = random.nextInt(100) < groupPercent;
+      page.append("{\"@odata.type\":\"")
+          .append(group ? Member.MEMBER_TYPE_GROUP : Member.MEMBER_TYPE_USER)
+          .append("\",\"id\":\"")
+          .append(randomId(random))
+          .append('"');
+      if (!group) {
+        page.append(",\"mail\":\"user").append(i).append("@example.com\"");
+      }
+      page.append('}');
+    }
+    return pageEnd(page);
+  }
+
+  /** Returns {@code size} decoded users. */
+  public static List<User> users(int size) {
+    List<User> users = new ArrayList<>(size);
+    Random random = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      users.add(
+          new User.Builder()
+              .setId(randomId(random))
+              .setMail("user" + i + "@example.com")
+              .setUserPrincipalName("user" + i + "@example.onmicrosoft.com")
+              .setAccountEnabled(true)
+              .build());
+    }
+    return users;
+  }
+
+  /** Returns {@code size} decoded members, of which {@code groupPercent} percent are groups. */
+  public static List<Member> members(int size, int groupPercent) {
+    List<Member> members = new ArrayList<>(size);
+    Random random = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      boolean group = random.nextInt(100) < groupPercent;
+      Member.Builder member =
+          new Member.Builder()
+              .setId(randomId(random))
+              .setMemberType(group ? Member.MEMBER_TYPE_GROUP : Member.MEMBER_TYPE_USER);
+      if (!group) {
+        member.setMail("user" + i + "@example.com");
+      }
+      members.add(member.build());
+    }
+    return members;
+  }
+
+  private static StringBuilder pageStart(String entitySet) {
+    return new StringBuilder("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#")
+        .append(entitySet)
+        .append("\",\"@odata.nextLink\":\"https://graph.microsoft.com/v1.0/")
+        .append(entitySet)
+        .append("?$skiptoken=X'4453707402000100'\",\"value\":[");
+  }
+
+  private static String pageEnd(StringBuilder page) {
+    return page.append("]}").toString();
+  }
+
+  private static String randomId(Random random) {
+    return new UUID(random.nextLong(), random.nextLong()).toString();
+  }
+}
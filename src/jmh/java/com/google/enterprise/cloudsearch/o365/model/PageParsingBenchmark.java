@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.model;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Decoding of {@link Users} and {@link Members} pages. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PageParsingBenchmark {
+  /** Objects per page. 999 is the largest page Microsoft Graph returns. */
+  @Param({"50", "999"})
+  public int pageSize;
+
+  /** Percentage of the members that are groups. */
+  @Param({"10"})
+  public int groupPercent;
+
+  private String usersPage;
+  private String membersPage;
+  private byte[] membersPageBytes;
+
+  @Setup
+  public void setUp() {
+    usersPage = DirectoryObjectFixtures.usersPage(pageSize);
+    membersPage = DirectoryObjectFixtures.membersPage(pageSize, groupPercent);
+    membersPageBytes = membersPage.getBytes(UTF_8);
+  }
+
+  @Benchmark
+  public Users parseUsers() throws IOException {
+    return Users.parse(usersPage);
+  }
+
+  @Benchmark
+  public Members parseMembers() throws IOException {
+    return Members.parse(membersPage);
+  }
+
+  @Benchmark
+  public DirectoryObjectsDecoder.PageLinks streamMembers(Blackhole blackhole) throws IOException {
+    return DirectoryObjectsDecoder.MEMBERS.decode(
+        new ByteArrayInputStream(membersPageBytes), blackhole::consume);
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.o365.ApiConnection.AccessToken;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Holds the current access token and renews it in the background before it expires.
+ *
+ * <p>The first token is acquired by the first caller. Each token is then renewed on a background
+ * thread once {@code refreshPercent} of its {@code expires_in} has passed, and callers get the
+ * current token without waiting while the renewal is in flight. A failed renewal is retried until
+ * the current token expires. Callers only wait for a token when there is no unexpired one, and
+ * then a single request is sent for all of them.
+ *
+ * <p>A token rejected by Microsoft Graph before it expired can be replaced with {@link
+ * #renew}.
+ *
+ * <p>With a {@link TokenStore}, every new token is saved, and a saved token with at least {@value
+ * #MIN_STORED_REMAINING_SECONDS} seconds left is used by a new cache until it is due for renewal,
+ * so a restarted connector does not wait for a token request.
+ */
+final class AccessTokenCache implements Closeable {
+  private static final Logger logger = Logger.getLogger(AccessTokenCache.class.getName());
+
+  /** Lifetime assumed for tokens without {@code expires_in}. */
+  static final int DEFAULT_EXPIRES_IN_SECONDS = 3600;
+  static final long MIN_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long MAX_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+  static final long MIN_STORED_REMAINING_SECONDS = 60;
+
+  /** Sends a token request. */
+  @FunctionalInterface
+  interface TokenSource {
+    AccessToken acquire() throws IOException, GeneralSecurityException;
+  }
+
+  /** Keeps the current token across restarts. */
+  interface TokenStore {
+    /** Returns the saved token, or null if there is none or it can not be read. */
+    @Nullable
+    StoredToken load();
+
+    void save(StoredToken token) throws IOException;
+  }
+
+  /** A token with its issue and expiry time in milliseconds since the epoch. */
+  static final class StoredToken {
+    final String value;
+    final long issuedAtMillis;
+    final long expiresAtMillis;
+
+    StoredToken(String value, long issuedAtMillis, long expiresAtMillis) {
+      this.value = checkNotNull(value, "value can not be null");
+      this.issuedAtMillis = issuedAtMillis;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+
+  private final TokenSource source;
+  private final int refreshPercent;
+  private final TokenStore store;
+  private final Clock clock;
+  private final ScheduledExecutorService executor;
+  private final Ticker ticker;
+  /** Held while a token request is in flight. */
+  private final Object acquireLock = new Object();
+
+  private final LongAdder renewals = new LongAdder();
+
+  private volatile CachedToken current;
+  private volatile boolean closed;
+  // Guarded by acquireLock.
+  private ScheduledFuture<?> scheduledRefresh;
+
+  /**
+   * Creates a cache that renews tokens after {@code refreshPercent} of their lifetime.
+   *
+   * @param source sends token requests
+   * @param refreshPercent percentage of {@code expires_in} after which a token is renewed
+   */
+  AccessTokenCache(TokenSource source, int refreshPercent) {
+    this(source, refreshPercent, null);
+  }
+
+  /**
+   * Creates a cache that saves its tokens to {@code store} and starts with the token saved there,
+   * if it is still valid.
+   */
+  AccessTokenCache(TokenSource source, int refreshPercent, @Nullable TokenStore store) {
+    this(
+        source,
+        refreshPercent,
+        store,
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("o365-token-refresh-%d")
+                .setDaemon(true)
+                .build()),
+        Ticker.systemTicker(),
+        Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  AccessTokenCache(
+      TokenSource source, int refreshPercent, ScheduledExecutorService executor, Ticker ticker) {
+    this(source, refreshPercent, null, executor, ticker, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  AccessTokenCache(
+      TokenSource source,
+      int refreshPercent,
+      @Nullable TokenStore store,
+      ScheduledExecutorService executor,
+      Ticker ticker,
+      Clock clock) {
+    checkArgument(
+        refreshPercent > 0 && refreshPercent < 100, "refresh percent must be between 1 and 99");
+    this.source = checkNotNull(source, "token source can not be null");
+    this.refreshPercent = refreshPercent;
+    this.store = store;
+    this.executor = checkNotNull(executor, "executor can not be null");
+    this.ticker = checkNotNull(ticker, "ticker can not be null");
+    this.clock = checkNotNull(clock, "clock can not be null");
+    if (store != null) {
+      synchronized (acquireLock) {
+        restore(store.load());
+      }
+    }
+  }
+
+  /** Returns an unexpired access token, requesting one only if there is none. */
+  String get() throws IOException, GeneralSecurityException {
+    CachedToken token = current;
+    if (token != null && !token.isExpired(ticker.read())) {
+      return token.value;
+    }
+    synchronized (acquireLock) {
+      token = current;
+      if (token != null && !token.isExpired(ticker.read())) {
+        return token.value;
+      }
+      return acquire().value;
+    }
+  }
+
+  /**
+   * Replaces {@code rejected} with a new token, unless it was already replaced. When many
+   * requests are rejected with the same token, only the first one sends a token request, and the
+   * others get its result.
+   *
+   * @param rejected the token a request was rejected with
+   * @return an unexpired token other than {@code rejected}
+   */
+  String renew(String rejected) throws IOException, GeneralSecurityException {
+    synchronized (acquireLock) {
+      CachedToken token = current;
+      if (token != null && !token.value.equals(rejected) && !token.isExpired(ticker.read())) {
+        return token.value;
+      }
+      renewals.increment();
+      logger.log(Level.INFO, "Access token rejected before it expired. Requesting a new one.");
+      return acquire().value;
+    }
+  }
+
+  /** Returns the number of tokens replaced with {@link #renew}. */
+  long getRenewalCount() {
+    return renewals.sum();
+  }
+
+  /** Stops renewing tokens. */
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns whether {@code stored} has at least {@value #MIN_STORED_REMAINING_SECONDS} seconds
+   * left at {@code nowMillis}.
+   */
+  static boolean isUsable(@Nullable StoredToken stored, long nowMillis) {
+    return stored != null
+        && stored.expiresAtMillis - nowMillis
+            >= TimeUnit.SECONDS.toMillis(MIN_STORED_REMAINING_SECONDS);
+  }
+
+  // Called with acquireLock held.
+  private void restore(@Nullable StoredToken stored) {
+    if (stored == null) {
+      return;
+    }
+    long nowMillis = clock.millis();
+    if (!isUsable(stored, nowMillis)) {
+      return;
+    }
+    long remainingMillis = stored.expiresAtMillis - nowMillis;
+    long lifetimeMillis = stored.expiresAtMillis - stored.issuedAtMillis;
+    long refreshAtMillis = stored.issuedAtMillis + lifetimeMillis / 100 * refreshPercent;
+    current =
+        new CachedToken(
+            stored.value, ticker.read() + TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+    scheduleRefresh(TimeUnit.MILLISECONDS.toNanos(Math.max(0, refreshAtMillis - nowMillis)));
+    logger.log(
+        Level.INFO,
+        "Using saved access token, valid for {0} more seconds.",
+        TimeUnit.MILLISECONDS.toSeconds(remainingMillis));
+  }
+
+  // Called with acquireLock held.
+  private CachedToken acquire() throws IOException, GeneralSecurityException {
+    long start = ticker.read();
+    long startMillis = clock.millis();
+    AccessToken response = source.acquire();
+    if (response == null || Strings.isNullOrEmpty(response.access_token)) {
+      throw new IOException("Token response did not include an access token");
+    }
+    int expiresInSeconds =
+        response.expires_in == null || response.expires_in <= 0
+            ? DEFAULT_EXPIRES_IN_SECONDS
+            : response.expires_in;
+    long lifetimeNanos = TimeUnit.SECONDS.toNanos(expiresInSeconds);
+    // The lifetime counts from before the request, so the token never outlives its expiry.
+    CachedToken token = new CachedToken(response.access_token, start + lifetimeNanos);
+    current = token;
+    scheduleRefresh(lifetimeNanos / 100 * refreshPercent);
+    if (store != null) {
+      try {
+        store.save(
+            new StoredToken(
+                token.value,
+                startMillis,
+                startMillis + TimeUnit.SECONDS.toMillis(expiresInSeconds)));
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to save access token.", e);
+      }
+    }
+    return token;
+  }
+
+  // Called with acquireLock held.
+  private void scheduleRefresh(long delayNanos) {
+    if (closed) {
+      return;
+    }
+    if (scheduledRefresh != null) {
+      scheduledRefresh.cancel(false);
+    }
+    try {
+      scheduledRefresh = executor.schedule(this::refresh, delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed concurrently.
+    }
+  }
+
+  private void refresh() {
+    synchronized (acquireLock) {
+      if (closed) {
+        return;
+      }
+      try {
+        acquire();
+        logger.log(Level.FINE, "Access token refreshed.");
+      } catch (IOException | GeneralSecurityException | RuntimeException e) {
+        CachedToken token = current;
+        long remainingNanos = token == null ? 0 : token.expiresAtNanos - ticker.read();
+        if (remainingNanos <= 0) {
+          // The next caller requests a token.
+          logger.log(Level.WARNING, "Failed to refresh access token before it expired.", e);
+          return;
+        }
+        long retryNanos =
+            Math.max(MIN_RETRY_DELAY_NANOS, Math.min(MAX_RETRY_DELAY_NANOS, remainingNanos / 2));
+        logger.log(
+            Level.WARNING,
+            String.format(
+                "Failed to refresh access token. Retrying in %d seconds.",
+                TimeUnit.NANOSECONDS.toSeconds(retryNanos)),
+            e);
+        scheduleRefresh(retryNanos);
+      }
+    }
+  }
+
+  private static final class CachedToken {
+    final String value;
+    final long expiresAtNanos;
+
+    CachedToken(String value, long expiresAtNanos) {
+      this.value = value;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    boolean isExpired(long nowNanos) {
+      return nowNanos - expiresAtNanos >= 0;
+    }
+  }
+}
@@ -18,24 +18,23 @@ package com.google.enterprise.cloudsearch.o365;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.json.webtoken.JsonWebSignature;
 import com.google.api.client.json.webtoken.JsonWebSignature.Header;
-import com.google.api.client.json.webtoken.JsonWebToken;
 import com.google.api.client.json.webtoken.JsonWebToken.Payload;
 import com.google.api.client.util.Key;
 import com.google.api.client.util.SecurityUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.TokenStore;
 import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -48,12 +47,14 @@ import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.temporal.ChronoField;
+import java.time.Clock;
 import java.util.Base64;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * This class creates application connection with Azure active directory v2.0 endpoint.
@@ -71,19 +72,31 @@ import java.util.concurrent.TimeUnit;
  *       private key and certificate.
  *   <li>{@value #KEYSTORE_PASSWORD} - Specifies the password of the keystore
  *   <li>{@value #KEYSTORE_ALIAS} - Specifies the alias of the key in the keystore.
+ *   <li>{@value Endpoints#LOGIN_BASE_URL_CONFIG} - Base URL of the token endpoint. Defaults to
+ *       {@value Endpoints#DEFAULT_LOGIN_BASE_URL}.
+ *   <li>{@value #TOKEN_REFRESH_PERCENT} - Percentage of an access token's lifetime after which it
+ *       is renewed in the background. Defaults to {@value #DEFAULT_TOKEN_REFRESH_PERCENT}.
+ *   <li>{@value #TOKEN_CACHE_FILE} - File to keep the current access token in, encrypted with a
+ *       key derived from the client secret or key store, so that a restart within the token's
+ *       lifetime does not request a new token or load the key store. Not set by default.
  * </ul>
+ *
+ * <p>The client, tenant, key store and token cache keys can be set per tenant, see {@link
+ * TenantConfiguration}.
  */
-public class ApiConnection {
+public class ApiConnection implements Closeable {
 
   private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-  private static final String TOKEN_ENDPOINT =
-      "https://login.microsoftonline.com/%s/oauth2/v2.0/token";
+  private static final String TOKEN_ENDPOINT_FORMAT = "%s/%s/oauth2/v2.0/token";
   public static final String CLIENT_ID = "o365.clientId";
   public static final String TENANT = "o365.tenant";
   public static final String CLIENT_SECRET = "o365.clientSecret";
   public static final String KEYSTORE_FILE = "o365.keyStore.file";
   public static final String KEYSTORE_PASSWORD = "o365.keyStore.password";
   public static final String KEYSTORE_ALIAS = "o365.keyStore.alias";
+  public static final String TOKEN_REFRESH_PERCENT = "o365.tokenRefreshPercent";
+  public static final String TOKEN_CACHE_FILE = "o365.tokenCache.file";
+  static final int DEFAULT_TOKEN_REFRESH_PERCENT = 75;
 
   private static final long DEFAULT_JWT_TOKEN_EXPIRATION_SECONDS = 300;
   private static final String SCOPE = "https://graph.microsoft.com/.default";
@@ -94,23 +107,35 @@ public class ApiConnection {
   private final RequestHelper<AccessToken> requestHelper;
   private final HttpClient httpClient;
   private URL accessTokenURL;
-  private final JWTHelper jwtHelper;
+  private final JWTHelperLoader jwtHelperLoader;
+  private JWTHelper jwtHelper;
   private ImmutableMap<String, String> content;
   private boolean isKeyStore;
   private String clientId;
-  private String tenant;
   private static final ImmutableMap<String, String> commonContent =
       ImmutableMap.<String, String>builder()
           .put("scope", SCOPE)
           .put("grant_type", GRANT_TYPE)
           .build();
 
-  private final LoadingCache<String, AccessToken> connectionCache;
+  private final AccessTokenCache tokenCache;
 
   static ApiConnection fromConfiguration(HttpClient httpClient)
       throws IOException, GeneralSecurityException {
+    return fromConfiguration(httpClient, (String) null);
+  }
+
+  /**
+   * Creates a connection with the credentials of {@code tenantName}.
+   *
+   * @param tenantName the name of a tenant listed in {@value TenantConfiguration#TENANTS_CONFIG},
+   *     or null for the single tenant configured with the {@code o365.*} keys
+   */
+  static ApiConnection fromConfiguration(HttpClient httpClient, @Nullable String tenantName)
+      throws IOException, GeneralSecurityException {
     return fromConfiguration(
         httpClient,
+        tenantName,
         (file, password, alias) ->
             new JWTHelper.Builder()
                 .setKeyStoreFilePath(file)
@@ -122,24 +147,71 @@ public class ApiConnection {
   @VisibleForTesting
   static ApiConnection fromConfiguration(HttpClient httpClient, JwtHelperBuilder jwtHelperBuilder)
       throws IOException, GeneralSecurityException {
+    return fromConfiguration(httpClient, null, jwtHelperBuilder);
+  }
+
+  private static ApiConnection fromConfiguration(
+      HttpClient httpClient, @Nullable String tenantName, JwtHelperBuilder jwtHelperBuilder)
+      throws IOException, GeneralSecurityException {
     checkState(Configuration.isInitialized(), "configuration not initialized");
     // required fields
-    String clientId = Configuration.getString(CLIENT_ID, null).get();
-    String tenant = Configuration.getString(TENANT, null).get();
-    String clientSecret = Configuration.getString(CLIENT_SECRET, "").get();
+    String clientId =
+        Configuration.getString(TenantConfiguration.getKey(tenantName, CLIENT_ID), null).get();
+    String tenant =
+        Configuration.getString(TenantConfiguration.getKey(tenantName, TENANT), null).get();
+    String clientSecret =
+        Configuration.getString(TenantConfiguration.getKey(tenantName, CLIENT_SECRET), "").get();
+    String loginBaseUrl = Endpoints.getLoginBaseUrl();
+    String tokenCacheFile =
+        Configuration.getString(TenantConfiguration.getKey(tenantName, TOKEN_CACHE_FILE), "")
+            .get();
+    String tokenCacheBinding =
+        String.format(TOKEN_ENDPOINT_FORMAT, loginBaseUrl, tenant) + " " + clientId;
+    int tokenRefreshPercent =
+        Configuration.getInteger(TOKEN_REFRESH_PERCENT, DEFAULT_TOKEN_REFRESH_PERCENT).get();
+    Configuration.checkConfiguration(
+        tokenRefreshPercent > 0 && tokenRefreshPercent < 100,
+        "Invalid value [%s] for configuration key [%s]. Expected a percentage from 1 to 99.",
+        tokenRefreshPercent,
+        TOKEN_REFRESH_PERCENT);
 
     if (clientSecret.isEmpty()) {
       // key store can not be null
-      String keyStoreFilePath = Configuration.getString(KEYSTORE_FILE, null).get();
-      String keyStorePassword = Configuration.getString(KEYSTORE_PASSWORD, null).get();
-      String keyStoreAlias = Configuration.getString(KEYSTORE_ALIAS, null).get();
-      JWTHelper jwtHelper =
-          jwtHelperBuilder.build(keyStoreFilePath, keyStorePassword, keyStoreAlias);
+      String keyStoreFilePath =
+          Configuration.getString(TenantConfiguration.getKey(tenantName, KEYSTORE_FILE), null)
+              .get();
+      String keyStorePassword =
+          Configuration.getString(TenantConfiguration.getKey(tenantName, KEYSTORE_PASSWORD), null)
+              .get();
+      String keyStoreAlias =
+          Configuration.getString(TenantConfiguration.getKey(tenantName, KEYSTORE_ALIAS), null)
+              .get();
+      TokenStore tokenStore = null;
+      JWTHelperLoader jwtHelperLoader;
+      if (!tokenCacheFile.isEmpty()) {
+        tokenStore =
+            new EncryptedTokenFile(
+                Paths.get(tokenCacheFile),
+                getKeyStoreCredential(keyStorePassword, Paths.get(keyStoreFilePath)),
+                tokenCacheBinding);
+      }
+      if (tokenStore != null
+          && AccessTokenCache.isUsable(tokenStore.load(), System.currentTimeMillis())) {
+        jwtHelperLoader =
+            () -> jwtHelperBuilder.build(keyStoreFilePath, keyStorePassword, keyStoreAlias);
+      } else {
+        JWTHelper jwtHelper =
+            jwtHelperBuilder.build(keyStoreFilePath, keyStorePassword, keyStoreAlias);
+        jwtHelperLoader = () -> jwtHelper;
+      }
       return new Builder()
           .setClientId(clientId)
           .setTenant(tenant)
+          .setLoginBaseUrl(loginBaseUrl)
+          .setTokenRefreshPercent(tokenRefreshPercent)
           .setHttpClient(httpClient)
-          .setJWTHelper(jwtHelper)
+          .setJWTHelperLoader(jwtHelperLoader)
+          .setTokenStore(tokenStore)
           .build();
     }
 
@@ -147,10 +219,23 @@ public class ApiConnection {
         .setClientId(clientId)
         .setClientSecret(clientSecret)
         .setTenant(tenant)
+        .setLoginBaseUrl(loginBaseUrl)
+        .setTokenRefreshPercent(tokenRefreshPercent)
         .setHttpClient(httpClient)
+        .setTokenStore(
+            tokenCacheFile.isEmpty()
+                ? null
+                : new EncryptedTokenFile(
+                    Paths.get(tokenCacheFile), clientSecret.getBytes(UTF_8), tokenCacheBinding))
         .build();
   }
 
+  /** Loads the {@link JWTHelper} when the first client assertion is needed. */
+  @FunctionalInterface
+  interface JWTHelperLoader {
+    JWTHelper load() throws IOException, GeneralSecurityException;
+  }
+
   @VisibleForTesting
   @FunctionalInterface
   interface JwtHelperBuilder {
@@ -158,15 +243,50 @@ public class ApiConnection {
         throws IOException, GeneralSecurityException;
   }
 
-  String getAccessToken() throws ExecutionException {
-    return connectionCache.get("access-token").access_token;
+  /**
+   * Returns the secret material to derive the token file key from. The key store file is hashed
+   * instead of loaded, which is what a saved token avoids. A missing password is hashed as empty.
+   */
+  @VisibleForTesting
+  static byte[] getKeyStoreCredential(@Nullable String keyStorePassword, Path keyStoreFile)
+      throws IOException, GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update(Strings.nullToEmpty(keyStorePassword).getBytes(UTF_8));
+    digest.update(Files.readAllBytes(keyStoreFile));
+    return digest.digest();
+  }
+
+  /**
+   * Returns the current access token. Only waits for a token request if there is no unexpired
+   * token, as tokens are renewed in the background before they expire.
+   */
+  String getAccessToken() throws IOException, GeneralSecurityException {
+    return tokenCache.get();
+  }
+
+  /**
+   * Replaces an access token that was rejected before it expired. Concurrent calls for the same
+   * token send a single token request.
+   *
+   * @param rejected the token a request was rejected with
+   * @return a new access token
+   */
+  String renewAccessToken(String rejected) throws IOException, GeneralSecurityException {
+    return tokenCache.renew(rejected);
+  }
+
+  /** Stops renewing access tokens in the background. */
+  @Override
+  public void close() {
+    tokenCache.close();
   }
 
   private AccessToken acquireAccessToken() throws IOException, GeneralSecurityException {
     ImmutableMap<String, String> completeContent = content;
     if (isKeyStore) {
+      String assertion = getJWTHelper().getJWT(clientId, accessTokenURL.toString());
       completeContent = ImmutableMap.<String, String>builder()
-          .putAll(content).put("client_assertion", jwtHelper.getJWT(clientId, tenant)).build();
+          .putAll(content).put("client_assertion", assertion).build();
     }
 
     Request<AccessToken> accessTokenRequest = new PostRequest.Builder<AccessToken>()
@@ -175,12 +295,19 @@ public class ApiConnection {
     return requestHelper.executeRequest(accessTokenRequest, httpClient);
   }
 
+  private synchronized JWTHelper getJWTHelper() throws IOException, GeneralSecurityException {
+    if (jwtHelper == null) {
+      jwtHelper = jwtHelperLoader.load();
+    }
+    return jwtHelper;
+  }
+
   ApiConnection(Builder builder) throws MalformedURLException {
-    accessTokenURL = new URL(String.format(TOKEN_ENDPOINT, builder.tenant));
-    jwtHelper = builder.jwtHelper;
+    accessTokenURL =
+        new URL(String.format(TOKEN_ENDPOINT_FORMAT, builder.loginBaseUrl, builder.tenant));
+    jwtHelperLoader = builder.jwtHelperLoader;
     isKeyStore = builder.isKeyStore;
     clientId = builder.clientId;
-    tenant = builder.tenant;
 
     if (!isKeyStore) {
       content =
@@ -196,28 +323,21 @@ public class ApiConnection {
     this.httpClient = builder.httpClient;
     this.requestHelper = builder.requestHelper;
 
-    //TODO(ruoxiwang):If necessary, we can make this configurable by user later.
-    this.connectionCache =
-        CacheBuilder.newBuilder()
-            .refreshAfterWrite(30, TimeUnit.MINUTES)
-            .expireAfterWrite(45, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, AccessToken>() {
-                  @Override
-                  public AccessToken load(String clientId)
-                      throws IOException, GeneralSecurityException {
-                    return acquireAccessToken();
-                  }
-                });
+    this.tokenCache =
+        new AccessTokenCache(
+            this::acquireAccessToken, builder.tokenRefreshPercent, builder.tokenStore);
   }
 
   public static class Builder {
     private String clientId;
     private String tenant;
     private String clientSecret;
+    private String loginBaseUrl = Endpoints.DEFAULT_LOGIN_BASE_URL;
+    private int tokenRefreshPercent = DEFAULT_TOKEN_REFRESH_PERCENT;
     private HttpClient httpClient;
     private RequestHelper<AccessToken> requestHelper = new RequestHelper<>();
-    private JWTHelper jwtHelper;
+    private JWTHelperLoader jwtHelperLoader;
+    private TokenStore tokenStore;
     boolean isKeyStore = false;
 
     Builder setClientId(String clientId) {
@@ -235,6 +355,16 @@ public class ApiConnection {
       return this;
     }
 
+    Builder setLoginBaseUrl(String loginBaseUrl) {
+      this.loginBaseUrl = loginBaseUrl;
+      return this;
+    }
+
+    Builder setTokenRefreshPercent(int tokenRefreshPercent) {
+      this.tokenRefreshPercent = tokenRefreshPercent;
+      return this;
+    }
+
     Builder setHttpClient(HttpClient httpClient) {
       this.httpClient = httpClient;
       return this;
@@ -246,15 +376,33 @@ public class ApiConnection {
     }
 
     Builder setJWTHelper(JWTHelper jwtHelper) {
-      this.jwtHelper = jwtHelper;
+      this.jwtHelperLoader = jwtHelper == null ? null : () -> jwtHelper;
+      return this;
+    }
+
+    /** Sets a loader for the {@link JWTHelper}, called when the first assertion is needed. */
+    Builder setJWTHelperLoader(JWTHelperLoader jwtHelperLoader) {
+      this.jwtHelperLoader = jwtHelperLoader;
+      return this;
+    }
+
+    /** Sets the store to keep access tokens in across restarts, or null to not keep them. */
+    Builder setTokenStore(@Nullable TokenStore tokenStore) {
+      this.tokenStore = tokenStore;
       return this;
     }
 
     ApiConnection build() throws MalformedURLException {
       checkArgument(!Strings.isNullOrEmpty(clientId), "clientId can not be null or empty");
       checkArgument(!Strings.isNullOrEmpty(tenant), "tenant can not be null or empty");
+      checkArgument(
+          !Strings.isNullOrEmpty(loginBaseUrl), "login base URL can not be null or empty");
+      checkArgument(
+          tokenRefreshPercent > 0 && tokenRefreshPercent < 100,
+          "token refresh percent must be between 1 and 99");
       if (Strings.isNullOrEmpty(clientSecret)) {
-        checkNotNull(jwtHelper, "jwt helper can not be null when clientSecret is null or empty");
+        checkNotNull(
+            jwtHelperLoader, "jwt helper can not be null when clientSecret is null or empty");
         isKeyStore = true;
       }
       checkNotNull(httpClient, "HttpClient can not be null");
@@ -275,40 +423,137 @@ public class ApiConnection {
     }
   }
 
+  /**
+   * Signs the JWT client assertions sent instead of a client secret.
+   *
+   * <p>An assertion is valid for five minutes and is reused until less than {@value
+   * #MIN_REMAINING_SECONDS} seconds of that are left. Once half
+   * of its lifetime has passed, the next assertion is signed in the background, so callers rarely
+   * wait for an RSA signature. Assertions are immutable, so concurrent callers share them
+   * without locking. Since an assertion is presented more than once, it carries no jti claim,
+   * which would promise a single use.
+   */
   static class JWTHelper {
+    @VisibleForTesting static final long MIN_REMAINING_SECONDS = 60;
+    private static final long PRESIGN_AFTER_SECONDS = DEFAULT_JWT_TOKEN_EXPIRATION_SECONDS / 2;
 
-    private PrivateKey privateKey;
-    private JsonWebSignature.Header header;
-    private JsonWebToken.Payload payload;
+    private final PrivateKey privateKey;
+    private final JsonWebSignature.Header header;
+    private final Clock clock;
+    private final Executor presignExecutor;
+    private final AtomicReference<SignedAssertion> current = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<SignedAssertion>> next =
+        new AtomicReference<>();
 
     JWTHelper(Builder builder) {
+      this(
+          builder.privateKey,
+          builder.certCustomKeyId,
+          Clock.systemUTC(),
+          ForkJoinPool.commonPool());
+    }
 
-      this.privateKey = builder.privateKey;
+    @VisibleForTesting
+    JWTHelper(
+        PrivateKey privateKey, String certThumbprint, Clock clock, Executor presignExecutor) {
+      this.privateKey = checkNotNull(privateKey, "private key can not be null");
+      this.clock = checkNotNull(clock, "clock can not be null");
+      this.presignExecutor = checkNotNull(presignExecutor, "executor can not be null");
       header = new Header();
       header.setAlgorithm("RS256");
       header.setType("JWT");
-      header.setX509Thumbprint(builder.certCustomKeyId);
+      header.setX509Thumbprint(certThumbprint);
     }
 
-    private synchronized String getJWT(String clientId, String tenant)
-        throws GeneralSecurityException, IOException {
+    /** Returns a signed client assertion for {@code clientId} to present to {@code audience}. */
+    String getJWT(String clientId, String audience) throws GeneralSecurityException, IOException {
+      long now = clock.instant().getEpochSecond();
+      SignedAssertion assertion = current.get();
+      if (!isUsable(assertion, clientId, audience, now)) {
+        assertion = takePresigned(clientId, audience, now);
+        if (assertion == null) {
+          assertion = sign(clientId, audience, now);
+        }
+        // Concurrent callers may each sign one; any of them can be kept.
+        current.set(assertion);
+      }
+      if (now - assertion.issuedAtSeconds >= PRESIGN_AFTER_SECONDS) {
+        presign(clientId, audience);
+      }
+      return assertion.value;
+    }
 
-      checkNotNull(header, "header can not be null");
+    private static boolean isUsable(
+        SignedAssertion assertion, String clientId, String audience, long now) {
+      return assertion != null
+          && assertion.clientId.equals(clientId)
+          && assertion.audience.equals(audience)
+          && assertion.expiresAtSeconds - now >= MIN_REMAINING_SECONDS;
+    }
+
+    /** Returns the assertion signed in the background, if it is ready and usable. */
+    private SignedAssertion takePresigned(String clientId, String audience, long now) {
+      CompletableFuture<SignedAssertion> pending = next.get();
+      if (pending == null || !pending.isDone() || !next.compareAndSet(pending, null)) {
+        return null;
+      }
+      SignedAssertion assertion = pending.isCompletedExceptionally() ? null : pending.join();
+      return isUsable(assertion, clientId, audience, now) ? assertion : null;
+    }
 
-      if (payload == null) {
-        payload = new Payload();
-        payload.setIssuer(clientId);
-        payload.setAudience(String.format(TOKEN_ENDPOINT, tenant));
-        payload.setSubject(clientId);
+    /** Signs the next assertion in the background, unless one is already signed or pending. */
+    private void presign(String clientId, String audience) {
+      CompletableFuture<SignedAssertion> pending = new CompletableFuture<>();
+      if (!next.compareAndSet(null, pending)) {
+        return;
+      }
+      try {
+        presignExecutor.execute(
+            () -> {
+              try {
+                pending.complete(sign(clientId, audience, clock.instant().getEpochSecond()));
+              } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                pending.completeExceptionally(e);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        pending.completeExceptionally(e);
       }
-      //update expiration time
-      ZonedDateTime zdt = ZonedDateTime.now(ZoneOffset.UTC);
-      long currentTimeseconds = zdt.getLong(ChronoField.INSTANT_SECONDS);
-      payload.setIssuedAtTimeSeconds(currentTimeseconds);
-      payload.setExpirationTimeSeconds(currentTimeseconds + DEFAULT_JWT_TOKEN_EXPIRATION_SECONDS);
+    }
 
-      return JsonWebSignature.signUsingRsaSha256(privateKey, JSON_FACTORY, header, payload);
+    private SignedAssertion sign(String clientId, String audience, long now)
+        throws GeneralSecurityException, IOException {
+      Payload payload = new Payload();
+      payload.setIssuer(clientId);
+      payload.setAudience(audience);
+      payload.setSubject(clientId);
+      payload.setIssuedAtTimeSeconds(now);
+      payload.setNotBeforeTimeSeconds(now);
+      payload.setExpirationTimeSeconds(now + DEFAULT_JWT_TOKEN_EXPIRATION_SECONDS);
+      String value = JsonWebSignature.signUsingRsaSha256(privateKey, JSON_FACTORY, header, payload);
+      return new SignedAssertion(
+          clientId, audience, value, now, now + DEFAULT_JWT_TOKEN_EXPIRATION_SECONDS);
+    }
 
+    private static final class SignedAssertion {
+      final String clientId;
+      final String audience;
+      final String value;
+      final long issuedAtSeconds;
+      final long expiresAtSeconds;
+
+      SignedAssertion(
+          String clientId,
+          String audience,
+          String value,
+          long issuedAtSeconds,
+          long expiresAtSeconds) {
+        this.clientId = clientId;
+        this.audience = audience;
+        this.value = value;
+        this.issuedAtSeconds = issuedAtSeconds;
+        this.expiresAtSeconds = expiresAtSeconds;
+      }
     }
 
     static class Builder {
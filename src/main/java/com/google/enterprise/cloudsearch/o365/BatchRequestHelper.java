@@ -0,0 +1,262 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.client.util.Sleeper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helper class to execute several independent GET {@link Request}s as a single Microsoft Graph
+ * JSON batch request.
+ *
+ * <p>Up to {@value #MAX_BATCH_SIZE} requests are packed into one {@code POST /$batch}. The
+ * responses are matched back to the original requests, and requests whose individual response
+ * was throttled (429) or failed with a server error (5xx) are sent again in a smaller batch,
+ * honoring the largest {@code Retry-After} among them.
+ */
+public class BatchRequestHelper {
+  private static final Logger logger = Logger.getLogger(BatchRequestHelper.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  /** Maximum number of requests Microsoft Graph accepts in a single batch. */
+  public static final int MAX_BATCH_SIZE = 20;
+
+  static final int MAX_ATTEMPTS = 4;
+  private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final RequestHelper<BatchResponse> requestHelper;
+  private final String graphBaseUrl;
+  private final URL batchURL;
+  private final Sleeper sleeper;
+
+  public BatchRequestHelper(RequestHelper<BatchResponse> requestHelper) throws IOException {
+    this(requestHelper, Endpoints.DEFAULT_GRAPH_BASE_URL);
+  }
+
+  /**
+   * Creates a helper for the Microsoft Graph API at {@code graphBaseUrl}.
+   *
+   * @param requestHelper to execute the batch requests
+   * @param graphBaseUrl base URL of the batched requests, without a trailing slash
+   */
+  public BatchRequestHelper(RequestHelper<BatchResponse> requestHelper, String graphBaseUrl)
+      throws IOException {
+    this(requestHelper, graphBaseUrl, Sleeper.DEFAULT);
+  }
+
+  @VisibleForTesting
+  BatchRequestHelper(
+      RequestHelper<BatchResponse> requestHelper, String graphBaseUrl, Sleeper sleeper)
+      throws IOException {
+    this.requestHelper = checkNotNull(requestHelper, "RequestHelper can not be null");
+    this.graphBaseUrl = checkNotNull(graphBaseUrl, "Graph base URL can not be null");
+    this.sleeper = checkNotNull(sleeper, "Sleeper can not be null");
+    this.batchURL = new URL(graphBaseUrl + "/$batch");
+  }
+
+  /**
+   * Executes {@code requests} as a single batch.
+   *
+   * @param requests GET requests against Microsoft Graph, at most {@value #MAX_BATCH_SIZE}
+   * @param client to create the batch {@link com.google.api.client.http.HttpRequest}
+   * @return successful responses keyed by their original request. Requests that failed, or were
+   *     still throttled after {@value #MAX_ATTEMPTS} attempts, are missing from the result.
+   * @throws IOException if the batch request itself fails
+   */
+  public <T extends GenericJson> Map<Request<T>, T> executeBatch(
+      List<? extends Request<T>> requests, HttpClient client) throws IOException {
+    checkArgument(
+        requests.size() <= MAX_BATCH_SIZE,
+        "A batch can contain at most %s requests",
+        MAX_BATCH_SIZE);
+    Map<Request<T>, T> results = new HashMap<>();
+    List<Request<T>> pending = new ArrayList<>(requests);
+    long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+    for (int attempt = 1; !pending.isEmpty(); attempt++) {
+      Map<String, Request<T>> byId = new LinkedHashMap<>();
+      BatchRequestBody body = new BatchRequestBody();
+      body.requests = new ArrayList<>();
+      for (Request<T> request : pending) {
+        String id = Integer.toString(byId.size() + 1);
+        byId.put(id, request);
+        body.requests.add(new BatchRequestItem(id, toRelativeUrl(request.getRequestURL())));
+      }
+      Request<BatchResponse> batchRequest =
+          new PostRequest.Builder<BatchResponse>()
+              .setJsonContent(body)
+              .setRequestURL(batchURL)
+              .setResponseClass(BatchResponse.class)
+              .build();
+      BatchResponse batchResponse = requestHelper.executeRequest(batchRequest, client);
+      List<BatchResponseItem> responses =
+          batchResponse == null || batchResponse.responses == null
+              ? Collections.emptyList()
+              : batchResponse.responses;
+
+      pending = new ArrayList<>();
+      long retryAfterMillis = 0;
+      for (BatchResponseItem response : responses) {
+        Request<T> request = byId.remove(response.id);
+        if (request == null) {
+          continue;
+        }
+        int status = response.status == null ? 0 : response.status;
+        if (status >= 200 && status < 300) {
+          results.put(request, parseBody(response, request.getResponseClass()));
+        } else if (isRetryable(status) && attempt < MAX_ATTEMPTS) {
+          pending.add(request);
+          retryAfterMillis = Math.max(retryAfterMillis, response.getRetryAfterMillis());
+        } else {
+          logger.log(
+              Level.WARNING,
+              "Batched request [{0}] failed with status [{1}].",
+              new Object[] {request.getRequestURL(), status});
+        }
+      }
+      if (!byId.isEmpty()) {
+        logger.log(Level.WARNING, "Missing batch responses for requests {0}.", byId.values());
+      }
+      if (!pending.isEmpty()) {
+        sleep(Math.max(retryAfterMillis, retryDelayMillis));
+        retryDelayMillis *= 2;
+      }
+    }
+    return results;
+  }
+
+  private void sleep(long millis) throws IOException {
+    try {
+      sleeper.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry batched requests");
+    }
+  }
+
+  private static boolean isRetryable(int status) {
+    return status == 429 || status >= 500;
+  }
+
+  private String toRelativeUrl(URL url) {
+    String absolute = url.toString();
+    checkArgument(
+        absolute.startsWith(graphBaseUrl + "/"),
+        "Only Microsoft Graph requests can be batched: %s",
+        absolute);
+    return absolute.substring(graphBaseUrl.length());
+  }
+
+  private static <T> T parseBody(BatchResponseItem response, Class<T> responseClass)
+      throws IOException {
+    String body = response.body == null ? "{}" : JSON_FACTORY.toString(response.body);
+    if (DirectoryObjectsDecoder.supports(responseClass)) {
+      return DirectoryObjectsDecoder.decodePage(
+          new ByteArrayInputStream(body.getBytes(UTF_8)), responseClass);
+    }
+    return JSON_FACTORY.fromString(body, responseClass);
+  }
+
+  /** Body of a JSON batch request. */
+  public static class BatchRequestBody extends GenericJson {
+    @Key List<BatchRequestItem> requests;
+
+    public BatchRequestBody() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+  }
+
+  /** A single request within a JSON batch request. */
+  public static class BatchRequestItem extends GenericJson {
+    @Key String id;
+    @Key String method;
+    @Key String url;
+
+    public BatchRequestItem() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+
+    BatchRequestItem(String id, String url) {
+      this();
+      this.id = id;
+      this.method = "GET";
+      this.url = url;
+    }
+  }
+
+  /** Body of a JSON batch response. */
+  public static class BatchResponse extends GenericJson {
+    @Key List<BatchResponseItem> responses;
+
+    public BatchResponse() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+  }
+
+  /** A single response within a JSON batch response. */
+  public static class BatchResponseItem extends GenericJson {
+    @Key String id;
+    @Key Integer status;
+    @Key Map<String, String> headers;
+    @Key Map<String, Object> body;
+
+    public BatchResponseItem() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+
+    long getRetryAfterMillis() {
+      if (headers == null) {
+        return 0;
+      }
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        if ("Retry-After".equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+          try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim()));
+          } catch (NumberFormatException e) {
+            return 0;
+          }
+        }
+      }
+      return 0;
+    }
+  }
+}
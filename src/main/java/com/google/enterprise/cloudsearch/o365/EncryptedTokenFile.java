@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.StoredToken;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.TokenStore;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps the current access token in a file encrypted with AES-GCM, so that a restarted connector
+ * can use it until it expires instead of requesting a new one.
+ *
+ * <p>The encryption key is derived from the application credentials with HMAC-SHA256 and a random
+ * salt stored in the file, so only a process configured with the same credentials can read the
+ * token. The token endpoint and client id are authenticated with the token, and a file written
+ * for another tenant or application is ignored.
+ */
+final class EncryptedTokenFile implements TokenStore {
+  private static final Logger logger = Logger.getLogger(EncryptedTokenFile.class.getName());
+
+  private static final int FORMAT_VERSION = 1;
+  private static final int SALT_BYTES = 16;
+  private static final int IV_BYTES = 12;
+  private static final int TAG_BITS = 128;
+  // Version, salt, IV and ciphertext length.
+  private static final int HEADER_BYTES = 4 + SALT_BYTES + IV_BYTES + 4;
+  private static final byte[] KEY_INFO = "o365 access token cache".getBytes(UTF_8);
+
+  private final Path file;
+  private final byte[] credential;
+  private final byte[] binding;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Creates a token file.
+   *
+   * @param file the file to keep the token in
+   * @param credential secret material of the application credentials to derive the key from
+   * @param binding identifies the token endpoint and client the token was issued for
+   */
+  EncryptedTokenFile(Path file, byte[] credential, String binding) {
+    this.file = checkNotNull(file, "file can not be null");
+    checkArgument(credential != null && credential.length > 0, "credential can not be empty");
+    this.credential = credential.clone();
+    this.binding = checkNotNull(binding, "binding can not be null").getBytes(UTF_8);
+  }
+
+  @Override
+  @Nullable
+  public StoredToken load() {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        logger.log(Level.WARNING, "Ignoring token cache [{0}] of an unknown version.", file);
+        return null;
+      }
+      byte[] salt = new byte[SALT_BYTES];
+      in.readFully(salt);
+      byte[] iv = new byte[IV_BYTES];
+      in.readFully(iv);
+      int length = in.readInt();
+      // A corrupted length could otherwise ask for an allocation larger than the heap.
+      if (length < 0 || length > Files.size(file) - HEADER_BYTES) {
+        throw new IOException("Invalid ciphertext length " + length);
+      }
+      byte[] ciphertext = new byte[length];
+      in.readFully(ciphertext);
+      Cipher cipher = newCipher(Cipher.DECRYPT_MODE, salt, iv);
+      DataInputStream plaintext =
+          new DataInputStream(new ByteArrayInputStream(cipher.doFinal(ciphertext)));
+      return new StoredToken(plaintext.readUTF(), plaintext.readLong(), plaintext.readLong());
+    } catch (IOException | GeneralSecurityException | RuntimeException e) {
+      // Also thrown when the credentials or the token endpoint changed.
+      logger.log(Level.WARNING, "Ignoring unreadable token cache [" + file + "].", e);
+      return null;
+    }
+  }
+
+  @Override
+  public void save(StoredToken token) throws IOException {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    byte[] iv = new byte[IV_BYTES];
+    random.nextBytes(iv);
+    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(plaintext)) {
+      out.writeUTF(token.value);
+      out.writeLong(token.issuedAtMillis);
+      out.writeLong(token.expiresAtMillis);
+    }
+    byte[] ciphertext;
+    try {
+      ciphertext = newCipher(Cipher.ENCRYPT_MODE, salt, iv).doFinal(plaintext.toByteArray());
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Error encrypting access token", e);
+    }
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.deleteIfExists(tempFile);
+    createOwnerOnlyFile(tempFile);
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+      out.writeInt(FORMAT_VERSION);
+      out.write(salt);
+      out.write(iv);
+      out.writeInt(ciphertext.length);
+      out.write(ciphertext);
+    }
+    Files.move(
+        tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Cipher newCipher(int mode, byte[] salt, byte[] iv) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(credential, "HmacSHA256"));
+    mac.update(salt);
+    byte[] key = mac.doFinal(KEY_INFO);
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_BITS, iv));
+    Arrays.fill(key, (byte) 0);
+    cipher.updateAAD(binding);
+    return cipher;
+  }
+
+  private static void createOwnerOnlyFile(Path path) throws IOException {
+    try {
+      Files.createFile(
+          path,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      Files.createFile(path);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Base URLs of the Azure AD token endpoint and of Microsoft Graph.
+ *
+ * <p>Both can be pointed at a local stand-in server for load testing.
+ *
+ * <ul>
+ *   <li>{@value #GRAPH_BASE_URL_CONFIG} - Base URL of the Microsoft Graph API, including its
+ *       version. Defaults to {@value #DEFAULT_GRAPH_BASE_URL}.
+ *   <li>{@value #LOGIN_BASE_URL_CONFIG} - Base URL of the Azure AD v2.0 token endpoint, without
+ *       the tenant. Defaults to {@value #DEFAULT_LOGIN_BASE_URL}.
+ * </ul>
+ */
+public final class Endpoints {
+  public static final String GRAPH_BASE_URL_CONFIG = "o365.graphBaseUrl";
+  public static final String LOGIN_BASE_URL_CONFIG = "o365.loginBaseUrl";
+  public static final String DEFAULT_GRAPH_BASE_URL = "https://graph.microsoft.com/v1.0";
+  public static final String DEFAULT_LOGIN_BASE_URL = "https://login.microsoftonline.com";
+
+  private Endpoints() {}
+
+  /** Returns the configured Microsoft Graph base URL, without a trailing slash. */
+  public static String getGraphBaseUrl() {
+    return getBaseUrl(GRAPH_BASE_URL_CONFIG, DEFAULT_GRAPH_BASE_URL);
+  }
+
+  /** Returns the configured Azure AD login base URL, without a trailing slash. */
+  public static String getLoginBaseUrl() {
+    return getBaseUrl(LOGIN_BASE_URL_CONFIG, DEFAULT_LOGIN_BASE_URL);
+  }
+
+  private static String getBaseUrl(String configKey, String defaultValue) {
+    String value = Configuration.getString(configKey, defaultValue).get().trim();
+    while (value.endsWith("/")) {
+      value = value.substring(0, value.length() - 1);
+    }
+    boolean valid;
+    try {
+      String protocol = new URL(value).getProtocol();
+      valid = protocol.equals("https") || protocol.equals("http");
+    } catch (MalformedURLException e) {
+      valid = false;
+    }
+    Configuration.checkConfiguration(
+        valid, "Invalid URL [%s] for configuration key [%s]", value, configKey);
+    return value;
+  }
+}
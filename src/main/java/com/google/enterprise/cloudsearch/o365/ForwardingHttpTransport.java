@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/** Base class of {@link HttpTransport} decorators that build their requests with a delegate. */
+abstract class ForwardingHttpTransport extends HttpTransport {
+  private static final Method BUILD_REQUEST;
+
+  static {
+    // HttpTransport#buildRequest is protected, and a decorator outside its package can only
+    // reach it through reflection.
+    try {
+      BUILD_REQUEST =
+          HttpTransport.class.getDeclaredMethod("buildRequest", String.class, String.class);
+      BUILD_REQUEST.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final HttpTransport delegate;
+
+  ForwardingHttpTransport(HttpTransport delegate) {
+    this.delegate = checkNotNull(delegate, "delegate transport can not be null");
+  }
+
+  @Override
+  public boolean supportsMethod(String method) throws IOException {
+    return delegate.supportsMethod(method);
+  }
+
+  @Override
+  public void shutdown() throws IOException {
+    delegate.shutdown();
+  }
+
+  /** Builds a request with the delegate transport. */
+  LowLevelHttpRequest buildDelegateRequest(String method, String url) throws IOException {
+    try {
+      return (LowLevelHttpRequest) BUILD_REQUEST.invoke(delegate, method, url);
+    } catch (IllegalAccessException e) {
+      throw new IOException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link HttpTransport} decorator that decodes gzip encoded responses and counts their size on
+ * the wire and after decoding in a {@link TransferStats}.
+ *
+ * <p>Responses are decoded as they are read, with a larger buffer than the decoder of {@link
+ * com.google.api.client.http.HttpResponse}. The decoded responses no longer report a {@code
+ * Content-Encoding} or {@code Content-Length}, so they are not decoded a second time.
+ */
+final class GzipHttpTransport extends ForwardingHttpTransport {
+  private static final int DECODER_BUFFER_SIZE = 64 * 1024;
+
+  private final TransferStats stats;
+
+  GzipHttpTransport(HttpTransport delegate, TransferStats stats) {
+    super(delegate);
+    this.stats = checkNotNull(stats, "transfer stats can not be null");
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+    return new DecodingRequest(buildDelegateRequest(method, url));
+  }
+
+  private static boolean isGzip(String contentEncoding) {
+    return contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("gzip");
+  }
+
+  private class DecodingRequest extends LowLevelHttpRequest {
+    private final LowLevelHttpRequest request;
+
+    DecodingRequest(LowLevelHttpRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws IOException {
+      request.addHeader(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+      request.setTimeout(connectTimeout, readTimeout);
+    }
+
+    @Override
+    public void setWriteTimeout(int writeTimeout) throws IOException {
+      request.setWriteTimeout(writeTimeout);
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      request.setContentType(getContentType());
+      request.setContentEncoding(getContentEncoding());
+      request.setContentLength(getContentLength());
+      request.setStreamingContent(getStreamingContent());
+      LowLevelHttpResponse response = request.execute();
+      boolean gzip = isGzip(response.getContentEncoding());
+      stats.recordResponse(gzip);
+      return new DecodingResponse(response, gzip);
+    }
+  }
+
+  private class DecodingResponse extends LowLevelHttpResponse {
+    private final LowLevelHttpResponse response;
+    private final boolean gzip;
+    // Indexes of the headers of the delegate response that are exposed.
+    private final List<Integer> headerIndexes = new ArrayList<>();
+
+    DecodingResponse(LowLevelHttpResponse response, boolean gzip) throws IOException {
+      this.response = response;
+      this.gzip = gzip;
+      for (int i = 0; i < response.getHeaderCount(); i++) {
+        String name = response.getHeaderName(i);
+        if (gzip
+            && ("Content-Encoding".equalsIgnoreCase(name)
+                || "Content-Length".equalsIgnoreCase(name))) {
+          continue;
+        }
+        headerIndexes.add(i);
+      }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      InputStream content = response.getContent();
+      if (content == null) {
+        return null;
+      }
+      if (!gzip) {
+        return new CountingInputStream(
+            content,
+            bytes -> {
+              stats.addWireBytes(bytes);
+              stats.addDecodedBytes(bytes);
+            });
+      }
+      InputStream wire = new CountingInputStream(content, stats::addWireBytes);
+      try {
+        return new CountingInputStream(
+            new GZIPInputStream(wire, DECODER_BUFFER_SIZE), stats::addDecodedBytes);
+      } catch (EOFException e) {
+        // empty body, e.g. in response to a HEAD request
+        wire.close();
+        return new ByteArrayInputStream(new byte[0]);
+      }
+    }
+
+    @Override
+    public String getContentEncoding() throws IOException {
+      return gzip ? null : response.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLength() throws IOException {
+      return gzip ? -1 : response.getContentLength();
+    }
+
+    @Override
+    public String getContentType() throws IOException {
+      return response.getContentType();
+    }
+
+    @Override
+    public String getStatusLine() throws IOException {
+      return response.getStatusLine();
+    }
+
+    @Override
+    public int getStatusCode() throws IOException {
+      return response.getStatusCode();
+    }
+
+    @Override
+    public String getReasonPhrase() throws IOException {
+      return response.getReasonPhrase();
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return headerIndexes.size();
+    }
+
+    @Override
+    public String getHeaderName(int index) throws IOException {
+      return response.getHeaderName(headerIndexes.get(index));
+    }
+
+    @Override
+    public String getHeaderValue(int index) throws IOException {
+      return response.getHeaderValue(headerIndexes.get(index));
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+      response.disconnect();
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private final LongConsumer counter;
+
+    CountingInputStream(InputStream in, LongConsumer counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        counter.accept(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        counter.accept(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      if (skipped > 0) {
+        counter.accept(skipped);
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -22,19 +22,25 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.Closeable;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Optional;
+import javax.annotation.Nullable;
 
 /** Utility class for building {@link HttpRequest}. */
 public class HttpClient {
   private final HttpTransport transport;
   private final HttpRequestFactory requestFactory;
   private final HttpRequestInitializer requestInitializer;
+  private final TransferStats transferStats;
 
   private HttpClient(Builder builder) {
     transport = builder.transport;
     requestInitializer = builder.requestInitializer;
+    transferStats = builder.transferStats;
     requestFactory = transport.createRequestFactory(requestInitializer);
   }
 
@@ -46,27 +52,95 @@ public class HttpClient {
     return requestFactory;
   }
 
+  /**
+   * Returns the counters of the responses received by this client, if its transport counts
+   * them.
+   */
+  public Optional<TransferStats> getTransferStats() {
+    return Optional.ofNullable(transferStats);
+  }
+
+  /**
+   * Shuts down the underlying transport, closing any pooled connections, and closes the request
+   * initializer if it is {@link Closeable}.
+   */
+  public void shutdown() throws IOException {
+    try {
+      if (requestInitializer instanceof Closeable) {
+        ((Closeable) requestInitializer).close();
+      }
+    } finally {
+      transport.shutdown();
+    }
+  }
+
   public static HttpClient fromConfiguration() throws IOException {
     try {
-      HttpClient authenticationHttpClient =
-          HttpClient.newBuilder()
-              .setHttpRequestInitializer(
-                  request -> request.getHeaders().setAccept("application/json"))
-              .build();
-      ApiConnection apiConnection =
-          ApiConnection.fromConfiguration(authenticationHttpClient);
-      return HttpClient.newBuilder()
-          .setHttpRequestInitializer(new RequestInitalizer(apiConnection))
-          .build();
+      return fromConfiguration(HttpTransportFactory.fromConfiguration(), null);
     } catch (GeneralSecurityException e) {
       throw new IOException("Error initializing HttpClient", e);
     }
   }
 
+  /**
+   * Creates a client for {@code tenantName} that sends its requests over {@code sharedTransport}.
+   * Clients of several tenants can share one transport, and with it one connection pool. The
+   * shared transport is not shut down with the client.
+   *
+   * @param sharedTransport transport created by {@link HttpTransportFactory#fromConfiguration}
+   * @param tenantName the name of a tenant listed in {@value TenantConfiguration#TENANTS_CONFIG}
+   */
+  public static HttpClient forTenant(HttpTransport sharedTransport, String tenantName)
+      throws IOException {
+    checkNotNull(tenantName, "tenant name can not be null");
+    try {
+      return fromConfiguration(new UnclosedHttpTransport(sharedTransport), tenantName);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Error initializing HttpClient for tenant " + tenantName, e);
+    }
+  }
+
+  private static HttpClient fromConfiguration(
+      HttpTransport networkTransport, @Nullable String tenantName)
+      throws IOException, GeneralSecurityException {
+    // Token and Graph requests share one transport, and with it a connection pool if enabled.
+    TransferStats transferStats = new TransferStats();
+    HttpTransport transport = new GzipHttpTransport(networkTransport, transferStats);
+    HttpClient authenticationHttpClient =
+        HttpClient.newBuilder()
+            .setTransport(transport)
+            .setHttpRequestInitializer(
+                request -> request.getHeaders().setAccept("application/json"))
+            .build();
+    ApiConnection apiConnection =
+        ApiConnection.fromConfiguration(authenticationHttpClient, tenantName);
+    return HttpClient.newBuilder()
+        .setTransport(transport)
+        .setHttpRequestInitializer(new RequestInitalizer(apiConnection, transferStats))
+        .setTransferStats(transferStats)
+        .build();
+  }
+
+  /** Transport shared by several clients, which is not shut down with any of them. */
+  private static class UnclosedHttpTransport extends ForwardingHttpTransport {
+    UnclosedHttpTransport(HttpTransport delegate) {
+      super(delegate);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+      return buildDelegateRequest(method, url);
+    }
+
+    @Override
+    public void shutdown() {}
+  }
+
   public static final class Builder {
 
     private HttpTransport transport;
     private HttpRequestInitializer requestInitializer;
+    private TransferStats transferStats;
 
     private Builder() throws GeneralSecurityException, IOException {
       this.transport = GoogleNetHttpTransport.newTrustedTransport();
@@ -83,6 +157,12 @@ public class HttpClient {
       return this;
     }
 
+    /** Sets the counters updated by the transport of this client. */
+    public Builder setTransferStats(TransferStats transferStats) {
+      this.transferStats = transferStats;
+      return this;
+    }
+
     public HttpClient build() {
       checkNotNull(transport, "HttpTransport can not be null");
       return new HttpClient(this);
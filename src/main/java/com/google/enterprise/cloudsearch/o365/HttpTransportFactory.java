@@ -0,0 +1,320 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.SslUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Creates the {@link HttpTransport} shared by the Azure AD token requests and the Microsoft
+ * Graph requests.
+ *
+ * <ul>
+ *   <li>{@value #TRANSPORT_CONFIG} - {@code netHttp} (default) for the {@code HttpURLConnection}
+ *       based transport, {@code apache} for a pooled Apache HttpClient transport, or {@code
+ *       http2} for an OkHttp transport multiplexing requests over HTTP/2.
+ *   <li>{@value #MAX_CONNECTIONS_PER_ROUTE_CONFIG} - Maximum pooled connections per host. For
+ *       {@code http2}, the maximum number of idle connections kept in the pool. Defaults to
+ *       {@value #DEFAULT_MAX_CONNECTIONS_PER_ROUTE}.
+ *   <li>{@value #MAX_CONNECTIONS_CONFIG} - Maximum pooled connections in total. Defaults to
+ *       {@value #DEFAULT_MAX_CONNECTIONS}.
+ *   <li>{@value #KEEP_ALIVE_SECONDS_CONFIG} - How long an idle connection is kept open when the
+ *       server does not say otherwise. Defaults to {@value #DEFAULT_KEEP_ALIVE_SECONDS}.
+ *   <li>{@value #POOL_STATS_INTERVAL_SECONDS_CONFIG} - Interval for logging connection pool
+ *       statistics. Defaults to 0, which disables logging.
+ *   <li>{@value #RECORD_FILE_CONFIG} - File to record all Microsoft Graph responses to, for
+ *       replaying them later. Not set by default.
+ *   <li>{@value #REPLAY_FILE_CONFIG} - File recorded with {@value #RECORD_FILE_CONFIG} to serve
+ *       Microsoft Graph responses from, instead of sending requests over the network. Not set by
+ *       default.
+ *   <li>{@value #REPLAY_TIME_SCALE_PERCENT_CONFIG} - Percentage of the recorded latency to delay
+ *       replayed responses by. Defaults to {@value #DEFAULT_REPLAY_TIME_SCALE_PERCENT}; 0 replays
+ *       without delay.
+ * </ul>
+ */
+public final class HttpTransportFactory {
+  private static final Logger logger = Logger.getLogger(HttpTransportFactory.class.getName());
+
+  public static final String TRANSPORT_CONFIG = "o365.transport";
+  public static final String MAX_CONNECTIONS_PER_ROUTE_CONFIG =
+      "o365.transport.maxConnectionsPerRoute";
+  public static final String MAX_CONNECTIONS_CONFIG = "o365.transport.maxConnections";
+  public static final String KEEP_ALIVE_SECONDS_CONFIG = "o365.transport.keepAliveSeconds";
+  public static final String POOL_STATS_INTERVAL_SECONDS_CONFIG =
+      "o365.transport.poolStatsIntervalSeconds";
+  public static final String RECORD_FILE_CONFIG = "o365.transport.recordFile";
+  public static final String REPLAY_FILE_CONFIG = "o365.transport.replayFile";
+  public static final String REPLAY_TIME_SCALE_PERCENT_CONFIG =
+      "o365.transport.replayTimeScalePercent";
+  static final String NET_HTTP_TRANSPORT = "netHttp";
+  static final String APACHE_TRANSPORT = "apache";
+  static final String HTTP2_TRANSPORT = "http2";
+  static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  static final int DEFAULT_MAX_CONNECTIONS = 100;
+  static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  static final int DEFAULT_REPLAY_TIME_SCALE_PERCENT = 100;
+
+  private HttpTransportFactory() {}
+
+  /**
+   * Creates the transport selected by {@value #TRANSPORT_CONFIG}, recording its traffic if {@value
+   * #RECORD_FILE_CONFIG} is set, or a transport replaying {@value #REPLAY_FILE_CONFIG} if that is
+   * set.
+   */
+  public static HttpTransport fromConfiguration() throws GeneralSecurityException, IOException {
+    String recordFile = Configuration.getString(RECORD_FILE_CONFIG, "").get();
+    String replayFile = Configuration.getString(REPLAY_FILE_CONFIG, "").get();
+    Configuration.checkConfiguration(
+        recordFile.isEmpty() || replayFile.isEmpty(),
+        "Only one of [%s] and [%s] can be set",
+        RECORD_FILE_CONFIG,
+        REPLAY_FILE_CONFIG);
+    if (!replayFile.isEmpty()) {
+      int timeScalePercent =
+          Configuration.getInteger(
+                  REPLAY_TIME_SCALE_PERCENT_CONFIG, DEFAULT_REPLAY_TIME_SCALE_PERCENT)
+              .get();
+      Configuration.checkConfiguration(
+          timeScalePercent >= 0,
+          "Invalid value [%s] for configuration key [%s]",
+          timeScalePercent,
+          REPLAY_TIME_SCALE_PERCENT_CONFIG);
+      return new ReplayHttpTransport(Paths.get(replayFile), timeScalePercent);
+    }
+    HttpTransport transport = newNetworkTransport();
+    return recordFile.isEmpty()
+        ? transport
+        : new RecordingHttpTransport(transport, Paths.get(recordFile));
+  }
+
+  private static HttpTransport newNetworkTransport() throws GeneralSecurityException, IOException {
+    String transport = Configuration.getString(TRANSPORT_CONFIG, NET_HTTP_TRANSPORT).get();
+    if (NET_HTTP_TRANSPORT.equalsIgnoreCase(transport)) {
+      return GoogleNetHttpTransport.newTrustedTransport();
+    }
+    boolean http2 = HTTP2_TRANSPORT.equalsIgnoreCase(transport);
+    Configuration.checkConfiguration(
+        http2 || APACHE_TRANSPORT.equalsIgnoreCase(transport),
+        "Invalid transport [%s] for configuration key [%s]. Expected one of %s, %s, %s.",
+        transport,
+        TRANSPORT_CONFIG,
+        NET_HTTP_TRANSPORT,
+        APACHE_TRANSPORT,
+        HTTP2_TRANSPORT);
+    int maxPerRoute =
+        getPositiveInteger(MAX_CONNECTIONS_PER_ROUTE_CONFIG, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    int keepAliveSeconds =
+        getPositiveInteger(KEEP_ALIVE_SECONDS_CONFIG, DEFAULT_KEEP_ALIVE_SECONDS);
+    if (http2) {
+      return newHttp2Transport(maxPerRoute, keepAliveSeconds);
+    }
+    int maxTotal = getPositiveInteger(MAX_CONNECTIONS_CONFIG, DEFAULT_MAX_CONNECTIONS);
+    int statsIntervalSeconds =
+        Configuration.getInteger(POOL_STATS_INTERVAL_SECONDS_CONFIG, 0).get();
+    return newPooledTransport(maxPerRoute, maxTotal, keepAliveSeconds, statsIntervalSeconds);
+  }
+
+  private static int getPositiveInteger(String configKey, int defaultValue) {
+    int value = Configuration.getInteger(configKey, defaultValue).get();
+    Configuration.checkConfiguration(
+        value > 0, "Invalid value [%s] for configuration key [%s]", value, configKey);
+    return value;
+  }
+
+  /**
+   * Creates an Apache HttpClient transport backed by a connection pool.
+   *
+   * <p>Connections are kept alive between requests, so concurrent member fetches reuse pooled
+   * connections instead of paying a TCP and TLS handshake each. All connections share one
+   * {@link SSLContext}, whose session cache lets new connections resume earlier TLS sessions.
+   * Idle connections are closed after {@code keepAliveSeconds}.
+   *
+   * @param maxPerRoute maximum connections per host
+   * @param maxTotal maximum connections in total
+   * @param keepAliveSeconds idle time after which a connection is closed, unless the server asked
+   *     for a shorter time
+   * @param statsIntervalSeconds interval for logging pool statistics, or 0 to disable
+   */
+  @VisibleForTesting
+  static HttpTransport newPooledTransport(
+      int maxPerRoute, int maxTotal, int keepAliveSeconds, int statsIntervalSeconds)
+      throws GeneralSecurityException, IOException {
+    checkArgument(maxPerRoute > 0, "max connections per route must be positive");
+    checkArgument(maxTotal >= maxPerRoute, "max connections must be at least max per route");
+    checkArgument(keepAliveSeconds > 0, "keep alive must be positive");
+    // Same trust store as GoogleNetHttpTransport.newTrustedTransport().
+    SSLContext sslContext =
+        SslUtils.initSslContext(
+            SslUtils.getTlsSslContext(),
+            GoogleUtils.getCertificateTrustStore(),
+            SslUtils.getPkixTrustManagerFactory());
+    Registry<ConnectionSocketFactory> socketFactories =
+        RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SSLConnectionSocketFactory(sslContext))
+            .build();
+    MonitoredConnectionManager connectionManager =
+        new MonitoredConnectionManager(socketFactories, statsIntervalSeconds);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setMaxTotal(maxTotal);
+    long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+    ConnectionKeepAliveStrategy keepAliveStrategy =
+        (response, context) -> {
+          long serverKeepAlive =
+              DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+          return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+        };
+    // Redirects and retries are handled by google-http-client and RequestHelper, and gzip
+    // decoding by GzipHttpTransport.
+    return new ApacheHttpTransport(
+        HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS)
+            .evictExpiredConnections()
+            .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+            .disableRedirectHandling()
+            .disableAutomaticRetries()
+            .disableContentCompression()
+            .build());
+  }
+
+  /**
+   * Creates an OkHttp transport that prefers HTTP/2.
+   *
+   * <p>With HTTP/2, all concurrent requests to Microsoft Graph share one connection as separate
+   * streams, so a high member fetch concurrency does not open a connection per request and a
+   * slow response does not block the others. HTTP/2 needs ALPN, available from Java 8u252; on
+   * older JVMs, or with servers that do not offer HTTP/2, pooled HTTP/1.1 connections are used.
+   *
+   * @param maxIdleConnections maximum idle connections kept in the pool
+   * @param keepAliveSeconds idle time after which a connection is closed
+   */
+  @VisibleForTesting
+  static HttpTransport newHttp2Transport(int maxIdleConnections, int keepAliveSeconds)
+      throws GeneralSecurityException, IOException {
+    checkArgument(maxIdleConnections > 0, "max idle connections must be positive");
+    checkArgument(keepAliveSeconds > 0, "keep alive must be positive");
+    TrustManagerFactory trustManagerFactory = SslUtils.getPkixTrustManagerFactory();
+    trustManagerFactory.init(GoogleUtils.getCertificateTrustStore());
+    X509TrustManager trustManager = null;
+    for (TrustManager candidate : trustManagerFactory.getTrustManagers()) {
+      if (candidate instanceof X509TrustManager) {
+        trustManager = (X509TrustManager) candidate;
+        break;
+      }
+    }
+    if (trustManager == null) {
+      throw new GeneralSecurityException("No X509TrustManager available");
+    }
+    SSLContext sslContext = SslUtils.getTlsSslContext();
+    sslContext.init(null, new TrustManager[] {trustManager}, null);
+    // Redirects and retries are handled by google-http-client and RequestHelper.
+    return new OkHttpTransport(
+        new OkHttpClient.Builder()
+            .protocols(ImmutableList.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .connectionPool(
+                new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+            .sslSocketFactory(sslContext.getSocketFactory(), trustManager)
+            .connectTimeout(OkHttpTransport.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .readTimeout(OkHttpTransport.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .followRedirects(false)
+            .followSslRedirects(false)
+            .retryOnConnectionFailure(false)
+            .build());
+  }
+
+  /** Connection manager that periodically logs its pool statistics until it is shut down. */
+  private static class MonitoredConnectionManager extends PoolingHttpClientConnectionManager {
+    private final ScheduledExecutorService statsExecutor;
+
+    MonitoredConnectionManager(
+        Registry<ConnectionSocketFactory> socketFactories, int statsIntervalSeconds) {
+      super(socketFactories);
+      if (statsIntervalSeconds > 0) {
+        statsExecutor =
+            Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat("o365-connection-pool-stats-%d")
+                    .setDaemon(true)
+                    .build());
+        statsExecutor.scheduleAtFixedRate(
+            this::logStats, statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+      } else {
+        statsExecutor = null;
+      }
+    }
+
+    private void logStats() {
+      PoolStats stats = getTotalStats();
+      logger.log(
+          Level.INFO,
+          "Connection pool: {0} leased, {1} idle, {2} pending, {3} max, {4} routes.",
+          new Object[] {
+            stats.getLeased(),
+            stats.getAvailable(),
+            stats.getPending(),
+            stats.getMax(),
+            getRoutes().size()
+          });
+    }
+
+    @Override
+    public void shutdown() {
+      if (statsExecutor != null) {
+        statsExecutor.shutdownNow();
+        logStats();
+      }
+      super.shutdown();
+    }
+  }
+}
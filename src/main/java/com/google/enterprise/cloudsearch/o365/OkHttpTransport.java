@@ -0,0 +1,249 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * {@link HttpTransport} backed by OkHttp.
+ *
+ * <p>OkHttp negotiates HTTP/2 through ALPN and multiplexes concurrent requests to the same host
+ * over a single connection, falling back to pooled HTTP/1.1 connections when the server or the
+ * JVM does not support HTTP/2.
+ */
+final class OkHttpTransport extends HttpTransport {
+  /**
+   * Connect and read timeout of {@link com.google.api.client.http.HttpRequest}, which sets it on
+   * every request. Clients built with this timeout serve requests without deriving a client.
+   */
+  static final int DEFAULT_TIMEOUT_MILLIS = 20_000;
+
+  private final OkHttpClient client;
+  // Client derived for the last timeouts that differed from those of the base client.
+  private volatile OkHttpClient timeoutClient;
+
+  OkHttpTransport(OkHttpClient client) {
+    this.client = checkNotNull(client, "OkHttpClient can not be null");
+  }
+
+  @Override
+  public boolean supportsMethod(String method) {
+    return true;
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+    HttpUrl httpUrl = HttpUrl.parse(url);
+    if (httpUrl == null) {
+      throw new IOException("Invalid URL: " + url);
+    }
+    return new OkHttpRequest(method, httpUrl);
+  }
+
+  /**
+   * Returns a client with the given timeouts, or with the timeouts of the base client where they
+   * are negative. The base client is returned when its timeouts match.
+   */
+  @VisibleForTesting
+  OkHttpClient getClient(int connectTimeout, int readTimeout) {
+    int connectMillis = connectTimeout < 0 ? client.connectTimeoutMillis() : connectTimeout;
+    int readMillis = readTimeout < 0 ? client.readTimeoutMillis() : readTimeout;
+    if (connectMillis == client.connectTimeoutMillis()
+        && readMillis == client.readTimeoutMillis()) {
+      return client;
+    }
+    OkHttpClient derived = timeoutClient;
+    if (derived == null
+        || derived.connectTimeoutMillis() != connectMillis
+        || derived.readTimeoutMillis() != readMillis) {
+      // Derived clients share the connection pool with the base client.
+      derived =
+          client
+              .newBuilder()
+              .connectTimeout(connectMillis, TimeUnit.MILLISECONDS)
+              .readTimeout(readMillis, TimeUnit.MILLISECONDS)
+              .build();
+      timeoutClient = derived;
+    }
+    return derived;
+  }
+
+  @Override
+  public void shutdown() {
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+  }
+
+  private class OkHttpRequest extends LowLevelHttpRequest {
+    private final String method;
+    private final okhttp3.Request.Builder builder;
+    private int connectTimeout = -1;
+    private int readTimeout = -1;
+
+    OkHttpRequest(String method, HttpUrl url) {
+      this.method = method;
+      this.builder = new okhttp3.Request.Builder().url(url);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      builder.addHeader(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) {
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      StreamingContent content = getStreamingContent();
+      RequestBody body = null;
+      if (content != null) {
+        body = new StreamingRequestBody(content, getContentType(), getContentLength());
+        if (getContentEncoding() != null) {
+          builder.header("Content-Encoding", getContentEncoding());
+        }
+      } else if (requiresRequestBody(method)) {
+        body = RequestBody.create(null, new byte[0]);
+      }
+      builder.method(method, body);
+      OkHttpClient requestClient = getClient(connectTimeout, readTimeout);
+      return new OkHttpResponse(requestClient.newCall(builder.build()).execute());
+    }
+  }
+
+  private static boolean requiresRequestBody(String method) {
+    return method.equals("POST") || method.equals("PUT") || method.equals("PATCH");
+  }
+
+  private static class StreamingRequestBody extends RequestBody {
+    private final StreamingContent content;
+    private final MediaType contentType;
+    private final long contentLength;
+
+    StreamingRequestBody(StreamingContent content, String contentType, long contentLength) {
+      this.content = content;
+      this.contentType = contentType == null ? null : MediaType.parse(contentType);
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    public MediaType contentType() {
+      return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+      return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+      content.writeTo(sink.outputStream());
+    }
+  }
+
+  private static class OkHttpResponse extends LowLevelHttpResponse {
+    private final Response response;
+    private final Headers headers;
+
+    OkHttpResponse(Response response) {
+      this.response = response;
+      this.headers = response.headers();
+    }
+
+    @Override
+    public InputStream getContent() {
+      ResponseBody body = response.body();
+      return body == null ? null : body.byteStream();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return response.header("Content-Encoding");
+    }
+
+    @Override
+    public long getContentLength() {
+      ResponseBody body = response.body();
+      return body == null ? -1 : body.contentLength();
+    }
+
+    @Override
+    public String getContentType() {
+      return response.header("Content-Type");
+    }
+
+    @Override
+    public String getStatusLine() {
+      String protocol =
+          response.protocol() == Protocol.HTTP_2
+              ? "HTTP/2"
+              : response.protocol().toString().toUpperCase();
+      return protocol + " " + response.code() + " " + response.message();
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.code();
+    }
+
+    @Override
+    public String getReasonPhrase() {
+      return response.message();
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return headers.size();
+    }
+
+    @Override
+    public String getHeaderName(int index) {
+      return headers.name(index);
+    }
+
+    @Override
+    public String getHeaderValue(int index) {
+      return headers.value(index);
+    }
+
+    @Override
+    public void disconnect() {
+      response.close();
+    }
+  }
+}
@@ -18,9 +18,13 @@ package com.google.enterprise.cloudsearch.o365;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
@@ -28,32 +32,46 @@ import java.util.Map;
 /**
  * {@link Request} implementation for making HTTP POST requests. {@link
  * PostRequest#content} is sent as POST request body in URL encoded format as {@link
- * UrlEncodedContent}
+ * UrlEncodedContent}, unless {@link PostRequest#jsonContent} is set, in which case it is sent as
+ * {@link JsonHttpContent}.
  */
 public class PostRequest<T extends GenericJson> extends Request<T> {
 
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
   private final Map<String, String> content;
+  private final GenericJson jsonContent;
 
   private PostRequest(Builder<T> builder) {
     super(builder);
     this.content = builder.content;
+    this.jsonContent = builder.jsonContent;
   }
 
   @Override
   HttpRequest createHttpRequest(HttpClient client) throws IOException {
+    HttpContent httpContent =
+        jsonContent == null
+            ? new UrlEncodedContent(content)
+            : new JsonHttpContent(JSON_FACTORY, jsonContent);
     return client.getRequestFactory().buildPostRequest(new GenericUrl(getRequestURL()),
-        new UrlEncodedContent(content));
+        httpContent);
   }
 
   static class Builder<T extends GenericJson> extends Request.Builder<T> {
 
     private Map<String, String> content = Collections.emptyMap();
+    private GenericJson jsonContent;
 
     public Builder<T> setConetnt(Map<String, String> content) {
       this.content = content;
       return this;
     }
 
+    public Builder<T> setJsonContent(GenericJson jsonContent) {
+      this.jsonContent = jsonContent;
+      return this;
+    }
+
     @Override
     public PostRequest<T> build() {
       validate();
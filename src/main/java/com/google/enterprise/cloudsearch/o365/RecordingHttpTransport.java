@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.cloudsearch.o365.TrafficArchive.Exchange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link HttpTransport} decorator that records every exchange with Microsoft Graph to a {@link
+ * TrafficArchive}, for {@link ReplayHttpTransport} to serve later.
+ *
+ * <p>Each response is read completely before it is returned, so its recorded latency covers the
+ * whole transfer. Bodies are recorded as received, so gzip encoded responses stay compressed.
+ * Token requests are passed through without being recorded.
+ */
+final class RecordingHttpTransport extends ForwardingHttpTransport {
+  private static final Logger logger = Logger.getLogger(RecordingHttpTransport.class.getName());
+
+  private final TrafficArchive.Writer writer;
+  private volatile boolean full;
+
+  RecordingHttpTransport(HttpTransport delegate, Path archive) throws IOException {
+    super(delegate);
+    this.writer = new TrafficArchive.Writer(archive);
+    logger.log(Level.INFO, "Recording Microsoft Graph responses to {0}.", archive);
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+    LowLevelHttpRequest request = buildDelegateRequest(method, url);
+    return isTokenRequest(url) ? request : new RecordingRequest(method, url, request);
+  }
+
+  @Override
+  public void shutdown() throws IOException {
+    try {
+      writer.close();
+    } finally {
+      super.shutdown();
+    }
+  }
+
+  /** Returns true for requests to the Azure AD token endpoint. */
+  static boolean isTokenRequest(String url) {
+    return url.endsWith("/oauth2/v2.0/token");
+  }
+
+  private void record(Exchange exchange) {
+    if (full) {
+      return;
+    }
+    try {
+      if (!writer.write(exchange)) {
+        full = true;
+        logger.log(Level.WARNING, "Traffic archive is full. Recording stopped.");
+      }
+    } catch (IOException e) {
+      full = true;
+      logger.log(Level.WARNING, "Failed to write to traffic archive. Recording stopped.", e);
+    }
+  }
+
+  private class RecordingRequest extends LowLevelHttpRequest {
+    private final String method;
+    private final String url;
+    private final LowLevelHttpRequest request;
+
+    RecordingRequest(String method, String url, LowLevelHttpRequest request) {
+      this.method = method;
+      this.url = url;
+      this.request = request;
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws IOException {
+      request.addHeader(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+      request.setTimeout(connectTimeout, readTimeout);
+    }
+
+    @Override
+    public void setWriteTimeout(int writeTimeout) throws IOException {
+      request.setWriteTimeout(writeTimeout);
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      byte[] requestBody = null;
+      StreamingContent content = getStreamingContent();
+      if (content != null) {
+        // Buffered to include its hash in the request key.
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        content.writeTo(buffer);
+        requestBody = buffer.toByteArray();
+        byte[] body = requestBody;
+        content = out -> out.write(body);
+      }
+      request.setContentType(getContentType());
+      request.setContentEncoding(getContentEncoding());
+      request.setContentLength(getContentLength());
+      request.setStreamingContent(content);
+      long start = System.nanoTime();
+      LowLevelHttpResponse response = request.execute();
+      List<Map.Entry<String, String>> headers = new ArrayList<>();
+      byte[] responseBody;
+      try {
+        for (int i = 0; i < response.getHeaderCount(); i++) {
+          headers.add(
+              new SimpleImmutableEntry<>(response.getHeaderName(i), response.getHeaderValue(i)));
+        }
+        try (InputStream in = response.getContent()) {
+          responseBody = in == null ? new byte[0] : ByteStreams.toByteArray(in);
+        }
+      } finally {
+        response.disconnect();
+      }
+      long latencyNanos = System.nanoTime() - start;
+      Exchange exchange =
+          new Exchange(
+              TrafficArchive.requestKey(method, url, requestBody),
+              latencyNanos,
+              response.getStatusCode(),
+              response.getReasonPhrase() == null ? "" : response.getReasonPhrase(),
+              headers,
+              ByteBuffer.wrap(responseBody));
+      record(exchange);
+      return new RecordedResponse(response, responseBody);
+    }
+  }
+
+  /** The response of the delegate, with its content already read. */
+  private static class RecordedResponse extends LowLevelHttpResponse {
+    private final LowLevelHttpResponse response;
+    private final byte[] content;
+
+    RecordedResponse(LowLevelHttpResponse response, byte[] content) {
+      this.response = response;
+      this.content = content;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public String getContentEncoding() throws IOException {
+      return response.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLength() throws IOException {
+      return response.getContentLength();
+    }
+
+    @Override
+    public String getContentType() throws IOException {
+      return response.getContentType();
+    }
+
+    @Override
+    public String getStatusLine() throws IOException {
+      return response.getStatusLine();
+    }
+
+    @Override
+    public int getStatusCode() throws IOException {
+      return response.getStatusCode();
+    }
+
+    @Override
+    public String getReasonPhrase() throws IOException {
+      return response.getReasonPhrase();
+    }
+
+    @Override
+    public int getHeaderCount() throws IOException {
+      return response.getHeaderCount();
+    }
+
+    @Override
+    public String getHeaderName(int index) throws IOException {
+      return response.getHeaderName(index);
+    }
+
+    @Override
+    public String getHeaderValue(int index) throws IOException {
+      return response.getHeaderValue(index);
+    }
+  }
+}
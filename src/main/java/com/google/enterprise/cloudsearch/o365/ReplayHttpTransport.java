@@ -0,0 +1,222 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.Sleeper;
+import com.google.api.client.util.StreamingContent;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.cloudsearch.o365.TrafficArchive.Exchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link HttpTransport} that serves the responses of a {@link TrafficArchive} recorded by {@link
+ * RecordingHttpTransport}, without any network access.
+ *
+ * <p>Requests are matched by method, URL and request body. A request recorded several times,
+ * such as a throttled request and its retries, gets the recorded responses in order, starting
+ * over after the last one. Every response is delayed by its recorded latency multiplied by
+ * {@code timeScalePercent / 100}, so 100 keeps the original timing and 0 replays as fast as
+ * possible. Token requests are answered with a placeholder token.
+ *
+ * <p>The archive is memory-mapped, and response bodies are read from the mapped file.
+ */
+final class ReplayHttpTransport extends HttpTransport {
+  private static final Logger logger = Logger.getLogger(ReplayHttpTransport.class.getName());
+  private static final byte[] TOKEN_RESPONSE =
+      ("{\"token_type\":\"Bearer\",\"expires_in\":3599,\"ext_expires_in\":3599,"
+              + "\"access_token\":\"replay\"}")
+          .getBytes(UTF_8);
+
+  private final Map<String, List<Exchange>> exchanges;
+  private final Map<String, AtomicInteger> cursors = new ConcurrentHashMap<>();
+  private final int timeScalePercent;
+  private final Sleeper sleeper;
+
+  /**
+   * Creates a transport serving the responses recorded in {@code archive}.
+   *
+   * @param archive written by {@link RecordingHttpTransport}
+   * @param timeScalePercent percentage of the recorded latency to delay each response by
+   * @throws IOException if the archive can not be read
+   */
+  ReplayHttpTransport(Path archive, int timeScalePercent) throws IOException {
+    this(archive, timeScalePercent, Sleeper.DEFAULT);
+  }
+
+  @VisibleForTesting
+  ReplayHttpTransport(Path archive, int timeScalePercent, Sleeper sleeper) throws IOException {
+    checkArgument(timeScalePercent >= 0, "time scale can not be negative");
+    this.exchanges = TrafficArchive.read(archive);
+    this.timeScalePercent = timeScalePercent;
+    this.sleeper = checkNotNull(sleeper, "sleeper can not be null");
+    logger.log(
+        Level.INFO,
+        "Replaying {0} recorded requests from {1} at {2}% of their latency.",
+        new Object[] {exchanges.size(), archive, timeScalePercent});
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) {
+    return new ReplayRequest(method, url);
+  }
+
+  private Exchange next(String key) throws IOException {
+    List<Exchange> recorded = exchanges.get(key);
+    if (recorded == null) {
+      throw new IOException("No recorded response for " + key);
+    }
+    int index = cursors.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+    return recorded.get(Math.floorMod(index, recorded.size()));
+  }
+
+  private void delay(long latencyNanos) throws InterruptedIOException {
+    long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos * timeScalePercent / 100);
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      sleeper.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while replaying a response");
+    }
+  }
+
+  private class ReplayRequest extends LowLevelHttpRequest {
+    private final String method;
+    private final String url;
+
+    ReplayRequest(String method, String url) {
+      this.method = method;
+      this.url = url;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {}
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      if (RecordingHttpTransport.isTokenRequest(url)) {
+        return new ReplayResponse(
+            new Exchange(
+                "token",
+                0,
+                200,
+                "OK",
+                ImmutableList.of(new SimpleImmutableEntry<>("Content-Type", "application/json")),
+                ByteBuffer.wrap(TOKEN_RESPONSE)));
+      }
+      byte[] body = null;
+      StreamingContent content = getStreamingContent();
+      if (content != null) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        content.writeTo(buffer);
+        body = buffer.toByteArray();
+      }
+      Exchange exchange = next(TrafficArchive.requestKey(method, url, body));
+      delay(exchange.latencyNanos);
+      return new ReplayResponse(exchange);
+    }
+  }
+
+  private static class ReplayResponse extends LowLevelHttpResponse {
+    private final Exchange exchange;
+
+    ReplayResponse(Exchange exchange) {
+      this.exchange = exchange;
+    }
+
+    private String getHeader(String name) {
+      for (Map.Entry<String, String> header : exchange.headers) {
+        if (header.getKey().equalsIgnoreCase(name)) {
+          return header.getValue();
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return exchange.openBody();
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return getHeader("Content-Encoding");
+    }
+
+    @Override
+    public long getContentLength() {
+      return exchange.body.remaining();
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader("Content-Type");
+    }
+
+    @Override
+    public String getStatusLine() {
+      return "HTTP/1.1 " + exchange.statusCode + " " + exchange.reasonPhrase;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return exchange.statusCode;
+    }
+
+    @Override
+    public String getReasonPhrase() {
+      return exchange.reasonPhrase;
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return exchange.headers.size();
+    }
+
+    @Override
+    public String getHeaderName(int index) {
+      return exchange.headers.get(index).getKey();
+    }
+
+    @Override
+    public String getHeaderValue(int index) {
+      return exchange.headers.get(index).getValue();
+    }
+  }
+}
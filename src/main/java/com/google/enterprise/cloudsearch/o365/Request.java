@@ -19,15 +19,30 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.base.Strings;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObject;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder.PageLinks;
+import com.google.enterprise.cloudsearch.o365.model.Groups;
+import com.google.enterprise.cloudsearch.o365.model.Members;
+import com.google.enterprise.cloudsearch.o365.model.Users;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Base class for O365 requests.
@@ -79,19 +94,137 @@ public abstract class Request<T extends GenericJson> {
    * Helper class to execute {@link Request}.
    */
   public static class RequestHelper<T extends GenericJson> {
+    private static final Logger logger = Logger.getLogger(RequestHelper.class.getName());
+
+    private final RequestThrottler throttler;
+
+    /** Creates a helper that sends requests without throttling. */
+    public RequestHelper() {
+      this(null);
+    }
+
+    /**
+     * Creates a helper that sends requests through {@code throttler}, retrying requests that
+     * Graph throttled.
+     */
+    public RequestHelper(@Nullable RequestThrottler throttler) {
+      this.throttler = throttler;
+    }
 
     /**
      * Executes a {@link Request} request built using {@link HttpClient} client.
      *
+     * <p>With a {@link RequestThrottler}, responses with status 429 or 503 are retried up to
+     * {@link RequestThrottler#getMaxRetries} times, honoring their {@code Retry-After}.
+     *
+     * <p>Pages of {@link Users}, {@link Groups} and {@link Members} are decoded with a {@link
+     * DirectoryObjectsDecoder} instead of reflection.
+     *
      * @param request to execute
      * @param client to create {@link HttpRequest} for input request
      * @return response as {@link Request#responseClass}
      * @throws IOException if request execution fails.
      */
     public T executeRequest(Request<T> request, HttpClient client) throws IOException {
-      HttpRequest req = request.createHttpRequest(client);
-      req.setParser(new JsonObjectParser(JSON_FACTORY));
-      return req.execute().parseAs(request.getResponseClass());
+      HttpResponse response = execute(request, client);
+      Class<T> responseClass = request.getResponseClass();
+      if (!DirectoryObjectsDecoder.supports(responseClass)) {
+        return response.parseAs(responseClass);
+      }
+      InputStream content = response.getContent();
+      if (content == null) {
+        response.disconnect();
+        return null;
+      }
+      try {
+        return DirectoryObjectsDecoder.decodePage(content, responseClass);
+      } finally {
+        response.disconnect();
+      }
+    }
+
+    /**
+     * Executes a {@link Request} for a page of directory objects, passing the objects of the page
+     * to {@code consumer} as they are decoded, without holding the whole page in memory.
+     *
+     * @param request to execute
+     * @param client to create {@link HttpRequest} for input request
+     * @param decoder for the objects of the page
+     * @param consumer receives the objects of the page
+     * @return the links of the page
+     * @throws IOException if request execution fails.
+     */
+    public <V extends DirectoryObject> PageLinks executeRequest(
+        Request<T> request,
+        HttpClient client,
+        DirectoryObjectsDecoder<V> decoder,
+        Consumer<? super V> consumer)
+        throws IOException {
+      HttpResponse response = execute(request, client);
+      InputStream content = response.getContent();
+      if (content == null) {
+        response.disconnect();
+        return new PageLinks(null, null, null);
+      }
+      try {
+        return decoder.decode(content, consumer);
+      } finally {
+        response.disconnect();
+      }
+    }
+
+    /** Executes a request, retrying it if throttled, and returns the successful response. */
+    private HttpResponse execute(Request<T> request, HttpClient client) throws IOException {
+      if (throttler == null) {
+        HttpRequest req = request.createHttpRequest(client);
+        req.setParser(new JsonObjectParser(JSON_FACTORY));
+        return req.execute();
+      }
+      for (int attempt = 0; ; attempt++) {
+        throttler.acquire();
+        HttpResponse response;
+        try {
+          HttpRequest req = request.createHttpRequest(client);
+          req.setParser(new JsonObjectParser(JSON_FACTORY));
+          req.setThrowExceptionOnExecuteError(false);
+          response = req.execute();
+        } catch (IOException | RuntimeException e) {
+          throttler.onFailure();
+          throw e;
+        }
+        if (response.isSuccessStatusCode()) {
+          throttler.onSuccess();
+          return response;
+        }
+        if (!isThrottled(response.getStatusCode()) || attempt >= throttler.getMaxRetries()) {
+          throttler.onFailure();
+          throw new HttpResponseException(response);
+        }
+        long retryAfterMillis = getRetryAfterMillis(response.getHeaders().getRetryAfter());
+        throttler.onThrottled(retryAfterMillis);
+        response.disconnect();
+        logger.log(
+            Level.FINE,
+            "Request [{0}] throttled with status [{1}]. Retrying.",
+            new Object[] {request.getRequestURL(), response.getStatusCode()});
+        throttler.backOff(attempt, retryAfterMillis);
+      }
+    }
+
+    private static boolean isThrottled(int statusCode) {
+      return statusCode == 429 || statusCode == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE;
+    }
+
+    /** Parses a {@code Retry-After} in delay-seconds, returning 0 if missing or not a number. */
+    static long getRetryAfterMillis(@Nullable String retryAfter) {
+      if (Strings.isNullOrEmpty(retryAfter)) {
+        return 0;
+      }
+      try {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
     }
 
     /**
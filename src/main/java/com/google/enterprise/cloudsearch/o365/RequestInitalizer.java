@@ -19,28 +19,95 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * {@link HttpRequestInitializer} implementation for adding access token and common headers to
  * outgoing requests.
+ *
+ * <p>A request rejected with status 401 is retried once with a new access token, so a token
+ * revoked or expired early does not fail every request until it is renewed.
  */
-class RequestInitalizer implements HttpRequestInitializer {
+class RequestInitalizer implements HttpRequestInitializer, Closeable {
+  private static final Logger logger = Logger.getLogger(RequestInitalizer.class.getName());
+  private static final String BEARER_PREFIX = "Bearer ";
 
   private final ApiConnection apiConnection;
+  private final TransferStats transferStats;
 
   RequestInitalizer(ApiConnection apiConnnection) {
+    this(apiConnnection, null);
+  }
+
+  /**
+   * Creates an initializer that counts the requests retried with a new access token in {@code
+   * transferStats}.
+   */
+  RequestInitalizer(ApiConnection apiConnnection, @Nullable TransferStats transferStats) {
     this.apiConnection = checkNotNull(apiConnnection, "ApiConnection can not be null");
+    this.transferStats = transferStats;
   }
 
   @Override
   public void initialize(HttpRequest request) throws IOException {
     request.getHeaders().setAccept("application/json");
+    // Graph pages compress well; responses are decoded by GzipHttpTransport.
+    request.getHeaders().setAcceptEncoding("gzip");
     try {
-      request.getHeaders().setAuthorization("Bearer " + apiConnection.getAccessToken());
-    } catch (ExecutionException e) {
+      request.getHeaders().setAuthorization(BEARER_PREFIX + apiConnection.getAccessToken());
+    } catch (GeneralSecurityException e) {
       throw new IOException("Error obtaining authentication token", e);
     }
+    request.setUnsuccessfulResponseHandler(new UnauthorizedResponseHandler());
+  }
+
+  /** Stops renewing access tokens. */
+  @Override
+  public void close() {
+    apiConnection.close();
+  }
+
+  /** Retries a request once with a new access token if it was rejected with status 401. */
+  private class UnauthorizedResponseHandler implements HttpUnsuccessfulResponseHandler {
+    private boolean retried;
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+        throws IOException {
+      if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_UNAUTHORIZED
+          || !supportsRetry
+          || retried) {
+        return false;
+      }
+      retried = true;
+      String authorization = request.getHeaders().getAuthorization();
+      String rejected =
+          authorization != null && authorization.startsWith(BEARER_PREFIX)
+              ? authorization.substring(BEARER_PREFIX.length())
+              : "";
+      try {
+        request
+            .getHeaders()
+            .setAuthorization(BEARER_PREFIX + apiConnection.renewAccessToken(rejected));
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Error obtaining authentication token", e);
+      }
+      if (transferStats != null) {
+        transferStats.recordUnauthorizedRetry();
+      }
+      logger.log(
+          Level.FINE,
+          "Request [{0}] rejected with status 401. Retrying with a new access token.",
+          request.getUrl());
+      return true;
+    }
   }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.api.client.util.Sleeper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shapes the requests sent to Microsoft Graph for a single tenant.
+ *
+ * <p>Every request first calls {@link #acquire}, which blocks until
+ *
+ * <ul>
+ *   <li>fewer requests than the current concurrency limit are in flight,
+ *   <li>a token is available in the token bucket, if a request rate is configured, and
+ *   <li>the pause requested by the last {@code Retry-After} has passed.
+ * </ul>
+ *
+ * <p>The request then reports its outcome with {@link #onSuccess}, {@link #onThrottled} or
+ * {@link #onFailure}. The concurrency limit is adjusted additively-increase /
+ * multiplicatively-decrease: it grows by one every time a full window of requests succeeds and is
+ * halved when Graph throttles a request.
+ *
+ * <ul>
+ *   <li>{@value #REQUESTS_PER_SECOND_CONFIG} - Maximum sustained requests per second. Defaults
+ *       to 0, which does not limit the request rate.
+ *   <li>{@value #MAX_CONCURRENCY_CONFIG} - Upper bound of the concurrency limit. Defaults to
+ *       {@value #DEFAULT_MAX_CONCURRENCY}.
+ *   <li>{@value #MAX_RETRIES_CONFIG} - Number of times a throttled request is retried. Defaults to
+ *       {@value #DEFAULT_MAX_RETRIES}.
+ * </ul>
+ */
+public class RequestThrottler {
+  private static final Logger logger = Logger.getLogger(RequestThrottler.class.getName());
+
+  public static final String REQUESTS_PER_SECOND_CONFIG = "o365.throttle.requestsPerSecond";
+  public static final String MAX_CONCURRENCY_CONFIG = "o365.throttle.maxConcurrency";
+  public static final String MAX_RETRIES_CONFIG = "o365.throttle.maxRetries";
+  static final int DEFAULT_MAX_CONCURRENCY = 16;
+  static final int DEFAULT_MAX_RETRIES = 6;
+
+  private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(60);
+  // Throttled responses to requests sent before the last decrease do not decrease again.
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final int maxConcurrency;
+  private final int maxRetries;
+  private final double tokensPerNano;
+  private final double burst;
+  private final LongSupplier nanoTime;
+  private final Sleeper sleeper;
+  private final Random random;
+
+  private double concurrencyLimit;
+  private int inFlight;
+  private double tokens;
+  private long lastRefillNanos;
+  private long pausedUntilNanos;
+  private long lastDecreaseNanos;
+
+  /**
+   * Creates a throttler.
+   *
+   * @param requestsPerSecond maximum sustained request rate, or 0 for no rate limit
+   * @param maxConcurrency maximum number of requests in flight
+   * @param maxRetries number of times a throttled request is retried
+   */
+  public RequestThrottler(int requestsPerSecond, int maxConcurrency, int maxRetries) {
+    this(
+        requestsPerSecond,
+        maxConcurrency,
+        maxRetries,
+        System::nanoTime,
+        Sleeper.DEFAULT,
+        new Random());
+  }
+
+  @VisibleForTesting
+  RequestThrottler(
+      int requestsPerSecond,
+      int maxConcurrency,
+      int maxRetries,
+      LongSupplier nanoTime,
+      Sleeper sleeper,
+      Random random) {
+    checkArgument(requestsPerSecond >= 0, "requests per second can not be negative");
+    checkArgument(maxConcurrency > 0, "max concurrency must be positive");
+    checkArgument(maxRetries >= 0, "max retries can not be negative");
+    this.maxConcurrency = maxConcurrency;
+    this.maxRetries = maxRetries;
+    this.tokensPerNano = requestsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+    this.burst = Math.max(1, requestsPerSecond);
+    this.nanoTime = checkNotNull(nanoTime, "nano time can not be null");
+    this.sleeper = checkNotNull(sleeper, "sleeper can not be null");
+    this.random = checkNotNull(random, "random can not be null");
+    this.concurrencyLimit = maxConcurrency;
+    this.tokens = burst;
+    this.lastRefillNanos = nanoTime.getAsLong();
+    this.pausedUntilNanos = lastRefillNanos;
+    this.lastDecreaseNanos = lastRefillNanos - DECREASE_INTERVAL_NANOS;
+  }
+
+  /** Creates a throttler from the {@code o365.throttle.*} configuration. */
+  public static RequestThrottler fromConfiguration() {
+    checkState(Configuration.isInitialized(), "configuration not initialized");
+    int requestsPerSecond = Configuration.getInteger(REQUESTS_PER_SECOND_CONFIG, 0).get();
+    Configuration.checkConfiguration(
+        requestsPerSecond >= 0,
+        "Invalid requests per second [%s] for configuration key [%s]",
+        requestsPerSecond,
+        REQUESTS_PER_SECOND_CONFIG);
+    int maxConcurrency =
+        Configuration.getInteger(MAX_CONCURRENCY_CONFIG, DEFAULT_MAX_CONCURRENCY).get();
+    Configuration.checkConfiguration(
+        maxConcurrency > 0,
+        "Invalid max concurrency [%s] for configuration key [%s]",
+        maxConcurrency,
+        MAX_CONCURRENCY_CONFIG);
+    int maxRetries = Configuration.getInteger(MAX_RETRIES_CONFIG, DEFAULT_MAX_RETRIES).get();
+    Configuration.checkConfiguration(
+        maxRetries >= 0,
+        "Invalid max retries [%s] for configuration key [%s]",
+        maxRetries,
+        MAX_RETRIES_CONFIG);
+    return new RequestThrottler(requestsPerSecond, maxConcurrency, maxRetries);
+  }
+
+  /** Returns the number of times a throttled request may be retried. */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /** Returns the current number of requests allowed in flight. */
+  public synchronized int getConcurrencyLimit() {
+    return (int) concurrencyLimit;
+  }
+
+  /**
+   * Blocks until a request may be sent. Every successful call must be followed by exactly one
+   * call to {@link #onSuccess}, {@link #onThrottled} or {@link #onFailure}.
+   *
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public void acquire() throws InterruptedIOException {
+    long waitNanos;
+    synchronized (this) {
+      try {
+        while (inFlight >= (int) concurrencyLimit) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a request slot");
+      }
+      inFlight++;
+      waitNanos = reserveToken();
+    }
+    if (waitNanos > 0) {
+      try {
+        sleeper.sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+      } catch (InterruptedException e) {
+        onFailure();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a request token");
+      }
+    }
+  }
+
+  /** Reports a request that succeeded, and grows the concurrency limit. */
+  public synchronized void onSuccess() {
+    release();
+    concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+  }
+
+  /**
+   * Reports a request that was throttled. Halves the concurrency limit and pauses all requests
+   * for {@code retryAfterMillis}.
+   */
+  public synchronized void onThrottled(long retryAfterMillis) {
+    release();
+    long now = nanoTime.getAsLong();
+    pausedUntilNanos =
+        Math.max(pausedUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+    if (now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+      lastDecreaseNanos = now;
+      concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+      logger.log(
+          Level.INFO,
+          "Request throttled. Retry after {0} ms, concurrency limit lowered to {1}.",
+          new Object[] {retryAfterMillis, (int) concurrencyLimit});
+    }
+  }
+
+  /** Reports a request that failed for a reason other than throttling. */
+  public synchronized void onFailure() {
+    release();
+  }
+
+  /**
+   * Waits before retrying a throttled request. When Graph sent a {@code Retry-After}, the pause
+   * is already enforced by {@link #acquire}, so only a small jitter is added to spread the
+   * retries. Otherwise waits an exponentially growing, fully jittered delay.
+   *
+   * @param attempt zero based number of the attempt that was throttled
+   * @param retryAfterMillis the {@code Retry-After} sent by Graph, or 0 if none
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public void backOff(int attempt, long retryAfterMillis) throws InterruptedIOException {
+    try {
+      sleeper.sleep(getBackOffMillis(attempt, retryAfterMillis));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while backing off a throttled request");
+    }
+  }
+
+  @VisibleForTesting
+  long getBackOffMillis(int attempt, long retryAfterMillis) {
+    long bound =
+        retryAfterMillis > 0
+            ? INITIAL_BACKOFF_MILLIS
+            : Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+    return (long) (random.nextDouble() * bound);
+  }
+
+  private void release() {
+    checkState(inFlight > 0, "release without acquire");
+    inFlight--;
+    notifyAll();
+  }
+
+  /** Takes a token, returning how long the caller must wait before sending its request. */
+  private long reserveToken() {
+    long now = nanoTime.getAsLong();
+    long waitNanos = Math.max(0, pausedUntilNanos - now);
+    if (tokensPerNano == 0) {
+      return waitNanos;
+    }
+    tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+    tokens -= 1;
+    if (tokens < 0) {
+      waitNanos = Math.max(waitNanos, (long) Math.ceil(-tokens / tokensPerNano));
+    }
+    return waitNanos;
+  }
+}
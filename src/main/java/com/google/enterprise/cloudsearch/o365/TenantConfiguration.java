@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Names the tenants synced by a single connector process.
+ *
+ * <ul>
+ *   <li>{@value #TENANTS_CONFIG} - Comma separated names of the tenants to sync. Not set by
+ *       default, in which case a single tenant is configured with the {@code o365.*} keys.
+ * </ul>
+ *
+ * <p>The credentials of a named tenant are configured with the same keys as a single tenant,
+ * prefixed with {@code o365.tenants.<name>}. For a tenant named {@code contoso}, {@code
+ * o365.clientId} becomes {@code o365.tenants.contoso.clientId}, and {@code o365.tenant} becomes
+ * {@code o365.tenants.contoso.tenant}. All other settings are shared by all tenants.
+ */
+public final class TenantConfiguration {
+  public static final String TENANTS_CONFIG = "o365.tenants";
+  private static final String KEY_PREFIX = "o365";
+  private static final Pattern TENANT_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+  private TenantConfiguration() {}
+
+  /** Returns the names of the configured tenants, or an empty list for a single tenant. */
+  public static ImmutableList<String> getTenantNames() {
+    List<String> names =
+        Configuration.getMultiValue(
+                TENANTS_CONFIG, Collections.emptyList(), Configuration.STRING_PARSER)
+            .get();
+    Set<String> tenantNames = new LinkedHashSet<>();
+    for (String name : names) {
+      String trimmed = name.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      Configuration.checkConfiguration(
+          TENANT_NAME_PATTERN.matcher(trimmed).matches(),
+          "Invalid tenant name [%s] for configuration key [%s]",
+          trimmed,
+          TENANTS_CONFIG);
+      Configuration.checkConfiguration(
+          tenantNames.add(trimmed),
+          "Duplicate tenant name [%s] for configuration key [%s]",
+          trimmed,
+          TENANTS_CONFIG);
+    }
+    return ImmutableList.copyOf(tenantNames);
+  }
+
+  /**
+   * Returns the configuration key of {@code key} for {@code tenantName}.
+   *
+   * @param tenantName the name of a tenant listed in {@value #TENANTS_CONFIG}, or null for the
+   *     single tenant
+   * @param key a single tenant configuration key, starting with {@code o365.}
+   */
+  public static String getKey(@Nullable String tenantName, String key) {
+    checkArgument(key.startsWith(KEY_PREFIX + "."), "Not an o365 configuration key: %s", key);
+    if (tenantName == null) {
+      return key;
+    }
+    return TENANTS_CONFIG + "." + tenantName + key.substring(KEY_PREFIX.length());
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * On-disk archive of HTTP exchanges written by {@link RecordingHttpTransport} and served by {@link
+ * ReplayHttpTransport}.
+ *
+ * <p>The archive starts with the 8 byte magic {@code O365TRA1}, followed by length-prefixed
+ * records in the order their responses completed:
+ *
+ * <pre>
+ *   int     length of the rest of the record
+ *   UTF     request key, see {@link #requestKey}
+ *   long    nanoseconds from sending the request to reading the whole response
+ *   short   status code
+ *   UTF     reason phrase
+ *   short   header count, followed by a UTF name and value per header
+ *   int     body length, followed by the body as received, possibly still gzip encoded
+ * </pre>
+ *
+ * <p>Numbers are big-endian and strings are in modified UTF-8, as written by {@link
+ * DataOutputStream}. Request bodies and headers are not stored, so neither access tokens nor
+ * client secrets end up in the archive. A reader maps the file into memory, so an archive is
+ * limited to 2 GiB.
+ */
+final class TrafficArchive {
+  private static final byte[] MAGIC = "O365TRA1".getBytes(UTF_8);
+  static final long MAX_SIZE = Integer.MAX_VALUE;
+
+  private TrafficArchive() {}
+
+  /**
+   * Returns the key that identifies a request in the archive: its method and URL, and for
+   * requests with a body a hash of the body.
+   */
+  static String requestKey(String method, String url, @Nullable byte[] body) {
+    if (body == null || body.length == 0) {
+      return method + " " + url;
+    }
+    return method + " " + url + " " + Hashing.sha256().hashBytes(body);
+  }
+
+  /** A recorded response. */
+  static final class Exchange {
+    final String key;
+    final long latencyNanos;
+    final int statusCode;
+    final String reasonPhrase;
+    final ImmutableList<Map.Entry<String, String>> headers;
+    final ByteBuffer body;
+
+    Exchange(
+        String key,
+        long latencyNanos,
+        int statusCode,
+        String reasonPhrase,
+        List<Map.Entry<String, String>> headers,
+        ByteBuffer body) {
+      this.key = key;
+      this.latencyNanos = latencyNanos;
+      this.statusCode = statusCode;
+      this.reasonPhrase = reasonPhrase;
+      this.headers = ImmutableList.copyOf(headers);
+      this.body = body;
+    }
+
+    /** Returns a stream over the body that does not copy it. */
+    InputStream openBody() {
+      return new ByteBufferInputStream(body.duplicate());
+    }
+  }
+
+  /** Appends records to a new archive. Safe for use by multiple threads. */
+  static final class Writer implements Closeable {
+    private final DataOutputStream out;
+    private long size;
+
+    Writer(Path file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+      out.write(MAGIC);
+      out.flush();
+      size = MAGIC.length;
+    }
+
+    /**
+     * Appends {@code exchange} and flushes it, so the archive stays readable if the process
+     * stops.
+     *
+     * @return false if the record was dropped because the archive is full
+     */
+    synchronized boolean write(Exchange exchange) throws IOException {
+      ByteArrayOutputStream record = new ByteArrayOutputStream(exchange.body.remaining() + 256);
+      DataOutputStream data = new DataOutputStream(record);
+      data.writeUTF(exchange.key);
+      data.writeLong(exchange.latencyNanos);
+      data.writeShort(exchange.statusCode);
+      data.writeUTF(exchange.reasonPhrase);
+      data.writeShort(exchange.headers.size());
+      for (Map.Entry<String, String> header : exchange.headers) {
+        data.writeUTF(header.getKey());
+        data.writeUTF(header.getValue());
+      }
+      byte[] body = new byte[exchange.body.remaining()];
+      exchange.body.duplicate().get(body);
+      data.writeInt(body.length);
+      data.write(body);
+      data.flush();
+      if (size + Integer.BYTES + record.size() > MAX_SIZE) {
+        return false;
+      }
+      out.writeInt(record.size());
+      record.writeTo(out);
+      out.flush();
+      size += Integer.BYTES + record.size();
+      return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads all records of an archive.
+   *
+   * @return the records keyed by request key, each in recording order
+   * @throws IOException if the file can not be read or is not an archive
+   */
+  static Map<String, List<Exchange>> read(Path file) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      checkArgument(channel.size() <= MAX_SIZE, "archive %s is larger than 2 GiB", file);
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    byte[] magic = new byte[MAGIC.length];
+    Map<String, List<Exchange>> exchanges = new LinkedHashMap<>();
+    try {
+      buffer.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException(file + " is not a traffic archive");
+      }
+      while (buffer.hasRemaining()) {
+        int length = buffer.getInt();
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+        Exchange exchange = readExchange(record);
+        exchanges.computeIfAbsent(exchange.key, k -> new ArrayList<>()).add(exchange);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Truncated traffic archive " + file, e);
+    }
+    return ImmutableMap.copyOf(exchanges);
+  }
+
+  private static Exchange readExchange(ByteBuffer record) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteBufferInputStream(record));
+    String key = data.readUTF();
+    long latencyNanos = data.readLong();
+    int statusCode = data.readUnsignedShort();
+    String reasonPhrase = data.readUTF();
+    int headerCount = data.readUnsignedShort();
+    List<Map.Entry<String, String>> headers = new ArrayList<>(headerCount);
+    for (int i = 0; i < headerCount; i++) {
+      headers.add(new SimpleImmutableEntry<>(data.readUTF(), data.readUTF()));
+    }
+    int bodyLength = data.readInt();
+    // The body stays in the mapped file.
+    ByteBuffer body = record.slice();
+    body.limit(bodyLength);
+    return new Exchange(key, latencyNanos, statusCode, reasonPhrase, headers, body);
+  }
+
+  /** {@link InputStream} over the remaining bytes of a buffer, consuming them. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(len, buffer.remaining());
+      buffer.get(b, off, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the responses received through a {@link GzipHttpTransport}, and their size on the wire
+ * and after decoding, and the requests retried with a new access token.
+ */
+public final class TransferStats {
+  private final LongAdder responses = new LongAdder();
+  private final LongAdder compressedResponses = new LongAdder();
+  private final LongAdder wireBytes = new LongAdder();
+  private final LongAdder decodedBytes = new LongAdder();
+  private final LongAdder unauthorizedRetries = new LongAdder();
+
+  void recordResponse(boolean compressed) {
+    responses.increment();
+    if (compressed) {
+      compressedResponses.increment();
+    }
+  }
+
+  void addWireBytes(long bytes) {
+    wireBytes.add(bytes);
+  }
+
+  void addDecodedBytes(long bytes) {
+    decodedBytes.add(bytes);
+  }
+
+  void recordUnauthorizedRetry() {
+    unauthorizedRetries.increment();
+  }
+
+  /** Returns the number of responses received. */
+  public long getResponses() {
+    return responses.sum();
+  }
+
+  /** Returns the number of responses received gzip encoded. */
+  public long getCompressedResponses() {
+    return compressedResponses.sum();
+  }
+
+  /** Returns the number of response body bytes read from the wire. */
+  public long getWireBytes() {
+    return wireBytes.sum();
+  }
+
+  /** Returns the number of response body bytes after decoding. */
+  public long getDecodedBytes() {
+    return decodedBytes.sum();
+  }
+
+  /** Returns the number of requests retried after a 401 response with a new access token. */
+  public long getUnauthorizedRetries() {
+    return unauthorizedRetries.sum();
+  }
+
+  @Override
+  public String toString() {
+    long wire = getWireBytes();
+    long decoded = getDecodedBytes();
+    return String.format(
+        "%d responses (%d gzip), %d bytes on the wire, %d bytes decoded (%.1fx), "
+            + "%d retried with a new access token",
+        getResponses(),
+        getCompressedResponses(),
+        wire,
+        decoded,
+        wire == 0 ? 1.0 : (double) decoded / wire,
+        getUnauthorizedRetries());
+  }
+}
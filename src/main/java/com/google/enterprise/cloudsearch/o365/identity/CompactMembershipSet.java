@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Immutable set of {@link Membership}s with the {@link O365IdentityRepository#MEMBER_ROLES},
+ * stored as the UTF-8 bytes of their member keys.
+ *
+ * <p>A {@code Membership} with its {@link EntityKey} and roles takes several hundred bytes of
+ * heap, while its key takes a few dozen bytes here. Keys are appended to chunks of at most {@link
+ * #CHUNK_SIZE} bytes, so a group with hundreds of thousands of members never needs one large
+ * array, and the {@code Membership} objects are only created while the set is iterated. A chunk
+ * starts small and doubles as keys are added, and the last chunk is trimmed when the set is
+ * built, so a small group holds a few hundred bytes.
+ */
+final class CompactMembershipSet extends AbstractSet<Membership> {
+  @VisibleForTesting static final int CHUNK_SIZE = 64 * 1024;
+  private static final int MIN_CHUNK_SIZE = 256;
+  // Entry layout: namespace index, key length as two bytes, key bytes.
+  private static final int ENTRY_HEADER_BYTES = 3;
+  private static final int MAX_KEY_BYTES = 4096;
+  private static final int MAX_NAMESPACES = 0xFF;
+
+  private static final CompactMembershipSet EMPTY = new Builder().build();
+
+  private final List<byte[]> chunks;
+  private final long chunkBytes;
+  private final String[] namespaces;
+  private final int[] entries;
+  private final int size;
+  private final int[] table;
+
+  private CompactMembershipSet(Builder builder) {
+    chunks = builder.chunks;
+    chunkBytes = builder.chunkBytes;
+    namespaces = builder.namespaces.toArray(new String[0]);
+    entries = builder.entries;
+    size = builder.size;
+    table = builder.table;
+  }
+
+  static CompactMembershipSet of() {
+    return EMPTY;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof Membership)) {
+      return false;
+    }
+    Membership membership = (Membership) o;
+    EntityKey key = membership.getPreferredMemberKey();
+    if (key == null || key.getId() == null) {
+      return false;
+    }
+    int namespace = indexOf(namespaces, key.getNamespace());
+    if (namespace < 0) {
+      return false;
+    }
+    int entry = find(table, chunks, entries, namespace, key.getId().getBytes(UTF_8));
+    return entry >= 0 && toMembership(entry).equals(membership);
+  }
+
+  @Override
+  public Iterator<Membership> iterator() {
+    return new Iterator<Membership>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public Membership next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return toMembership(next++);
+      }
+    };
+  }
+
+  /** Returns the approximate number of heap bytes retained by this set. */
+  long retainedBytes() {
+    return chunkBytes + 4L * entries.length + 4L * table.length;
+  }
+
+  private Membership toMembership(int entry) {
+    int address = entries[entry];
+    byte[] chunk = chunks.get(address / CHUNK_SIZE);
+    int offset = address % CHUNK_SIZE;
+    String namespace = namespaces[chunk[offset] & 0xFF];
+    int length = ((chunk[offset + 1] & 0xFF) << 8) | (chunk[offset + 2] & 0xFF);
+    EntityKey key =
+        new EntityKey().setId(new String(chunk, offset + ENTRY_HEADER_BYTES, length, UTF_8));
+    if (namespace != null) {
+      key.setNamespace(namespace);
+    }
+    return new Membership()
+        .setPreferredMemberKey(key)
+        .setRoles(O365IdentityRepository.MEMBER_ROLES);
+  }
+
+  private static int indexOf(String[] namespaces, String namespace) {
+    for (int i = 0; i < namespaces.length; i++) {
+      if (Objects.equals(namespaces[i], namespace)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int hash(int namespace, byte[] bytes, int offset, int length) {
+    int hash = namespace;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Returns the index of the entry with {@code namespace} and {@code key}, or {@code -(slot + 1)}
+   * for the empty slot of {@code table} where it belongs.
+   */
+  private static int find(
+      int[] table, List<byte[]> chunks, int[] entries, int namespace, byte[] key) {
+    int mask = table.length - 1;
+    for (int slot = hash(namespace, key, 0, key.length) & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot] - 1;
+      if (entry < 0) {
+        return -(slot + 1);
+      }
+      if (entryEquals(chunks, entries[entry], namespace, key)) {
+        return entry;
+      }
+    }
+  }
+
+  private static boolean entryEquals(List<byte[]> chunks, int address, int namespace, byte[] key) {
+    byte[] chunk = chunks.get(address / CHUNK_SIZE);
+    int offset = address % CHUNK_SIZE;
+    if ((chunk[offset] & 0xFF) != namespace) {
+      return false;
+    }
+    int length = ((chunk[offset + 1] & 0xFF) << 8) | (chunk[offset + 2] & 0xFF);
+    if (length != key.length) {
+      return false;
+    }
+    int start = offset + ENTRY_HEADER_BYTES;
+    for (int i = 0; i < length; i++) {
+      if (chunk[start + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Collects member keys, ignoring duplicates. A builder can only be built once. */
+  static final class Builder {
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final List<String> namespaces = new ArrayList<>();
+    private int[] entries = new int[16];
+    private int size;
+    private int[] table = new int[32];
+    private int chunkPosition = CHUNK_SIZE;
+    private long chunkBytes;
+    private boolean built;
+
+    /** Adds a user member, keyed by its mail. */
+    Builder addUser(String mail) {
+      return add(new EntityKey().setId(mail));
+    }
+
+    /** Adds a member with {@code key}, such as the key of a group built by the SDK. */
+    Builder add(EntityKey key) {
+      checkState(!built, "builder already built");
+      checkNotNull(key.getId(), "member key id can not be null");
+      int namespace = namespaces.indexOf(key.getNamespace());
+      if (namespace < 0) {
+        checkArgument(namespaces.size() < MAX_NAMESPACES, "too many namespaces");
+        namespace = namespaces.size();
+        namespaces.add(key.getNamespace());
+      }
+      byte[] bytes = key.getId().getBytes(UTF_8);
+      checkArgument(bytes.length <= MAX_KEY_BYTES, "member key too long: %s", key.getId());
+      int found = find(table, chunks, entries, namespace, bytes);
+      if (found >= 0) {
+        return this;
+      }
+      int address = append(namespace, bytes);
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      entries[size] = address;
+      table[-(found + 1)] = ++size;
+      if (size * 2 > table.length) {
+        rehash();
+      }
+      return this;
+    }
+
+    /** Returns the approximate number of heap bytes retained by the keys added so far. */
+    long retainedBytes() {
+      return chunkBytes + 4L * entries.length + 4L * table.length;
+    }
+
+    CompactMembershipSet build() {
+      checkState(!built, "builder already built");
+      built = true;
+      if (!chunks.isEmpty()) {
+        byte[] chunk = chunks.get(chunks.size() - 1);
+        if (chunkPosition < chunk.length) {
+          chunks.set(chunks.size() - 1, Arrays.copyOf(chunk, chunkPosition));
+          chunkBytes -= chunk.length - chunkPosition;
+        }
+      }
+      if (size < entries.length) {
+        entries = Arrays.copyOf(entries, size);
+      }
+      return new CompactMembershipSet(this);
+    }
+
+    private int append(int namespace, byte[] bytes) {
+      int entryLength = ENTRY_HEADER_BYTES + bytes.length;
+      if (chunkPosition + entryLength > CHUNK_SIZE) {
+        checkState(chunks.size() < Integer.MAX_VALUE / CHUNK_SIZE, "too many members");
+        chunks.add(new byte[0]);
+        chunkPosition = 0;
+      }
+      byte[] chunk = chunks.get(chunks.size() - 1);
+      if (chunkPosition + entryLength > chunk.length) {
+        int length =
+            Math.min(
+                CHUNK_SIZE,
+                Math.max(Math.max(MIN_CHUNK_SIZE, chunk.length * 2), chunkPosition + entryLength));
+        chunkBytes += length - chunk.length;
+        chunk = Arrays.copyOf(chunk, length);
+        chunks.set(chunks.size() - 1, chunk);
+      }
+      chunk[chunkPosition] = (byte) namespace;
+      chunk[chunkPosition + 1] = (byte) (bytes.length >>> 8);
+      chunk[chunkPosition + 2] = (byte) bytes.length;
+      System.arraycopy(bytes, 0, chunk, chunkPosition + ENTRY_HEADER_BYTES, bytes.length);
+      int address = (chunks.size() - 1) * CHUNK_SIZE + chunkPosition;
+      chunkPosition += entryLength;
+      return address;
+    }
+
+    private void rehash() {
+      int[] newTable = new int[table.length * 2];
+      int mask = newTable.length - 1;
+      for (int entry = 0; entry < size; entry++) {
+        int address = entries[entry];
+        byte[] chunk = chunks.get(address / CHUNK_SIZE);
+        int offset = address % CHUNK_SIZE;
+        int length = ((chunk[offset + 1] & 0xFF) << 8) | (chunk[offset + 2] & 0xFF);
+        int slot = hash(chunk[offset] & 0xFF, chunk, offset + ENTRY_HEADER_BYTES, length) & mask;
+        while (newTable[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        newTable[slot] = entry + 1;
+      }
+      table = newTable;
+    }
+  }
+}
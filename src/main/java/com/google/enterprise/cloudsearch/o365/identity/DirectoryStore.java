@@ -0,0 +1,654 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.enterprise.cloudsearch.o365.model.User;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * Users, groups and group memberships seen by the last full listings, kept in the state directory
+ * to diff listings against and to look directory objects up by id without holding them on heap.
+ *
+ * <p>The store is an append-only log of records, each with its length and CRC32: a user, a group
+ * with the {@link MemberKeys#hash} and keys of its members, or the removal of either. Records are
+ * read through memory-mapped segments of the log. The only part kept on heap is an open-addressing
+ * index from a 64-bit hash of each id to the offset of its latest record, 16 bytes per slot,
+ * rebuilt when the store is opened. Ids are confirmed against the mapped record, so lookups take
+ * constant time whatever the number of memberships. A record torn by a crash ends the log and is
+ * cut off when the store is opened.
+ *
+ * <p>Records appended since the log was last mapped are read from the file. The log is mapped
+ * again only once a segment filled up or the log grew by as much as is mapped of its last segment,
+ * so the mapped part grows geometrically instead of being mapped again for every append.
+ *
+ * <p>Records are only appended when an object changed. Records replaced or removed stay in the log
+ * until they outweigh the live ones, when {@link #compactIfNeeded} rewrites the log with the live
+ * records only.
+ *
+ * <p>A listing marks the objects it lists, so that those it no longer listed are removed by {@link
+ * #removeUnlisted} once it completed.
+ */
+final class DirectoryStore implements Closeable {
+  private static final Logger logger = Logger.getLogger(DirectoryStore.class.getName());
+
+  /** Kinds of directory objects kept in the store. */
+  enum Kind {
+    USER,
+    GROUP
+  }
+
+  @VisibleForTesting static final int FORMAT_VERSION = 1;
+  @VisibleForTesting static final int DEFAULT_SEGMENT_BYTES = 1 << 30;
+  private static final int HEADER_BYTES = 4;
+  // Length and CRC32 of the record content.
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final byte USER_RECORD = 1;
+  private static final byte GROUP_RECORD = 2;
+  private static final byte REMOVED_RECORD = 3;
+  private static final long MIN_COMPACTION_BYTES = 16L << 20;
+  private static final HashFunction ID_HASH = Hashing.murmur3_128();
+
+  private final Path file;
+  private final int segmentBytes;
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+  private FileChannel channel;
+  private long mappedBytes;
+  private int mappings;
+  private long appendPosition;
+  private long liveBytes;
+
+  // Slots hold the id hash, with the kind in its low two bits so that no hash is 0, and the
+  // offset of the latest record of the id.
+  private long[] slotHashes = new long[16];
+  private long[] slotOffsets = new long[16];
+  private BitSet listed = new BitSet();
+  private int size;
+
+  private DirectoryStore(Path file, int segmentBytes) {
+    this.file = file;
+    this.segmentBytes = segmentBytes;
+  }
+
+  /**
+   * Opens the store in {@code file}, creating it if there is none. A store of an unknown version is
+   * discarded.
+   */
+  static DirectoryStore open(Path file) throws IOException {
+    return open(file, DEFAULT_SEGMENT_BYTES);
+  }
+
+  @VisibleForTesting
+  static DirectoryStore open(Path file, int segmentBytes) throws IOException {
+    checkNotNull(file, "file can not be null");
+    checkArgument(segmentBytes > 0, "segment size must be positive");
+    DirectoryStore store = new DirectoryStore(file, segmentBytes);
+    try {
+      store.load();
+    } catch (IOException | RuntimeException e) {
+      store.close();
+      throw e;
+    }
+    return store;
+  }
+
+  /** Returns how many times the log was mapped since the store was opened. */
+  @VisibleForTesting
+  synchronized int getMappingCount() {
+    return mappings;
+  }
+
+  /** Returns the number of users and groups in the store. */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Returns the user with {@code userId}, or null if it is not in the store. */
+  @Nullable
+  synchronized User getUser(String userId) throws IOException {
+    int slot = findSlot(Kind.USER, userId);
+    return slot < 0 ? null : readUser(slotOffsets[slot]);
+  }
+
+  /** Stores {@code user} and marks it listed, appending a record only if it changed. */
+  synchronized void putUser(User user) throws IOException {
+    String userId = user.getId();
+    int slot = findSlot(Kind.USER, userId);
+    if (slot >= 0 && user.equals(readUser(slotOffsets[slot]))) {
+      listed.set(slot);
+      return;
+    }
+    long offset =
+        append(
+            record -> {
+              record.writeByte(USER_RECORD);
+              record.writeUTF(userId);
+              writeNullableUTF(record, user.getMail());
+              writeNullableUTF(record, user.getUserPrincipalName());
+              record.writeBoolean(user.isAccountEnabled());
+            });
+    listed.set(index(Kind.USER, userId, offset, (int) (appendPosition - offset)));
+  }
+
+  /**
+   * Returns the {@link MemberKeys#hash} of the memberships of {@code groupId}, or null if it is not
+   * in the store.
+   */
+  @Nullable
+  synchronized Long getGroupHash(String groupId) throws IOException {
+    int slot = findSlot(Kind.GROUP, groupId);
+    return slot < 0 ? null : readGroupHash(slotOffsets[slot]);
+  }
+
+  /** Reads the memberships of {@code groupId}, which must be in the store. */
+  synchronized CompactMembershipSet getGroupMembers(String groupId) throws IOException {
+    int slot = findSlot(Kind.GROUP, groupId);
+    checkState(slot >= 0, "group [%s] not in store", groupId);
+    DataInputStream in = readContent(slotOffsets[slot]);
+    in.readByte();
+    in.readUTF();
+    in.readLong();
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    MemberKeys.read(in, builder);
+    return builder.build();
+  }
+
+  /**
+   * Stores {@code groupId} with {@code memberships}, which hash to {@code hash}, and marks it
+   * listed, appending a record only if its memberships changed.
+   */
+  synchronized void putGroup(String groupId, long hash, Collection<Membership> memberships)
+      throws IOException {
+    int slot = findSlot(Kind.GROUP, groupId);
+    if (slot >= 0 && readGroupHash(slotOffsets[slot]) == hash) {
+      listed.set(slot);
+      return;
+    }
+    long offset =
+        append(
+            record -> {
+              record.writeByte(GROUP_RECORD);
+              record.writeUTF(groupId);
+              record.writeLong(hash);
+              MemberKeys.write(record, MemberKeys.of(memberships));
+            });
+    listed.set(index(Kind.GROUP, groupId, offset, (int) (appendPosition - offset)));
+  }
+
+  private User readUser(long offset) throws IOException {
+    DataInputStream in = readContent(offset);
+    in.readByte();
+    User.Builder user = new User.Builder().setId(in.readUTF());
+    user.setMail(readNullableUTF(in));
+    user.setUserPrincipalName(readNullableUTF(in));
+    user.setAccountEnabled(in.readBoolean());
+    return user.build();
+  }
+
+  private long readGroupHash(long offset) throws IOException {
+    DataInputStream in = readContent(offset);
+    in.readByte();
+    in.readUTF();
+    return in.readLong();
+  }
+
+  /** Returns whether the {@code kind} with {@code id} was listed since {@link #startListing}. */
+  synchronized boolean isListed(Kind kind, String id) throws IOException {
+    int slot = findSlot(kind, id);
+    return slot >= 0 && listed.get(slot);
+  }
+
+  /** Clears the marks of the objects of {@code kind} listed before. */
+  synchronized void startListing(Kind kind) {
+    for (int slot = listed.nextSetBit(0); slot >= 0; slot = listed.nextSetBit(slot + 1)) {
+      if (kindOf(slotHashes[slot]) == kind) {
+        listed.clear(slot);
+      }
+    }
+  }
+
+  /**
+   * Removes the objects of {@code kind} that were not listed since {@link #startListing}, and
+   * returns how many were removed.
+   */
+  synchronized int removeUnlisted(Kind kind) throws IOException {
+    List<String> unlisted = new ArrayList<>();
+    for (int slot = 0; slot < slotHashes.length; slot++) {
+      if (slotHashes[slot] != 0 && kindOf(slotHashes[slot]) == kind && !listed.get(slot)) {
+        DataInputStream in = readContent(slotOffsets[slot]);
+        in.readByte();
+        unlisted.add(in.readUTF());
+      }
+    }
+    for (String id : unlisted) {
+      append(
+          record -> {
+            record.writeByte(REMOVED_RECORD);
+            record.writeByte(kind.ordinal());
+            record.writeUTF(id);
+          });
+      deleteSlot(findSlot(kind, id));
+    }
+    return unlisted.size();
+  }
+
+  /** Compacts the log if replaced and removed records outweigh the live ones. */
+  synchronized void compactIfNeeded() throws IOException {
+    long deadBytes = appendPosition - HEADER_BYTES - liveBytes;
+    if (deadBytes >= MIN_COMPACTION_BYTES && deadBytes > liveBytes) {
+      compact();
+    }
+  }
+
+  /** Rewrites the log with the live records only. */
+  @VisibleForTesting
+  synchronized void compact() throws IOException {
+    Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+    long[] offsets = new long[slotOffsets.length];
+    long position = HEADER_BYTES;
+    try (FileChannel out =
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      writeFully(out, header(), 0);
+      for (int slot = 0; slot < slotHashes.length; slot++) {
+        if (slotHashes[slot] == 0) {
+          continue;
+        }
+        int recordBytes = recordBytes(slotOffsets[slot]);
+        writeFully(out, read(slotOffsets[slot], recordBytes), position);
+        offsets[slot] = position;
+        position += recordBytes;
+      }
+      out.force(true);
+    }
+    long deadBytes = appendPosition - HEADER_BYTES - liveBytes;
+    unmap();
+    channel.close();
+    boolean moved = false;
+    try {
+      Files.move(
+          compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      moved = true;
+    } finally {
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      if (moved) {
+        slotOffsets = offsets;
+        appendPosition = position;
+        liveBytes = position - HEADER_BYTES;
+      } else {
+        Files.deleteIfExists(compacted);
+      }
+    }
+    logger.log(
+        Level.INFO,
+        "Compacted directory store [{0}] from {1} to {2} bytes.",
+        new Object[] {file, deadBytes + position, position});
+  }
+
+  @Override
+  public synchronized void close() {
+    unmap();
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close directory store [" + file + "].", e);
+    }
+    channel = null;
+  }
+
+  private void load() throws IOException {
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long fileSize = channel.size();
+    if (fileSize < HEADER_BYTES || read(0, HEADER_BYTES).getInt() != FORMAT_VERSION) {
+      if (fileSize > 0) {
+        logger.log(Level.WARNING, "Discarding directory store [{0}] of an unknown version.", file);
+      }
+      unmap();
+      channel.truncate(0);
+      writeFully(channel, header(), 0);
+      appendPosition = HEADER_BYTES;
+      return;
+    }
+    long position = HEADER_BYTES;
+    while (position + RECORD_HEADER_BYTES <= fileSize) {
+      ByteBuffer recordHeader = read(position, RECORD_HEADER_BYTES);
+      int length = recordHeader.getInt();
+      int expectedCrc = recordHeader.getInt();
+      if (length <= 0 || position + RECORD_HEADER_BYTES + length > fileSize) {
+        break;
+      }
+      ByteBuffer content = read(position + RECORD_HEADER_BYTES, length);
+      CRC32 crc = new CRC32();
+      crc.update(content.duplicate());
+      if ((int) crc.getValue() != expectedCrc
+          || !apply(position, RECORD_HEADER_BYTES + length, input(content))) {
+        break;
+      }
+      position += RECORD_HEADER_BYTES + length;
+    }
+    if (position < fileSize) {
+      logger.log(
+          Level.WARNING,
+          "Cutting off {0} bytes of directory store [{1}] after a torn record.",
+          new Object[] {fileSize - position, file});
+      unmap();
+      channel.truncate(position);
+    }
+    appendPosition = position;
+  }
+
+  /**
+   * Applies the record of {@code recordBytes} at {@code offset} to the index. Returns false for an
+   * unknown record.
+   */
+  private boolean apply(long offset, int recordBytes, DataInputStream content) throws IOException {
+    byte type = content.readByte();
+    switch (type) {
+      case USER_RECORD:
+        index(Kind.USER, content.readUTF(), offset, recordBytes);
+        return true;
+      case GROUP_RECORD:
+        index(Kind.GROUP, content.readUTF(), offset, recordBytes);
+        return true;
+      case REMOVED_RECORD:
+        {
+          int kind = content.readUnsignedByte();
+          if (kind >= Kind.values().length) {
+            return false;
+          }
+          int slot = findSlot(Kind.values()[kind], content.readUTF());
+          if (slot >= 0) {
+            deleteSlot(slot);
+          }
+          return true;
+        }
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Points the index at the record of {@code recordBytes} at {@code offset} for {@code id}, and
+   * returns its slot.
+   */
+  private int index(Kind kind, String id, long offset, int recordBytes) throws IOException {
+    if ((size + 1) * 2 > slotHashes.length) {
+      grow();
+    }
+    int slot = findSlot(kind, id);
+    if (slot >= 0) {
+      liveBytes -= recordBytes(slotOffsets[slot]);
+    } else {
+      slot = ~slot;
+      slotHashes[slot] = hash(kind, id);
+      size++;
+    }
+    slotOffsets[slot] = offset;
+    liveBytes += recordBytes;
+    return slot;
+  }
+
+  /** Returns the slot of {@code id}, or the complement of the free slot to put it in. */
+  private int findSlot(Kind kind, String id) throws IOException {
+    long hash = hash(kind, id);
+    int mask = slotHashes.length - 1;
+    for (int slot = home(hash, mask); ; slot = (slot + 1) & mask) {
+      if (slotHashes[slot] == 0) {
+        return ~slot;
+      }
+      if (slotHashes[slot] == hash) {
+        DataInputStream in = readContent(slotOffsets[slot]);
+        in.readByte();
+        if (in.readUTF().equals(id)) {
+          return slot;
+        }
+      }
+    }
+  }
+
+  /** Empties {@code slot}, moving back the slots that probed past it. */
+  private void deleteSlot(int slot) throws IOException {
+    liveBytes -= recordBytes(slotOffsets[slot]);
+    int mask = slotHashes.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; slotHashes[next] != 0; next = (next + 1) & mask) {
+      int home = home(slotHashes[next], mask);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        slotHashes[hole] = slotHashes[next];
+        slotOffsets[hole] = slotOffsets[next];
+        listed.set(hole, listed.get(next));
+        hole = next;
+      }
+    }
+    slotHashes[hole] = 0;
+    slotOffsets[hole] = 0;
+    listed.clear(hole);
+    size--;
+  }
+
+  private void grow() {
+    long[] hashes = new long[slotHashes.length * 2];
+    long[] offsets = new long[hashes.length];
+    BitSet marks = new BitSet();
+    int mask = hashes.length - 1;
+    for (int slot = 0; slot < slotHashes.length; slot++) {
+      if (slotHashes[slot] == 0) {
+        continue;
+      }
+      int target = home(slotHashes[slot], mask);
+      while (hashes[target] != 0) {
+        target = (target + 1) & mask;
+      }
+      hashes[target] = slotHashes[slot];
+      offsets[target] = slotOffsets[slot];
+      marks.set(target, listed.get(slot));
+    }
+    slotHashes = hashes;
+    slotOffsets = offsets;
+    listed = marks;
+  }
+
+  private static long hash(Kind kind, String id) {
+    long hash = ID_HASH.hashString(id, UTF_8).asLong();
+    return (hash & ~3L) | (kind.ordinal() + 1);
+  }
+
+  /** Returns the first slot probed for {@code slotHash}, leaving out the bits of its kind. */
+  private static int home(long slotHash, int mask) {
+    return (int) (slotHash >>> 2) & mask;
+  }
+
+  private static Kind kindOf(long slotHash) {
+    return Kind.values()[(int) (slotHash & 3) - 1];
+  }
+
+  private long append(RecordWriter writer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(new byte[RECORD_HEADER_BYTES]);
+    try (DataOutputStream record = new DataOutputStream(bytes)) {
+      writer.write(record);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), RECORD_HEADER_BYTES, buffer.capacity() - RECORD_HEADER_BYTES);
+    buffer.putInt(0, buffer.capacity() - RECORD_HEADER_BYTES);
+    buffer.putInt(4, (int) crc.getValue());
+    // A failed write is overwritten by the next one, so the log never holds a torn record
+    // followed by intact ones.
+    long offset = appendPosition;
+    writeFully(channel, buffer, offset);
+    appendPosition += buffer.capacity();
+    return offset;
+  }
+
+  private int recordBytes(long offset) throws IOException {
+    return RECORD_HEADER_BYTES + read(offset, 4).getInt();
+  }
+
+  private DataInputStream readContent(long offset) throws IOException {
+    return input(read(offset + RECORD_HEADER_BYTES, recordBytes(offset) - RECORD_HEADER_BYTES));
+  }
+
+  /**
+   * Returns {@code length} bytes at {@code position}, a view of the mapped log unless they span
+   * two segments or were appended since the log was mapped.
+   */
+  private ByteBuffer read(long position, int length) throws IOException {
+    if (position + length > mappedBytes) {
+      mapIfGrown();
+    }
+    int segment = (int) (position / segmentBytes);
+    int start = (int) (position % segmentBytes);
+    if (position + length <= mappedBytes && start + length <= segmentBytes) {
+      ByteBuffer view = segments.get(segment).duplicate();
+      view.position(start);
+      view.limit(start + length);
+      return view.slice();
+    }
+    ByteBuffer copy = ByteBuffer.allocate(length);
+    while (copy.hasRemaining()) {
+      if (channel.read(copy, position + copy.position()) < 0) {
+        throw new EOFException("Directory store truncated");
+      }
+    }
+    copy.flip();
+    return copy;
+  }
+
+  /**
+   * Maps the log up to its current size if a segment filled up since it was mapped, or the log grew
+   * by at least as much as is mapped of its last segment.
+   */
+  private void mapIfGrown() throws IOException {
+    long fileSize = channel.size();
+    long lastSegmentBytes = mappedBytes % segmentBytes;
+    if (fileSize > mappedBytes
+        && (fileSize - mappedBytes >= lastSegmentBytes
+            || fileSize / segmentBytes > mappedBytes / segmentBytes)) {
+      map(fileSize);
+    }
+  }
+
+  /** Maps the log up to {@code fileSize}, remapping its last, partially mapped segment. */
+  private void map(long fileSize) throws IOException {
+    mappings++;
+    if (!segments.isEmpty() && segments.get(segments.size() - 1).capacity() < segmentBytes) {
+      segments.remove(segments.size() - 1);
+    }
+    for (long start = (long) segments.size() * segmentBytes;
+        start < fileSize;
+        start += segmentBytes) {
+      segments.add(
+          channel.map(
+              FileChannel.MapMode.READ_ONLY, start, Math.min(segmentBytes, fileSize - start)));
+    }
+    mappedBytes = fileSize;
+  }
+
+  private void unmap() {
+    segments.clear();
+    mappedBytes = 0;
+  }
+
+  private static ByteBuffer header() {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(0, FORMAT_VERSION);
+    return header;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    long written = 0;
+    while (buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
+    }
+  }
+
+  private static void writeNullableUTF(DataOutputStream out, @Nullable String value)
+      throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  @Nullable
+  private static String readNullableUTF(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static DataInputStream input(ByteBuffer buffer) {
+    return new DataInputStream(
+        new InputStream() {
+          @Override
+          public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+          }
+
+          @Override
+          public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+              return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+          }
+        });
+  }
+
+  @FunctionalInterface
+  private interface RecordWriter {
+    void write(DataOutputStream record) throws IOException;
+  }
+}
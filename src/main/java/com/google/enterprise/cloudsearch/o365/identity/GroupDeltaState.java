@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.enterprise.cloudsearch.o365.model.Group;
+import com.google.enterprise.cloudsearch.o365.model.Member;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local copy of group memberships known from Microsoft Graph {@code groups/delta}, together with
+ * the {@code @odata.deltaLink} to request the next set of changes.
+ *
+ * <p>Only user and group members are tracked, by object id, in {@link ObjectIdSet}s that hold the
+ * GUIDs as longs. Like {@link UserDeltaState}, changes are applied in memory as delta pages are
+ * fetched and written to disk by {@link #commit} once a round has been fully applied.
+ */
+class GroupDeltaState {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final Path stateFile;
+  private final Map<String, GroupMembers> groups;
+  private String deltaLink;
+
+  private GroupDeltaState(Path stateFile, Map<String, GroupMembers> groups, String deltaLink) {
+    this.stateFile = stateFile;
+    this.groups = groups;
+    this.deltaLink = deltaLink;
+  }
+
+  /**
+   * Loads the state stored in {@code stateFile}, or returns an empty state if the file does not
+   * exist or can not be read.
+   */
+  static GroupDeltaState load(Path stateFile) {
+    checkNotNull(stateFile, "state file can not be null");
+    return StateFiles.read(stateFile, State.class)
+        .map(state -> new GroupDeltaState(stateFile, state.toGroupMembers(), state.deltaLink))
+        .orElseGet(() -> new GroupDeltaState(stateFile, new HashMap<>(), null));
+  }
+
+  /** Returns the delta link of the last committed round, or null if none was committed. */
+  String getDeltaLink() {
+    return deltaLink;
+  }
+
+  /**
+   * Applies a single changed or removed group from a delta page. A group may be reported on
+   * several pages of the same round, each carrying part of its {@code members@delta}.
+   */
+  void apply(Group group) {
+    String id = group.getId();
+    if (id == null) {
+      return;
+    }
+    if (group.isRemoved()) {
+      groups.remove(id);
+      return;
+    }
+    GroupMembers members = groups.computeIfAbsent(id, k -> new GroupMembers());
+    for (Member member : group.getMembersDelta()) {
+      if (member == null || member.getId() == null) {
+        continue;
+      }
+      if (member.isRemoved()) {
+        members.users.remove(member.getId());
+        members.groups.remove(member.getId());
+      } else if (member.isUser()) {
+        members.users.add(member.getId());
+      } else if (member.isGroup()) {
+        members.groups.add(member.getId());
+      }
+    }
+  }
+
+  /** Returns the ids of all currently known groups. */
+  Set<String> getGroupIds() {
+    return Collections.unmodifiableSet(groups.keySet());
+  }
+
+  /** Returns the ids of the user members of {@code groupId}. */
+  Set<String> getUserMembers(String groupId) {
+    GroupMembers members = groups.get(groupId);
+    return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members.users);
+  }
+
+  /** Returns the ids of the group members of {@code groupId}. */
+  Set<String> getGroupMembers(String groupId) {
+    GroupMembers members = groups.get(groupId);
+    return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members.groups);
+  }
+
+  /** Records {@code newDeltaLink} as the end of the current round and writes the state to disk. */
+  void commit(String newDeltaLink) throws IOException {
+    this.deltaLink = checkNotNull(newDeltaLink, "delta link can not be null");
+    State state = new State();
+    state.deltaLink = deltaLink;
+    state.groups = new HashMap<>();
+    for (Map.Entry<String, GroupMembers> entry : groups.entrySet()) {
+      GroupRecord record = new GroupRecord();
+      record.users = new ArrayList<>(entry.getValue().users);
+      record.groups = new ArrayList<>(entry.getValue().groups);
+      state.groups.put(entry.getKey(), record);
+    }
+    StateFiles.write(stateFile, state);
+  }
+
+  private static class GroupMembers {
+    private final Set<String> users = new ObjectIdSet();
+    private final Set<String> groups = new ObjectIdSet();
+  }
+
+  /** On-disk representation of {@link GroupDeltaState}. */
+  public static class State extends GenericJson {
+    @Key private String deltaLink;
+    @Key private Map<String, GroupRecord> groups;
+
+    public State() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+
+    private Map<String, GroupMembers> toGroupMembers() {
+      Map<String, GroupMembers> result = new HashMap<>();
+      if (groups == null) {
+        return result;
+      }
+      for (Map.Entry<String, GroupRecord> entry : groups.entrySet()) {
+        GroupMembers members = new GroupMembers();
+        if (entry.getValue().users != null) {
+          members.users.addAll(entry.getValue().users);
+        }
+        if (entry.getValue().groups != null) {
+          members.groups.addAll(entry.getValue().groups);
+        }
+        result.put(entry.getKey(), members);
+      }
+      return result;
+    }
+  }
+
+  /** On-disk representation of the members of a single group. */
+  public static class GroupRecord extends GenericJson {
+    @Key private List<String> users;
+    @Key private List<String> groups;
+
+    public GroupRecord() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * Append-only record of a full group listing in progress, kept in the state directory so that a
+ * listing interrupted by a restart resumes where it stopped.
+ *
+ * <p>The journal records the groups page being listed, the memberships of every group handed to
+ * the SDK, and the member keys and next link of groups whose members are still being paged. A
+ * group whose memberships equal those kept in the {@link DirectoryStore} is recorded by its hash
+ * only. A full sync deletes the groups it does not list, so groups completed
+ * before a restart are listed again from the journal instead of being skipped. Their members are
+ * not loaded with the journal: only the offsets of their records are, and a resumed journal reads
+ * the members of a group from its record when the SDK asks for them.
+ *
+ * <p>Each record is written with its length and CRC32 and flushed. A record torn by a crash ends
+ * the journal when it is loaded, and is cut off before new records are appended. A journal that
+ * failed to write is deleted, since resuming from an incomplete one would drop groups.
+ */
+final class GroupListingJournal implements Closeable {
+  private static final Logger logger = Logger.getLogger(GroupListingJournal.class.getName());
+
+  @VisibleForTesting static final int FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 12;
+  private static final byte PAGE_RECORD = 1;
+  private static final byte GROUP_RECORD = 2;
+  private static final byte MEMBERS_RECORD = 3;
+  private static final byte UNCHANGED_GROUP_RECORD = 4;
+
+  private final Path file;
+  private DataOutputStream out;
+  @Nullable private FileChannel reader;
+
+  private GroupListingJournal(Path file, DataOutputStream out, @Nullable FileChannel reader) {
+    this.file = file;
+    this.out = out;
+    this.reader = reader;
+  }
+
+  /** Starts a new journal in {@code file}, replacing any previous one. */
+  static GroupListingJournal start(Path file, long nowMillis) throws IOException {
+    checkNotNull(file, "file can not be null");
+    DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                Files.newOutputStream(
+                    file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)));
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(nowMillis);
+    out.flush();
+    return new GroupListingJournal(file, out, null);
+  }
+
+  /**
+   * Continues appending to the journal {@code progress} was loaded from. The completed groups of
+   * {@code progress} are read with {@link #readGroup} until the journal is closed.
+   */
+  static GroupListingJournal resume(Path file, Progress progress) throws IOException {
+    checkNotNull(progress, "progress can not be null");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(progress.validBytes);
+    }
+    FileChannel reader = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      DataOutputStream out =
+          new DataOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+      return new GroupListingJournal(file, out, reader);
+    } catch (IOException | RuntimeException e) {
+      reader.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Loads the journal in {@code file}. Returns empty if there is none, or if it was started before
+   * {@code minStartedAtMillis} or can not be read, in which case it is deleted.
+   */
+  static Optional<Progress> load(Path file, long minStartedAtMillis) {
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        logger.log(Level.WARNING, "Discarding group listing journal of an unknown version.");
+        Files.deleteIfExists(file);
+        return Optional.empty();
+      }
+      long startedAtMillis = in.readLong();
+      if (startedAtMillis < minStartedAtMillis) {
+        logger.log(Level.INFO, "Discarding expired group listing journal [{0}].", file);
+        Files.deleteIfExists(file);
+        return Optional.empty();
+      }
+      ProgressReader reader = new ProgressReader();
+      long validBytes = HEADER_BYTES;
+      byte[] record;
+      while ((record = readRecord(in)) != null) {
+        reader.apply(new DataInputStream(new ByteArrayInputStream(record)), validBytes);
+        validBytes += 8 + record.length;
+      }
+      return Optional.of(reader.toProgress(validBytes));
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Discarding unreadable group listing journal [" + file + "].", e);
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException deleteFailure) {
+        e.addSuppressed(deleteFailure);
+      }
+      return Optional.empty();
+    }
+  }
+
+  /** Records that the groups page at {@code link} is being listed. */
+  synchronized void recordPage(String link) {
+    write(
+        record -> {
+          record.writeByte(PAGE_RECORD);
+          record.writeUTF(link);
+        });
+  }
+
+  /**
+   * Records members of {@code groupId} fetched so far in addition to those already recorded, and
+   * the link to its next members page.
+   */
+  synchronized void recordMembers(String groupId, String nextLink, List<EntityKey> keys) {
+    write(
+        record -> {
+          record.writeByte(MEMBERS_RECORD);
+          record.writeUTF(groupId);
+          record.writeUTF(nextLink);
+          MemberKeys.write(record, keys);
+        });
+  }
+
+  /** Records that {@code groupId} was handed to the SDK with {@code memberships}. */
+  synchronized void recordGroup(String groupId, Collection<Membership> memberships) {
+    List<EntityKey> keys = MemberKeys.of(memberships);
+    write(
+        record -> {
+          record.writeByte(GROUP_RECORD);
+          record.writeUTF(groupId);
+          MemberKeys.write(record, keys);
+        });
+  }
+
+  /**
+   * Records that {@code groupId} was handed to the SDK with the memberships kept in the {@link
+   * DirectoryStore}, which hash to {@code hash}.
+   */
+  synchronized void recordUnchangedGroup(String groupId, long hash) {
+    write(
+        record -> {
+          record.writeByte(UNCHANGED_GROUP_RECORD);
+          record.writeUTF(groupId);
+          record.writeLong(hash);
+        });
+  }
+
+  /**
+   * Reads the members of {@code groupId}, completed by the listing this journal resumed, from its
+   * record at {@code offset} in {@link Progress#completedGroups}.
+   */
+  synchronized CompactMembershipSet readGroup(String groupId, long offset) throws IOException {
+    if (reader == null) {
+      throw new IOException("Group listing journal [" + file + "] is closed.");
+    }
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset);
+    if (length.getInt(0) < 0) {
+      throw new IOException("No record of group [" + groupId + "] at " + offset);
+    }
+    ByteBuffer content = ByteBuffer.allocate(length.getInt(0));
+    readFully(content, offset + 4);
+    ByteBuffer expectedCrc = ByteBuffer.allocate(4);
+    readFully(expectedCrc, offset + 4 + content.capacity());
+    CRC32 crc = new CRC32();
+    crc.update(content.array());
+    if ((int) crc.getValue() != expectedCrc.getInt(0)) {
+      throw new IOException("Corrupt record of group [" + groupId + "] at " + offset);
+    }
+    DataInputStream record = new DataInputStream(new ByteArrayInputStream(content.array()));
+    if (record.readByte() != GROUP_RECORD || !groupId.equals(record.readUTF())) {
+      throw new IOException("No record of group [" + groupId + "] at " + offset);
+    }
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    MemberKeys.read(record, builder);
+    return builder.build();
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (reader.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Group listing journal [" + file + "] ends at " + position);
+      }
+    }
+  }
+
+  /**
+   * Deletes the journal of a listing that completed. Resumed groups the SDK did not ask for yet
+   * can still be read until the journal is closed.
+   */
+  synchronized void delete() {
+    closeOutput();
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete group listing journal [" + file + "].", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closeOutput();
+    if (reader == null) {
+      return;
+    }
+    try {
+      reader.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close group listing journal [" + file + "].", e);
+    }
+    reader = null;
+  }
+
+  private void closeOutput() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close group listing journal [" + file + "].", e);
+    }
+    out = null;
+  }
+
+  private void write(RecordWriter writer) {
+    if (out == null) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream record = new DataOutputStream(bytes)) {
+        writer.write(record);
+      }
+      byte[] content = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      out.writeInt(content.length);
+      out.write(content);
+      out.writeInt((int) crc.getValue());
+      out.flush();
+    } catch (IOException e) {
+      logger.log(
+          Level.WARNING,
+          "Failed to write group listing journal [" + file + "]. The listing can not be resumed.",
+          e);
+      delete();
+    }
+  }
+
+  /** Returns the next intact record, or null at the end of the journal or at a torn record. */
+  @Nullable
+  private static byte[] readRecord(DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] content = new byte[length];
+      in.readFully(content);
+      int expectedCrc = in.readInt();
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      return (int) crc.getValue() == expectedCrc ? content : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  @FunctionalInterface
+  private interface RecordWriter {
+    void write(DataOutputStream record) throws IOException;
+  }
+
+  /** Members of a group fetched before the listing was interrupted. */
+  static final class PartialMembers {
+    final String nextLink;
+    final CompactMembershipSet members;
+
+    PartialMembers(String nextLink, CompactMembershipSet members) {
+      this.nextLink = nextLink;
+      this.members = members;
+    }
+  }
+
+  /** Progress of an interrupted listing, as recorded in its journal. */
+  static final class Progress {
+    private final long validBytes;
+    @Nullable final String groupsLink;
+    /** Offsets of the records of completed groups, read with {@link #readGroup}. */
+    final ImmutableMap<String, Long> completedGroups;
+    /** Hashes of the completed groups recorded as unchanged from the {@link DirectoryStore}. */
+    final ImmutableMap<String, Long> unchangedGroups;
+    final ImmutableMap<String, PartialMembers> partialGroups;
+
+    private Progress(
+        long validBytes,
+        @Nullable String groupsLink,
+        ImmutableMap<String, Long> completedGroups,
+        ImmutableMap<String, Long> unchangedGroups,
+        ImmutableMap<String, PartialMembers> partialGroups) {
+      this.validBytes = validBytes;
+      this.groupsLink = groupsLink;
+      this.completedGroups = completedGroups;
+      this.unchangedGroups = unchangedGroups;
+      this.partialGroups = partialGroups;
+    }
+  }
+
+  private static class ProgressReader {
+    private String groupsLink;
+    private final Map<String, Long> completed = new LinkedHashMap<>();
+    private final Map<String, Long> unchanged = new LinkedHashMap<>();
+    private final Map<String, CompactMembershipSet.Builder> partial = new HashMap<>();
+    private final Map<String, String> partialLinks = new HashMap<>();
+
+    /** Applies {@code record}, which starts at {@code offset} in the journal. */
+    void apply(DataInputStream record, long offset) throws IOException {
+      byte type = record.readByte();
+      switch (type) {
+        case PAGE_RECORD:
+          groupsLink = record.readUTF();
+          break;
+        case GROUP_RECORD:
+          {
+            String groupId = record.readUTF();
+            partial.remove(groupId);
+            partialLinks.remove(groupId);
+            unchanged.remove(groupId);
+            completed.put(groupId, offset);
+            break;
+          }
+        case UNCHANGED_GROUP_RECORD:
+          {
+            String groupId = record.readUTF();
+            partial.remove(groupId);
+            partialLinks.remove(groupId);
+            completed.remove(groupId);
+            unchanged.put(groupId, record.readLong());
+            break;
+          }
+        case MEMBERS_RECORD:
+          {
+            String groupId = record.readUTF();
+            partialLinks.put(groupId, record.readUTF());
+            MemberKeys.read(
+                record, partial.computeIfAbsent(groupId, k -> new CompactMembershipSet.Builder()));
+            break;
+          }
+        default:
+          throw new IOException("Unknown journal record type " + type);
+      }
+    }
+
+    Progress toProgress(long validBytes) {
+      ImmutableMap.Builder<String, PartialMembers> partialGroups = ImmutableMap.builder();
+      partial.forEach(
+          (groupId, builder) ->
+              partialGroups.put(
+                  groupId, new PartialMembers(partialLinks.get(groupId), builder.build())));
+      return new Progress(
+          validBytes,
+          groupsLink,
+          ImmutableMap.copyOf(completed),
+          ImmutableMap.copyOf(unchanged),
+          partialGroups.build());
+    }
+  }
+}
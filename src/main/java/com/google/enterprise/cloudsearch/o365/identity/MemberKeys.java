@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Binary encoding and hashing of member keys, shared by the files kept in the state directory. */
+final class MemberKeys {
+  private static final int NO_NAMESPACE = 0xFF;
+  private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+  private MemberKeys() {}
+
+  /** Writes {@code keys} as a table of their namespaces followed by the keys. */
+  static void write(DataOutput out, List<EntityKey> keys) throws IOException {
+    List<String> namespaces = new ArrayList<>();
+    for (EntityKey key : keys) {
+      if (key.getNamespace() != null && !namespaces.contains(key.getNamespace())) {
+        namespaces.add(key.getNamespace());
+      }
+    }
+    if (namespaces.size() >= NO_NAMESPACE) {
+      throw new IOException("Too many member key namespaces: " + namespaces.size());
+    }
+    out.writeByte(namespaces.size());
+    for (String namespace : namespaces) {
+      out.writeUTF(namespace);
+    }
+    out.writeInt(keys.size());
+    for (EntityKey key : keys) {
+      out.writeByte(
+          key.getNamespace() == null ? NO_NAMESPACE : namespaces.indexOf(key.getNamespace()));
+      out.writeUTF(key.getId());
+    }
+  }
+
+  /** Reads keys written by {@link #write} into {@code builder}. */
+  static void read(DataInput in, CompactMembershipSet.Builder builder) throws IOException {
+    String[] namespaces = new String[in.readUnsignedByte()];
+    for (int i = 0; i < namespaces.length; i++) {
+      namespaces[i] = in.readUTF();
+    }
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int namespace = in.readUnsignedByte();
+      EntityKey key = new EntityKey().setId(in.readUTF());
+      if (namespace != NO_NAMESPACE) {
+        key.setNamespace(namespaces[namespace]);
+      }
+      builder.add(key);
+    }
+  }
+
+  /** Returns the member keys of {@code memberships}. */
+  static List<EntityKey> of(Iterable<Membership> memberships) {
+    List<EntityKey> keys = new ArrayList<>();
+    for (Membership membership : memberships) {
+      keys.add(membership.getPreferredMemberKey());
+    }
+    return keys;
+  }
+
+  /**
+   * Returns a hash of the member keys of {@code memberships} that does not depend on their order,
+   * so equal sets have equal hashes however they were built.
+   */
+  static long hash(Iterable<Membership> memberships) {
+    long hash = 0;
+    for (Membership membership : memberships) {
+      EntityKey key = membership.getPreferredMemberKey();
+      hash +=
+          KEY_HASH
+              .newHasher()
+              .putString(key.getNamespace() == null ? "" : key.getNamespace(), UTF_8)
+              .putByte((byte) 0)
+              .putString(key.getId(), UTF_8)
+              .hash()
+              .asLong();
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the heap bytes held by memberships that were fetched ahead of the SDK. Fetches never
+ * wait for the budget; they check {@link #add}'s result and stop fetching ahead once it is
+ * exhausted, so a group larger than the whole budget still makes progress.
+ */
+final class MemoryBudget {
+  private final long limitBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  MemoryBudget(long limitBytes) {
+    checkArgument(limitBytes > 0, "limit must be positive");
+    this.limitBytes = limitBytes;
+  }
+
+  /** Adds {@code bytes} to the used bytes and returns whether the budget is not exhausted. */
+  boolean add(long bytes) {
+    return usedBytes.addAndGet(bytes) < limitBytes;
+  }
+
+  /** Returns {@code bytes} previously added. */
+  void release(long bytes) {
+    usedBytes.addAndGet(-bytes);
+  }
+
+  long getUsedBytes() {
+    return usedBytes.get();
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.o365.HttpTransportFactory;
+import com.google.enterprise.cloudsearch.o365.TenantConfiguration;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
+import com.google.enterprise.cloudsearch.sdk.identity.Repository;
+import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Syncs the users and groups of several tenants in a single connector process.
+ *
+ * <p>The tenants are named by {@value TenantConfiguration#TENANTS_CONFIG}. Each tenant is listed
+ * by its own {@link O365IdentityRepository}, with its own access tokens, throttling budget and
+ * delta state in a subdirectory of the state directory named after the tenant. All tenants share
+ * one HTTP transport, and with it one connection pool, and one pool of {@value
+ * O365IdentityRepository#MEMBER_FETCH_CONCURRENCY_CONFIG} member fetch threads, so threads not
+ * needed by an idle tenant fetch members of the busy ones. Memberships fetched ahead by these
+ * threads are limited by one budget of {@value
+ * O365IdentityRepository#MEMBER_FETCH_BUFFER_MB_CONFIG} megabytes.
+ *
+ * <p>Every call to {@link #listUsers} or {@link #listGroups} lists the next page of all tenants
+ * that have more, concurrently. The checkpoint records the checkpoint of each such tenant.
+ *
+ * <p>A tenant that fails to list, for example because it is throttled or its secret expired, is
+ * logged and not listed further, while the other tenants are listed to the end. The round then
+ * fails with the names of the failed tenants instead of completing. All tenants share one identity
+ * source, and a completed full sync deletes the users and groups it did not list, so completing
+ * the round would delete every user and group of a failed tenant. Failing only after the other
+ * tenants were listed still syncs their changes.
+ *
+ * <p>If {@value TenantConfiguration#TENANTS_CONFIG} is not set, all calls are passed to a single
+ * tenant {@link O365IdentityRepository}, and its checkpoints are used unchanged.
+ */
+class MultiTenantIdentityRepository implements Repository {
+  private static final Logger logger =
+      Logger.getLogger(MultiTenantIdentityRepository.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final Map<String, O365IdentityRepository> tenants = new LinkedHashMap<>();
+  private O365IdentityRepository singleTenant;
+  private HttpTransport sharedTransport;
+  private ListeningExecutorService memberFetchExecutor;
+  private ExecutorService tenantExecutor;
+
+  @Override
+  public void init(RepositoryContext context) throws IOException {
+    checkNotNull(context, "repository context can not be null");
+    checkState(Configuration.isInitialized(), "configuration not initialized");
+    ImmutableList<String> tenantNames = TenantConfiguration.getTenantNames();
+    if (tenantNames.isEmpty()) {
+      singleTenant = new O365IdentityRepository();
+      singleTenant.init(context);
+      return;
+    }
+    int memberFetchConcurrency =
+        Configuration.getInteger(
+                O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG,
+                O365IdentityRepository.DEFAULT_MEMBER_FETCH_CONCURRENCY)
+            .get();
+    Configuration.checkConfiguration(
+        memberFetchConcurrency > 0,
+        "Invalid member fetch concurrency [%s] for configuration key [%s]",
+        memberFetchConcurrency,
+        O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG);
+    MemoryBudget memberFetchBudget = O365IdentityRepository.getMemberFetchBudget();
+    try {
+      sharedTransport = HttpTransportFactory.fromConfiguration();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Error initializing HTTP transport", e);
+    }
+    if (memberFetchConcurrency > 1) {
+      memberFetchExecutor =
+          MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(
+                  memberFetchConcurrency,
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("o365-member-fetch-%d")
+                      .setDaemon(true)
+                      .build()));
+    }
+    tenantExecutor =
+        Executors.newFixedThreadPool(
+            tenantNames.size(),
+            new ThreadFactoryBuilder().setNameFormat("o365-tenant-%d").setDaemon(true).build());
+    try {
+      for (String tenantName : tenantNames) {
+        O365IdentityRepository repository =
+            new O365IdentityRepository(
+                tenantName, sharedTransport, memberFetchExecutor, memberFetchBudget);
+        tenants.put(tenantName, repository);
+        repository.init(context);
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    logger.log(Level.INFO, "Syncing tenants {0}.", tenantNames);
+  }
+
+  @Override
+  public CheckpointCloseableIterable<IdentityUser> listUsers(byte[] checkpoint)
+      throws IOException {
+    if (singleTenant != null) {
+      return singleTenant.listUsers(checkpoint);
+    }
+    return listAll(checkpoint, O365IdentityRepository::listUsers);
+  }
+
+  @Override
+  public CheckpointCloseableIterable<IdentityGroup> listGroups(byte[] checkpoint)
+      throws IOException {
+    if (singleTenant != null) {
+      return singleTenant.listGroups(checkpoint);
+    }
+    return listAll(checkpoint, O365IdentityRepository::listGroups);
+  }
+
+  @Override
+  public void close() {
+    if (singleTenant != null) {
+      singleTenant.close();
+      singleTenant = null;
+    }
+    tenants.values().forEach(O365IdentityRepository::close);
+    tenants.clear();
+    if (tenantExecutor != null) {
+      tenantExecutor.shutdownNow();
+      tenantExecutor = null;
+    }
+    if (memberFetchExecutor != null) {
+      memberFetchExecutor.shutdownNow();
+      memberFetchExecutor = null;
+    }
+    if (sharedTransport != null) {
+      try {
+        sharedTransport.shutdown();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error shutting down HTTP transport.", e);
+      }
+      sharedTransport = null;
+    }
+  }
+
+  /**
+   * Lists the next page of every tenant in {@code checkpoint}, or of all tenants if it is null.
+   * Throws once only tenants that failed to list remain.
+   */
+  private <T> CheckpointCloseableIterable<T> listAll(byte[] checkpoint, TenantLister<T> lister)
+      throws IOException {
+    List<String> failedTenants = new ArrayList<>();
+    Map<String, byte[]> pending = parseCheckpoint(checkpoint, failedTenants);
+    if (pending.isEmpty() && !failedTenants.isEmpty()) {
+      throw new IOException(
+          "Failed to list tenants "
+              + failedTenants
+              + ". Not completing the round, so that their users and groups are not deleted.");
+    }
+    Map<String, Future<CheckpointCloseableIterable<T>>> listings = new LinkedHashMap<>();
+    pending.forEach(
+        (tenantName, tenantCheckpoint) -> {
+          O365IdentityRepository repository = tenants.get(tenantName);
+          listings.put(
+              tenantName,
+              tenantExecutor.submit(() -> lister.list(repository, tenantCheckpoint)));
+        });
+    Map<String, byte[]> next = new LinkedHashMap<>();
+    List<List<T>> pages = new ArrayList<>();
+    for (Map.Entry<String, Future<CheckpointCloseableIterable<T>>> listing :
+        listings.entrySet()) {
+      CheckpointCloseableIterable<T> page = getListing(listing.getKey(), listing.getValue());
+      if (page == null) {
+        failedTenants.add(listing.getKey());
+        continue;
+      }
+      // Tenant pages are lists already, so this only copies references.
+      pages.add(Lists.newArrayList(page));
+      if (page.hasMore()) {
+        next.put(listing.getKey(), page.getCheckpoint());
+      }
+    }
+    boolean hasMore = !next.isEmpty() || !failedTenants.isEmpty();
+    return new CheckpointCloseableIterableImpl.Builder<>(concat(pages))
+        .setCheckpoint(hasMore ? formatCheckpoint(next, failedTenants) : null)
+        .setHasMore(hasMore)
+        .build();
+  }
+
+  /** Returns the page listed for {@code tenantName}, or null if listing it failed. */
+  @Nullable
+  private static <T> CheckpointCloseableIterable<T> getListing(
+      String tenantName, Future<CheckpointCloseableIterable<T>> listing) throws IOException {
+    try {
+      return listing.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while listing tenant " + tenantName, e);
+    } catch (ExecutionException e) {
+      logger.log(
+          Level.WARNING,
+          "Failed to list tenant [" + tenantName + "]. Listing the other tenants before failing.",
+          e.getCause());
+      return null;
+    }
+  }
+
+  private static <T> AbstractCollection<T> concat(List<List<T>> pages) {
+    Iterable<T> all = Iterables.concat(pages);
+    int size = pages.stream().mapToInt(List::size).sum();
+    return new AbstractCollection<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        return all.iterator();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Returns the tenants to list with their checkpoints, and adds the tenants that failed earlier
+   * in the round to {@code failedTenants}. A null or invalid checkpoint starts all tenants from
+   * the beginning.
+   */
+  private Map<String, byte[]> parseCheckpoint(
+      @Nullable byte[] checkpoint, List<String> failedTenants) {
+    Map<String, byte[]> pending = new LinkedHashMap<>();
+    if (checkpoint != null) {
+      try {
+        TenantCheckpoints parsed =
+            JSON_FACTORY.fromString(new String(checkpoint, UTF_8), TenantCheckpoints.class);
+        if (parsed.failedTenants != null) {
+          failedTenants.addAll(parsed.failedTenants);
+        }
+        if (parsed.tenants != null) {
+          parsed.tenants.forEach(
+              (tenantName, tenantCheckpoint) -> {
+                if (tenants.containsKey(tenantName)) {
+                  pending.put(
+                      tenantName,
+                      tenantCheckpoint.isEmpty()
+                          ? null
+                          : Base64.getDecoder().decode(tenantCheckpoint));
+                } else {
+                  logger.log(
+                      Level.WARNING, "Ignoring checkpoint of unknown tenant [{0}].", tenantName);
+                }
+              });
+          return pending;
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Failed to parse checkpoint. Listing all tenants again.", e);
+      }
+    }
+    tenants.keySet().forEach(tenantName -> pending.put(tenantName, null));
+    return pending;
+  }
+
+  private static byte[] formatCheckpoint(Map<String, byte[]> next, List<String> failedTenants)
+      throws IOException {
+    TenantCheckpoints checkpoints = new TenantCheckpoints();
+    checkpoints.failedTenants = failedTenants.isEmpty() ? null : failedTenants;
+    checkpoints.tenants = new LinkedHashMap<>();
+    next.forEach(
+        (tenantName, tenantCheckpoint) ->
+            checkpoints.tenants.put(
+                tenantName,
+                tenantCheckpoint == null
+                    ? ""
+                    : Base64.getEncoder().encodeToString(tenantCheckpoint)));
+    return JSON_FACTORY.toByteArray(checkpoints);
+  }
+
+  @FunctionalInterface
+  private interface TenantLister<T> {
+    CheckpointCloseableIterable<T> list(O365IdentityRepository repository, byte[] checkpoint)
+        throws IOException;
+  }
+
+  /**
+   * Checkpoints of the tenants that have more to list, keyed by tenant name, and the tenants that
+   * failed to list in this round.
+   */
+  public static class TenantCheckpoints extends GenericJson {
+    @Key private Map<String, String> tenants;
+    @Key private List<String> failedTenants;
+  }
+}
@@ -23,7 +23,7 @@ public class O365IdentityConnector {
   public static void main(String[] args) throws InterruptedException {
     IdentityApplication application =
         new IdentityApplication.Builder(
-                new FullSyncIdentityConnector(new O365IdentityRepository()), args)
+                new FullSyncIdentityConnector(new MultiTenantIdentityRepository()), args)
             .build();
     application.start();
   }
@@ -18,19 +18,38 @@ package com.google.enterprise.cloudsearch.o365.identity;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
 import com.google.api.services.cloudidentity.v1.model.EntityKey;
 import com.google.api.services.cloudidentity.v1.model.Membership;
 import com.google.api.services.cloudidentity.v1.model.MembershipRole;
-import com.google.common.base.Function;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.o365.BatchRequestHelper;
+import com.google.enterprise.cloudsearch.o365.BatchRequestHelper.BatchResponse;
+import com.google.enterprise.cloudsearch.o365.Endpoints;
 import com.google.enterprise.cloudsearch.o365.GetRequest;
 import com.google.enterprise.cloudsearch.o365.HttpClient;
 import com.google.enterprise.cloudsearch.o365.Request;
 import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
+import com.google.enterprise.cloudsearch.o365.RequestThrottler;
+import com.google.enterprise.cloudsearch.o365.TenantConfiguration;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObject;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjects;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder.PageLinks;
 import com.google.enterprise.cloudsearch.o365.model.Group;
 import com.google.enterprise.cloudsearch.o365.model.Groups;
 import com.google.enterprise.cloudsearch.o365.model.Member;
@@ -39,19 +58,37 @@ import com.google.enterprise.cloudsearch.o365.model.User;
 import com.google.enterprise.cloudsearch.o365.model.Users;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterableImpl;
-import com.google.enterprise.cloudsearch.sdk.PaginationIterable;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
 import com.google.enterprise.cloudsearch.sdk.identity.Repository;
 import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -59,27 +96,101 @@ import javax.annotation.Nullable;
 
 class O365IdentityRepository implements Repository {
   private static final Logger logger = Logger.getLogger(O365IdentityRepository.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
   private static final String USER_PAGINATION_SIZE_CONFIG = "o365.userPaginationSize";
   private static final String GROUP_PAGINATION_SIZE_CONFIG = "o365.groupPaginationSize";
   private static final String MEMBER_PAGINATION_SIZE_CONFIG = "o365.memberPaginationSize";
   static final int DEFAULT_USER_PAGINATION_SIZE = 50;
   static final int DEFAULT_GROUP_PAGINATION_SIZE = 50;
   static final int DEFAULT_MEMBER_PAGINATION_SIZE = 50;
+  static final String MEMBER_FETCH_CONCURRENCY_CONFIG = "o365.memberFetchConcurrency";
+  static final int DEFAULT_MEMBER_FETCH_CONCURRENCY = 1;
+  static final String MEMBER_BATCH_SIZE_CONFIG = "o365.memberBatchSize";
+  static final int DEFAULT_MEMBER_BATCH_SIZE = 1;
+  // Heap for memberships fetched ahead of the SDK on member fetch threads, shared by all tenants.
+  static final String MEMBER_FETCH_BUFFER_MB_CONFIG = "o365.memberFetchBufferMb";
+  static final int DEFAULT_MEMBER_FETCH_BUFFER_MB = 256;
+  static final String PREFETCH_NEXT_PAGE_CONFIG = "o365.prefetchNextPage";
+  static final String USER_DELTA_SYNC_CONFIG = "o365.userDeltaSync";
+  static final String STATE_DIRECTORY_CONFIG = "o365.stateDirectory";
+  static final String USER_DELTA_STATE_FILE = "users-delta.json";
+  static final String GROUP_DELTA_SYNC_CONFIG = "o365.groupDeltaSync";
+  static final String GROUP_DELTA_STATE_FILE = "groups-delta.json";
+  // Journals full group listings in the state directory, so that restarts resume them.
+  static final String RESUMABLE_GROUP_LISTING_CONFIG = "o365.resumableGroupListing";
+  static final String GROUP_LISTING_RESUME_MAX_AGE_HOURS_CONFIG =
+      "o365.groupListingResumeMaxAgeHours";
+  static final int DEFAULT_GROUP_LISTING_RESUME_MAX_AGE_HOURS = 24;
+  static final String GROUP_LISTING_JOURNAL_FILE = "groups-listing.journal";
+  // Keeps the users, groups and memberships of the last full listings in the state directory, to
+  // report the groups that changed since.
+  static final String DIRECTORY_STORE_CONFIG = "o365.directoryStore";
+  static final String DIRECTORY_STORE_FILE = "directory.store";
+  // Replaced by the directory store, which it still enables. Its snapshot file is deleted.
+  static final String GROUP_SNAPSHOT_CONFIG = "o365.groupSnapshot";
+  static final String GROUP_SNAPSHOT_FILE = "groups-snapshot.bin";
+  static final int GROUPS_CHECKPOINT_VERSION = 1;
 
-  static final String USERS_ENDPOINT_FORMAT = "https://graph.microsoft.com/v1.0/users?$top=%s";
-  static final String GROUPS_ENDPOINT_FORMAT = "https://graph.microsoft.com/v1.0/groups?$top=%s";
+  // Every path ends with a $select of the fields read by the User, Group and Member models.
+  // Paths are relative to the Graph base URL.
+  static final String USERS_PATH_FORMAT =
+      "/users?$top=%s&$select=id,mail,userPrincipalName,accountEnabled";
+  static final String USERS_DELTA_PATH =
+      "/users/delta?$select=id,mail,userPrincipalName,accountEnabled";
+  static final String GROUPS_PATH_FORMAT = "/groups?$top=%s&$select=id";
+  static final String GROUPS_DELTA_PATH = "/groups/delta?$select=id,members";
+  // @odata.type is always returned for directory objects and can not be selected.
+  static final String MEMBERS_PATH_FORMAT = "/groups/%s/members?$top=%s&$select=id,mail";
+  // Endpoints with the default Graph base URL.
+  @VisibleForTesting
+  static final String USERS_ENDPOINT_FORMAT = Endpoints.DEFAULT_GRAPH_BASE_URL + USERS_PATH_FORMAT;
+  @VisibleForTesting
+  static final String USERS_DELTA_ENDPOINT = Endpoints.DEFAULT_GRAPH_BASE_URL + USERS_DELTA_PATH;
+  @VisibleForTesting
+  static final String GROUPS_ENDPOINT_FORMAT =
+      Endpoints.DEFAULT_GRAPH_BASE_URL + GROUPS_PATH_FORMAT;
+  @VisibleForTesting
+  static final String GROUPS_DELTA_ENDPOINT = Endpoints.DEFAULT_GRAPH_BASE_URL + GROUPS_DELTA_PATH;
+  @VisibleForTesting
   static final String MEMBERS_ENDPOINT_FORMAT =
-      "https://graph.microsoft.com/v1.0/groups/%s/members?$top=%s";
+      Endpoints.DEFAULT_GRAPH_BASE_URL + MEMBERS_PATH_FORMAT;
   static final ImmutableList<MembershipRole> MEMBER_ROLES =
       ImmutableList.of(new MembershipRole().setName("MEMBER"));
 
   private final O365RequestHelperFactory requestHelperFactory;
+  private final String tenantName;
+  private final HttpTransport sharedTransport;
+  private final ListeningExecutorService sharedMemberFetchExecutor;
+  private final MemoryBudget sharedMemberFetchBudget;
 
   private HttpClient requestHttpClient;
   private RepositoryContext repositoryContext;
+  private String graphBaseUrl;
   private URL usersEndpoint;
   private URL groupsEndpoint;
+  private String usersDeltaEndpoint;
+  private String groupsDeltaEndpoint;
+  private String membersEndpointFormat;
   private int membersPageSize;
+  private int memberBatchSize;
+  private ListeningExecutorService memberFetchExecutor;
+  private MemoryBudget memberFetchBudget;
+  // Memberships holding part of memberFetchBudget until the SDK asks for them.
+  private final Set<FetchedMemberships> reservedMemberships = ConcurrentHashMap.newKeySet();
+  private ExecutorService prefetchExecutor;
+  private PagePrefetcher<Users> usersPrefetcher;
+  private PagePrefetcher<Groups> groupsPrefetcher;
+  private UserDeltaState userDeltaState;
+  private boolean userDeltaRoundInProgress;
+  private GroupDeltaState groupDeltaState;
+  private boolean groupDeltaRoundInProgress;
+  private Path groupListingJournalFile;
+  private long groupListingResumeMaxAgeMillis;
+  private DirectoryStore directoryStore;
+  private boolean userListingFromStart;
+  private GroupListing groupListing;
+  private GroupListingJournal.Progress resumedGroupListing;
+  private Set<String> resumedGroupIds = Collections.emptySet();
 
   O365IdentityRepository() {
     this(new O365RequestHelperFactory());
@@ -88,35 +199,229 @@ class O365IdentityRepository implements Repository {
   O365IdentityRepository(O365RequestHelperFactory requestHelperFactory) {
     this.requestHelperFactory =
         checkNotNull(requestHelperFactory, "requestHelperFactory can not be null");
+    this.tenantName = null;
+    this.sharedTransport = null;
+    this.sharedMemberFetchExecutor = null;
+    this.sharedMemberFetchBudget = null;
+  }
+
+  /**
+   * Creates a repository for one of several tenants synced by the same process. Its requests are
+   * sent over {@code sharedTransport} and its members are fetched on {@code
+   * sharedMemberFetchExecutor}, neither of which is shut down by {@link #close}. Access tokens,
+   * throttling and delta state are kept per tenant.
+   *
+   * @param tenantName the name of a tenant listed in {@value TenantConfiguration#TENANTS_CONFIG}
+   * @param sharedTransport transport shared by all tenants
+   * @param sharedMemberFetchExecutor executor shared by all tenants, or null to fetch members on
+   *     the listing thread
+   * @param sharedMemberFetchBudget heap for memberships fetched ahead, shared by all tenants
+   */
+  O365IdentityRepository(
+      String tenantName,
+      HttpTransport sharedTransport,
+      @Nullable ListeningExecutorService sharedMemberFetchExecutor,
+      MemoryBudget sharedMemberFetchBudget) {
+    this.requestHelperFactory = new O365RequestHelperFactory();
+    this.tenantName = checkNotNull(tenantName, "tenant name can not be null");
+    this.sharedTransport = checkNotNull(sharedTransport, "shared transport can not be null");
+    this.sharedMemberFetchExecutor = sharedMemberFetchExecutor;
+    this.sharedMemberFetchBudget =
+        checkNotNull(sharedMemberFetchBudget, "shared member fetch budget can not be null");
   }
 
   @Override
   public void init(RepositoryContext context) throws IOException {
     this.repositoryContext = checkNotNull(context, "repository context can not be null");
-    requestHttpClient = HttpClient.fromConfiguration();
+    requestHttpClient =
+        tenantName == null
+            ? HttpClient.fromConfiguration()
+            : HttpClient.forTenant(sharedTransport, tenantName);
+    // Each tenant has its own Graph throttling budget.
+    requestHelperFactory.setRequestThrottler(RequestThrottler.fromConfiguration());
+    graphBaseUrl = Endpoints.getGraphBaseUrl();
     int userPageSize =
         getPaginationSize(USER_PAGINATION_SIZE_CONFIG, DEFAULT_USER_PAGINATION_SIZE, "user");
-    usersEndpoint = new URL(String.format(USERS_ENDPOINT_FORMAT, userPageSize));
+    usersEndpoint = new URL(graphBaseUrl + String.format(USERS_PATH_FORMAT, userPageSize));
+    usersDeltaEndpoint = graphBaseUrl + USERS_DELTA_PATH;
     int groupsPageSize =
         getPaginationSize(GROUP_PAGINATION_SIZE_CONFIG, DEFAULT_GROUP_PAGINATION_SIZE, "group");
-    groupsEndpoint = new URL(String.format(GROUPS_ENDPOINT_FORMAT, groupsPageSize));
+    groupsEndpoint = new URL(graphBaseUrl + String.format(GROUPS_PATH_FORMAT, groupsPageSize));
+    groupsDeltaEndpoint = graphBaseUrl + GROUPS_DELTA_PATH;
+    membersEndpointFormat = graphBaseUrl + MEMBERS_PATH_FORMAT;
     membersPageSize =
         getPaginationSize(MEMBER_PAGINATION_SIZE_CONFIG, DEFAULT_MEMBER_PAGINATION_SIZE, "member");
+    int memberFetchConcurrency =
+        Configuration.getInteger(MEMBER_FETCH_CONCURRENCY_CONFIG, DEFAULT_MEMBER_FETCH_CONCURRENCY)
+            .get();
+    Configuration.checkConfiguration(
+        memberFetchConcurrency > 0,
+        "Invalid member fetch concurrency [%s] for configuration key [%s]",
+        memberFetchConcurrency,
+        MEMBER_FETCH_CONCURRENCY_CONFIG);
+    memberBatchSize =
+        Configuration.getInteger(MEMBER_BATCH_SIZE_CONFIG, DEFAULT_MEMBER_BATCH_SIZE).get();
+    Configuration.checkConfiguration(
+        memberBatchSize > 0 && memberBatchSize <= BatchRequestHelper.MAX_BATCH_SIZE,
+        "Invalid member batch size [%s] for configuration key [%s]. Expected 1 to %s.",
+        memberBatchSize,
+        MEMBER_BATCH_SIZE_CONFIG,
+        BatchRequestHelper.MAX_BATCH_SIZE);
+    if (tenantName != null) {
+      memberFetchExecutor = sharedMemberFetchExecutor;
+      memberFetchBudget = sharedMemberFetchBudget;
+    } else {
+      memberFetchBudget = getMemberFetchBudget();
+      if (memberFetchConcurrency > 1) {
+        memberFetchExecutor =
+            MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(
+                    memberFetchConcurrency,
+                    new ThreadFactoryBuilder()
+                        .setNameFormat("o365-member-fetch-%d")
+                        .setDaemon(true)
+                        .build()));
+      }
+    }
+    if (Configuration.getBoolean(PREFETCH_NEXT_PAGE_CONFIG, false).get()) {
+      prefetchExecutor =
+          Executors.newFixedThreadPool(
+              2,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("o365-page-prefetch-%d")
+                  .setDaemon(true)
+                  .build());
+      usersPrefetcher =
+          new PagePrefetcher<>(prefetchExecutor, url -> fetchPage(url, Users.class));
+      groupsPrefetcher =
+          new PagePrefetcher<>(prefetchExecutor, url -> fetchPage(url, Groups.class));
+    }
+    boolean userDeltaSync = Configuration.getBoolean(USER_DELTA_SYNC_CONFIG, false).get();
+    boolean groupDeltaSync = Configuration.getBoolean(GROUP_DELTA_SYNC_CONFIG, false).get();
+    // Group delta responses only carry member ids, so user members are resolved to their mail
+    // through the users delta state.
+    Configuration.checkConfiguration(
+        userDeltaSync || !groupDeltaSync,
+        "[%s] requires [%s] to be enabled",
+        GROUP_DELTA_SYNC_CONFIG,
+        USER_DELTA_SYNC_CONFIG);
+    boolean resumableGroupListing =
+        Configuration.getBoolean(RESUMABLE_GROUP_LISTING_CONFIG, false).get();
+    boolean keepDirectoryStore = Configuration.getBoolean(DIRECTORY_STORE_CONFIG, false).get();
+    if (Configuration.getBoolean(GROUP_SNAPSHOT_CONFIG, false).get()) {
+      logger.log(
+          Level.WARNING,
+          "Configuration key [{0}] is deprecated. Enabling [{1}] instead.",
+          new Object[] {GROUP_SNAPSHOT_CONFIG, DIRECTORY_STORE_CONFIG});
+      keepDirectoryStore = true;
+    }
+    if (!userDeltaSync && !resumableGroupListing && !keepDirectoryStore) {
+      return;
+    }
+    String stateDirectoryName = Configuration.getString(STATE_DIRECTORY_CONFIG, null).get();
+    Configuration.checkConfiguration(
+        !Strings.isNullOrEmpty(stateDirectoryName),
+        "Configuration key [%s] is required to keep state",
+        STATE_DIRECTORY_CONFIG);
+    Path stateDirectory = Paths.get(stateDirectoryName);
+    if (tenantName != null) {
+      stateDirectory = stateDirectory.resolve(tenantName);
+    }
+    Files.createDirectories(stateDirectory);
+    if (Files.deleteIfExists(stateDirectory.resolve(GROUP_SNAPSHOT_FILE))) {
+      logger.log(Level.INFO, "Deleted group snapshot replaced by the directory store.");
+    }
+    if (userDeltaSync) {
+      userDeltaState = UserDeltaState.load(stateDirectory.resolve(USER_DELTA_STATE_FILE));
+      if (groupDeltaSync) {
+        groupDeltaState = GroupDeltaState.load(stateDirectory.resolve(GROUP_DELTA_STATE_FILE));
+      }
+    }
+    if (resumableGroupListing && groupDeltaState == null) {
+      int maxAgeHours =
+          Configuration.getInteger(
+                  GROUP_LISTING_RESUME_MAX_AGE_HOURS_CONFIG,
+                  DEFAULT_GROUP_LISTING_RESUME_MAX_AGE_HOURS)
+              .get();
+      Configuration.checkConfiguration(
+          maxAgeHours > 0,
+          "Invalid group listing resume age [%s] for configuration key [%s]",
+          maxAgeHours,
+          GROUP_LISTING_RESUME_MAX_AGE_HOURS_CONFIG);
+      groupListingResumeMaxAgeMillis = TimeUnit.HOURS.toMillis(maxAgeHours);
+      groupListingJournalFile = stateDirectory.resolve(GROUP_LISTING_JOURNAL_FILE);
+    }
+    if (keepDirectoryStore) {
+      directoryStore = DirectoryStore.open(stateDirectory.resolve(DIRECTORY_STORE_FILE));
+    }
   }
 
   @Override
   public CheckpointCloseableIterable<IdentityUser> listUsers(byte[] checkpoint) throws IOException {
-    return getUsersForCheckpoint(parseCheckpoint(checkpoint, usersEndpoint));
+    CheckpointCloseableIterable<IdentityUser> users =
+        userDeltaState != null
+            ? getUserChangesForCheckpoint(checkpoint)
+            : getUsersForCheckpoint(checkpoint == null, parseCheckpoint(checkpoint, usersEndpoint));
+    if (!users.hasMore()) {
+      logTransferStats("users");
+    }
+    return users;
   }
 
   @Override
   public CheckpointCloseableIterable<IdentityGroup> listGroups(byte[] checkpoint)
       throws IOException {
-    return getGroupsForCheckpoint(parseCheckpoint(checkpoint, groupsEndpoint));
+    CheckpointCloseableIterable<IdentityGroup> groups =
+        groupDeltaState != null
+            ? getGroupChangesForCheckpoint(checkpoint)
+            : getGroupsForCheckpoint(checkpoint);
+    if (!groups.hasMore()) {
+      logTransferStats("groups");
+    }
+    return groups;
   }
 
   @Override
   public void close() {
+    finishGroupListing();
+    releaseMemberFetchBudget();
+    if (directoryStore != null) {
+      directoryStore.close();
+      directoryStore = null;
+    }
+    if (memberFetchExecutor != null) {
+      if (memberFetchExecutor != sharedMemberFetchExecutor) {
+        memberFetchExecutor.shutdownNow();
+      }
+      memberFetchExecutor = null;
+    }
+    if (prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+      prefetchExecutor = null;
+      usersPrefetcher = null;
+      groupsPrefetcher = null;
+    }
+    if (requestHttpClient != null) {
+      try {
+        requestHttpClient.shutdown();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Error shutting down HTTP transport.", e);
+      }
+      requestHttpClient = null;
+    }
+  }
+
+  private void logTransferStats(String listed) {
+    requestHttpClient
+        .getTransferStats()
+        .ifPresent(
+            stats ->
+                logger.log(
+                    Level.INFO,
+                    "Finished listing {0}{1}. Graph responses so far: {2}",
+                    new Object[] {
+                      listed, tenantName == null ? "" : " of tenant " + tenantName, stats
+                    }));
   }
 
   private static int getPaginationSize(String configKey, int defaultValue, String kind) {
@@ -130,18 +435,147 @@ class O365IdentityRepository implements Repository {
     return pageSize;
   }
 
-  private CheckpointCloseableIterable<IdentityUser> getUsersForCheckpoint(URL url)
+  /** Returns a budget of {@value #MEMBER_FETCH_BUFFER_MB_CONFIG} megabytes. */
+  static MemoryBudget getMemberFetchBudget() {
+    int bufferMb =
+        Configuration.getInteger(MEMBER_FETCH_BUFFER_MB_CONFIG, DEFAULT_MEMBER_FETCH_BUFFER_MB)
+            .get();
+    Configuration.checkConfiguration(
+        bufferMb > 0,
+        "Invalid member fetch buffer size [%s] for configuration key [%s]",
+        bufferMb,
+        MEMBER_FETCH_BUFFER_MB_CONFIG);
+    return new MemoryBudget(bufferMb * 1024L * 1024L);
+  }
+
+  private <T extends GenericJson> T fetchPage(URL url, Class<T> responseClass)
       throws IOException {
-    Request<Users> allUsers =
-        new GetRequest.Builder<Users>()
+    Request<T> request =
+        new GetRequest.Builder<T>()
             .setRequestURL(url)
-            .setResponseClass(Users.class)
+            .setResponseClass(responseClass)
             .build();
-    RequestHelper<Users> requestHelper =
-        requestHelperFactory.getO365RequestHelper(Users.class);
-    Users users = requestHelper.executeRequest(allUsers, requestHttpClient);
+    RequestHelper<T> requestHelper = requestHelperFactory.getO365RequestHelper(responseClass);
+    return requestHelper.executeRequest(request, requestHttpClient);
+  }
+
+  private static void prefetchNextPage(
+      @Nullable PagePrefetcher<?> prefetcher, @Nullable DirectoryObjects page) {
+    if (prefetcher == null || page == null || Strings.isNullOrEmpty(page.getOdataNextlink())) {
+      return;
+    }
+    try {
+      prefetcher.prefetch(new URL(page.getOdataNextlink()));
+    } catch (MalformedURLException e) {
+      logger.log(Level.WARNING, "Skipping prefetch of invalid next page link.", e);
+    }
+  }
+
+  private <T extends GenericJson, V extends DirectoryObject> PageLinks streamPage(
+      URL url,
+      Class<T> responseClass,
+      DirectoryObjectsDecoder<V> decoder,
+      Consumer<? super V> consumer)
+      throws IOException {
+    Request<T> request =
+        new GetRequest.Builder<T>()
+            .setRequestURL(url)
+            .setResponseClass(responseClass)
+            .build();
+    RequestHelper<T> requestHelper = requestHelperFactory.getO365RequestHelper(responseClass);
+    return requestHelper.executeRequest(request, requestHttpClient, decoder, consumer);
+  }
+
+  /**
+   * Applies the users of a delta page to {@link #userDeltaState} as they are decoded. A page
+   * prefetched in the background is already decoded, and is applied as a whole.
+   */
+  private PageLinks applyUsersDeltaPage(URL url) throws IOException {
+    if (usersPrefetcher == null) {
+      return streamPage(url, Users.class, DirectoryObjectsDecoder.USERS, userDeltaState::apply);
+    }
+    Users users = fetchUsersPage(url);
+    if (users == null) {
+      return new PageLinks(null, null, null);
+    }
+    if (users.getValue() != null) {
+      users.getValue().stream().filter(Objects::nonNull).forEach(userDeltaState::apply);
+    }
+    return PageLinks.of(users);
+  }
+
+  /** Applies the groups of a delta page to {@link #groupDeltaState} as they are decoded. */
+  private PageLinks applyGroupsDeltaPage(URL url) throws IOException {
+    if (groupsPrefetcher == null) {
+      return streamPage(url, Groups.class, DirectoryObjectsDecoder.GROUPS, groupDeltaState::apply);
+    }
+    Groups groups = fetchGroupsPage(url);
+    if (groups == null) {
+      return new PageLinks(null, null, null);
+    }
+    if (groups.getValue() != null) {
+      groups.getValue().stream().filter(Objects::nonNull).forEach(groupDeltaState::apply);
+    }
+    return PageLinks.of(groups);
+  }
+
+  private Users fetchUsersPage(URL url) throws IOException {
+    Users users =
+        usersPrefetcher == null ? fetchPage(url, Users.class) : usersPrefetcher.fetch(url);
+    prefetchNextPage(usersPrefetcher, users);
+    return users;
+  }
+
+  /**
+   * Applies one page of {@code users/delta} changes to {@link #userDeltaState}. Intermediate pages
+   * return no users; once the round reaches its {@code @odata.deltaLink} the state is committed
+   * and all known users are returned, since a full sync expects the complete set of users.
+   */
+  private CheckpointCloseableIterable<IdentityUser> getUserChangesForCheckpoint(byte[] checkpoint)
+      throws IOException {
+    URL roundStart =
+        new URL(Optional.ofNullable(userDeltaState.getDeltaLink()).orElse(usersDeltaEndpoint));
+    // A checkpoint from a round started by another process can not be resumed, since the changes
+    // applied before it were never committed.
+    URL url = userDeltaRoundInProgress ? parseCheckpoint(checkpoint, roundStart) : roundStart;
+    userDeltaRoundInProgress = true;
+    PageLinks links = applyUsersDeltaPage(url);
+    String nextLink = links.getOdataNextlink();
+    if (!Strings.isNullOrEmpty(nextLink)) {
+      return new CheckpointCloseableIterableImpl.Builder<>(Collections.<IdentityUser>emptyList())
+          .setCheckpoint(nextLink.getBytes(UTF_8))
+          .setHasMore(true)
+          .build();
+    }
+    userDeltaRoundInProgress = false;
+    String deltaLink = links.getOdataDeltalink();
+    if (Strings.isNullOrEmpty(deltaLink)) {
+      logger.log(Level.WARNING, "Delta round ended without a delta link. Changes not committed.");
+    } else {
+      userDeltaState.commit(deltaLink);
+    }
+    List<IdentityUser> identityUsers =
+        userDeltaState
+            .getUsers()
+            .stream()
+            .map(u -> convertToIdentityUser(u))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    return new CheckpointCloseableIterableImpl.Builder<>(identityUsers)
+        .setCheckpoint(null)
+        .setHasMore(false)
+        .build();
+  }
+
+  private CheckpointCloseableIterable<IdentityUser> getUsersForCheckpoint(
+      boolean firstPage, URL url) throws IOException {
+    Users users = fetchUsersPage(url);
     List<User> fetchedUsers =
         (users == null) || (users.getValue() == null) ? Collections.emptyList() : users.getValue();
+    if (directoryStore != null) {
+      boolean lastPage = users == null || Strings.isNullOrEmpty(users.getOdataNextlink());
+      storeUsers(fetchedUsers, firstPage, lastPage);
+    }
     List<IdentityUser> identityUsers =
         fetchedUsers
             .stream()
@@ -160,77 +594,440 @@ class O365IdentityRepository implements Repository {
         .build();
   }
 
-  private CheckpointCloseableIterable<IdentityGroup> getGroupsForCheckpoint(URL url)
+  /**
+   * Keeps the users of one page of a full listing in {@link #directoryStore}. Once a listing
+   * started from the first page reached its last page, the users it no longer listed are removed.
+   */
+  private void storeUsers(List<User> users, boolean firstPage, boolean lastPage) {
+    try {
+      if (firstPage) {
+        directoryStore.startListing(DirectoryStore.Kind.USER);
+        userListingFromStart = true;
+      }
+      for (User user : users) {
+        if (user != null && user.isValid()) {
+          directoryStore.putUser(user);
+        }
+      }
+      if (lastPage && userListingFromStart) {
+        userListingFromStart = false;
+        int removedUsers = directoryStore.removeUnlisted(DirectoryStore.Kind.USER);
+        logger.log(Level.FINE, "Removed {0} users no longer listed from the store.", removedUsers);
+        directoryStore.compactIfNeeded();
+      }
+    } catch (IOException e) {
+      userListingFromStart = false;
+      logger.log(Level.WARNING, "Failed to keep users in the directory store.", e);
+    }
+  }
+
+  /**
+   * Applies one page of {@code groups/delta} changes, including their {@code members@delta}, to
+   * {@link #groupDeltaState}. As with users, intermediate pages return no groups and the last
+   * page of a round returns every known group with its full membership.
+   */
+  private CheckpointCloseableIterable<IdentityGroup> getGroupChangesForCheckpoint(
+      byte[] checkpoint) throws IOException {
+    URL roundStart =
+        new URL(Optional.ofNullable(groupDeltaState.getDeltaLink()).orElse(groupsDeltaEndpoint));
+    URL url = groupDeltaRoundInProgress ? parseCheckpoint(checkpoint, roundStart) : roundStart;
+    groupDeltaRoundInProgress = true;
+    PageLinks links = applyGroupsDeltaPage(url);
+    String nextLink = links.getOdataNextlink();
+    if (!Strings.isNullOrEmpty(nextLink)) {
+      return new CheckpointCloseableIterableImpl.Builder<>(Collections.<IdentityGroup>emptyList())
+          .setCheckpoint(nextLink.getBytes(UTF_8))
+          .setHasMore(true)
+          .build();
+    }
+    groupDeltaRoundInProgress = false;
+    String deltaLink = links.getOdataDeltalink();
+    if (Strings.isNullOrEmpty(deltaLink)) {
+      logger.log(Level.WARNING, "Delta round ended without a delta link. Changes not committed.");
+    } else {
+      groupDeltaState.commit(deltaLink);
+    }
+    List<IdentityGroup> identityGroups =
+        groupDeltaState
+            .getGroupIds()
+            .stream()
+            .map(
+                groupId ->
+                    repositoryContext.buildIdentityGroup(
+                        groupId, () -> getMembershipsFromDeltaState(groupId)))
+            .collect(Collectors.toList());
+    return new CheckpointCloseableIterableImpl.Builder<>(identityGroups)
+        .setCheckpoint(null)
+        .setHasMore(false)
+        .build();
+  }
+
+  private Set<Membership> getMembershipsFromDeltaState(String groupId) {
+    CompactMembershipSet.Builder memberships = new CompactMembershipSet.Builder();
+    for (String userId : groupDeltaState.getUserMembers(groupId)) {
+      User user = userDeltaState.getUser(userId);
+      if (user == null || Strings.isNullOrEmpty(user.getMail())) {
+        logger.log(
+            Level.FINE,
+            "Skipping member user [{0}] without known mail in group [{1}].",
+            new Object[] {userId, groupId});
+        continue;
+      }
+      memberships.addUser(user.getMail());
+    }
+    for (String memberGroupId : groupDeltaState.getGroupMembers(groupId)) {
+      memberships.add(repositoryContext.buildEntityKeyForGroup(memberGroupId));
+    }
+    return memberships.build();
+  }
+
+  private Groups fetchGroupsPage(URL url) throws IOException {
+    Groups groups =
+        groupsPrefetcher == null ? fetchPage(url, Groups.class) : groupsPrefetcher.fetch(url);
+    prefetchNextPage(groupsPrefetcher, groups);
+    return groups;
+  }
+
+  /**
+   * Lists the groups of one groups page with their members. A listing started without a
+   * checkpoint is recorded in a {@link GroupListing} when {@link #groupListingJournalFile} or
+   * {@link #directoryStore} is set. With a journal, such a listing resumes the journaled listing
+   * of a previous process: its completed groups are listed again from the journal, and listing
+   * continues at its last groups page, with the members fetched so far.
+   */
+  private CheckpointCloseableIterable<IdentityGroup> getGroupsForCheckpoint(byte[] checkpoint)
       throws IOException {
-    Request<Groups> allGroups =
-        new GetRequest.Builder<Groups>()
-            .setRequestURL(url)
-            .setResponseClass(Groups.class)
-            .build();
-    RequestHelper<Groups> requestHelper =
-        requestHelperFactory.getO365RequestHelper(Groups.class);
+    if (checkpoint == null) {
+      releaseMemberFetchBudget();
+    }
+    List<IdentityGroup> resumedGroups = new ArrayList<>();
+    URL url;
+    if ((groupListingJournalFile != null || directoryStore != null) && checkpoint == null) {
+      url = startGroupListing(resumedGroups);
+    } else {
+      // Only listings started from the first page are recorded, since a journal missing the
+      // groups listed before it would drop them, and they would be removed from the store.
+      url = parseGroupsCheckpoint(checkpoint);
+    }
+    if (groupListing != null) {
+      groupListing.recordPage(url.toString());
+    }
+    Groups groups = fetchGroupsPage(url);
     RequestHelper<Members> membersRequestHelper =
         requestHelperFactory.getO365RequestHelper(Members.class);
-    Groups groups = requestHelper.executeRequest(allGroups, requestHttpClient);
     List<Group> fetchedGroups =
         (groups == null) || (groups.getValue() == null)
             ? Collections.emptyList()
             : groups.getValue();
-    List<IdentityGroup> identityGroups =
+    List<Group> validGroups =
         fetchedGroups
             .stream()
             .filter(Objects::nonNull)
-            .map(g -> convertToIdentityGroup(g, membersRequestHelper))
+            .filter(g -> !resumedGroupIds.contains(g.getId()))
             .collect(Collectors.toList());
-    byte[] checkpoint =
-        Optional.ofNullable(groups)
-            .map(g -> g.getOdataNextlink())
-            .map(s -> s.getBytes(UTF_8))
-            .orElse(null);
-
+    Map<String, Members> firstMemberPages =
+        fetchFirstMemberPages(
+            validGroups
+                .stream()
+                .filter(g -> getResumedMembers(g.getId()) == null)
+                .collect(Collectors.toList()));
+    Collection<IdentityGroup> identityGroups;
+    if (memberFetchExecutor == null) {
+      identityGroups =
+          validGroups
+              .stream()
+              .map(
+                  g ->
+                      convertToIdentityGroup(
+                          g, membersRequestHelper, firstMemberPages.get(g.getId())))
+              .collect(Collectors.toList());
+    } else {
+      identityGroups =
+          convertToIdentityGroupsConcurrently(validGroups, membersRequestHelper, firstMemberPages);
+    }
+    if (!resumedGroups.isEmpty()) {
+      identityGroups = concat(resumedGroups, identityGroups);
+    }
+    String nextLink = groups == null ? null : Strings.emptyToNull(groups.getOdataNextlink());
+    if (nextLink == null && groupListing != null) {
+      groupListing.complete();
+      resumedGroupListing = null;
+      resumedGroupIds = Collections.emptySet();
+    }
     return new CheckpointCloseableIterableImpl.Builder<>(identityGroups)
-        .setCheckpoint(checkpoint)
-        .setHasMore(checkpoint != null)
+        .setCheckpoint(nextLink == null ? null : formatGroupsCheckpoint(nextLink))
+        .setHasMore(nextLink != null)
         .build();
   }
 
+  /**
+   * Starts a recorded group listing, resuming the journal of an interrupted listing if there is
+   * one. Adds the groups completed by the interrupted listing to {@code resumedGroups} and returns
+   * the groups page to list.
+   */
+  private URL startGroupListing(List<IdentityGroup> resumedGroups) throws IOException {
+    finishGroupListing();
+    if (directoryStore != null) {
+      directoryStore.startListing(DirectoryStore.Kind.GROUP);
+    }
+    if (groupListingJournalFile == null) {
+      groupListing = new GroupListing(null, directoryStore);
+      return groupsEndpoint;
+    }
+    long now = System.currentTimeMillis();
+    resumedGroupListing =
+        GroupListingJournal.load(groupListingJournalFile, now - groupListingResumeMaxAgeMillis)
+            .filter(progress -> progress.groupsLink != null)
+            .filter(this::isStoreUnchanged)
+            .orElse(null);
+    if (resumedGroupListing == null) {
+      groupListing =
+          new GroupListing(GroupListingJournal.start(groupListingJournalFile, now), directoryStore);
+      return groupsEndpoint;
+    }
+    GroupListing listing =
+        new GroupListing(
+            GroupListingJournal.resume(groupListingJournalFile, resumedGroupListing),
+            directoryStore);
+    groupListing = listing;
+    resumedGroupIds = new HashSet<>(resumedGroupListing.completedGroups.keySet());
+    resumedGroupListing.completedGroups.forEach(
+        (groupId, offset) ->
+            resumedGroups.add(
+                repositoryContext.buildIdentityGroup(
+                    groupId, () -> listing.readCompletedGroup(groupId, offset))));
+    resumedGroupListing.unchangedGroups.forEach(
+        (groupId, hash) -> {
+          resumedGroupIds.add(groupId);
+          resumedGroups.add(
+              repositoryContext.buildIdentityGroup(
+                  groupId, () -> listing.readUnchangedGroup(groupId)));
+        });
+    logger.log(
+        Level.INFO,
+        "Resuming group listing at [{0}] with {1} completed and {2} partially fetched groups.",
+        new Object[] {
+          resumedGroupListing.groupsLink,
+          resumedGroupIds.size(),
+          resumedGroupListing.partialGroups.size()
+        });
+    return new URL(resumedGroupListing.groupsLink);
+  }
+
+  /**
+   * Returns whether the groups {@code progress} journaled as unchanged can be listed again from
+   * {@link #directoryStore}. Otherwise they would be missing from the resumed listing, which then
+   * starts over.
+   */
+  private boolean isStoreUnchanged(GroupListingJournal.Progress progress) {
+    try {
+      for (Map.Entry<String, Long> group : progress.unchangedGroups.entrySet()) {
+        if (directoryStore == null
+            || !group.getValue().equals(directoryStore.getGroupHash(group.getKey()))) {
+          logger.log(Level.INFO, "Directory store changed. Starting group listing over.");
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read directory store. Starting group listing over.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Closes the recorded group listing. Once it completed, the groups it no longer listed are
+   * removed from {@link #directoryStore}.
+   */
+  private void finishGroupListing() {
+    if (groupListing != null) {
+      groupListing.close();
+      groupListing = null;
+    }
+    resumedGroupListing = null;
+    resumedGroupIds = Collections.emptySet();
+  }
+
+  /**
+   * Gives back the budget reserved by memberships the SDK did not ask for. It no longer will once
+   * a new listing starts or the repository is closed, such as after an aborted traversal.
+   */
+  private void releaseMemberFetchBudget() {
+    for (FetchedMemberships memberships : reservedMemberships) {
+      memberships.abandon();
+    }
+  }
+
+  @Nullable
+  private GroupListingJournal.PartialMembers getResumedMembers(String groupId) {
+    return resumedGroupListing == null ? null : resumedGroupListing.partialGroups.get(groupId);
+  }
+
+  private static <T> Collection<T> concat(Collection<T> first, Collection<T> second) {
+    return new AbstractCollection<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        return Iterators.concat(first.iterator(), second.iterator());
+      }
+
+      @Override
+      public int size() {
+        return first.size() + second.size();
+      }
+    };
+  }
+
   private IdentityUser convertToIdentityUser(User u) {
+    return convertToIdentityUser(repositoryContext, u);
+  }
+
+  @VisibleForTesting
+  static IdentityUser convertToIdentityUser(RepositoryContext context, User u) {
     if (Strings.isNullOrEmpty(u.getMail()) || Strings.isNullOrEmpty(u.getUserPrincipalName())) {
       logger.log(Level.WARNING, "Skipping invalid User [{0}].", u);
       return null;
     }
 
-    return repositoryContext.buildIdentityUser(u.getMail(), u.getUserPrincipalName());
+    return context.buildIdentityUser(u.getMail(), u.getUserPrincipalName());
+  }
+
+  /**
+   * Fetches the first members page of each of {@code groups} through JSON batch requests of up to
+   * {@link #memberBatchSize} groups. Groups whose first page could not be fetched in a batch are
+   * missing from the result and have all their members paged individually.
+   */
+  private Map<String, Members> fetchFirstMemberPages(List<Group> groups) throws IOException {
+    if (memberBatchSize <= 1 || groups.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    BatchRequestHelper batchRequestHelper =
+        new BatchRequestHelper(
+            requestHelperFactory.getO365RequestHelper(BatchResponse.class), graphBaseUrl);
+    List<List<Group>> batches = Lists.partition(groups, memberBatchSize);
+    Map<String, Members> firstPages = new HashMap<>();
+    if (memberFetchExecutor == null) {
+      for (List<Group> batch : batches) {
+        firstPages.putAll(fetchFirstMemberPageBatch(batch, batchRequestHelper));
+      }
+      return firstPages;
+    }
+    List<ListenableFuture<Map<String, Members>>> fetches =
+        batches
+            .stream()
+            .map(
+                batch ->
+                    memberFetchExecutor.submit(
+                        () -> fetchFirstMemberPageBatch(batch, batchRequestHelper)))
+            .collect(Collectors.toList());
+    for (ListenableFuture<Map<String, Members>> fetch : fetches) {
+      firstPages.putAll(Futures.getUnchecked(fetch));
+    }
+    return firstPages;
+  }
+
+  private Map<String, Members> fetchFirstMemberPageBatch(
+      List<Group> batch, BatchRequestHelper batchRequestHelper) {
+    Map<Request<Members>, String> groupIds = new LinkedHashMap<>();
+    Map<String, Members> firstPages = new HashMap<>();
+    try {
+      for (Group group : batch) {
+        groupIds.put(
+            new GetRequest.Builder<Members>()
+                .setRequestURL(new URL(getMembersEndpoint(group.getId())))
+                .setResponseClass(Members.class)
+                .build(),
+            group.getId());
+      }
+      batchRequestHelper
+          .executeBatch(new ArrayList<>(groupIds.keySet()), requestHttpClient)
+          .forEach((request, members) -> firstPages.put(groupIds.get(request), members));
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Batched member fetch failed. Fetching members individually.", e);
+    }
+    return firstPages;
+  }
+
+  private String getMembersEndpoint(String groupId) {
+    return String.format(membersEndpointFormat, groupId, membersPageSize);
   }
 
   private IdentityGroup convertToIdentityGroup(
-      Group g, RequestHelper<Members> requestHelper) {
-    String groupId = g.getId();
-    String membersEndpoint = String.format(MEMBERS_ENDPOINT_FORMAT, groupId, membersPageSize);
-    Iterable<Member> members =
-        new MembersIterable(Optional.of(membersEndpoint), requestHttpClient, requestHelper);
-    Iterable<Member> filteredMembers =
-        Iterables.filter(members, m -> isValidMember(m));
-    Iterable<Membership> memberships =
-        Iterables.transform(
-            filteredMembers,
-            new Function<Member, Membership>() {
-              @Override
-              @Nullable
-              public Membership apply(@Nullable Member input) {
-                checkNotNull(input);
-                EntityKey memberKey =
-                    input.isUser()
-                        ? new EntityKey().setId(input.getMail())
-                        : repositoryContext.buildEntityKeyForGroup(input.getId());
-                return new Membership().setPreferredMemberKey(memberKey).setRoles(MEMBER_ROLES);
-              }
-            });
-    return repositoryContext.buildIdentityGroup(
-        groupId, () -> ImmutableSet.<Membership>builder().addAll(memberships).build());
-  }
-
-  private static boolean isValidMember(Member member) {
+      Group g, RequestHelper<Members> requestHelper, @Nullable Members firstMemberPage) {
+    return new FetchedMemberships(g.getId(), requestHelper, firstMemberPage).toIdentityGroup();
+  }
+
+  /**
+   * Fetches memberships for all {@code groups} on {@link #memberFetchExecutor} and returns the
+   * resulting {@link IdentityGroup}s in the order in which their member fetches complete.
+   */
+  private Collection<IdentityGroup> convertToIdentityGroupsConcurrently(
+      List<Group> groups,
+      RequestHelper<Members> requestHelper,
+      Map<String, Members> firstMemberPages) {
+    List<ListenableFuture<FetchedMemberships>> fetches =
+        groups
+            .stream()
+            .map(
+                g -> {
+                  FetchedMemberships fetched =
+                      new FetchedMemberships(
+                          g.getId(), requestHelper, firstMemberPages.get(g.getId()));
+                  return memberFetchExecutor.submit(() -> fetchMemberships(fetched));
+                })
+            .collect(Collectors.toList());
+    List<ListenableFuture<FetchedMemberships>> inCompletionOrder =
+        Futures.inCompletionOrder(fetches);
+    return new AbstractCollection<IdentityGroup>() {
+      @Override
+      public Iterator<IdentityGroup> iterator() {
+        return Iterators.transform(
+            inCompletionOrder.iterator(),
+            f -> Futures.getUnchecked(f).toIdentityGroup());
+      }
+
+      @Override
+      public int size() {
+        return groups.size();
+      }
+    };
+  }
+
+  private static FetchedMemberships fetchMemberships(FetchedMemberships fetched) {
+    try {
+      fetched.fetchAhead();
+    } catch (IOException | RuntimeException e) {
+      logger.log(
+          Level.WARNING, "Failed to fetch members for group [" + fetched.groupId + "].", e);
+      fetched.fail(e instanceof IOException ? new UncheckedIOException((IOException) e) : e);
+    }
+    return fetched;
+  }
+
+  /** Builds the memberships of a group from its valid {@code members}. */
+  @VisibleForTesting
+  static Set<Membership> buildMemberships(RepositoryContext context, Iterable<Member> members) {
+    CompactMembershipSet.Builder memberships = new CompactMembershipSet.Builder();
+    memberKeys(context, members).forEach(memberships::add);
+    return memberships.build();
+  }
+
+  /** Returns the member keys of the valid {@code members}. */
+  private static List<EntityKey> memberKeys(RepositoryContext context, Iterable<Member> members) {
+    List<EntityKey> keys = new ArrayList<>();
+    for (Member member : members) {
+      if (!isValidMember(member)) {
+        continue;
+      }
+      keys.add(
+          member.isUser()
+              ? new EntityKey().setId(member.getMail())
+              : context.buildEntityKeyForGroup(member.getId()));
+    }
+    return keys;
+  }
+
+  @VisibleForTesting
+  static boolean isValidMember(Member member) {
     if (member == null) {
       return false;
     }
@@ -244,6 +1041,37 @@ class O365IdentityRepository implements Repository {
     return member.isGroup();
   }
 
+  /**
+   * Returns the groups page recorded in {@code checkpoint}. Checkpoints written before {@link
+   * GroupsCheckpoint} are the link itself.
+   */
+  private URL parseGroupsCheckpoint(@Nullable byte[] checkpoint) {
+    if (checkpoint == null || checkpoint.length == 0 || checkpoint[0] != '{') {
+      return parseCheckpoint(checkpoint, groupsEndpoint);
+    }
+    try {
+      GroupsCheckpoint parsed =
+          JSON_FACTORY.fromString(new String(checkpoint, UTF_8), GroupsCheckpoint.class);
+      if (Objects.equals(parsed.version, GROUPS_CHECKPOINT_VERSION) && parsed.groupsLink != null) {
+        return new URL(parsed.groupsLink);
+      }
+      logger.log(
+          Level.WARNING,
+          "Unsupported groups checkpoint version [{0}]. Listing all groups again.",
+          parsed.version);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.log(Level.WARNING, "Failed to parse groups checkpoint. Listing all groups again.", e);
+    }
+    return groupsEndpoint;
+  }
+
+  private static byte[] formatGroupsCheckpoint(String groupsLink) throws IOException {
+    GroupsCheckpoint checkpoint = new GroupsCheckpoint();
+    checkpoint.version = GROUPS_CHECKPOINT_VERSION;
+    checkpoint.groupsLink = groupsLink;
+    return JSON_FACTORY.toByteArray(checkpoint);
+  }
+
   private static URL parseCheckpoint(byte[] checkpoint, URL defaultUrl) {
     if (checkpoint == null) {
       return defaultUrl;
@@ -262,39 +1090,325 @@ class O365IdentityRepository implements Repository {
     }
   }
 
-  private static class MembersIterable extends PaginationIterable<Member, String> {
-    private final HttpClient requestHttpClient;
+  /**
+   * Memberships of a single group. On a member fetch thread, pages are fetched ahead until {@link
+   * #memberFetchBudget} is exhausted; the remaining pages are fetched when the SDK asks for the
+   * memberships, and the budget is returned then, or when the next listing starts or the
+   * repository is closed if the SDK never asks. A failed fetch ahead is surfaced from the
+   * membership supplier, just like a failure while paging members there.
+   *
+   * <p>A group whose members were partially fetched by an interrupted, journaled listing continues
+   * from its recorded next link, or from its first page if that link is no longer accepted. Fetched
+   * members and built memberships are recorded in the {@link GroupListing} in progress, if any.
+   */
+  private class FetchedMemberships {
+    private final String groupId;
     private final RequestHelper<Members> requestHelper;
+    private final GroupListing listing;
+    private CompactMembershipSet.Builder memberships = new CompactMembershipSet.Builder();
+    private Members firstPage;
+    private String nextLink;
+    private boolean resumed;
+    private long reservedBytes;
+    private boolean abandoned;
+    private RuntimeException failure;
+    private Set<Membership> built;
 
-    public MembersIterable(
-        Optional<String> startPage,
-        HttpClient requestHttpClient,
-        RequestHelper<Members> requestHelper) {
-      super(startPage);
-      this.requestHttpClient = requestHttpClient;
+    FetchedMemberships(
+        String groupId, RequestHelper<Members> requestHelper, @Nullable Members firstPage) {
+      this.groupId = groupId;
       this.requestHelper = requestHelper;
+      this.listing = groupListing;
+      GroupListingJournal.PartialMembers partial = getResumedMembers(groupId);
+      if (partial == null) {
+        this.firstPage = firstPage;
+        this.nextLink = getMembersEndpoint(groupId);
+      } else {
+        partial.members.forEach(m -> memberships.add(m.getPreferredMemberKey()));
+        this.nextLink = partial.nextLink;
+        this.resumed = true;
+      }
     }
 
-    @Override
-    public Page<Member, String> getPage(Optional<String> nextPage) throws IOException {
-      Request<Members> allMembers =
+    void fetchAhead() throws IOException {
+      fetchPages(memberFetchBudget);
+    }
+
+    void fail(RuntimeException e) {
+      failure = e;
+    }
+
+    IdentityGroup toIdentityGroup() {
+      return repositoryContext.buildIdentityGroup(groupId, this::getMemberships);
+    }
+
+    private synchronized Set<Membership> getMemberships() {
+      try {
+        if (failure != null) {
+          throw failure;
+        }
+        if (built == null) {
+          fetchPages(null);
+          built = memberships.build();
+          if (listing != null) {
+            listing.recordGroup(groupId, built);
+          }
+        }
+        return built;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        releaseReservation();
+      }
+    }
+
+    /** Returns the reserved budget and stops fetching ahead. */
+    synchronized void abandon() {
+      abandoned = true;
+      releaseReservation();
+    }
+
+    /**
+     * Reserves {@code retainedBytes} of {@code budget} in total, and returns whether fetching
+     * ahead can continue.
+     */
+    private synchronized boolean reserve(MemoryBudget budget, long retainedBytes) {
+      if (abandoned) {
+        return false;
+      }
+      boolean available = budget.add(retainedBytes - reservedBytes);
+      reservedBytes = retainedBytes;
+      reservedMemberships.add(this);
+      return available;
+    }
+
+    private synchronized void releaseReservation() {
+      memberFetchBudget.release(reservedBytes);
+      reservedBytes = 0;
+      reservedMemberships.remove(this);
+    }
+
+    /** Fetches the remaining pages, or as many as {@code budget} allows if it is not null. */
+    private void fetchPages(@Nullable MemoryBudget budget) throws IOException {
+      while (nextLink != null) {
+        Members page = nextPage();
+        List<EntityKey> keys =
+            page.getValue() == null
+                ? Collections.emptyList()
+                : memberKeys(repositoryContext, page.getValue());
+        keys.forEach(memberships::add);
+        nextLink = Strings.emptyToNull(page.getOdataNextlink());
+        if (listing != null && nextLink != null) {
+          listing.recordMembers(groupId, nextLink, keys);
+        }
+        if (budget == null) {
+          continue;
+        }
+        boolean available = reserve(budget, memberships.retainedBytes());
+        if (!available && nextLink != null) {
+          logger.log(
+              Level.FINE,
+              "Member fetch budget exhausted. Fetching remaining members of group [{0}] later.",
+              groupId);
+          return;
+        }
+      }
+    }
+
+    private Members nextPage() throws IOException {
+      if (firstPage != null) {
+        Members page = firstPage;
+        firstPage = null;
+        return page;
+      }
+      if (resumed) {
+        resumed = false;
+        try {
+          return fetchMembersPage(nextLink);
+        } catch (IOException e) {
+          logger.log(
+              Level.WARNING,
+              "Failed to resume members of group [" + groupId + "]. Fetching all members again.",
+              e);
+          memberships = new CompactMembershipSet.Builder();
+          nextLink = getMembersEndpoint(groupId);
+        }
+      }
+      return fetchMembersPage(nextLink);
+    }
+
+    private Members fetchMembersPage(String link) throws IOException {
+      Request<Members> request =
           new GetRequest.Builder<Members>()
-              .setRequestURL(new URL(nextPage.get()))
+              .setRequestURL(new URL(link))
               .setResponseClass(Members.class)
               .build();
-      Members members = requestHelper.executeRequest(allMembers, requestHttpClient);
-      List<Member> membersToReturn = members.getValue();
-      return new Page<>(
-          membersToReturn == null ? Collections.emptyList() : membersToReturn,
-          Optional.ofNullable(members.getOdataNextlink()));
+      return requestHelper.executeRequest(request, requestHttpClient);
     }
   }
 
+  /**
+   * A full group listing started without a checkpoint, recording the groups handed to the SDK in
+   * its journal and in the directory store. Groups are compared with the store as they are
+   * recorded, and the changes are logged when the listing is closed after it completed.
+   */
+  private static class GroupListing implements Closeable {
+    @Nullable private final GroupListingJournal journal;
+    @Nullable private final DirectoryStore store;
+    private int changedGroups;
+    private int unchangedGroups;
+    private int newGroups;
+    private boolean completed;
+
+    GroupListing(@Nullable GroupListingJournal journal, @Nullable DirectoryStore store) {
+      this.journal = journal;
+      this.store = store;
+    }
+
+    void recordPage(String link) {
+      if (journal != null) {
+        journal.recordPage(link);
+      }
+    }
+
+    void recordMembers(String groupId, String nextLink, List<EntityKey> keys) {
+      if (journal != null) {
+        journal.recordMembers(groupId, nextLink, keys);
+      }
+    }
+
+    /** Records that {@code groupId} was handed to the SDK with {@code memberships}. */
+    void recordGroup(String groupId, Set<Membership> memberships) {
+      if (store == null) {
+        journal.recordGroup(groupId, memberships);
+        return;
+      }
+      long hash = MemberKeys.hash(memberships);
+      boolean unchanged = compareToStore(groupId, hash, memberships);
+      if (journal == null) {
+        return;
+      }
+      if (unchanged) {
+        journal.recordUnchangedGroup(groupId, hash);
+      } else {
+        journal.recordGroup(groupId, memberships);
+      }
+    }
+
+    /** Records a group completed by the interrupted listing this one resumed. */
+    Set<Membership> recordResumedGroup(String groupId, Set<Membership> memberships) {
+      if (store != null) {
+        compareToStore(groupId, MemberKeys.hash(memberships), memberships);
+      }
+      return memberships;
+    }
+
+    /** Reads a group completed by the interrupted listing this one resumed from its journal. */
+    Set<Membership> readCompletedGroup(String groupId, long offset) {
+      try {
+        return recordResumedGroup(groupId, journal.readGroup(groupId, offset));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Reads a group that the interrupted listing this one resumed found unchanged. */
+    Set<Membership> readUnchangedGroup(String groupId) {
+      try {
+        return recordResumedGroup(groupId, store.getGroupMembers(groupId));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Keeps {@code groupId} in the store and returns whether it is unchanged. */
+    private synchronized boolean compareToStore(
+        String groupId, long hash, Set<Membership> memberships) {
+      try {
+        Long previousHash = store.getGroupHash(groupId);
+        boolean unchanged = previousHash != null && previousHash == hash;
+        if (store.isListed(DirectoryStore.Kind.GROUP, groupId)) {
+          return unchanged;
+        }
+        if (previousHash == null) {
+          newGroups++;
+        } else if (unchanged) {
+          unchangedGroups++;
+        } else {
+          changedGroups++;
+          logChanges(groupId, memberships);
+        }
+        store.putGroup(groupId, hash, memberships);
+        return unchanged;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to keep group [" + groupId + "] in the store.", e);
+        return false;
+      }
+    }
+
+    private void logChanges(String groupId, Set<Membership> memberships) throws IOException {
+      if (!logger.isLoggable(Level.FINE)) {
+        return;
+      }
+      Set<Membership> previous = store.getGroupMembers(groupId);
+      logger.log(
+          Level.FINE,
+          "Group [{0}] changed: {1} members added, {2} removed.",
+          new Object[] {
+            groupId,
+            Sets.difference(memberships, previous).size(),
+            Sets.difference(previous, memberships).size()
+          });
+    }
+
+    /** Marks the listing completed, once its last groups page was listed. */
+    void complete() {
+      completed = true;
+      if (journal != null) {
+        journal.delete();
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (journal != null) {
+        journal.close();
+      }
+      if (store == null || !completed) {
+        return;
+      }
+      try {
+        int removedGroups = store.removeUnlisted(DirectoryStore.Kind.GROUP);
+        logger.log(
+            Level.INFO,
+            "Group memberships since the previous listing: {0} changed, {1} unchanged, {2} new"
+                + " and {3} removed groups.",
+            new Object[] {changedGroups, unchangedGroups, newGroups, removedGroups});
+        store.compactIfNeeded();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to remove unlisted groups from the store.", e);
+      }
+    }
+  }
+
+  /** Checkpoint of a full group listing. */
+  public static class GroupsCheckpoint extends GenericJson {
+    @Key("v") private Integer version;
+    @Key private String groupsLink;
+  }
+
   // TODO(tvartak): Move to common utility class to be shared by multiple connectors.
   static class O365RequestHelperFactory {
+    private RequestThrottler throttler;
+
+    /** Sets the throttler shared by all helpers returned from now on. */
+    void setRequestThrottler(@Nullable RequestThrottler throttler) {
+      this.throttler = throttler;
+    }
+
     <T extends GenericJson> RequestHelper<T> getO365RequestHelper(
         @SuppressWarnings("unused") Class<T> responseClass) {
-      return new RequestHelper<T>();
+      return new RequestHelper<T>(throttler);
     }
   }
 }
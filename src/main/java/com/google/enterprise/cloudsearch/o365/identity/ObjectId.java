@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import javax.annotation.Nullable;
+
+/**
+ * Id of a directory object held as the two halves of its 128-bit GUID, instead of as the
+ * 36-character string returned by Graph.
+ *
+ * <p>Only the canonical lowercase form round-trips through {@link #toString}, so {@link #parse}
+ * rejects ids in any other form, which callers keep as strings.
+ */
+final class ObjectId {
+  private static final int LENGTH = 36;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final long high;
+  private final long low;
+
+  ObjectId(long high, long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  /** Returns the id of {@code id}, or null if it is not a GUID in canonical lowercase form. */
+  @Nullable
+  static ObjectId parse(String id) {
+    if (id.length() != LENGTH) {
+      return null;
+    }
+    long high = 0;
+    long low = 0;
+    int digits = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      char c = id.charAt(i);
+      if (isDash(i)) {
+        if (c != '-') {
+          return null;
+        }
+        continue;
+      }
+      int digit = hexDigit(c);
+      if (digit < 0) {
+        return null;
+      }
+      if (digits++ < 16) {
+        high = (high << 4) | digit;
+      } else {
+        low = (low << 4) | digit;
+      }
+    }
+    return new ObjectId(high, low);
+  }
+
+  long getHigh() {
+    return high;
+  }
+
+  long getLow() {
+    return low;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ObjectId)) {
+      return false;
+    }
+    ObjectId other = (ObjectId) obj;
+    return high == other.high && low == other.low;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(high * 31 + low);
+  }
+
+  @Override
+  public String toString() {
+    char[] id = new char[LENGTH];
+    int digits = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      if (isDash(i)) {
+        id[i] = '-';
+        continue;
+      }
+      long half = digits < 16 ? high : low;
+      int shift = 60 - 4 * (digits++ % 16);
+      id[i] = HEX_DIGITS[(int) (half >>> shift) & 0xF];
+    }
+    return new String(id);
+  }
+
+  private static boolean isDash(int index) {
+    return index == 8 || index == 13 || index == 18 || index == 23;
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+}
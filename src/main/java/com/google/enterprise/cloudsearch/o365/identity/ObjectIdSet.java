@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Set of directory object ids that holds GUIDs as {@link ObjectId} halves in an open-addressing
+ * table of longs, 16 bytes per slot, instead of as strings and hash set entries of over 100 bytes
+ * each. Ids that are not canonical GUIDs are kept as strings. Ids are converted back to strings as
+ * the set is iterated, and the iterator does not support removal.
+ *
+ * <p>Like {@link java.util.HashSet}, the set is not thread-safe.
+ */
+final class ObjectIdSet extends AbstractSet<String> {
+  private static final int MIN_SLOTS = 8;
+  private static final long[] NO_SLOTS = new long[0];
+
+  // Each slot is a high and low pair; the nil GUID marks an empty slot and is kept as a string.
+  private long[] slots = NO_SLOTS;
+  private int guids;
+  private Set<String> others = Collections.emptySet();
+
+  @Override
+  public boolean add(String id) {
+    ObjectId guid = ObjectId.parse(id);
+    if (guid == null || isEmpty(guid.getHigh(), guid.getLow())) {
+      if (others.isEmpty()) {
+        others = new HashSet<>();
+      }
+      return others.add(id);
+    }
+    if ((guids + 1) * 4 > slotCount() * 3) {
+      resize(Math.max(MIN_SLOTS, slotCount() * 2));
+    }
+    int slot = findSlot(guid.getHigh(), guid.getLow());
+    if (slot >= 0) {
+      return false;
+    }
+    slot = ~slot;
+    slots[2 * slot] = guid.getHigh();
+    slots[2 * slot + 1] = guid.getLow();
+    guids++;
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    ObjectId guid = ObjectId.parse((String) o);
+    if (guid == null || isEmpty(guid.getHigh(), guid.getLow())) {
+      return others.contains(o);
+    }
+    return guids > 0 && findSlot(guid.getHigh(), guid.getLow()) >= 0;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    ObjectId guid = ObjectId.parse((String) o);
+    if (guid == null || isEmpty(guid.getHigh(), guid.getLow())) {
+      return others.remove(o);
+    }
+    int slot = guids == 0 ? -1 : findSlot(guid.getHigh(), guid.getLow());
+    if (slot < 0) {
+      return false;
+    }
+    deleteSlot(slot);
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return guids + others.size();
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    Iterator<String> guidIterator =
+        new AbstractIterator<String>() {
+          private int slot;
+
+          @Override
+          protected String computeNext() {
+            while (slot < slotCount()) {
+              long high = slots[2 * slot];
+              long low = slots[2 * slot + 1];
+              slot++;
+              if (!isEmpty(high, low)) {
+                return new ObjectId(high, low).toString();
+              }
+            }
+            return endOfData();
+          }
+        };
+    return Iterators.unmodifiableIterator(Iterators.concat(guidIterator, others.iterator()));
+  }
+
+  private int slotCount() {
+    return slots.length / 2;
+  }
+
+  /** Returns the slot holding the GUID, or the complement of the free slot to put it in. */
+  private int findSlot(long high, long low) {
+    int mask = slotCount() - 1;
+    for (int slot = home(high, low, mask); ; slot = (slot + 1) & mask) {
+      long slotHigh = slots[2 * slot];
+      long slotLow = slots[2 * slot + 1];
+      if (isEmpty(slotHigh, slotLow)) {
+        return ~slot;
+      }
+      if (slotHigh == high && slotLow == low) {
+        return slot;
+      }
+    }
+  }
+
+  /** Empties {@code slot}, moving back the slots that probed past it. */
+  private void deleteSlot(int slot) {
+    int mask = slotCount() - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask;
+        !isEmpty(slots[2 * next], slots[2 * next + 1]);
+        next = (next + 1) & mask) {
+      int home = home(slots[2 * next], slots[2 * next + 1], mask);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        slots[2 * hole] = slots[2 * next];
+        slots[2 * hole + 1] = slots[2 * next + 1];
+        hole = next;
+      }
+    }
+    slots[2 * hole] = 0;
+    slots[2 * hole + 1] = 0;
+    guids--;
+  }
+
+  private void resize(int slotCount) {
+    long[] previous = slots;
+    slots = new long[2 * slotCount];
+    int mask = slotCount - 1;
+    for (int i = 0; i < previous.length; i += 2) {
+      if (isEmpty(previous[i], previous[i + 1])) {
+        continue;
+      }
+      int slot = home(previous[i], previous[i + 1], mask);
+      while (!isEmpty(slots[2 * slot], slots[2 * slot + 1])) {
+        slot = (slot + 1) & mask;
+      }
+      slots[2 * slot] = previous[i];
+      slots[2 * slot + 1] = previous[i + 1];
+    }
+  }
+
+  private static boolean isEmpty(long high, long low) {
+    return high == 0 && low == 0;
+  }
+
+  private static int home(long high, long low, int mask) {
+    long hash = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 32) & mask;
+  }
+}
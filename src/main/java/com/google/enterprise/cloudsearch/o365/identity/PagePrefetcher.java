@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches pages of a paged Graph collection, optionally reading the next page ahead in the
+ * background.
+ *
+ * <p>At most one page is prefetched at a time. A prefetched page is only served when it is
+ * requested with the same URL it was prefetched for; otherwise it is discarded and the page is
+ * fetched directly.
+ */
+class PagePrefetcher<T> {
+  private static final Logger logger = Logger.getLogger(PagePrefetcher.class.getName());
+
+  /** Fetches a single page. */
+  @FunctionalInterface
+  interface PageFetcher<T> {
+    T fetch(URL url) throws IOException;
+  }
+
+  private final ExecutorService executor;
+  private final PageFetcher<T> fetcher;
+  private final AtomicReference<PrefetchedPage<T>> pending = new AtomicReference<>();
+
+  PagePrefetcher(ExecutorService executor, PageFetcher<T> fetcher) {
+    this.executor = checkNotNull(executor, "executor can not be null");
+    this.fetcher = checkNotNull(fetcher, "fetcher can not be null");
+  }
+
+  /**
+   * Returns the page at {@code url}, served from the prefetched page if one is available for the
+   * same URL.
+   */
+  T fetch(URL url) throws IOException {
+    PrefetchedPage<T> prefetched = pending.getAndSet(null);
+    if (prefetched != null) {
+      if (prefetched.url.equals(url.toString())) {
+        try {
+          return prefetched.page.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for page " + url);
+        } catch (ExecutionException e) {
+          logger.log(
+              Level.WARNING, "Prefetch of page [" + url + "] failed. Fetching it again.", e);
+        }
+      } else {
+        prefetched.page.cancel(true);
+      }
+    }
+    return fetcher.fetch(url);
+  }
+
+  /** Starts fetching the page at {@code url} in the background. */
+  void prefetch(URL url) {
+    Future<T> page = executor.submit(() -> fetcher.fetch(url));
+    PrefetchedPage<T> previous = pending.getAndSet(new PrefetchedPage<>(url.toString(), page));
+    if (previous != null) {
+      previous.page.cancel(true);
+    }
+  }
+
+  private static class PrefetchedPage<T> {
+    private final String url;
+    private final Future<T> page;
+
+    PrefetchedPage(String url, Future<T> page) {
+      this.url = url;
+      this.page = page;
+    }
+  }
+}
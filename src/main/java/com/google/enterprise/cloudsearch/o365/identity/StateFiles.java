@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Reads and writes connector state kept as JSON files in the state directory. */
+class StateFiles {
+  private static final Logger logger = Logger.getLogger(StateFiles.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private StateFiles() {}
+
+  /**
+   * Reads {@code stateFile} as {@code stateClass}. Returns empty if the file does not exist or can
+   * not be parsed.
+   */
+  static <T extends GenericJson> Optional<T> read(Path stateFile, Class<T> stateClass) {
+    if (!Files.exists(stateFile)) {
+      return Optional.empty();
+    }
+    try (InputStream in = Files.newInputStream(stateFile)) {
+      return Optional.of(JSON_FACTORY.fromInputStream(in, UTF_8, stateClass));
+    } catch (IOException | IllegalArgumentException e) {
+      logger.log(Level.WARNING, "Failed to read state from [" + stateFile + "].", e);
+      return Optional.empty();
+    }
+  }
+
+  /** Replaces the content of {@code stateFile} with {@code state} in a single atomic move. */
+  static void write(Path stateFile, GenericJson state) throws IOException {
+    Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(tempFile)) {
+      out.write(JSON_FACTORY.toByteArray(state));
+    }
+    Files.move(
+        tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
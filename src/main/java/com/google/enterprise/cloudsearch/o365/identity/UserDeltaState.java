@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+import com.google.enterprise.cloudsearch.o365.model.User;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local copy of the users known from Microsoft Graph {@code users/delta}, together with the
+ * {@code @odata.deltaLink} to request the next set of changes.
+ *
+ * <p>Changes are applied to the in-memory copy as delta pages are fetched. The copy and its
+ * delta link are only written to disk by {@link #commit}, once a delta round has been fully
+ * applied, so an interrupted round is replayed from the last committed delta link.
+ */
+class UserDeltaState {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final Path stateFile;
+  private final Map<String, User> users;
+  private String deltaLink;
+
+  private UserDeltaState(Path stateFile, Map<String, User> users, String deltaLink) {
+    this.stateFile = stateFile;
+    this.users = users;
+    this.deltaLink = deltaLink;
+  }
+
+  /**
+   * Loads the state stored in {@code stateFile}, or returns an empty state if the file does not
+   * exist or can not be read.
+   */
+  static UserDeltaState load(Path stateFile) {
+    checkNotNull(stateFile, "state file can not be null");
+    return StateFiles.read(stateFile, State.class)
+        .map(state -> new UserDeltaState(stateFile, state.toUsers(), state.deltaLink))
+        .orElseGet(() -> new UserDeltaState(stateFile, new HashMap<>(), null));
+  }
+
+  /** Returns the delta link of the last committed round, or null if none was committed. */
+  String getDeltaLink() {
+    return deltaLink;
+  }
+
+  /** Applies a single changed or removed user from a delta page. */
+  void apply(User user) {
+    String id = user.getId();
+    if (id == null) {
+      return;
+    }
+    if (user.isRemoved()) {
+      users.remove(id);
+      return;
+    }
+    // Delta pages only guarantee the changed properties of an updated user.
+    User existing = users.get(id);
+    User.Builder merged =
+        new User.Builder()
+            .setId(id)
+            .setAccountEnabled(user.isAccountEnabled())
+            .setMail(user.getMail())
+            .setUserPrincipalName(user.getUserPrincipalName());
+    if (existing != null) {
+      if (user.getMail() == null) {
+        merged.setMail(existing.getMail());
+      }
+      if (user.getUserPrincipalName() == null) {
+        merged.setUserPrincipalName(existing.getUserPrincipalName());
+      }
+      if (!user.hasAccountEnabled()) {
+        merged.setAccountEnabled(existing.isAccountEnabled());
+      }
+    }
+    users.put(id, merged.build());
+  }
+
+  /** Returns the user with the given id, or null if the user is not known. */
+  User getUser(String id) {
+    return users.get(id);
+  }
+
+  /** Returns all currently known users. */
+  Collection<User> getUsers() {
+    return Collections.unmodifiableCollection(users.values());
+  }
+
+  /** Records {@code newDeltaLink} as the end of the current round and writes the state to disk. */
+  void commit(String newDeltaLink) throws IOException {
+    this.deltaLink = checkNotNull(newDeltaLink, "delta link can not be null");
+    State state = new State();
+    state.deltaLink = deltaLink;
+    state.users = new HashMap<>();
+    for (User user : users.values()) {
+      UserRecord record = new UserRecord();
+      record.id = user.getId();
+      record.mail = user.getMail();
+      record.userPrincipalName = user.getUserPrincipalName();
+      record.accountEnabled = user.isAccountEnabled();
+      state.users.put(user.getId(), record);
+    }
+    StateFiles.write(stateFile, state);
+  }
+
+  /** On-disk representation of {@link UserDeltaState}. */
+  public static class State extends GenericJson {
+    @Key private String deltaLink;
+    @Key private Map<String, UserRecord> users;
+
+    public State() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+
+    private Map<String, User> toUsers() {
+      Map<String, User> result = new HashMap<>();
+      if (users == null) {
+        return result;
+      }
+      for (Map.Entry<String, UserRecord> entry : users.entrySet()) {
+        UserRecord record = entry.getValue();
+        result.put(
+            entry.getKey(),
+            new User.Builder()
+                .setId(record.id == null ? entry.getKey() : record.id)
+                .setMail(record.mail)
+                .setUserPrincipalName(record.userPrincipalName)
+                .setAccountEnabled(record.accountEnabled)
+                .build());
+      }
+      return result;
+    }
+  }
+
+  /** On-disk representation of a single user. */
+  public static class UserRecord extends GenericJson {
+    @Key private String id;
+    @Key private String mail;
+    @Key private String userPrincipalName;
+    @Key private boolean accountEnabled;
+
+    public UserRecord() {
+      super();
+      setFactory(JSON_FACTORY);
+    }
+  }
+}
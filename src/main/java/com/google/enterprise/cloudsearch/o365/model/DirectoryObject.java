@@ -15,39 +15,79 @@
  */
 package com.google.enterprise.cloudsearch.o365.model;
 
-import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Key;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import java.io.IOException;
+import java.util.Objects;
+import javax.annotation.Nullable;
 
 /**
  * This class represents a generic object with unique Id.
+ *
+ * <p>Directory objects are immutable, and decoded by {@link DirectoryObjectsDecoder} without
+ * reflection. Fields returned by Microsoft Graph that are not modeled are not kept.
  */
-public class DirectoryObject extends GenericJson {
-  @Key private String id;
+public class DirectoryObject {
+  private final String id;
+  private final String removedReason;
 
-  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  DirectoryObject(String id, @Nullable String removedReason) {
+    this.id = id;
+    // Graph only reports a couple of distinct reasons.
+    this.removedReason = removedReason == null ? null : removedReason.intern();
+  }
 
   public boolean isValid() {
     return !Strings.isNullOrEmpty(id);
   }
 
-  public DirectoryObject() {
-    super();
-    setFactory(JSON_FACTORY);
+  public String getId() {
+    return id;
   }
 
-  public void setId(String id) {
-    this.id = id;
+  /**
+   * Returns the removal reason if this object was reported as removed in a delta response, either
+   * {@code changed} or {@code deleted}.
+   */
+  public String getRemovedReason() {
+    return removedReason;
   }
 
-  public String getId() {
-    return id;
+  /** Returns true if this object was reported as removed in a delta response. */
+  public boolean isRemoved() {
+    return removedReason != null;
   }
 
   public static DirectoryObject parse(String directoryObject) throws IOException {
-    return JSON_FACTORY.fromString(directoryObject, DirectoryObject.class);
+    return DirectoryObjectsDecoder.DIRECTORY_OBJECTS.decodeObject(directoryObject);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || obj.getClass() != getClass()) {
+      return false;
+    }
+    DirectoryObject other = (DirectoryObject) obj;
+    return Objects.equals(id, other.id) && Objects.equals(removedReason, other.removedReason);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(id, removedReason);
+  }
+
+  @Override
+  public String toString() {
+    return toStringHelper().toString();
+  }
+
+  MoreObjects.ToStringHelper toStringHelper() {
+    return MoreObjects.toStringHelper(this)
+        .omitNullValues()
+        .add("id", id)
+        .add("removedReason", removedReason);
   }
 }
@@ -27,6 +27,8 @@ public abstract class DirectoryObjects extends GenericJson {
 
   public abstract List<? extends DirectoryObject> getValue();
 
+  public abstract String getOdataContext();
+
   public abstract String getOdataNextlink();
 
   public abstract String getOdataDeltalink();
@@ -0,0 +1,417 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.model;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes a page of {@link DirectoryObject}s returned by Microsoft Graph token by token.
+ *
+ * <p>Unlike {@link JsonFactory#fromInputStream}, which reflectively builds every object of the
+ * page and the list holding them before returning, the decoder hands each object of the {@code
+ * value} array to a callback as soon as it is read, and records the {@code @odata.nextLink} and
+ * {@code @odata.deltaLink} of the page wherever they appear. Fields that the models do not map are
+ * skipped.
+ *
+ * <p>Objects without an {@code id} can not be identified and are dropped.
+ */
+public final class DirectoryObjectsDecoder<T extends DirectoryObject> {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  /** Decoder for pages of {@link Users}. */
+  public static final DirectoryObjectsDecoder<User> USERS =
+      new DirectoryObjectsDecoder<>(DirectoryObjectsDecoder::readUser);
+  /** Decoder for pages of {@link Groups}. */
+  public static final DirectoryObjectsDecoder<Group> GROUPS =
+      new DirectoryObjectsDecoder<>(DirectoryObjectsDecoder::readGroup);
+  /** Decoder for pages of {@link Members}. */
+  public static final DirectoryObjectsDecoder<Member> MEMBERS =
+      new DirectoryObjectsDecoder<>(DirectoryObjectsDecoder::readMember);
+  static final DirectoryObjectsDecoder<DirectoryObject> DIRECTORY_OBJECTS =
+      new DirectoryObjectsDecoder<>(DirectoryObjectsDecoder::readDirectoryObject);
+
+  private static final ImmutableMap<Class<?>, PageDecoder<?>> PAGE_DECODERS =
+      ImmutableMap.<Class<?>, PageDecoder<?>>of(
+          Users.class,
+          content -> {
+            List<User> value = new ArrayList<>();
+            PageLinks links = USERS.decode(content, value::add);
+            return new Users.Builder()
+                .setValue(value)
+                .setOdataContext(links.getOdataContext())
+                .setOdataNextlink(links.getOdataNextlink())
+                .setOdataDeltalink(links.getOdataDeltalink())
+                .build();
+          },
+          Groups.class,
+          content -> {
+            List<Group> value = new ArrayList<>();
+            PageLinks links = GROUPS.decode(content, value::add);
+            return new Groups.Builder()
+                .setValue(value)
+                .setOdataContext(links.getOdataContext())
+                .setOdataNextlink(links.getOdataNextlink())
+                .setOdataDeltalink(links.getOdataDeltalink())
+                .build();
+          },
+          Members.class,
+          content -> {
+            List<Member> value = new ArrayList<>();
+            PageLinks links = MEMBERS.decode(content, value::add);
+            return new Members.Builder()
+                .setValue(value)
+                .setOdataContext(links.getOdataContext())
+                .setOdataNextlink(links.getOdataNextlink())
+                .setOdataDeltalink(links.getOdataDeltalink())
+                .build();
+          });
+
+  private final ObjectReader<T> reader;
+
+  private DirectoryObjectsDecoder(ObjectReader<T> reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Decodes a page, passing every object of its {@code value} array to {@code consumer} in the
+   * order they appear. Closes {@code content}.
+   *
+   * @param content UTF-8 encoded JSON page
+   * @param consumer receives the decoded objects
+   * @return the links of the page
+   * @throws IOException if the content can not be read or is not a page of objects
+   */
+  public PageLinks decode(InputStream content, Consumer<? super T> consumer) throws IOException {
+    checkNotNull(content, "content can not be null");
+    checkNotNull(consumer, "consumer can not be null");
+    String context = null;
+    String nextLink = null;
+    String deltaLink = null;
+    JsonParser parser = JSON_FACTORY.createJsonParser(content, StandardCharsets.UTF_8);
+    try {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getText();
+        JsonToken token = parser.nextToken();
+        switch (field) {
+          case "@odata.context":
+            context = readString(parser, token);
+            break;
+          case "@odata.nextLink":
+            nextLink = readString(parser, token);
+            break;
+          case "@odata.deltaLink":
+            deltaLink = readString(parser, token);
+            break;
+          case "value":
+            if (token == JsonToken.VALUE_NULL) {
+              break;
+            }
+            expect(parser, token, JsonToken.START_ARRAY);
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+              if (token == JsonToken.VALUE_NULL) {
+                continue;
+              }
+              expect(parser, token, JsonToken.START_OBJECT);
+              T object = reader.read(parser);
+              if (object != null) {
+                consumer.accept(object);
+              }
+            }
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+    } finally {
+      parser.close();
+    }
+    return new PageLinks(context, nextLink, deltaLink);
+  }
+
+  /**
+   * Decodes a single object.
+   *
+   * @throws IOException if {@code json} is not an object with an {@code id}
+   */
+  T decodeObject(String json) throws IOException {
+    JsonParser parser = JSON_FACTORY.createJsonParser(json);
+    try {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      T object = reader.read(parser);
+      if (object == null) {
+        throw new IOException("Object without id");
+      }
+      return object;
+    } finally {
+      parser.close();
+    }
+  }
+
+  /** Returns true if {@link #decodePage} can decode pages of {@code pageClass}. */
+  public static boolean supports(Class<?> pageClass) {
+    return PAGE_DECODERS.containsKey(pageClass);
+  }
+
+  /**
+   * Decodes a whole page of {@link Users}, {@link Groups} or {@link Members}. Closes {@code
+   * content}.
+   *
+   * @throws IllegalArgumentException if {@code pageClass} is not {@link #supports supported}
+   * @throws IOException if the content can not be read or is not a page of objects
+   */
+  public static <P> P decodePage(InputStream content, Class<P> pageClass)
+      throws IOException {
+    PageDecoder<?> pageDecoder = PAGE_DECODERS.get(pageClass);
+    if (pageDecoder == null) {
+      throw new IllegalArgumentException("Unsupported page class " + pageClass.getName());
+    }
+    return pageClass.cast(pageDecoder.decode(content));
+  }
+
+  @Nullable
+  private static DirectoryObject readDirectoryObject(JsonParser parser) throws IOException {
+    String id = null;
+    String removedReason = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getText();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case "id":
+          id = readString(parser, token);
+          break;
+        case "@removed":
+          removedReason = readRemovedReason(parser, token);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return id == null ? null : new DirectoryObject(id, removedReason);
+  }
+
+  @Nullable
+  private static User readUser(JsonParser parser) throws IOException {
+    User.Builder builder = new User.Builder();
+    String id = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getText();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case "id":
+          id = readString(parser, token);
+          break;
+        case "mail":
+          builder.setMail(readString(parser, token));
+          break;
+        case "userPrincipalName":
+          builder.setUserPrincipalName(readString(parser, token));
+          break;
+        case "accountEnabled":
+          if (token != JsonToken.VALUE_NULL) {
+            builder.setAccountEnabled(token == JsonToken.VALUE_TRUE);
+          }
+          break;
+        case "@removed":
+          builder.setRemovedReason(readRemovedReason(parser, token));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (id == null) {
+      return null;
+    }
+    return builder.setId(id).build();
+  }
+
+  @Nullable
+  private static Group readGroup(JsonParser parser) throws IOException {
+    Group.Builder builder = new Group.Builder();
+    String id = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getText();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case "id":
+          id = readString(parser, token);
+          break;
+        case "@removed":
+          builder.setRemovedReason(readRemovedReason(parser, token));
+          break;
+        case "members@delta":
+          if (token == JsonToken.VALUE_NULL) {
+            break;
+          }
+          expect(parser, token, JsonToken.START_ARRAY);
+          List<Member> membersDelta = new ArrayList<>();
+          while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.VALUE_NULL) {
+              continue;
+            }
+            expect(parser, token, JsonToken.START_OBJECT);
+            Member member = readMember(parser);
+            if (member != null) {
+              membersDelta.add(member);
+            }
+          }
+          builder.setMembersDelta(membersDelta);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (id == null || id.isEmpty()) {
+      return null;
+    }
+    return builder.setId(id).build();
+  }
+
+  @Nullable
+  private static Member readMember(JsonParser parser) throws IOException {
+    Member.Builder builder = new Member.Builder();
+    String id = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getText();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case "id":
+          id = readString(parser, token);
+          break;
+        case "@odata.type":
+          builder.setMemberType(readString(parser, token));
+          break;
+        case "displayName":
+          builder.setDisplayName(readString(parser, token));
+          break;
+        case "mail":
+          builder.setMail(readString(parser, token));
+          break;
+        case "userPrincipalName":
+          builder.setUserPrincipalName(readString(parser, token));
+          break;
+        case "@removed":
+          builder.setRemovedReason(readRemovedReason(parser, token));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (id == null) {
+      return null;
+    }
+    return builder.setId(id).build();
+  }
+
+  /** Reads the {@code reason} of a {@code @removed} annotation, which must be present. */
+  private static String readRemovedReason(JsonParser parser, JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(parser, token, JsonToken.START_OBJECT);
+    // An annotation without a reason still marks the object as removed.
+    String reason = "";
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getText();
+      JsonToken value = parser.nextToken();
+      if ("reason".equals(field) && value != JsonToken.VALUE_NULL) {
+        reason = readString(parser, value);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return reason;
+  }
+
+  @Nullable
+  private static String readString(JsonParser parser, JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+      throw new IOException("Expected a string value at field " + parser.getCurrentName());
+    }
+    return parser.getText();
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected)
+      throws IOException {
+    if (actual != expected) {
+      throw new IOException(
+          String.format(
+              "Expected %s but found %s at field %s", expected, actual, parser.getCurrentName()));
+    }
+  }
+
+  /** The {@code @odata} links of a decoded page. */
+  public static final class PageLinks {
+    private final String odataContext;
+    private final String odataNextlink;
+    private final String odataDeltalink;
+
+    public PageLinks(
+        @Nullable String odataContext,
+        @Nullable String odataNextlink,
+        @Nullable String odataDeltalink) {
+      this.odataContext = odataContext;
+      this.odataNextlink = odataNextlink;
+      this.odataDeltalink = odataDeltalink;
+    }
+
+    /** Returns the links of an already decoded page. */
+    public static PageLinks of(DirectoryObjects page) {
+      checkNotNull(page, "page can not be null");
+      return new PageLinks(
+          page.getOdataContext(), page.getOdataNextlink(), page.getOdataDeltalink());
+    }
+
+    public String getOdataContext() {
+      return odataContext;
+    }
+
+    public String getOdataNextlink() {
+      return odataNextlink;
+    }
+
+    public String getOdataDeltalink() {
+      return odataDeltalink;
+    }
+  }
+
+  private interface ObjectReader<T> {
+    /** Reads the fields of an object whose START_OBJECT was just consumed. */
+    @Nullable
+    T read(JsonParser parser) throws IOException;
+  }
+
+  private interface PageDecoder<P extends DirectoryObjects> {
+    P decode(InputStream content) throws IOException;
+  }
+}
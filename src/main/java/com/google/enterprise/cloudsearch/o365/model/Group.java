@@ -18,29 +18,29 @@ package com.google.enterprise.cloudsearch.o365.model;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * This class represents Group Object get from Microsoft graph API
  */
 public class Group extends DirectoryObject {
 
-  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-
-  public Group() {
-    super();
-    setFactory(JSON_FACTORY);
-  }
+  private final ImmutableList<Member> membersDelta;
 
   Group(Builder builder) {
-    this();
-    super.setId(builder.id);
+    super(builder.id, builder.removedReason);
+    this.membersDelta =
+        builder.membersDelta == null
+            ? ImmutableList.of()
+            : ImmutableList.copyOf(builder.membersDelta);
   }
 
   public static Group parse(String group) throws IOException {
-    return JSON_FACTORY.fromString(group, Group.class);
+    return DirectoryObjectsDecoder.GROUPS.decodeObject(group);
   }
 
   @Override
@@ -48,14 +48,49 @@ public class Group extends DirectoryObject {
     return getId() != null && !getId().isEmpty();
   }
 
+  /**
+   * Returns the members added to or removed from this group, as reported by the {@code
+   * members@delta} annotation in a groups delta response.
+   */
+  public List<Member> getMembersDelta() {
+    return membersDelta;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return super.equals(obj) && membersDelta.equals(((Group) obj).membersDelta);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(super.hashCode(), membersDelta);
+  }
+
+  @Override
+  MoreObjects.ToStringHelper toStringHelper() {
+    return super.toStringHelper().add("membersDelta", membersDelta);
+  }
+
   public static class Builder {
     private String id;
+    private String removedReason;
+    private List<Member> membersDelta;
 
     public Builder setId(String id) {
       this.id = id;
       return this;
     }
 
+    public Builder setRemovedReason(String removedReason) {
+      this.removedReason = removedReason;
+      return this;
+    }
+
+    public Builder setMembersDelta(List<Member> membersDelta) {
+      this.membersDelta = membersDelta;
+      return this;
+    }
+
     public Group build() {
       checkNotNull(id, "id can not be null");
       checkArgument(!id.isEmpty(), "id can not be empty");
@@ -15,9 +15,12 @@
  */
 package com.google.enterprise.cloudsearch.o365.model;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -45,7 +48,8 @@ public class Groups extends DirectoryObjects {
   @Key("@odata.deltaLink")
   private String odataDeltalink;
 
-  @Key private List<Group> value;
+  // Decoded by DirectoryObjectsDecoder rather than reflection.
+  private List<Group> value;
 
   public Groups() {
     super();
@@ -53,7 +57,7 @@ public class Groups extends DirectoryObjects {
   }
 
   public Groups(Builder builder) {
-    new Groups();
+    this();
     this.value = builder.value;
     this.odataContext = builder.odataContext;
     this.odataNextlink = builder.odataNextlink;
@@ -66,7 +70,8 @@ public class Groups extends DirectoryObjects {
   }
 
   public static Groups parse(String response) throws IOException {
-    return JSON_FACTORY.fromString(response, Groups.class);
+    return DirectoryObjectsDecoder.decodePage(
+        new ByteArrayInputStream(response.getBytes(UTF_8)), Groups.class);
   }
 
   public static class Builder {
@@ -103,6 +108,7 @@ public class Groups extends DirectoryObjects {
       return new Groups(this);
     }
   }
+  @Override
   public String getOdataContext() {
     return odataContext;
   }
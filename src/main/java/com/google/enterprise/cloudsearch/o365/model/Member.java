@@ -17,11 +17,10 @@ package com.google.enterprise.cloudsearch.o365.model;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Key;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import java.io.IOException;
+import java.util.Objects;
 
 /**
  * This class represents an individual member under a group. Group membership can be fetched using
@@ -31,26 +30,33 @@ import java.io.IOException;
 public class Member extends DirectoryObject {
   public static final String MEMBER_TYPE_USER = "#microsoft.graph.user";
   public static final String MEMBER_TYPE_GROUP = "#microsoft.graph.group";
-  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
-  @Key("@odata.type")
-  private String memberType;
-  @Key private String displayName;
-  @Key private String mail;
-  @Key private String userPrincipalName;
-
-  public Member() {
-    super();
-    setFactory(JSON_FACTORY);
-  }
+  private final String memberType;
+  private final String displayName;
+  private final String mail;
+  private final String userPrincipalName;
 
   public Member(Builder builder) {
-    this();
+    super(builder.id, builder.removedReason);
     this.displayName = builder.displayName;
     this.mail = builder.mail;
     this.userPrincipalName = builder.userPrincipalName;
-    this.memberType = builder.memberType;
-    super.setId(builder.id);
+    this.memberType = internMemberType(builder.memberType);
+  }
+
+  /**
+   * Returns a canonical instance of an {@code @odata.type}, so members of the same type share a
+   * single string.
+   */
+  private static String internMemberType(String memberType) {
+    if (memberType == null) {
+      return null;
+    } else if (MEMBER_TYPE_USER.equals(memberType)) {
+      return MEMBER_TYPE_USER;
+    } else if (MEMBER_TYPE_GROUP.equals(memberType)) {
+      return MEMBER_TYPE_GROUP;
+    }
+    return memberType.intern();
   }
 
   @Override
@@ -59,7 +65,7 @@ public class Member extends DirectoryObject {
   }
 
   public static Member parse(String user) throws IOException {
-    return JSON_FACTORY.fromString(user, Member.class);
+    return DirectoryObjectsDecoder.MEMBERS.decodeObject(user);
   }
 
   public String getDisplayName() {
@@ -86,12 +92,39 @@ public class Member extends DirectoryObject {
     return MEMBER_TYPE_GROUP.equals(memberType);
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (!super.equals(obj)) {
+      return false;
+    }
+    Member other = (Member) obj;
+    return Objects.equals(memberType, other.memberType)
+        && Objects.equals(displayName, other.displayName)
+        && Objects.equals(mail, other.mail)
+        && Objects.equals(userPrincipalName, other.userPrincipalName);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(super.hashCode(), memberType, displayName, mail, userPrincipalName);
+  }
+
+  @Override
+  MoreObjects.ToStringHelper toStringHelper() {
+    return super.toStringHelper()
+        .add("memberType", memberType)
+        .add("displayName", displayName)
+        .add("mail", mail)
+        .add("userPrincipalName", userPrincipalName);
+  }
+
   public static class Builder {
     private String memberType;
     private String displayName;
     private String mail;
     private String userPrincipalName;
     private String id;
+    private String removedReason;
 
     public Builder setDisplayName(String displayName) {
       this.displayName = displayName;
@@ -118,6 +151,11 @@ public class Member extends DirectoryObject {
       return this;
     }
 
+    public Builder setRemovedReason(String removedReason) {
+      this.removedReason = removedReason;
+      return this;
+    }
+
     public Member build() {
       checkNotNull(id, "member id can not be null");
       return new Member(this);
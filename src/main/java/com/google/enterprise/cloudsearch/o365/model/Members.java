@@ -15,9 +15,12 @@
  */
 package com.google.enterprise.cloudsearch.o365.model;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -49,7 +52,8 @@ public class Members extends DirectoryObjects {
   @Key("@odata.deltaLink")
   private String odataDeltalink;
 
-  @Key private List<Member> value;
+  // Decoded by DirectoryObjectsDecoder rather than reflection.
+  private List<Member> value;
 
   public Members() {
     super();
@@ -57,7 +61,7 @@ public class Members extends DirectoryObjects {
   }
 
   public Members(Builder builder) {
-    new Members();
+    this();
     this.value = builder.value;
     this.odataContext = builder.odataContext;
     this.odataNextlink = builder.odataNextlink;
@@ -70,9 +74,11 @@ public class Members extends DirectoryObjects {
   }
 
   public static Members parse(String response) throws IOException {
-    return JSON_FACTORY.fromString(response, Members.class);
+    return DirectoryObjectsDecoder.decodePage(
+        new ByteArrayInputStream(response.getBytes(UTF_8)), Members.class);
   }
 
+  @Override
   public String getOdataContext() {
     return odataContext;
   }
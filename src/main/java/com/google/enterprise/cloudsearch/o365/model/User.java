@@ -17,30 +17,23 @@ package com.google.enterprise.cloudsearch.o365.model;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Key;
+import com.google.common.base.MoreObjects;
 import java.io.IOException;
+import java.util.Objects;
 
 /** This class represents User object get from Microsoft graph API */
 public class User extends DirectoryObject {
-  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-
-  @Key private String mail;
-  @Key private String userPrincipalName;
-  @Key private boolean accountEnabled;
-
-  public User() {
-    super();
-    setFactory(JSON_FACTORY);
-  }
+  private final String mail;
+  private final String userPrincipalName;
+  private final boolean accountEnabled;
+  private final boolean hasAccountEnabled;
 
   public User(Builder builder) {
-    this();
+    super(builder.id, builder.removedReason);
     this.mail = builder.mail;
     this.userPrincipalName = builder.userPrincipalName;
     this.accountEnabled = builder.accountEnabled;
-    super.setId(builder.id);
+    this.hasAccountEnabled = builder.hasAccountEnabled;
   }
 
   @Override
@@ -49,7 +42,7 @@ public class User extends DirectoryObject {
   }
 
   public static User parse(String user) throws IOException {
-    return JSON_FACTORY.fromString(user, User.class);
+    return DirectoryObjectsDecoder.USERS.decodeObject(user);
   }
 
   public static class Builder {
@@ -57,7 +50,9 @@ public class User extends DirectoryObject {
     private String mail;
     private String userPrincipalName;
     private boolean accountEnabled;
+    private boolean hasAccountEnabled;
     private String id;
+    private String removedReason;
 
     public Builder setMail(String mail) {
       this.mail = mail;
@@ -71,6 +66,7 @@ public class User extends DirectoryObject {
 
     public Builder setAccountEnabled(boolean accountEnabled) {
       this.accountEnabled = accountEnabled;
+      this.hasAccountEnabled = true;
       return this;
     }
 
@@ -79,6 +75,11 @@ public class User extends DirectoryObject {
       return this;
     }
 
+    public Builder setRemovedReason(String removedReason) {
+      this.removedReason = removedReason;
+      return this;
+    }
+
     public User build() {
       checkNotNull(id, "user id can not be null");
       return new User(this);
@@ -96,4 +97,36 @@ public class User extends DirectoryObject {
   public boolean isAccountEnabled() {
     return accountEnabled;
   }
+
+  /**
+   * Returns whether {@code accountEnabled} was set, as an updated user on a delta page may omit
+   * it. Not part of {@link #equals}.
+   */
+  public boolean hasAccountEnabled() {
+    return hasAccountEnabled;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!super.equals(obj)) {
+      return false;
+    }
+    User other = (User) obj;
+    return Objects.equals(mail, other.mail)
+        && Objects.equals(userPrincipalName, other.userPrincipalName)
+        && accountEnabled == other.accountEnabled;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(super.hashCode(), mail, userPrincipalName, accountEnabled);
+  }
+
+  @Override
+  MoreObjects.ToStringHelper toStringHelper() {
+    return super.toStringHelper()
+        .add("mail", mail)
+        .add("userPrincipalName", userPrincipalName)
+        .add("accountEnabled", accountEnabled);
+  }
 }
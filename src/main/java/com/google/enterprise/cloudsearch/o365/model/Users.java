@@ -15,9 +15,12 @@
  */
 package com.google.enterprise.cloudsearch.o365.model;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Key;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -46,7 +49,8 @@ public class Users extends DirectoryObjects {
   @Key("@odata.deltaLink")
   private String odataDeltalink;
 
-  @Key private List<User> value;
+  // Decoded by DirectoryObjectsDecoder rather than reflection.
+  private List<User> value;
 
   public Users() {
     super();
@@ -54,7 +58,7 @@ public class Users extends DirectoryObjects {
   }
 
   public Users(Builder builder) {
-    new Users();
+    this();
     this.value = builder.value;
     this.odataContext = builder.odataContext;
     this.odataNextlink = builder.odataNextlink;
@@ -67,7 +71,8 @@ public class Users extends DirectoryObjects {
   }
 
   public static Users parse(String response) throws IOException {
-    return JSON_FACTORY.fromString(response, Users.class);
+    return DirectoryObjectsDecoder.decodePage(
+        new ByteArrayInputStream(response.getBytes(UTF_8)), Users.class);
   }
 
   public static class Builder {
@@ -105,6 +110,7 @@ public class Users extends DirectoryObjects {
     }
   }
 
+  @Override
   public String getOdataContext() {
     return odataContext;
   }
@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.StoredToken;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.TokenSource;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.TokenStore;
+import com.google.enterprise.cloudsearch.o365.ApiConnection.AccessToken;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link AccessTokenCache}. */
+public class AccessTokenCacheTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+  private final Deque<Runnable> scheduled = new ArrayDeque<>();
+  private final List<Long> delays = new ArrayList<>();
+  private final AtomicInteger acquired = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    when(executor.schedule(any(Runnable.class), anyLong(), any()))
+        .thenAnswer(
+            invocation -> {
+              scheduled.add(invocation.getArgument(0));
+              TimeUnit unit = invocation.getArgument(2);
+              delays.add(unit.toSeconds(invocation.getArgument(1)));
+              return mock(ScheduledFuture.class);
+            });
+  }
+
+  @Test
+  public void get_tokenAcquiredOnceAndRefreshScheduled() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(3600), 75);
+    assertEquals("token1", cache.get());
+    assertEquals("token1", cache.get());
+    assertEquals(1, acquired.get());
+    assertEquals(1, scheduled.size());
+    assertEquals(2700L, (long) delays.get(0));
+  }
+
+  @Test
+  public void refresh_replacesToken() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(1000), 50);
+    assertEquals("token1", cache.get());
+    ticker.advanceSeconds(500);
+    scheduled.remove().run();
+    assertEquals("token2", cache.get());
+    assertEquals(2, acquired.get());
+    assertEquals(500L, (long) delays.get(1));
+  }
+
+  @Test
+  public void refresh_inFlight_currentTokenServed() throws Exception {
+    CountDownLatch refreshStarted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AccessTokenCache cache =
+        newCache(
+            () -> {
+              if (acquired.get() == 1) {
+                refreshStarted.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+              }
+              return token(3600);
+            },
+            75);
+    assertEquals("token1", cache.get());
+    Thread refresher = new Thread(scheduled.remove());
+    refresher.start();
+    try {
+      assertTrue(refreshStarted.await(10, TimeUnit.SECONDS));
+      assertEquals("token1", cache.get());
+    } finally {
+      release.countDown();
+      refresher.join();
+    }
+    assertEquals("token2", cache.get());
+  }
+
+  @Test
+  public void refresh_failed_retriedWhileTokenValid() throws Exception {
+    AccessTokenCache cache =
+        newCache(
+            () -> {
+              if (acquired.get() == 1) {
+                acquired.incrementAndGet();
+                throw new IOException("token endpoint unavailable");
+              }
+              return token(3600);
+            },
+            75);
+    assertEquals("token1", cache.get());
+    ticker.advanceSeconds(2700);
+    scheduled.remove().run();
+    assertEquals("token1", cache.get());
+    assertEquals(30L, (long) delays.get(1));
+    scheduled.remove().run();
+    assertEquals("token3", cache.get());
+  }
+
+  @Test
+  public void get_tokenExpired_newTokenAcquired() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(3600), 75);
+    assertEquals("token1", cache.get());
+    ticker.advanceSeconds(3600);
+    assertEquals("token2", cache.get());
+  }
+
+  @Test
+  public void get_noExpiresIn_defaultLifetime() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(null), 50);
+    cache.get();
+    assertEquals(AccessTokenCache.DEFAULT_EXPIRES_IN_SECONDS / 2, (long) delays.get(0));
+  }
+
+  @Test
+  public void get_noAccessToken_throwsException() throws Exception {
+    AccessTokenCache cache = newCache(AccessToken::new, 75);
+    thrown.expect(IOException.class);
+    cache.get();
+  }
+
+  @Test
+  public void renew_rejectedToken_replaced() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(3600), 75);
+    assertEquals("token1", cache.get());
+    assertEquals("token2", cache.renew("token1"));
+    assertEquals("token2", cache.get());
+    assertEquals(1, cache.getRenewalCount());
+  }
+
+  @Test
+  public void renew_alreadyReplaced_noNewRequest() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(3600), 75);
+    cache.get();
+    cache.renew("token1");
+    assertEquals("token2", cache.renew("token1"));
+    assertEquals(2, acquired.get());
+    assertEquals(1, cache.getRenewalCount());
+  }
+
+  @Test
+  public void close_executorShutDown() throws Exception {
+    AccessTokenCache cache = newCache(() -> token(3600), 75);
+    cache.close();
+    verify(executor).shutdownNow();
+  }
+
+  @Test
+  public void storedToken_usedUntilRefresh() throws Exception {
+    Clock clock = Clock.fixed(Instant.ofEpochSecond(10000), ZoneOffset.UTC);
+    InMemoryTokenStore store = new InMemoryTokenStore();
+    // Issued 1000 seconds ago and valid for 3600 seconds.
+    store.token =
+        new StoredToken(
+            "saved", TimeUnit.SECONDS.toMillis(9000), TimeUnit.SECONDS.toMillis(12600));
+    AccessTokenCache cache =
+        new AccessTokenCache(() -> token(3600), 75, store, executor, ticker, clock);
+    assertEquals("saved", cache.get());
+    assertEquals(0, acquired.get());
+    assertEquals(2700L - 1000L, (long) delays.get(0));
+    ticker.advanceSeconds(2600);
+    assertEquals("token1", cache.get());
+  }
+
+  @Test
+  public void storedToken_expiring_notUsed() throws Exception {
+    Clock clock = Clock.fixed(Instant.ofEpochSecond(10000), ZoneOffset.UTC);
+    InMemoryTokenStore store = new InMemoryTokenStore();
+    store.token =
+        new StoredToken(
+            "saved", TimeUnit.SECONDS.toMillis(6430), TimeUnit.SECONDS.toMillis(10030));
+    AccessTokenCache cache =
+        new AccessTokenCache(() -> token(3600), 75, store, executor, ticker, clock);
+    assertEquals("token1", cache.get());
+  }
+
+  @Test
+  public void acquiredToken_saved() throws Exception {
+    Clock clock = Clock.fixed(Instant.ofEpochSecond(10000), ZoneOffset.UTC);
+    InMemoryTokenStore store = new InMemoryTokenStore();
+    AccessTokenCache cache =
+        new AccessTokenCache(() -> token(3600), 75, store, executor, ticker, clock);
+    assertEquals("token1", cache.get());
+    assertEquals("token1", store.token.value);
+    assertEquals(TimeUnit.SECONDS.toMillis(10000), store.token.issuedAtMillis);
+    assertEquals(TimeUnit.SECONDS.toMillis(13600), store.token.expiresAtMillis);
+  }
+
+  private AccessTokenCache newCache(TokenSource source, int refreshPercent) {
+    return new AccessTokenCache(source, refreshPercent, executor, ticker);
+  }
+
+  private AccessToken token(Integer expiresIn) {
+    AccessToken token = new AccessToken();
+    token.access_token = "token" + acquired.incrementAndGet();
+    token.expires_in = expiresIn;
+    return token;
+  }
+
+  private static class InMemoryTokenStore implements TokenStore {
+    private StoredToken token;
+
+    @Override
+    public StoredToken load() {
+      return token;
+    }
+
+    @Override
+    public void save(StoredToken token) {
+      this.token = token;
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private volatile long nanos;
+
+    void advanceSeconds(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
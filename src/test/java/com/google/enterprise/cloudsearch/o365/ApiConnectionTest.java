@@ -15,14 +15,25 @@
  */
 package com.google.enterprise.cloudsearch.o365;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.StoredToken;
 import com.google.enterprise.cloudsearch.o365.ApiConnection.AccessToken;
 import com.google.enterprise.cloudsearch.o365.ApiConnection.Builder;
 import com.google.enterprise.cloudsearch.o365.ApiConnection.JWTHelper;
@@ -36,9 +47,24 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -101,6 +127,28 @@ public class ApiConnectionTest {
     ApiConnection.fromConfiguration(HttpClient.newBuilder().build());
   }
 
+  @Test
+  public void testFromConfigurationTenant() throws Exception {
+    Properties config = new Properties();
+    config.put(TenantConfiguration.TENANTS_CONFIG, "contoso");
+    config.put("o365.tenants.contoso.clientId", "client id");
+    config.put("o365.tenants.contoso.clientSecret", "secret");
+    config.put("o365.tenants.contoso.tenant", "tenant");
+    setupConfig.initConfig(config);
+    ApiConnection.fromConfiguration(HttpClient.newBuilder().build(), "contoso");
+  }
+
+  @Test
+  public void testFromConfigurationTenantMissingClientId() throws Exception {
+    Properties config = new Properties();
+    config.put(ApiConnection.CLIENT_ID, "single tenant client id");
+    config.put("o365.tenants.contoso.clientSecret", "secret");
+    config.put("o365.tenants.contoso.tenant", "tenant");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    ApiConnection.fromConfiguration(HttpClient.newBuilder().build(), "contoso");
+  }
+
   @Test
   public void testGetAccessToken() throws Exception {
     HttpClient httpClient = HttpClient.newBuilder().build();
@@ -142,6 +190,57 @@ public class ApiConnectionTest {
     ApiConnection.fromConfiguration(HttpClient.newBuilder().build(), jwtHelperBuilder);
   }
 
+  @Test
+  public void testFromConfigurationJwtSavedToken_keyStoreNotLoaded() throws Exception {
+    File keyStore = temporaryFolder.newFile("keystore.pfx");
+    createFile(keyStore, "key store");
+    File tokenCache = new File(temporaryFolder.getRoot(), "token");
+    Properties config = new Properties();
+    config.put(ApiConnection.CLIENT_ID, "client id");
+    config.put(ApiConnection.TENANT, "tenant");
+    config.put(ApiConnection.KEYSTORE_FILE, keyStore.getAbsolutePath());
+    config.put(ApiConnection.KEYSTORE_PASSWORD, "password");
+    config.put(ApiConnection.KEYSTORE_ALIAS, "alias");
+    config.put(ApiConnection.TOKEN_CACHE_FILE, tokenCache.getAbsolutePath());
+    setupConfig.initConfig(config);
+    JwtHelperBuilder jwtHelperBuilder = mock(JwtHelperBuilder.class);
+    when(jwtHelperBuilder.build(keyStore.getAbsolutePath(), "password", "alias"))
+        .thenReturn(mock(JWTHelper.class));
+
+    // Without a saved token, the key store is loaded right away.
+    ApiConnection.fromConfiguration(HttpClient.newBuilder().build(), jwtHelperBuilder).close();
+    verify(jwtHelperBuilder).build(keyStore.getAbsolutePath(), "password", "alias");
+
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update("password".getBytes(UTF_8));
+    digest.update(Files.readAllBytes(keyStore.toPath()));
+    long now = System.currentTimeMillis();
+    new EncryptedTokenFile(
+            tokenCache.toPath(),
+            digest.digest(),
+            "https://login.microsoftonline.com/tenant/oauth2/v2.0/token client id")
+        .save(new StoredToken("saved token", now, now + TimeUnit.HOURS.toMillis(1)));
+    ApiConnection connection =
+        ApiConnection.fromConfiguration(HttpClient.newBuilder().build(), jwtHelperBuilder);
+    try {
+      assertEquals("saved token", connection.getAccessToken());
+    } finally {
+      connection.close();
+    }
+    verify(jwtHelperBuilder, times(1)).build(any(), any(), any());
+  }
+
+  @Test
+  public void testGetKeyStoreCredential_nullPassword_hashedAsEmpty() throws Exception {
+    File keyStore = temporaryFolder.newFile("keystore.pfx");
+    createFile(keyStore, "key store");
+    byte[] credential = ApiConnection.getKeyStoreCredential(null, keyStore.toPath());
+    assertArrayEquals(ApiConnection.getKeyStoreCredential("", keyStore.toPath()), credential);
+    assertFalse(
+        Arrays.equals(
+            ApiConnection.getKeyStoreCredential("password", keyStore.toPath()), credential));
+  }
+
   @Test
   public void testJWTHelperBuilderInvalidFilePath() throws Exception {
     String testName = Paths.get("test/test.pfx").toString();
@@ -191,4 +290,101 @@ public class ApiConnectionTest {
     thrown.expectMessage("Required Config Key o365.keyStore.file not initialized");
     ApiConnection.fromConfiguration(HttpClient.newBuilder().build());
   }
+
+  @Test
+  public void testFromConfigurationInvalidTokenRefreshPercent() throws Exception {
+    Properties config = new Properties();
+    config.put(ApiConnection.CLIENT_ID, "client id");
+    config.put(ApiConnection.CLIENT_SECRET, "secret");
+    config.put(ApiConnection.TENANT, "tenant");
+    config.put(ApiConnection.TOKEN_REFRESH_PERCENT, "100");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    ApiConnection.fromConfiguration(HttpClient.newBuilder().build());
+  }
+
+  @Test
+  public void testJWTHelperReusesAssertion() throws Exception {
+    MutableClock clock = new MutableClock();
+    JWTHelper jwtHelper = new JWTHelper(newPrivateKey(), "thumbprint", clock, Runnable::run);
+    String first = jwtHelper.getJWT("client", "audience");
+    clock.advanceSeconds(60);
+    assertEquals(first, jwtHelper.getJWT("client", "audience"));
+    assertNotEquals(first, jwtHelper.getJWT("client", "other audience"));
+  }
+
+  @Test
+  public void testJWTHelperPresignsNextAssertion() throws Exception {
+    MutableClock clock = new MutableClock();
+    List<Runnable> presigned = new ArrayList<>();
+    JWTHelper jwtHelper = new JWTHelper(newPrivateKey(), "thumbprint", clock, presigned::add);
+    String first = jwtHelper.getJWT("client", "audience");
+    assertTrue(presigned.isEmpty());
+    clock.advanceSeconds(150);
+    assertEquals(first, jwtHelper.getJWT("client", "audience"));
+    assertEquals(1, presigned.size());
+    presigned.get(0).run();
+    // Only one assertion is signed ahead at a time.
+    jwtHelper.getJWT("client", "audience");
+    assertEquals(1, presigned.size());
+
+    clock.advanceSeconds(300 - 150 - JWTHelper.MIN_REMAINING_SECONDS);
+    String second = jwtHelper.getJWT("client", "audience");
+    assertNotEquals(first, second);
+    JsonWebSignature jws = JsonWebSignature.parse(JacksonFactory.getDefaultInstance(), second);
+    assertEquals(1000 + 150, (long) jws.getPayload().getIssuedAtTimeSeconds());
+    assertEquals(1000 + 150 + 300, (long) jws.getPayload().getExpirationTimeSeconds());
+    assertEquals("client", jws.getPayload().getIssuer());
+    assertEquals("audience", jws.getPayload().getAudience());
+    assertNull(jws.getPayload().getJwtId());
+  }
+
+  @Test
+  public void testJWTHelperConcurrentCallers() throws Exception {
+    JWTHelper jwtHelper =
+        new JWTHelper(newPrivateKey(), "thumbprint", Clock.systemUTC(), Runnable::run);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> assertions = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        assertions.add(executor.submit(() -> jwtHelper.getJWT("client", "audience")));
+      }
+      for (Future<String> assertion : assertions) {
+        JsonWebSignature jws =
+            JsonWebSignature.parse(JacksonFactory.getDefaultInstance(), assertion.get());
+        assertEquals("client", jws.getPayload().getSubject());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static PrivateKey newPrivateKey() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair().getPrivate();
+  }
+
+  private static class MutableClock extends Clock {
+    private volatile Instant now = Instant.ofEpochSecond(1000);
+
+    void advanceSeconds(long seconds) {
+      now = now.plusSeconds(seconds);
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
+import com.google.enterprise.cloudsearch.o365.model.Members;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link BatchRequestHelper}. */
+public class BatchRequestHelperTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final Deque<String> batchResponses = new ArrayDeque<>();
+  private final List<String> batchRequests = new ArrayList<>();
+  private final List<Long> sleeps = new ArrayList<>();
+
+  private final MockHttpTransport transport =
+      new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+          assertEquals("POST", method);
+          assertEquals(Endpoints.DEFAULT_GRAPH_BASE_URL + "/$batch", url);
+          return new MockLowLevelHttpRequest() {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+              batchRequests.add(getContentAsString());
+              return new MockLowLevelHttpResponse()
+                  .setContentType(Json.MEDIA_TYPE)
+                  .setContent(batchResponses.removeFirst());
+            }
+          };
+        }
+      };
+
+  @Test
+  public void executeBatch_succeeds() throws Exception {
+    Request<Members> request1 = membersRequest("group1");
+    Request<Members> request2 = membersRequest("group2");
+    batchResponses.add(
+        "{\"responses\": ["
+            + "{\"id\": \"2\", \"status\": 200, \"body\": {\"value\": [{\"id\": \"m2\"}]}},"
+            + "{\"id\": \"1\", \"status\": 200, \"body\": {\"value\": [{\"id\": \"m1\"}],"
+            + " \"@odata.nextLink\": \"next1\"}}]}");
+
+    Map<Request<Members>, Members> results =
+        newBatchRequestHelper()
+            .executeBatch(ImmutableList.of(request1, request2), newHttpClient());
+
+    assertEquals(2, results.size());
+    assertEquals("m1", results.get(request1).getValue().get(0).getId());
+    assertEquals("next1", results.get(request1).getOdataNextlink());
+    assertEquals("m2", results.get(request2).getValue().get(0).getId());
+    assertEquals(1, batchRequests.size());
+    assertTrue(
+        batchRequests.get(0),
+        batchRequests.get(0).contains("\"url\":\"/groups/group1/members?$top=50\""));
+    assertEquals(Collections.emptyList(), sleeps);
+  }
+
+  @Test
+  public void executeBatch_throttledRequestRetried() throws Exception {
+    Request<Members> request1 = membersRequest("group1");
+    Request<Members> request2 = membersRequest("group2");
+    batchResponses.add(
+        "{\"responses\": ["
+            + "{\"id\": \"1\", \"status\": 200, \"body\": {\"value\": [{\"id\": \"m1\"}]}},"
+            + "{\"id\": \"2\", \"status\": 429, \"headers\": {\"Retry-After\": \"3\"}}]}");
+    batchResponses.add(
+        "{\"responses\": ["
+            + "{\"id\": \"1\", \"status\": 200, \"body\": {\"value\": [{\"id\": \"m2\"}]}}]}");
+
+    Map<Request<Members>, Members> results =
+        newBatchRequestHelper()
+            .executeBatch(ImmutableList.of(request1, request2), newHttpClient());
+
+    assertEquals(2, results.size());
+    assertEquals("m1", results.get(request1).getValue().get(0).getId());
+    assertEquals("m2", results.get(request2).getValue().get(0).getId());
+    assertEquals(2, batchRequests.size());
+    assertTrue(batchRequests.get(1), batchRequests.get(1).contains("group2"));
+    assertEquals(ImmutableList.of(3000L), sleeps);
+  }
+
+  @Test
+  public void executeBatch_failedRequestOmitted() throws Exception {
+    Request<Members> request1 = membersRequest("group1");
+    batchResponses.add("{\"responses\": [{\"id\": \"1\", \"status\": 404}]}");
+
+    Map<Request<Members>, Members> results =
+        newBatchRequestHelper().executeBatch(ImmutableList.of(request1), newHttpClient());
+
+    assertEquals(Collections.emptyMap(), results);
+    assertEquals(Collections.emptyList(), sleeps);
+  }
+
+  @Test
+  public void executeBatch_tooManyRequests() throws Exception {
+    List<Request<Members>> requests = new ArrayList<>();
+    for (int i = 0; i <= BatchRequestHelper.MAX_BATCH_SIZE; i++) {
+      requests.add(membersRequest("group" + i));
+    }
+    thrown.expect(IllegalArgumentException.class);
+    newBatchRequestHelper().executeBatch(requests, newHttpClient());
+  }
+
+  private BatchRequestHelper newBatchRequestHelper() throws IOException {
+    return new BatchRequestHelper(
+        new RequestHelper<>(), Endpoints.DEFAULT_GRAPH_BASE_URL, sleeps::add);
+  }
+
+  private HttpClient newHttpClient() throws Exception {
+    return HttpClient.newBuilder().setTransport(transport).build();
+  }
+
+  private static Request<Members> membersRequest(String groupId) throws Exception {
+    return new GetRequest.Builder<Members>()
+        .setRequestURL(
+            new URL(Endpoints.DEFAULT_GRAPH_BASE_URL + "/groups/" + groupId + "/members?$top=50"))
+        .setResponseClass(Members.class)
+        .build();
+  }
+}
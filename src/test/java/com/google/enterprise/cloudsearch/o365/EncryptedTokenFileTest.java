@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.cloudsearch.o365.AccessTokenCache.StoredToken;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link EncryptedTokenFile}. */
+public class EncryptedTokenFileTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final byte[] SECRET = "secret".getBytes(UTF_8);
+
+  @Test
+  public void load_noFile_null() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    assertNull(new EncryptedTokenFile(file, SECRET, "tenant client").load());
+  }
+
+  @Test
+  public void save_load_roundTrip() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    new EncryptedTokenFile(file, SECRET, "tenant client")
+        .save(new StoredToken("access token", 1000, 4600));
+    StoredToken loaded = new EncryptedTokenFile(file, SECRET, "tenant client").load();
+    assertEquals("access token", loaded.value);
+    assertEquals(1000, loaded.issuedAtMillis);
+    assertEquals(4600, loaded.expiresAtMillis);
+    assertFalse(new String(Files.readAllBytes(file), UTF_8).contains("access token"));
+  }
+
+  @Test
+  public void load_otherCredential_null() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    new EncryptedTokenFile(file, SECRET, "tenant client")
+        .save(new StoredToken("access token", 1000, 4600));
+    assertNull(new EncryptedTokenFile(file, "other".getBytes(UTF_8), "tenant client").load());
+  }
+
+  @Test
+  public void load_otherClient_null() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    new EncryptedTokenFile(file, SECRET, "tenant client")
+        .save(new StoredToken("access token", 1000, 4600));
+    assertNull(new EncryptedTokenFile(file, SECRET, "tenant other client").load());
+  }
+
+  @Test
+  public void load_corrupted_null() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    Files.write(file, "not a token".getBytes(UTF_8));
+    assertNull(new EncryptedTokenFile(file, SECRET, "tenant client").load());
+  }
+
+  @Test
+  public void load_corruptedLength_null() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("token");
+    new EncryptedTokenFile(file, SECRET, "tenant client")
+        .save(new StoredToken("access token", 1000, 4600));
+    byte[] bytes = Files.readAllBytes(file);
+    // The ciphertext length follows the version, salt and IV.
+    ByteBuffer.wrap(bytes).putInt(4 + 16 + 12, Integer.MAX_VALUE - 8);
+    Files.write(file, bytes);
+    assertNull(new EncryptedTokenFile(file, SECRET, "tenant client").load());
+  }
+}
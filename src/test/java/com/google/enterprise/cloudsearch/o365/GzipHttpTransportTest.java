@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.base.Strings;
+import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/** Unit tests for {@link GzipHttpTransport}. */
+public class GzipHttpTransportTest {
+  private static final String USER_JSON =
+      "{\"id\": \"user1\", \"displayName\": \"" + Strings.repeat("a", 1000) + "\"}";
+
+  private final TransferStats stats = new TransferStats();
+
+  @Test
+  public void gzipResponse_decodedAndCounted() throws Exception {
+    byte[] compressed = gzip(USER_JSON);
+    MockLowLevelHttpRequest lowLevelRequest =
+        new MockLowLevelHttpRequest()
+            .setResponse(
+                new MockLowLevelHttpResponse()
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContentEncoding("gzip")
+                    .setContentLength(compressed.length)
+                    .addHeader("Content-Length", Integer.toString(compressed.length))
+                    .setContent(compressed));
+
+    GenericJson user =
+        new RequestHelper<GenericJson>().executeRequest(userRequest(), httpClient(lowLevelRequest));
+
+    assertEquals("user1", user.get("id"));
+    assertEquals(1, stats.getResponses());
+    assertEquals(1, stats.getCompressedResponses());
+    assertEquals(compressed.length, stats.getWireBytes());
+    assertEquals(USER_JSON.getBytes(UTF_8).length, stats.getDecodedBytes());
+    assertTrue(stats.getWireBytes() < stats.getDecodedBytes());
+  }
+
+  @Test
+  public void gzipResponse_encodingHeadersHidden() throws Exception {
+    byte[] compressed = gzip(USER_JSON);
+    MockLowLevelHttpRequest lowLevelRequest =
+        new MockLowLevelHttpRequest()
+            .setResponse(
+                new MockLowLevelHttpResponse()
+                    .setContentEncoding("gzip")
+                    .addHeader("Content-Encoding", "gzip")
+                    .addHeader("Content-Length", Integer.toString(compressed.length))
+                    .setContent(compressed));
+
+    HttpResponse response =
+        userRequest().createHttpRequest(httpClient(lowLevelRequest)).execute();
+
+    assertNull(response.getContentEncoding());
+    assertNull(response.getHeaders().getContentLength());
+    assertEquals(USER_JSON, response.parseAsString());
+  }
+
+  @Test
+  public void plainResponse_counted() throws Exception {
+    MockLowLevelHttpRequest lowLevelRequest =
+        new MockLowLevelHttpRequest()
+            .setResponse(
+                new MockLowLevelHttpResponse()
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContent(USER_JSON));
+
+    GenericJson user =
+        new RequestHelper<GenericJson>().executeRequest(userRequest(), httpClient(lowLevelRequest));
+
+    assertEquals("user1", user.get("id"));
+    assertEquals(1, stats.getResponses());
+    assertEquals(0, stats.getCompressedResponses());
+    assertEquals(USER_JSON.length(), stats.getWireBytes());
+    assertEquals(USER_JSON.length(), stats.getDecodedBytes());
+  }
+
+  @Test
+  public void requestHeaders_passedThrough() throws Exception {
+    MockLowLevelHttpRequest lowLevelRequest =
+        new MockLowLevelHttpRequest()
+            .setResponse(new MockLowLevelHttpResponse().setContent(USER_JSON));
+
+    userRequest().createHttpRequest(httpClient(lowLevelRequest)).execute();
+
+    assertEquals("gzip", lowLevelRequest.getFirstHeaderValue("Accept-Encoding"));
+  }
+
+  private HttpClient httpClient(MockLowLevelHttpRequest lowLevelRequest) throws Exception {
+    return HttpClient.newBuilder()
+        .setTransport(
+            new GzipHttpTransport(
+                new MockHttpTransport.Builder().setLowLevelHttpRequest(lowLevelRequest).build(),
+                stats))
+        .setHttpRequestInitializer(request -> request.getHeaders().setAcceptEncoding("gzip"))
+        .build();
+  }
+
+  private static Request<GenericJson> userRequest() throws Exception {
+    return new GetRequest.Builder<GenericJson>()
+        .setRequestURL(new URL("https://graph.microsoft.com/v1.0/users/user1"))
+        .setResponseClass(GenericJson.class)
+        .build();
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(content.getBytes(UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
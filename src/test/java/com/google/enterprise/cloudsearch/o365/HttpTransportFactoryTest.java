@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link HttpTransportFactory}. */
+public class HttpTransportFactoryTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  @Test
+  public void fromConfiguration_defaultsToNetHttp() throws Exception {
+    setupConfig.initConfig(new Properties());
+    assertTrue(HttpTransportFactory.fromConfiguration() instanceof NetHttpTransport);
+  }
+
+  @Test
+  public void fromConfiguration_apache() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportFactory.TRANSPORT_CONFIG, "apache");
+    config.put(HttpTransportFactory.MAX_CONNECTIONS_PER_ROUTE_CONFIG, "4");
+    config.put(HttpTransportFactory.POOL_STATS_INTERVAL_SECONDS_CONFIG, "30");
+    setupConfig.initConfig(config);
+    HttpTransport transport = HttpTransportFactory.fromConfiguration();
+    assertTrue(transport instanceof ApacheHttpTransport);
+    transport.shutdown();
+  }
+
+  @Test
+  public void fromConfiguration_http2() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportFactory.TRANSPORT_CONFIG, "http2");
+    setupConfig.initConfig(config);
+    HttpTransport transport = HttpTransportFactory.fromConfiguration();
+    assertTrue(transport instanceof OkHttpTransport);
+    transport.shutdown();
+  }
+
+  @Test
+  public void fromConfiguration_invalidTransport() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportFactory.TRANSPORT_CONFIG, "carrierPigeon");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    HttpTransportFactory.fromConfiguration();
+  }
+
+  @Test
+  public void fromConfiguration_invalidMaxConnections() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportFactory.TRANSPORT_CONFIG, "apache");
+    config.put(HttpTransportFactory.MAX_CONNECTIONS_CONFIG, "0");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    HttpTransportFactory.fromConfiguration();
+  }
+
+  @Test
+  public void fromConfiguration_recordAndReplay() throws Exception {
+    Properties config = new Properties();
+    config.put(HttpTransportFactory.RECORD_FILE_CONFIG, "record");
+    config.put(HttpTransportFactory.REPLAY_FILE_CONFIG, "replay");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    HttpTransportFactory.fromConfiguration();
+  }
+}
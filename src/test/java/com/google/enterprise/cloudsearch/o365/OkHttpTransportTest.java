@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link OkHttpTransport}, using HTTP/2 without TLS. */
+public class OkHttpTransportTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final MockWebServer server = new MockWebServer();
+  private OkHttpTransport transport;
+  private HttpClient httpClient;
+
+  @Before
+  public void setUp() throws Exception {
+    server.setProtocols(ImmutableList.of(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.start();
+    transport =
+        new OkHttpTransport(
+            new OkHttpClient.Builder()
+                .protocols(ImmutableList.of(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build());
+    httpClient =
+        HttpClient.newBuilder()
+            .setTransport(transport)
+            .setHttpRequestInitializer(
+                request -> request.getHeaders().setAccept("application/json"))
+            .build();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    transport.shutdown();
+    server.shutdown();
+  }
+
+  @Test
+  public void getRequest_succeeds() throws Exception {
+    server.enqueue(
+        new MockResponse()
+            .setHeader("Content-Type", Json.MEDIA_TYPE)
+            .setBody("{\"id\": \"user1\", \"mail\": \"user1@example.com\"}"));
+
+    GenericJson user =
+        new RequestHelper<GenericJson>()
+            .executeRequest(
+                new GetRequest.Builder<GenericJson>()
+                    .setRequestURL(server.url("/v1.0/users/user1").url())
+                    .setResponseClass(GenericJson.class)
+                    .build(),
+                httpClient);
+
+    assertEquals("user1", user.get("id"));
+    assertEquals("user1@example.com", user.get("mail"));
+    RecordedRequest recorded = server.takeRequest();
+    assertEquals("GET", recorded.getMethod());
+    assertEquals("/v1.0/users/user1", recorded.getPath());
+    assertEquals("application/json", recorded.getHeader("Accept"));
+  }
+
+  @Test
+  public void postRequest_sendsContent() throws Exception {
+    server.enqueue(
+        new MockResponse().setHeader("Content-Type", Json.MEDIA_TYPE).setBody("{\"id\": \"u\"}"));
+
+    new RequestHelper<GenericJson>()
+        .executeRequest(
+            new PostRequest.Builder<GenericJson>()
+                .setConetnt(ImmutableMap.of("grant_type", "client_credentials"))
+                .setRequestURL(server.url("/token").url())
+                .setResponseClass(GenericJson.class)
+                .build(),
+            httpClient);
+
+    RecordedRequest recorded = server.takeRequest();
+    assertEquals("POST", recorded.getMethod());
+    assertEquals("grant_type=client_credentials", recorded.getBody().readUtf8());
+  }
+
+  @Test
+  public void errorStatus_throws() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+    thrown.expect(HttpResponseException.class);
+    new RequestHelper<GenericJson>()
+        .executeRequest(
+            new GetRequest.Builder<GenericJson>()
+                .setRequestURL(server.url("/v1.0/users/missing").url())
+                .setResponseClass(GenericJson.class)
+                .build(),
+            httpClient);
+  }
+
+  @Test
+  public void getClient_derivedOnlyForDifferentTimeouts() {
+    int timeout = OkHttpTransport.DEFAULT_TIMEOUT_MILLIS;
+    OkHttpClient client =
+        new OkHttpClient.Builder()
+            .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+            .readTimeout(timeout, TimeUnit.MILLISECONDS)
+            .build();
+    OkHttpTransport defaultTimeoutTransport = new OkHttpTransport(client);
+    assertSame(client, defaultTimeoutTransport.getClient(timeout, timeout));
+    assertSame(client, defaultTimeoutTransport.getClient(-1, -1));
+
+    OkHttpClient derived = defaultTimeoutTransport.getClient(5000, -1);
+    assertNotSame(client, derived);
+    assertEquals(5000, derived.connectTimeoutMillis());
+    assertEquals(timeout, derived.readTimeoutMillis());
+    assertSame(derived, defaultTimeoutTransport.getClient(5000, timeout));
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link RecordingHttpTransport} and {@link ReplayHttpTransport}. */
+public class RecordReplayHttpTransportTest {
+  private static final String USERS_URL = "https://graph.microsoft.com/v1.0/users";
+  private static final String BATCH_URL = "https://graph.microsoft.com/v1.0/$batch";
+  private static final String TOKEN_URL =
+      "https://login.microsoftonline.com/tenant/oauth2/v2.0/token";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** Answers each request with its method, URL, body and a per-transport sequence number. */
+  private final MockHttpTransport network =
+      new MockHttpTransport() {
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+          return new MockLowLevelHttpRequest(url) {
+            @Override
+            public MockLowLevelHttpResponse execute() throws IOException {
+              ByteArrayOutputStream body = new ByteArrayOutputStream();
+              if (getStreamingContent() != null) {
+                getStreamingContent().writeTo(body);
+              }
+              String content =
+                  method + " " + url + " " + body.toString("UTF-8") + " " + sequence.get();
+              return new MockLowLevelHttpResponse()
+                  .setStatusCode(sequence.getAndIncrement() == 0 ? 200 : 201)
+                  .setContentType(Json.MEDIA_TYPE)
+                  .setContentEncoding("gzip")
+                  .addHeader("Content-Encoding", "gzip")
+                  .addHeader("request-id", Integer.toString(sequence.get()))
+                  .setContent(gzip(content));
+            }
+          };
+        }
+      };
+
+  @Test
+  public void replay_servesRecordedResponses() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    RecordingHttpTransport recorder = new RecordingHttpTransport(network, archive);
+    String recorded = get(recorder, USERS_URL);
+    recorder.shutdown();
+
+    ReplayHttpTransport replay = new ReplayHttpTransport(archive, 0);
+    HttpResponse response = factory(replay).buildGetRequest(new GenericUrl(USERS_URL)).execute();
+    assertEquals(200, response.getStatusCode());
+    assertEquals("1", response.getHeaders().getFirstHeaderStringValue("request-id"));
+    assertEquals(recorded, response.parseAsString());
+    assertEquals("GET " + USERS_URL + "  0", recorded);
+  }
+
+  @Test
+  public void replay_requestsWithBodyMatchedByBody() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    RecordingHttpTransport recorder = new RecordingHttpTransport(network, archive);
+    String first = post(recorder, BATCH_URL, "first");
+    String second = post(recorder, BATCH_URL, "second");
+    recorder.shutdown();
+
+    ReplayHttpTransport replay = new ReplayHttpTransport(archive, 0);
+    assertEquals(second, post(replay, BATCH_URL, "second"));
+    assertEquals(first, post(replay, BATCH_URL, "first"));
+  }
+
+  @Test
+  public void replay_repeatedRequestsServedInOrderThenCycled() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    RecordingHttpTransport recorder = new RecordingHttpTransport(network, archive);
+    List<String> recorded = new ArrayList<>();
+    recorded.add(get(recorder, USERS_URL));
+    recorded.add(get(recorder, USERS_URL));
+    recorder.shutdown();
+
+    ReplayHttpTransport replay = new ReplayHttpTransport(archive, 0);
+    assertEquals(recorded.get(0), get(replay, USERS_URL));
+    assertEquals(recorded.get(1), get(replay, USERS_URL));
+    assertEquals(recorded.get(0), get(replay, USERS_URL));
+  }
+
+  @Test
+  public void tokenRequests_notRecordedAndAnsweredOnReplay() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    RecordingHttpTransport recorder = new RecordingHttpTransport(network, archive);
+    post(recorder, TOKEN_URL, "client_secret=secret");
+    recorder.shutdown();
+    assertTrue(TrafficArchive.read(archive).isEmpty());
+
+    ReplayHttpTransport replay = new ReplayHttpTransport(archive, 0);
+    assertTrue(post(replay, TOKEN_URL, "client_secret=other").contains("\"access_token\""));
+  }
+
+  @Test
+  public void replay_unknownRequest_throwsException() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    new RecordingHttpTransport(network, archive).shutdown();
+
+    ReplayHttpTransport replay = new ReplayHttpTransport(archive, 0);
+    thrown.expect(IOException.class);
+    thrown.expectMessage("No recorded response for GET " + USERS_URL);
+    get(replay, USERS_URL);
+  }
+
+  @Test
+  public void replay_latencyScaled() throws Exception {
+    Path archive = temporaryFolder.getRoot().toPath().resolve("traffic");
+    TrafficArchive.Writer writer = new TrafficArchive.Writer(archive);
+    writer.write(
+        new TrafficArchive.Exchange(
+            TrafficArchive.requestKey("GET", USERS_URL, null),
+            2_000_000_000L,
+            200,
+            "OK",
+            new ArrayList<>(),
+            ByteBuffer.wrap("{}".getBytes(UTF_8))));
+    writer.close();
+    List<Long> sleeps = new ArrayList<>();
+
+    assertEquals("{}", get(new ReplayHttpTransport(archive, 50, sleeps::add), USERS_URL));
+    get(new ReplayHttpTransport(archive, 0, sleeps::add), USERS_URL);
+    assertEquals(1, sleeps.size());
+    assertEquals(1000L, (long) sleeps.get(0));
+  }
+
+  @Test
+  public void read_notAnArchive_throwsException() throws Exception {
+    Path file = temporaryFolder.newFile().toPath();
+    Files.write(file, "{\"value\": []}".getBytes(UTF_8));
+    thrown.expect(IOException.class);
+    TrafficArchive.read(file);
+  }
+
+  private static HttpRequestFactory factory(HttpTransport transport) {
+    return new GzipHttpTransport(transport, new TransferStats()).createRequestFactory();
+  }
+
+  private static String get(HttpTransport transport, String url) throws IOException {
+    return factory(transport).buildGetRequest(new GenericUrl(url)).execute().parseAsString();
+  }
+
+  private static String post(HttpTransport transport, String url, String body)
+      throws IOException {
+    return factory(transport)
+        .buildPostRequest(
+            new GenericUrl(url), ByteArrayContent.fromString(Json.MEDIA_TYPE, body))
+        .execute()
+        .parseAsString();
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(content.getBytes(UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
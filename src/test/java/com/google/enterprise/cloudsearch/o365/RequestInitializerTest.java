@@ -17,20 +17,36 @@ package com.google.enterprise.cloudsearch.o365;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
-import com.google.enterprise.cloudsearch.o365.model.User;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 
 public class RequestInitializerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private final List<String> authorizations = new ArrayList<>();
+
   @Test
   public void testInitializerSetsRequiredHeaders() throws Exception {
-    Request<User> request =
-        new GetRequest.Builder<User>()
+    Request<GenericJson> request =
+        new GetRequest.Builder<GenericJson>()
             .setRequestURL(new URL("http://tenant.o365.com"))
-            .setResponseClass(User.class)
+            .setResponseClass(GenericJson.class)
             .build();
     ApiConnection connection = mock(ApiConnection.class);
     when(connection.getAccessToken()).thenReturn("token1");
@@ -42,5 +58,69 @@ public class RequestInitializerTest {
 
     assertEquals("application/json", httpRequest.getHeaders().getAccept());
     assertEquals("Bearer token1", httpRequest.getHeaders().getAuthorization());
+    assertEquals("gzip", httpRequest.getHeaders().getAcceptEncoding());
+  }
+
+  @Test
+  public void unauthorized_retriedWithNewToken() throws Exception {
+    ApiConnection connection = mock(ApiConnection.class);
+    when(connection.getAccessToken()).thenReturn("token1");
+    when(connection.renewAccessToken("token1")).thenReturn("token2");
+    TransferStats stats = new TransferStats();
+    HttpClient httpClient = httpClient(new RequestInitalizer(connection, stats), 401, 200);
+
+    HttpResponse response =
+        httpClient.getRequestFactory().buildGetRequest(new GenericUrl("http://graph/")).execute();
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals("Bearer token1", authorizations.get(0));
+    assertEquals("Bearer token2", authorizations.get(1));
+    assertEquals(1, stats.getUnauthorizedRetries());
+  }
+
+  @Test
+  public void unauthorized_retriedOnlyOnce() throws Exception {
+    ApiConnection connection = mock(ApiConnection.class);
+    when(connection.getAccessToken()).thenReturn("token1");
+    when(connection.renewAccessToken("token1")).thenReturn("token2");
+    HttpClient httpClient = httpClient(new RequestInitalizer(connection), 401, 401, 200);
+
+    try {
+      thrown.expect(HttpResponseException.class);
+      httpClient.getRequestFactory().buildGetRequest(new GenericUrl("http://graph/")).execute();
+    } finally {
+      assertEquals(2, authorizations.size());
+      verify(connection).renewAccessToken("token1");
+    }
+  }
+
+  @Test
+  public void close_apiConnectionClosed() throws Exception {
+    ApiConnection connection = mock(ApiConnection.class);
+    new RequestInitalizer(connection).close();
+    verify(connection).close();
+  }
+
+  /** Returns a client whose requests get responses with {@code statusCodes} in turn. */
+  private HttpClient httpClient(RequestInitalizer initializer, int... statusCodes)
+      throws Exception {
+    MockHttpTransport transport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public MockLowLevelHttpResponse execute() {
+                authorizations.add(getFirstHeaderValue("Authorization"));
+                return new MockLowLevelHttpResponse()
+                    .setStatusCode(statusCodes[authorizations.size() - 1]);
+              }
+            };
+          }
+        };
+    return HttpClient.newBuilder()
+        .setTransport(transport)
+        .setHttpRequestInitializer(initializer)
+        .build();
   }
 }
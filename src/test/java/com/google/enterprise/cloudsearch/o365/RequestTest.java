@@ -17,12 +17,17 @@ package com.google.enterprise.cloudsearch.o365;
 
 import static junit.framework.TestCase.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.testing.http.HttpTesting;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
@@ -30,10 +35,15 @@ import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.common.base.Charsets;
 import com.google.common.io.CharStreams;
 import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
-import com.google.enterprise.cloudsearch.o365.model.User;
+import com.google.enterprise.cloudsearch.o365.model.Users;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import org.mockito.Mock;
 
@@ -85,16 +95,79 @@ public class RequestTest {
 
   @Test
   public void executeRequest_succeeds() throws Exception {
-    User user = new User();
-    user.setId("user1");
-    Request<User> getContentRequest =
-        new FakeRequest.Builder<User>()
+    GenericJson user = new GenericJson();
+    user.setFactory(JacksonFactory.getDefaultInstance());
+    user.set("id", "user1");
+    Request<GenericJson> getContentRequest =
+        new FakeRequest.Builder<GenericJson>()
             .setContent(user.toPrettyString())
-            .setResponseClass(User.class)
+            .setResponseClass(GenericJson.class)
             .setRequestURL(new URL("http://www.google.com"))
             .build();
 
-    assertEquals(user, new RequestHelper<User>().executeRequest(getContentRequest, mockHttpClient));
+    assertEquals(
+        user, new RequestHelper<GenericJson>().executeRequest(getContentRequest, mockHttpClient));
+  }
+
+  @Test
+  public void executeRequest_throttled_retries() throws Exception {
+    Deque<MockLowLevelHttpResponse> responses = new ArrayDeque<>();
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(429).addHeader("Retry-After", "2"));
+    responses.add(
+        new MockLowLevelHttpResponse()
+            .setContentType(Json.MEDIA_TYPE)
+            .setContent("{\"id\": \"user1\"}"));
+    List<Long> sleeps = new ArrayList<>();
+    RequestThrottler throttler =
+        new RequestThrottler(0, 4, 3, () -> 0L, sleeps::add, new Random(0));
+
+    GenericJson user =
+        new RequestHelper<GenericJson>(throttler)
+            .executeRequest(buildUserRequest(), buildHttpClient(responses));
+
+    assertEquals("user1", user.get("id"));
+    assertTrue(responses.isEmpty());
+    assertEquals(2, throttler.getConcurrencyLimit());
+    // backoff jitter, then the Retry-After pause enforced when acquiring the retry
+    assertEquals(2, sleeps.size());
+    assertTrue(sleeps.get(0) < 1000);
+    assertEquals(2000L, (long) sleeps.get(1));
+  }
+
+  @Test
+  public void executeRequest_throttledTooOften_throws() throws Exception {
+    Deque<MockLowLevelHttpResponse> responses = new ArrayDeque<>();
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(503));
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(503));
+    RequestThrottler throttler =
+        new RequestThrottler(0, 4, 1, () -> 0L, millis -> {}, new Random(0));
+
+    try {
+      new RequestHelper<GenericJson>(throttler)
+          .executeRequest(buildUserRequest(), buildHttpClient(responses));
+      fail("expected HttpResponseException");
+    } catch (HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+    assertTrue(responses.isEmpty());
+  }
+
+  @Test
+  public void executeRequest_notThrottledError_notRetried() throws Exception {
+    Deque<MockLowLevelHttpResponse> responses = new ArrayDeque<>();
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(404));
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(200));
+    RequestThrottler throttler =
+        new RequestThrottler(0, 4, 3, () -> 0L, millis -> {}, new Random(0));
+
+    try {
+      new RequestHelper<GenericJson>(throttler)
+          .executeRequest(buildUserRequest(), buildHttpClient(responses));
+      fail("expected HttpResponseException");
+    } catch (HttpResponseException e) {
+      assertEquals(404, e.getStatusCode());
+    }
+    assertEquals(1, responses.size());
   }
 
   @Test
@@ -115,11 +188,11 @@ public class RequestTest {
             .setRequestURL(new URL("http://www.google.com"))
             .build();
 
-    Request<User> getContentRequestAnother =
-        new FakeRequest.Builder<User>()
+    Request<Users> getContentRequestAnother =
+        new FakeRequest.Builder<Users>()
             .setContent(DATA)
             .setContentType(CONTENT_TYPE)
-            .setResponseClass(User.class)
+            .setResponseClass(Users.class)
             .setRequestURL(new URL("http://www.google.com"))
             .build();
     assertEquals(getContentRequest1, getContentRequest2);
@@ -129,6 +202,29 @@ public class RequestTest {
         getContentRequest1.equals(getContentRequestAnother));
   }
 
+  private static Request<GenericJson> buildUserRequest() throws Exception {
+    return new GetRequest.Builder<GenericJson>()
+        .setRequestURL(new URL("https://graph.microsoft.com/v1.0/users/user1"))
+        .setResponseClass(GenericJson.class)
+        .build();
+  }
+
+  private static HttpClient buildHttpClient(Deque<MockLowLevelHttpResponse> responses)
+      throws Exception {
+    return HttpClient.newBuilder()
+        .setTransport(
+            new MockHttpTransport.Builder()
+                .setLowLevelHttpRequest(
+                    new MockLowLevelHttpRequest() {
+                      @Override
+                      public LowLevelHttpResponse execute() throws IOException {
+                        return responses.removeFirst();
+                      }
+                    })
+                .build())
+        .build();
+  }
+
   private static class FakeRequest<T extends GenericJson> extends Request<T> {
 
     private String content;
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+/** Unit tests for {@link RequestThrottler}. */
+public class RequestThrottlerTest {
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final List<Long> sleeps = new ArrayList<>();
+
+  @Test
+  public void concurrencyLimit_halvedWhenThrottled() throws Exception {
+    RequestThrottler throttler = newThrottler(0, 16);
+    throttler.acquire();
+    throttler.onThrottled(0);
+    assertEquals(8, throttler.getConcurrencyLimit());
+    // a second throttled response right away belongs to the same burst
+    throttler.acquire();
+    throttler.onThrottled(0);
+    assertEquals(8, throttler.getConcurrencyLimit());
+    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    throttler.acquire();
+    throttler.onThrottled(0);
+    assertEquals(4, throttler.getConcurrencyLimit());
+  }
+
+  @Test
+  public void concurrencyLimit_growsByOnePerWindow() throws Exception {
+    RequestThrottler throttler = newThrottler(0, 16);
+    throttler.acquire();
+    throttler.onThrottled(0);
+    assertEquals(8, throttler.getConcurrencyLimit());
+    for (int i = 0; i <= 8; i++) {
+      throttler.acquire();
+      throttler.onSuccess();
+    }
+    assertEquals(9, throttler.getConcurrencyLimit());
+  }
+
+  @Test
+  public void concurrencyLimit_neverAboveMax() throws Exception {
+    RequestThrottler throttler = newThrottler(0, 2);
+    for (int i = 0; i < 10; i++) {
+      throttler.acquire();
+      throttler.onSuccess();
+    }
+    assertEquals(2, throttler.getConcurrencyLimit());
+  }
+
+  @Test
+  public void acquire_waitsForRetryAfter() throws Exception {
+    RequestThrottler throttler = newThrottler(0, 4);
+    throttler.acquire();
+    throttler.onThrottled(3000);
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+    throttler.acquire();
+    throttler.onSuccess();
+    assertEquals(ImmutableList.of(2000L), sleeps);
+  }
+
+  @Test
+  public void acquire_tokenBucketLimitsRate() throws Exception {
+    RequestThrottler throttler = newThrottler(2, 4);
+    // burst of two requests, then one every 500 ms
+    for (int i = 0; i < 4; i++) {
+      throttler.acquire();
+      throttler.onSuccess();
+    }
+    assertEquals(ImmutableList.of(500L, 1000L), sleeps);
+    sleeps.clear();
+    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    throttler.acquire();
+    throttler.onSuccess();
+    assertEquals(ImmutableList.of(), sleeps);
+  }
+
+  @Test
+  public void backOff_exponentialWithoutRetryAfter() throws Exception {
+    RequestThrottler throttler = newThrottler(0, 4);
+    for (int attempt = 0; attempt < 10; attempt++) {
+      long bound = Math.min(60_000L, 1000L << attempt);
+      long backOff = throttler.getBackOffMillis(attempt, 0);
+      assertTrue(backOff + " >= " + bound, backOff >= 0 && backOff < bound);
+    }
+    assertTrue(throttler.getBackOffMillis(5, 10_000) < 1000);
+  }
+
+  private RequestThrottler newThrottler(int requestsPerSecond, int maxConcurrency) {
+    return new RequestThrottler(
+        requestsPerSecond, maxConcurrency, 3, nanoTime::get, sleeps::add, new Random(0));
+  }
+}
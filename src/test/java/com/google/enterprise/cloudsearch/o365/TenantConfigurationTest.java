@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link TenantConfiguration}. */
+public class TenantConfigurationTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+
+  @Test
+  public void getTenantNames_notSet_empty() {
+    setupConfig.initConfig(new Properties());
+    assertTrue(TenantConfiguration.getTenantNames().isEmpty());
+  }
+
+  @Test
+  public void getTenantNames_trimmed() {
+    Properties config = new Properties();
+    config.put(TenantConfiguration.TENANTS_CONFIG, "contoso, fabrikam-eu ,");
+    setupConfig.initConfig(config);
+    assertEquals(ImmutableList.of("contoso", "fabrikam-eu"), TenantConfiguration.getTenantNames());
+  }
+
+  @Test
+  public void getTenantNames_duplicate_throws() {
+    Properties config = new Properties();
+    config.put(TenantConfiguration.TENANTS_CONFIG, "contoso,contoso");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    TenantConfiguration.getTenantNames();
+  }
+
+  @Test
+  public void getTenantNames_invalidName_throws() {
+    Properties config = new Properties();
+    config.put(TenantConfiguration.TENANTS_CONFIG, "contoso.com");
+    setupConfig.initConfig(config);
+    thrown.expect(InvalidConfigurationException.class);
+    TenantConfiguration.getTenantNames();
+  }
+
+  @Test
+  public void getKey() {
+    assertEquals(
+        ApiConnection.CLIENT_ID, TenantConfiguration.getKey(null, ApiConnection.CLIENT_ID));
+    assertEquals(
+        "o365.tenants.contoso.clientId",
+        TenantConfiguration.getKey("contoso", ApiConnection.CLIENT_ID));
+    assertEquals(
+        "o365.tenants.contoso.keyStore.file",
+        TenantConfiguration.getKey("contoso", ApiConnection.KEYSTORE_FILE));
+  }
+}
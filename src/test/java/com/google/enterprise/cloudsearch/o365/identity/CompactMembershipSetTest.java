@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompactMembershipSetTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testEmpty() {
+    assertEquals(ImmutableSet.of(), CompactMembershipSet.of());
+    assertFalse(CompactMembershipSet.of().contains(user("a@example.com")));
+  }
+
+  @Test
+  public void testUsersAndGroups() {
+    Set<Membership> set =
+        new CompactMembershipSet.Builder()
+            .addUser("a@example.com")
+            .add(groupKey("group1"))
+            .addUser("b@example.com")
+            .build();
+    assertEquals(
+        ImmutableSet.of(user("a@example.com"), group("group1"), user("b@example.com")), set);
+    assertTrue(set.contains(group("group1")));
+    assertFalse(set.contains(user("group1")));
+    assertFalse(set.contains(group("a@example.com")));
+    assertFalse(set.contains("a@example.com"));
+  }
+
+  @Test
+  public void testDuplicatesIgnored() {
+    Set<Membership> set =
+        new CompactMembershipSet.Builder()
+            .addUser("a@example.com")
+            .addUser("a@example.com")
+            .add(groupKey("group1"))
+            .add(groupKey("group1"))
+            .build();
+    assertEquals(2, set.size());
+  }
+
+  @Test
+  public void testContains_differentRoles() {
+    Set<Membership> set = new CompactMembershipSet.Builder().addUser("a@example.com").build();
+    assertFalse(set.contains(new Membership().setPreferredMemberKey(userKey("a@example.com"))));
+  }
+
+  @Test
+  public void testManyMembers_spanChunks() {
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    Set<Membership> expected = new HashSet<>();
+    for (int i = 0; i < 20000; i++) {
+      builder.addUser("user" + i + "@example.com");
+      expected.add(user("user" + i + "@example.com"));
+    }
+    long retainedBytes = builder.retainedBytes();
+    CompactMembershipSet set = builder.build();
+    assertTrue(retainedBytes > CompactMembershipSet.CHUNK_SIZE);
+    // Building trims the last chunk.
+    assertTrue(set.retainedBytes() <= retainedBytes);
+    assertTrue(set.retainedBytes() > retainedBytes - CompactMembershipSet.CHUNK_SIZE);
+    assertEquals(expected, set);
+    assertEquals(user("user0@example.com"), Iterables.getFirst(set, null));
+    for (Membership membership : expected) {
+      assertTrue(set.contains(membership));
+    }
+  }
+
+  @Test
+  public void testSmallSet_retainsLittleHeap() {
+    CompactMembershipSet.Builder builder =
+        new CompactMembershipSet.Builder()
+            .addUser("a@example.com")
+            .addUser("b@example.com")
+            .add(groupKey("group1"));
+    assertTrue(builder.retainedBytes() < 1024);
+    CompactMembershipSet set = builder.build();
+    assertTrue(set.retainedBytes() < 256);
+    assertEquals(3, set.size());
+  }
+
+  @Test
+  public void testBuildTwice_throwsException() {
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    builder.build();
+    thrown.expect(IllegalStateException.class);
+    builder.build();
+  }
+
+  @Test
+  public void testKeyTooLong_throwsException() {
+    StringBuilder mail = new StringBuilder();
+    for (int i = 0; i < 4097; i++) {
+      mail.append('a');
+    }
+    thrown.expect(IllegalArgumentException.class);
+    new CompactMembershipSet.Builder().addUser(mail.toString());
+  }
+
+  private static EntityKey userKey(String mail) {
+    return new EntityKey().setId(mail);
+  }
+
+  private static EntityKey groupKey(String id) {
+    return new EntityKey().setId(id).setNamespace("identitysources/idSource1");
+  }
+
+  private static Membership user(String mail) {
+    return new Membership()
+        .setPreferredMemberKey(userKey(mail))
+        .setRoles(O365IdentityRepository.MEMBER_ROLES);
+  }
+
+  private static Membership group(String id) {
+    return new Membership()
+        .setPreferredMemberKey(groupKey(id))
+        .setRoles(O365IdentityRepository.MEMBER_ROLES);
+  }
+}
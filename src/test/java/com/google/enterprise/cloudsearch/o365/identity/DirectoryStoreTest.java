@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.enterprise.cloudsearch.o365.identity.DirectoryStore.Kind;
+import com.google.enterprise.cloudsearch.o365.model.User;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryStoreTest {
+  private static final EntityKey USER1 = new EntityKey().setId("user1@example.com");
+  private static final EntityKey USER2 = new EntityKey().setId("user2@example.com");
+  private static final EntityKey GROUP = new EntityKey().setId("group2").setNamespace("ns");
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path file;
+
+  @Before
+  public void setUp() {
+    file = temporaryFolder.getRoot().toPath().resolve("directory.store");
+  }
+
+  @Test
+  public void testOpen_noStore() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(0, store.size());
+      assertNull(store.getUser("user1"));
+      assertNull(store.getGroupHash("group1"));
+    }
+  }
+
+  @Test
+  public void testPut_reopened() throws IOException {
+    Set<Membership> group1 = memberships(USER1, GROUP);
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      store.putUser(user("user1", "user1@example.com"));
+      store.putGroup("group1", MemberKeys.hash(group1), group1);
+    }
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(2, store.size());
+      assertEquals(user("user1", "user1@example.com"), store.getUser("user1"));
+      assertEquals(Long.valueOf(MemberKeys.hash(group1)), store.getGroupHash("group1"));
+      assertEquals(group1, store.getGroupMembers("group1"));
+      // Users and groups with the same id are kept apart.
+      assertNull(store.getUser("group1"));
+      assertNull(store.getGroupHash("user1"));
+    }
+  }
+
+  @Test
+  public void testPut_unchanged_notAppended() throws IOException {
+    Set<Membership> group1 = memberships(USER1);
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      store.putUser(user("user1", "user1@example.com"));
+      store.putGroup("group1", MemberKeys.hash(group1), group1);
+      long bytes = Files.size(file);
+      store.putUser(user("user1", "user1@example.com"));
+      store.putGroup("group1", MemberKeys.hash(group1), memberships(USER1));
+      assertEquals(bytes, Files.size(file));
+      store.putUser(user("user1", "renamed@example.com"));
+      assertTrue(Files.size(file) > bytes);
+      assertEquals("renamed@example.com", store.getUser("user1").getMail());
+    }
+  }
+
+  @Test
+  public void testRemoveUnlisted() throws IOException {
+    Set<Membership> members = memberships(USER1);
+    long hash = MemberKeys.hash(members);
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      store.putUser(user("user1", "user1@example.com"));
+      store.putGroup("group1", hash, members);
+      store.putGroup("group2", hash, members);
+
+      store.startListing(Kind.GROUP);
+      assertFalse(store.isListed(Kind.GROUP, "group1"));
+      assertTrue(store.isListed(Kind.USER, "user1"));
+      store.putGroup("group2", hash, members);
+      assertTrue(store.isListed(Kind.GROUP, "group2"));
+      assertEquals(1, store.removeUnlisted(Kind.GROUP));
+      assertNull(store.getGroupHash("group1"));
+      assertEquals(Long.valueOf(hash), store.getGroupHash("group2"));
+    }
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(2, store.size());
+      assertNull(store.getGroupHash("group1"));
+      assertEquals(user("user1", "user1@example.com"), store.getUser("user1"));
+    }
+  }
+
+  @Test
+  public void testManyObjects_spanSegments() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file, 256)) {
+      for (int i = 0; i < 1000; i++) {
+        Set<Membership> members = memberships(new EntityKey().setId("user" + i + "@example.com"));
+        store.putGroup("group" + i, MemberKeys.hash(members), members);
+      }
+    }
+    try (DirectoryStore store = DirectoryStore.open(file, 256)) {
+      assertEquals(1000, store.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(
+            memberships(new EntityKey().setId("user" + i + "@example.com")),
+            store.getGroupMembers("group" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testPut_newRecordsNotReadBack() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      for (int i = 0; i < 1000; i++) {
+        store.putUser(user("user" + i, "user" + i + "@example.com"));
+      }
+      assertEquals(1000, store.size());
+      assertEquals(0, store.getMappingCount());
+    }
+  }
+
+  @Test
+  public void testGet_appendedRecords_mappedGeometrically() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      for (int i = 0; i < 1000; i++) {
+        store.putUser(user("user" + i, "user" + i + "@example.com"));
+        assertEquals(user("user" + i, "user" + i + "@example.com"), store.getUser("user" + i));
+      }
+      assertTrue(store.getMappingCount() < 20);
+    }
+  }
+
+  @Test
+  public void testCompact_keepsLiveRecords() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      for (int i = 0; i < 100; i++) {
+        store.putUser(user("user" + i, "v1-" + i + "@example.com"));
+        store.putUser(user("user" + i, "v2-" + i + "@example.com"));
+      }
+      store.startListing(Kind.USER);
+      for (int i = 0; i < 50; i++) {
+        store.putUser(user("user" + i, "v2-" + i + "@example.com"));
+      }
+      store.removeUnlisted(Kind.USER);
+      long bytes = Files.size(file);
+      store.compact();
+      assertTrue(Files.size(file) < bytes / 3);
+      assertEquals("v2-7@example.com", store.getUser("user7").getMail());
+      store.putUser(user("user100", "v1-100@example.com"));
+    }
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(51, store.size());
+      assertEquals("v2-49@example.com", store.getUser("user49").getMail());
+      assertNull(store.getUser("user50"));
+      assertEquals("v1-100@example.com", store.getUser("user100").getMail());
+    }
+  }
+
+  @Test
+  public void testOpen_tornRecordCutOff() throws IOException {
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      store.putUser(user("user1", "user1@example.com"));
+    }
+    long intactBytes = Files.size(file);
+    // A crash while appending the next record leaves part of it behind.
+    Files.write(file, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(intactBytes, Files.size(file));
+      store.putUser(user("user2", "user2@example.com"));
+    }
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(2, store.size());
+    }
+  }
+
+  @Test
+  public void testOpen_unknownVersion_discarded() throws IOException {
+    Files.write(file, new byte[] {0, 0, 0, 99, 1, 2, 3});
+    try (DirectoryStore store = DirectoryStore.open(file)) {
+      assertEquals(0, store.size());
+    }
+    assertEquals(4, Files.size(file));
+  }
+
+  @Test
+  public void testGroupHash_independentOfOrder() {
+    assertEquals(
+        MemberKeys.hash(memberships(USER1, USER2, GROUP)),
+        MemberKeys.hash(memberships(GROUP, USER2, USER1)));
+    assertNotEquals(
+        MemberKeys.hash(memberships(USER1, USER2)), MemberKeys.hash(memberships(USER1)));
+    assertNotEquals(
+        MemberKeys.hash(memberships(new EntityKey().setId("group2"))),
+        MemberKeys.hash(memberships(GROUP)));
+  }
+
+  private static User user(String id, String mail) {
+    return new User.Builder()
+        .setId(id)
+        .setMail(mail)
+        .setUserPrincipalName(mail)
+        .setAccountEnabled(true)
+        .build();
+  }
+
+  private static Set<Membership> memberships(EntityKey... keys) {
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    for (EntityKey key : keys) {
+      builder.add(key);
+    }
+    return builder.build();
+  }
+}
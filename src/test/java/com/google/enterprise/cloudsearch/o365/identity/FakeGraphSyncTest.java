@@ -0,0 +1,488 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.cloudsearch.o365.ApiConnection;
+import com.google.enterprise.cloudsearch.o365.Endpoints;
+import com.google.enterprise.cloudsearch.o365.HttpTransportFactory;
+import com.google.enterprise.cloudsearch.o365.TenantConfiguration;
+import com.google.enterprise.cloudsearch.o365.testing.FakeGraphServer;
+import com.google.enterprise.cloudsearch.o365.testing.SyntheticTenant;
+import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
+import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
+import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
+import com.google.enterprise.cloudsearch.sdk.identity.Repository;
+import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Full syncs of {@link O365IdentityRepository} and {@link MultiTenantIdentityRepository} against a
+ * {@link FakeGraphServer}.
+ */
+public class FakeGraphSyncTest {
+  @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
+  @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final SyntheticTenant tenant =
+      new SyntheticTenant.Builder()
+          .setUsers(300)
+          .setGroups(40)
+          .setMeanGroupSize(20)
+          .setNestingDepth(2)
+          .build();
+  private final Set<String> listedUsers = ConcurrentHashMap.newKeySet();
+  private final Map<String, Supplier<Set<Membership>>> listedGroups = new ConcurrentHashMap<>();
+  private RepositoryContext repositoryContext;
+  private FakeGraphServer server;
+  private HttpTransport sharedTransport;
+  private ListeningExecutorService memberFetchExecutor;
+
+  @Before
+  public void setUp() {
+    repositoryContext = mock(RepositoryContext.class);
+    IdentityUser identityUser = mock(IdentityUser.class);
+    when(repositoryContext.buildIdentityUser(anyString(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              listedUsers.add(invocation.getArgument(0));
+              return identityUser;
+            });
+    IdentityGroup identityGroup = mock(IdentityGroup.class);
+    when(repositoryContext.buildIdentityGroup(anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              listedGroups.put(invocation.getArgument(0), invocation.getArgument(1));
+              return identityGroup;
+            });
+    when(repositoryContext.buildEntityKeyForGroup(anyString()))
+        .thenAnswer(invocation -> new EntityKey().setId(invocation.getArgument(0)));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (memberFetchExecutor != null) {
+      memberFetchExecutor.shutdownNow();
+    }
+    if (sharedTransport != null) {
+      sharedTransport.shutdown();
+    }
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void fullSync_pagedAndBatched() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = baseConfig();
+    config.put("o365.userPaginationSize", "64");
+    config.put("o365.memberPaginationSize", "8");
+    config.put(O365IdentityRepository.MEMBER_BATCH_SIZE_CONFIG, "5");
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "4");
+    syncAndVerify(config);
+    assertEquals(1, server.getTokenRequestCount());
+  }
+
+  @Test
+  public void fullSync_memberFetchBudgetExhausted() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = tenantsConfig("first");
+    config.put("o365.memberPaginationSize", "8");
+    setupConfig.initConfig(config);
+    // A page of groups holds more memberships than this, so the remaining members of most groups
+    // are fetched when the SDK asks for them.
+    MemoryBudget budget = new MemoryBudget(4 * 1024);
+    O365IdentityRepository repository = initTenantRepository("first", budget);
+    try {
+      sync(repository);
+      verifySynced();
+      assertEquals(0, budget.getUsedBytes());
+    } finally {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void groupListingAbandoned_memberFetchBudgetReturned() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = tenantsConfig("first");
+    config.put("o365.memberPaginationSize", "8");
+    setupConfig.initConfig(config);
+    MemoryBudget budget = new MemoryBudget(4 * 1024);
+    O365IdentityRepository repository = initTenantRepository("first", budget);
+    try {
+      // Waits for the members to be fetched ahead, but never asks for them, like an aborted
+      // traversal.
+      Iterables.size(repository.listGroups(null));
+      assertTrue(budget.getUsedBytes() > 0);
+    } finally {
+      repository.close();
+    }
+    assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void fullSync_interruptedGroupListingResumed() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = baseConfig();
+    config.put("o365.groupPaginationSize", "10");
+    config.put("o365.memberPaginationSize", "4");
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "4");
+    config.put(O365IdentityRepository.RESUMABLE_GROUP_LISTING_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG,
+        temporaryFolder.getRoot().getAbsolutePath());
+    setupConfig.initConfig(config);
+    O365IdentityRepository interrupted = new O365IdentityRepository();
+    interrupted.init(repositoryContext);
+    try {
+      // The first page is synced. The second is interrupted after its members were fetched ahead,
+      // before the SDK asked for them.
+      CheckpointCloseableIterable<IdentityGroup> firstPage = interrupted.listGroups(null);
+      Iterables.size(firstPage);
+      listedGroups.values().forEach(Supplier::get);
+      Iterables.size(interrupted.listGroups(firstPage.getCheckpoint()));
+    } finally {
+      interrupted.close();
+    }
+    long interruptedRequests = server.getGraphRequestCount();
+    listedGroups.clear();
+
+    O365IdentityRepository resumed = new O365IdentityRepository();
+    resumed.init(repositoryContext);
+    try {
+      sync(resumed);
+    } finally {
+      resumed.close();
+    }
+    verifySynced();
+    assertFalse(
+        temporaryFolder
+            .getRoot()
+            .toPath()
+            .resolve(O365IdentityRepository.GROUP_LISTING_JOURNAL_FILE)
+            .toFile()
+            .exists());
+
+    // A listing that is not resumed fetches everything the interrupted one did again.
+    long resumedRequests = server.getGraphRequestCount() - interruptedRequests;
+    listedUsers.clear();
+    listedGroups.clear();
+    O365IdentityRepository restarted = new O365IdentityRepository();
+    restarted.init(repositoryContext);
+    try {
+      sync(restarted);
+    } finally {
+      restarted.close();
+    }
+    verifySynced();
+    long restartedRequests =
+        server.getGraphRequestCount() - interruptedRequests - resumedRequests;
+    assertTrue(resumedRequests < restartedRequests);
+  }
+
+  @Test
+  public void fullSync_interruptedGroupListingResumedFromStore() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = baseConfig();
+    config.put("o365.groupPaginationSize", "10");
+    config.put(O365IdentityRepository.RESUMABLE_GROUP_LISTING_CONFIG, "true");
+    config.put(O365IdentityRepository.DIRECTORY_STORE_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG,
+        temporaryFolder.getRoot().getAbsolutePath());
+    setupConfig.initConfig(config);
+    // The SDK asks for memberships while listing, before the repository is closed.
+    O365IdentityRepository first = new O365IdentityRepository();
+    first.init(repositoryContext);
+    try {
+      sync(first);
+      verifySynced();
+    } finally {
+      first.close();
+    }
+    Path storeFile =
+        temporaryFolder.getRoot().toPath().resolve(O365IdentityRepository.DIRECTORY_STORE_FILE);
+    try (DirectoryStore store = DirectoryStore.open(storeFile)) {
+      assertEquals(tenant.getUserCount() + tenant.getGroupCount(), store.size());
+    }
+    listedUsers.clear();
+    listedGroups.clear();
+
+    // Unchanged groups of the interrupted listing are journaled by their hash only.
+    O365IdentityRepository interrupted = new O365IdentityRepository();
+    interrupted.init(repositoryContext);
+    try {
+      CheckpointCloseableIterable<IdentityGroup> firstPage = interrupted.listGroups(null);
+      Iterables.size(firstPage);
+      listedGroups.values().forEach(Supplier::get);
+    } finally {
+      interrupted.close();
+    }
+    listedGroups.clear();
+
+    O365IdentityRepository resumed = new O365IdentityRepository();
+    resumed.init(repositoryContext);
+    try {
+      sync(resumed);
+      verifySynced();
+    } finally {
+      resumed.close();
+    }
+    try (DirectoryStore store = DirectoryStore.open(storeFile)) {
+      assertEquals(tenant.getUserCount() + tenant.getGroupCount(), store.size());
+    }
+  }
+
+  @Test
+  public void fullSync_deltaSync() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).setDeltaPageSize(25).start();
+    Properties config = baseConfig();
+    config.put(O365IdentityRepository.USER_DELTA_SYNC_CONFIG, "true");
+    config.put(O365IdentityRepository.GROUP_DELTA_SYNC_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG,
+        temporaryFolder.getRoot().getAbsolutePath());
+    setupConfig.initConfig(config);
+    O365IdentityRepository repository = new O365IdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      sync(repository);
+      verifySynced();
+      // The second round starts from the delta links and finds no changes.
+      long requests = server.getGraphRequestCount();
+      listedUsers.clear();
+      listedGroups.clear();
+      sync(repository);
+      verifySynced();
+      assertEquals(requests + 2, server.getGraphRequestCount());
+    } finally {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void fullSync_throttledRequestsRetried() throws Exception {
+    server =
+        new FakeGraphServer.Builder(tenant).setThrottleRate(0.05).setRetryAfterSeconds(0).start();
+    Properties config = baseConfig();
+    config.put("o365.userPaginationSize", "100");
+    config.put("o365.memberPaginationSize", "100");
+    syncAndVerify(config);
+    assertTrue(server.getThrottledCount() > 0);
+  }
+
+  @Test
+  public void fullSync_revokedToken_renewedOnce() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = baseConfig();
+    config.put("o365.memberPaginationSize", "8");
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "8");
+    setupConfig.initConfig(config);
+    O365IdentityRepository repository = new O365IdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      sync(repository);
+      server.revokeTokens();
+      listedUsers.clear();
+      listedGroups.clear();
+      sync(repository);
+    } finally {
+      repository.close();
+    }
+    verifySynced();
+    assertEquals(2, server.getTokenRequestCount());
+  }
+
+  @Test
+  public void fullSync_multipleTenants() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).setDeltaPageSize(25).start();
+    Properties config = tenantsConfig("first", "second");
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "4");
+    config.put(O365IdentityRepository.USER_DELTA_SYNC_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG,
+        temporaryFolder.getRoot().getAbsolutePath());
+    setupConfig.initConfig(config);
+    MultiTenantIdentityRepository repository = new MultiTenantIdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      sync(repository);
+    } finally {
+      repository.close();
+    }
+    // Both tenants point at the same server, so they list the same users and groups.
+    verifySynced();
+    assertEquals(2, server.getTokenRequestCount());
+    assertTrue(
+        temporaryFolder
+            .getRoot()
+            .toPath()
+            .resolve("first")
+            .resolve(O365IdentityRepository.USER_DELTA_STATE_FILE)
+            .toFile()
+            .exists());
+    assertTrue(
+        temporaryFolder
+            .getRoot()
+            .toPath()
+            .resolve("second")
+            .resolve(O365IdentityRepository.USER_DELTA_STATE_FILE)
+            .toFile()
+            .exists());
+  }
+
+  @Test
+  public void fullSync_failedTenant_othersListedBeforeRoundFails() throws Exception {
+    server = new FakeGraphServer.Builder(tenant).start();
+    Properties config = tenantsConfig("first", "broken");
+    // The server only issues tokens for its own tenant.
+    config.put(TenantConfiguration.getKey("broken", ApiConnection.TENANT), "unknown");
+    config.put("o365.userPaginationSize", "64");
+    setupConfig.initConfig(config);
+    MultiTenantIdentityRepository repository = new MultiTenantIdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      byte[] checkpoint = null;
+      CheckpointCloseableIterable<IdentityUser> users;
+      do {
+        users = repository.listUsers(checkpoint);
+        Iterables.size(users);
+        checkpoint = users.getCheckpoint();
+      } while (users.hasMore());
+      fail("listing completed without the broken tenant");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("[broken]"));
+    } finally {
+      repository.close();
+    }
+    // The round fails only after all users of the other tenant were listed.
+    assertEquals(tenant.getUserCount(), listedUsers.size());
+  }
+
+  /** Returns the configuration of tenants named {@code tenantNames}, all served by the server. */
+  private Properties tenantsConfig(String... tenantNames) {
+    Properties config = new Properties();
+    config.put(TenantConfiguration.TENANTS_CONFIG, String.join(",", tenantNames));
+    for (String tenantName : tenantNames) {
+      config.put(
+          TenantConfiguration.getKey(tenantName, ApiConnection.CLIENT_ID), tenantName + " client");
+      config.put(TenantConfiguration.getKey(tenantName, ApiConnection.CLIENT_SECRET), "secret");
+      config.put(TenantConfiguration.getKey(tenantName, ApiConnection.TENANT), tenant.getName());
+    }
+    config.put(Endpoints.GRAPH_BASE_URL_CONFIG, server.getGraphBaseUrl());
+    config.put(Endpoints.LOGIN_BASE_URL_CONFIG, server.getLoginBaseUrl());
+    return config;
+  }
+
+  /**
+   * Creates and initializes the repository of one tenant the way {@link
+   * MultiTenantIdentityRepository} does, fetching members on four threads within {@code budget}.
+   */
+  private O365IdentityRepository initTenantRepository(String tenantName, MemoryBudget budget)
+      throws Exception {
+    sharedTransport = HttpTransportFactory.fromConfiguration();
+    memberFetchExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    O365IdentityRepository repository =
+        new O365IdentityRepository(tenantName, sharedTransport, memberFetchExecutor, budget);
+    repository.init(repositoryContext);
+    return repository;
+  }
+
+  private Properties baseConfig() {
+    Properties config = new Properties();
+    config.put(ApiConnection.CLIENT_ID, "client id");
+    config.put(ApiConnection.CLIENT_SECRET, "secret");
+    config.put(ApiConnection.TENANT, tenant.getName());
+    config.put(Endpoints.GRAPH_BASE_URL_CONFIG, server.getGraphBaseUrl());
+    config.put(Endpoints.LOGIN_BASE_URL_CONFIG, server.getLoginBaseUrl() + "/");
+    return config;
+  }
+
+  private void syncAndVerify(Properties config) throws Exception {
+    setupConfig.initConfig(config);
+    O365IdentityRepository repository = new O365IdentityRepository();
+    repository.init(repositoryContext);
+    try {
+      sync(repository);
+      verifySynced();
+    } finally {
+      repository.close();
+    }
+  }
+
+  /** Lists all users and groups, following checkpoints like the SDK does. */
+  private static void sync(Repository repository) throws Exception {
+    byte[] checkpoint = null;
+    CheckpointCloseableIterable<IdentityUser> users;
+    do {
+      users = repository.listUsers(checkpoint);
+      Iterables.size(users);
+      checkpoint = users.getCheckpoint();
+    } while (users.hasMore());
+    checkpoint = null;
+    CheckpointCloseableIterable<IdentityGroup> groups;
+    do {
+      groups = repository.listGroups(checkpoint);
+      Iterables.size(groups);
+      checkpoint = groups.getCheckpoint();
+    } while (groups.hasMore());
+  }
+
+  private void verifySynced() {
+    assertEquals(tenant.getUserCount(), listedUsers.size());
+    assertEquals(tenant.getGroupCount(), listedGroups.size());
+    long memberships = 0;
+    for (int group = 0; group < tenant.getGroupCount(); group++) {
+      Set<Membership> members = listedGroups.get(tenant.getGroupId(group)).get();
+      assertEquals(
+          tenant.getUserMembers(group).length + tenant.getGroupMembers(group).length,
+          members.size());
+      memberships += members.size();
+    }
+    assertEquals(tenant.getMembershipCount(), memberships);
+  }
+}
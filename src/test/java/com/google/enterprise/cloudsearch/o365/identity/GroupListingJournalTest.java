@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.cloudidentity.v1.model.EntityKey;
+import com.google.api.services.cloudidentity.v1.model.Membership;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.cloudsearch.o365.identity.GroupListingJournal.Progress;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class GroupListingJournalTest {
+  private static final long NOW = 1_500_000_000_000L;
+  private static final EntityKey USER = new EntityKey().setId("user@example.com");
+  private static final EntityKey GROUP = new EntityKey().setId("group2").setNamespace("ns");
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private Path file;
+
+  @Before
+  public void setUp() {
+    file = temporaryFolder.getRoot().toPath().resolve("groups-listing.journal");
+  }
+
+  @Test
+  public void testLoad_noJournal() {
+    assertFalse(GroupListingJournal.load(file, 0).isPresent());
+  }
+
+  @Test
+  public void testLoad_recordedProgress() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups?page=1");
+      journal.recordGroup("group1", memberships(USER, GROUP));
+      journal.recordPage("https://graph/groups?page=2");
+      journal.recordMembers("group3", "https://graph/members?page=2", ImmutableList.of(USER));
+      journal.recordMembers("group3", "https://graph/members?page=3", ImmutableList.of(GROUP));
+    }
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    assertEquals("https://graph/groups?page=2", progress.groupsLink);
+    assertEquals(ImmutableSet.of("group1"), progress.completedGroups.keySet());
+    assertEquals(memberships(USER, GROUP), readCompletedGroup(progress, "group1"));
+    assertEquals(ImmutableSet.of("group3"), progress.partialGroups.keySet());
+    assertEquals(
+        "https://graph/members?page=3", progress.partialGroups.get("group3").nextLink);
+    assertEquals(memberships(USER, GROUP), progress.partialGroups.get("group3").members);
+  }
+
+  @Test
+  public void testLoad_completedGroupReplacesPartialMembers() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups");
+      journal.recordMembers("group1", "https://graph/members?page=2", ImmutableList.of(USER));
+      journal.recordGroup("group1", memberships(USER, GROUP));
+    }
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    assertTrue(progress.partialGroups.isEmpty());
+    assertEquals(memberships(USER, GROUP), readCompletedGroup(progress, "group1"));
+  }
+
+  @Test
+  public void testLoad_unchangedGroupRecordedByHash() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups");
+      journal.recordGroup("group1", memberships(USER));
+      journal.recordUnchangedGroup("group1", 42L);
+      journal.recordUnchangedGroup("group2", 7L);
+      journal.recordGroup("group2", memberships(GROUP));
+    }
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    assertEquals(ImmutableMap.of("group1", 42L), progress.unchangedGroups);
+    assertEquals(ImmutableSet.of("group2"), progress.completedGroups.keySet());
+  }
+
+  @Test
+  public void testLoad_expired_deleted() throws IOException {
+    GroupListingJournal.start(file, NOW).close();
+    assertFalse(GroupListingJournal.load(file, NOW + 1).isPresent());
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testLoad_unknownVersion_deleted() throws IOException {
+    Files.write(file, new byte[] {0, 0, 0, 99, 0, 0, 0, 0, 0, 0, 0, 0});
+    assertFalse(GroupListingJournal.load(file, 0).isPresent());
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testResume_tornRecordCutOff() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups?page=1");
+      journal.recordGroup("group1", memberships(USER));
+    }
+    long intactBytes = Files.size(file);
+    // A crash while writing the next record leaves part of it behind.
+    Files.write(file, new byte[] {0, 0, 0, 40, 2, 0}, StandardOpenOption.APPEND);
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    assertEquals(ImmutableSet.of("group1"), progress.completedGroups.keySet());
+
+    try (GroupListingJournal journal = GroupListingJournal.resume(file, progress)) {
+      assertEquals(intactBytes, Files.size(file));
+      journal.recordGroup("group2", memberships(GROUP));
+    }
+    Progress resumed = GroupListingJournal.load(file, NOW).get();
+    assertEquals(ImmutableSet.of("group1", "group2"), resumed.completedGroups.keySet());
+    assertEquals("https://graph/groups?page=1", resumed.groupsLink);
+  }
+
+  @Test
+  public void testReadGroup_afterDelete() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups");
+      journal.recordGroup("group1", memberships(USER, GROUP));
+    }
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    GroupListingJournal journal = GroupListingJournal.resume(file, progress);
+    journal.delete();
+    assertFalse(Files.exists(file));
+    // The SDK may ask for resumed groups after the listing completed and deleted its journal.
+    assertEquals(
+        memberships(USER, GROUP),
+        journal.readGroup("group1", progress.completedGroups.get("group1")));
+    journal.close();
+    thrown.expect(IOException.class);
+    journal.readGroup("group1", progress.completedGroups.get("group1"));
+  }
+
+  @Test
+  public void testReadGroup_otherGroupAtOffset_throwsException() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups");
+      journal.recordGroup("group1", memberships(USER));
+    }
+    Progress progress = GroupListingJournal.load(file, NOW).get();
+    try (GroupListingJournal journal = GroupListingJournal.resume(file, progress)) {
+      thrown.expect(IOException.class);
+      journal.readGroup("group2", progress.completedGroups.get("group1"));
+    }
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    GroupListingJournal journal = GroupListingJournal.start(file, NOW);
+    journal.recordPage("https://graph/groups");
+    journal.delete();
+    assertFalse(Files.exists(file));
+    // Records after the journal was deleted are dropped.
+    journal.recordPage("https://graph/groups?page=2");
+    assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testStart_replacesPreviousJournal() throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.start(file, NOW)) {
+      journal.recordPage("https://graph/groups?page=5");
+    }
+    GroupListingJournal.start(file, NOW + 1).close();
+    Optional<Progress> progress = GroupListingJournal.load(file, NOW + 1);
+    assertNull(progress.get().groupsLink);
+    assertTrue(progress.get().completedGroups.isEmpty());
+  }
+
+  private Set<Membership> readCompletedGroup(Progress progress, String groupId)
+      throws IOException {
+    try (GroupListingJournal journal = GroupListingJournal.resume(file, progress)) {
+      return journal.readGroup(groupId, progress.completedGroups.get(groupId));
+    }
+  }
+
+  private static Set<Membership> memberships(EntityKey... keys) {
+    CompactMembershipSet.Builder builder = new CompactMembershipSet.Builder();
+    for (EntityKey key : keys) {
+      builder.add(key);
+    }
+    return builder.build();
+  }
+}
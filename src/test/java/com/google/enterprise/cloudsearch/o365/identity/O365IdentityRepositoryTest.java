@@ -23,18 +23,27 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.cloudidentity.v1.model.EntityKey;
 import com.google.api.services.cloudidentity.v1.model.Membership;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.cloudsearch.o365.ApiConnection;
+import com.google.enterprise.cloudsearch.o365.BatchRequestHelper.BatchResponse;
 import com.google.enterprise.cloudsearch.o365.GetRequest;
 import com.google.enterprise.cloudsearch.o365.Request;
 import com.google.enterprise.cloudsearch.o365.Request.RequestHelper;
 import com.google.enterprise.cloudsearch.o365.identity.O365IdentityRepository.O365RequestHelperFactory;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObject;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjects;
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder.PageLinks;
 import com.google.enterprise.cloudsearch.o365.model.Group;
 import com.google.enterprise.cloudsearch.o365.model.Groups;
 import com.google.enterprise.cloudsearch.o365.model.Member;
@@ -42,20 +51,28 @@ import com.google.enterprise.cloudsearch.o365.model.Members;
 import com.google.enterprise.cloudsearch.o365.model.User;
 import com.google.enterprise.cloudsearch.o365.model.Users;
 import com.google.enterprise.cloudsearch.sdk.CheckpointCloseableIterable;
+import com.google.enterprise.cloudsearch.sdk.InvalidConfigurationException;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.ResetConfigRule;
 import com.google.enterprise.cloudsearch.sdk.config.Configuration.SetupConfigRule;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityGroup;
 import com.google.enterprise.cloudsearch.sdk.identity.IdentityUser;
 import com.google.enterprise.cloudsearch.sdk.identity.RepositoryContext;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 /** Unit tests for {@link O365IdentityRepository} */
@@ -64,6 +81,7 @@ public class O365IdentityRepositoryTest {
   @Rule public ExpectedException thrown = ExpectedException.none();
   @Rule public ResetConfigRule resetConfig = new ResetConfigRule();
   @Rule public SetupConfigRule setupConfig = SetupConfigRule.uninitialized();
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   @Mock private RepositoryContext repositoryContext;
 
@@ -251,6 +269,183 @@ public class O365IdentityRepositoryTest {
     assertFalse(listUsers.hasMore());
   }
 
+  @Test
+  public void testListUsersPrefetchNextPage() throws Exception {
+    O365RequestHelperFactory spyRquestHelperFactory = spy(new O365RequestHelperFactory());
+    O365IdentityRepository identityRepository = new O365IdentityRepository(spyRquestHelperFactory);
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.PREFETCH_NEXT_PAGE_CONFIG, "true");
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    RequestHelper<Users> usersRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Users.class))
+        .thenReturn(usersRequestHelper);
+    Request<Users> initialUsersRequest =
+        new GetRequest.Builder<Users>()
+            .setRequestURL(
+                new URL(
+                    String.format(
+                        O365IdentityRepository.USERS_ENDPOINT_FORMAT,
+                        O365IdentityRepository.DEFAULT_USER_PAGINATION_SIZE)))
+            .setResponseClass(Users.class)
+            .build();
+    String nextLink = O365IdentityRepository.USERS_ENDPOINT_FORMAT + "#next";
+    Request<Users> nextUsersRequest =
+        new GetRequest.Builder<Users>()
+            .setRequestURL(new URL(nextLink))
+            .setResponseClass(Users.class)
+            .build();
+    User user1 =
+        new User.Builder()
+            .setId("id1")
+            .setMail("user1@googledomain.com")
+            .setUserPrincipalName("user1@o365domain.com")
+            .build();
+    User user2 =
+        new User.Builder()
+            .setId("id2")
+            .setMail("user2@googledomain.com")
+            .setUserPrincipalName("user2@o365domain.com")
+            .build();
+    doAnswer(
+            invocation ->
+                new Users.Builder()
+                    .setValue(ImmutableList.of(user1))
+                    .setOdataNextlink(nextLink)
+                    .build())
+        .when(usersRequestHelper)
+        .executeRequest(eq(initialUsersRequest), any());
+    doAnswer(invocation -> new Users.Builder().setValue(ImmutableList.of(user2)).build())
+        .when(usersRequestHelper)
+        .executeRequest(eq(nextUsersRequest), any());
+    IdentityUser identityUser1 =
+        new IdentityUser.Builder()
+            .setGoogleIdentity("user1@googledomain.com")
+            .setUserIdentity("user1@o365domain.com")
+            .setSchema("schema")
+            .setAttribute("attribute")
+            .build();
+    IdentityUser identityUser2 =
+        new IdentityUser.Builder()
+            .setGoogleIdentity("user2@googledomain.com")
+            .setUserIdentity("user2@o365domain.com")
+            .setSchema("schema")
+            .setAttribute("attribute")
+            .build();
+    when(repositoryContext.buildIdentityUser("user1@googledomain.com", "user1@o365domain.com"))
+        .thenReturn(identityUser1);
+    when(repositoryContext.buildIdentityUser("user2@googledomain.com", "user2@o365domain.com"))
+        .thenReturn(identityUser2);
+
+    CheckpointCloseableIterable<IdentityUser> firstPage = identityRepository.listUsers(null);
+    assertEquals(ImmutableList.of(identityUser1), ImmutableList.copyOf(firstPage));
+    verify(usersRequestHelper, timeout(5000)).executeRequest(eq(nextUsersRequest), any());
+
+    CheckpointCloseableIterable<IdentityUser> secondPage =
+        identityRepository.listUsers(firstPage.getCheckpoint());
+    assertEquals(ImmutableList.of(identityUser2), ImmutableList.copyOf(secondPage));
+    assertFalse(secondPage.hasMore());
+    verify(usersRequestHelper, times(1)).executeRequest(eq(nextUsersRequest), any());
+    identityRepository.close();
+  }
+
+  @Test
+  public void testListUsersDeltaSync() throws Exception {
+    O365RequestHelperFactory spyRquestHelperFactory = spy(new O365RequestHelperFactory());
+    O365IdentityRepository identityRepository = new O365IdentityRepository(spyRquestHelperFactory);
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.USER_DELTA_SYNC_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG, temporaryFolder.getRoot().toString());
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    RequestHelper<Users> usersRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Users.class))
+        .thenReturn(usersRequestHelper);
+    String deltaEndpoint = O365IdentityRepository.USERS_DELTA_ENDPOINT;
+    User user1 =
+        new User.Builder()
+            .setId("id1")
+            .setMail("user1@googledomain.com")
+            .setUserPrincipalName("user1@o365domain.com")
+            .build();
+    User user2 =
+        new User.Builder()
+            .setId("id2")
+            .setMail("user2@googledomain.com")
+            .setUserPrincipalName("user2@o365domain.com")
+            .build();
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Users.Builder()
+                        .setValue(ImmutableList.of(user1))
+                        .setOdataNextlink(deltaEndpoint + "?$skiptoken=1")
+                        .build()))
+        .when(usersRequestHelper)
+        .executeRequest(eq(buildUsersRequest(deltaEndpoint)), any(), any(), any());
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Users.Builder()
+                        .setValue(ImmutableList.of(user2))
+                        .setOdataDeltalink(deltaEndpoint + "?$deltatoken=1")
+                        .build()))
+        .when(usersRequestHelper)
+        .executeRequest(
+            eq(buildUsersRequest(deltaEndpoint + "?$skiptoken=1")), any(), any(), any());
+    User removedUser1 = new User.Builder().setId("id1").setRemovedReason("deleted").build();
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Users.Builder()
+                        .setValue(ImmutableList.of(removedUser1))
+                        .setOdataDeltalink(deltaEndpoint + "?$deltatoken=2")
+                        .build()))
+        .when(usersRequestHelper)
+        .executeRequest(
+            eq(buildUsersRequest(deltaEndpoint + "?$deltatoken=1")), any(), any(), any());
+    IdentityUser identityUser1 =
+        new IdentityUser.Builder()
+            .setGoogleIdentity("user1@googledomain.com")
+            .setUserIdentity("user1@o365domain.com")
+            .setSchema("schema")
+            .setAttribute("attribute")
+            .build();
+    IdentityUser identityUser2 =
+        new IdentityUser.Builder()
+            .setGoogleIdentity("user2@googledomain.com")
+            .setUserIdentity("user2@o365domain.com")
+            .setSchema("schema")
+            .setAttribute("attribute")
+            .build();
+    when(repositoryContext.buildIdentityUser("user1@googledomain.com", "user1@o365domain.com"))
+        .thenReturn(identityUser1);
+    when(repositoryContext.buildIdentityUser("user2@googledomain.com", "user2@o365domain.com"))
+        .thenReturn(identityUser2);
+
+    CheckpointCloseableIterable<IdentityUser> firstPage = identityRepository.listUsers(null);
+    assertEquals(ImmutableList.of(), ImmutableList.copyOf(firstPage));
+    assertTrue(firstPage.hasMore());
+    CheckpointCloseableIterable<IdentityUser> lastPage =
+        identityRepository.listUsers(firstPage.getCheckpoint());
+    assertEquals(
+        ImmutableSet.of(identityUser1, identityUser2), ImmutableSet.copyOf(lastPage));
+    assertFalse(lastPage.hasMore());
+
+    // A new repository resumes from the committed delta link.
+    O365IdentityRepository restartedRepository =
+        new O365IdentityRepository(spyRquestHelperFactory);
+    restartedRepository.init(repositoryContext);
+    CheckpointCloseableIterable<IdentityUser> changes = restartedRepository.listUsers(null);
+    assertEquals(ImmutableList.of(identityUser2), ImmutableList.copyOf(changes));
+    assertNull(changes.getCheckpoint());
+    assertFalse(changes.hasMore());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testListGroups() throws Exception {
@@ -502,14 +697,398 @@ public class O365IdentityRepositoryTest {
         .buildIdentityGroup(eq("o365Group1"), any());
     CheckpointCloseableIterable<IdentityGroup> listGroups = identityRepository.listGroups(null);
     assertEquals(ImmutableList.of(identityGroup1), ImmutableList.copyOf(listGroups));
+    O365IdentityRepository.GroupsCheckpoint checkpoint =
+        JacksonFactory.getDefaultInstance()
+            .fromString(
+                new String(listGroups.getCheckpoint(), UTF_8),
+                O365IdentityRepository.GroupsCheckpoint.class);
+    assertEquals(O365IdentityRepository.GROUPS_CHECKPOINT_VERSION, checkpoint.get("v"));
     assertEquals(
-        O365IdentityRepository.GROUPS_ENDPOINT_FORMAT + "#NEXT",
-        new String(listGroups.getCheckpoint(), UTF_8));
+        O365IdentityRepository.GROUPS_ENDPOINT_FORMAT + "#NEXT", checkpoint.get("groupsLink"));
     assertTrue(listGroups.hasMore());
   }
 
-  private void setupBaseConfiguration() {
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testListGroupsConcurrentMemberFetch() throws Exception {
+    O365RequestHelperFactory spyRquestHelperFactory = spy(new O365RequestHelperFactory());
+    O365IdentityRepository identityRepository = new O365IdentityRepository(spyRquestHelperFactory);
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "4");
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    RequestHelper<Groups> groupsRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Groups.class))
+        .thenReturn(groupsRequestHelper);
+    RequestHelper<Members> membersRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Members.class))
+        .thenReturn(membersRequestHelper);
+    Request<Groups> initialGroupsRequest =
+        new GetRequest.Builder<Groups>()
+            .setRequestURL(
+                new URL(
+                    String.format(
+                        O365IdentityRepository.GROUPS_ENDPOINT_FORMAT,
+                        O365IdentityRepository.DEFAULT_GROUP_PAGINATION_SIZE)))
+            .setResponseClass(Groups.class)
+            .build();
+    Group group1 = new Group.Builder().setId("o365Group1").build();
+    Group group2 = new Group.Builder().setId("o365Group2").build();
+    doAnswer(
+            invocation -> new Groups.Builder().setValue(ImmutableList.of(group1, group2)).build())
+        .when(groupsRequestHelper)
+        .executeRequest(eq(initialGroupsRequest), any());
+
+    Member memberUser1 =
+        new Member.Builder()
+            .setId("user1")
+            .setMail("user1@googledomain.com")
+            .setMemberType("#microsoft.graph.user")
+            .build();
+    Member memberUser2 =
+        new Member.Builder()
+            .setId("user2")
+            .setMail("user2@googledomain.com")
+            .setMemberType("#microsoft.graph.user")
+            .build();
+    doAnswer(invocation -> new Members.Builder().setValue(ImmutableList.of(memberUser1)).build())
+        .when(membersRequestHelper)
+        .executeRequest(eq(buildMembersRequest("o365Group1")), any());
+    doAnswer(invocation -> new Members.Builder().setValue(ImmutableList.of(memberUser2)).build())
+        .when(membersRequestHelper)
+        .executeRequest(eq(buildMembersRequest("o365Group2")), any());
+    Membership user1Membership =
+        new Membership()
+            .setPreferredMemberKey(new EntityKey().setId("user1@googledomain.com"))
+            .setRoles(O365IdentityRepository.MEMBER_ROLES);
+    Membership user2Membership =
+        new Membership()
+            .setPreferredMemberKey(new EntityKey().setId("user2@googledomain.com"))
+            .setRoles(O365IdentityRepository.MEMBER_ROLES);
+    IdentityGroup identityGroup1 =
+        new IdentityGroup.Builder()
+            .setGroupIdentity("o365Group1")
+            .setGroupKey(new EntityKey().setId("o365Group1").setNamespace("ns1"))
+            .setMembers(ImmutableSet.of(user1Membership))
+            .build();
+    IdentityGroup identityGroup2 =
+        new IdentityGroup.Builder()
+            .setGroupIdentity("o365Group2")
+            .setGroupKey(new EntityKey().setId("o365Group2").setNamespace("ns1"))
+            .setMembers(ImmutableSet.of(user2Membership))
+            .build();
+    doAnswer(
+            invocation -> {
+              assertEquals(
+                  ImmutableSet.of(user1Membership),
+                  ((Supplier<Set<Membership>>) invocation.getArgument(1)).get());
+              return identityGroup1;
+            })
+        .when(repositoryContext)
+        .buildIdentityGroup(eq("o365Group1"), any());
+    doAnswer(
+            invocation -> {
+              assertEquals(
+                  ImmutableSet.of(user2Membership),
+                  ((Supplier<Set<Membership>>) invocation.getArgument(1)).get());
+              return identityGroup2;
+            })
+        .when(repositoryContext)
+        .buildIdentityGroup(eq("o365Group2"), any());
+    CheckpointCloseableIterable<IdentityGroup> listGroups = identityRepository.listGroups(null);
+    assertEquals(
+        ImmutableSet.of(identityGroup1, identityGroup2), ImmutableSet.copyOf(listGroups));
+    assertNull(listGroups.getCheckpoint());
+    assertFalse(listGroups.hasMore());
+    identityRepository.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testListGroupsBatchedMemberFetch() throws Exception {
+    O365RequestHelperFactory spyRquestHelperFactory = spy(new O365RequestHelperFactory());
+    O365IdentityRepository identityRepository = new O365IdentityRepository(spyRquestHelperFactory);
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.MEMBER_BATCH_SIZE_CONFIG, "20");
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    RequestHelper<Groups> groupsRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Groups.class))
+        .thenReturn(groupsRequestHelper);
+    RequestHelper<Members> membersRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Members.class))
+        .thenReturn(membersRequestHelper);
+    RequestHelper<BatchResponse> batchRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(BatchResponse.class))
+        .thenReturn(batchRequestHelper);
+    Group group1 = new Group.Builder().setId("o365Group1").build();
+    Group group2 = new Group.Builder().setId("o365Group2").build();
+    doAnswer(
+            invocation -> new Groups.Builder().setValue(ImmutableList.of(group1, group2)).build())
+        .when(groupsRequestHelper)
+        .executeRequest(
+            eq(
+                buildGroupsRequest(
+                    String.format(
+                        O365IdentityRepository.GROUPS_ENDPOINT_FORMAT,
+                        O365IdentityRepository.DEFAULT_GROUP_PAGINATION_SIZE))),
+            any());
+    doAnswer(
+            invocation ->
+                JacksonFactory.getDefaultInstance()
+                    .fromString(
+                        "{\"responses\": ["
+                            + "{\"id\": \"1\", \"status\": 200, \"body\": {\"value\": ["
+                            + "{\"@odata.type\": \"#microsoft.graph.user\", \"id\": \"user1\","
+                            + " \"mail\": \"user1@googledomain.com\"}]}},"
+                            + "{\"id\": \"2\", \"status\": 200, \"body\": {\"value\": []}}]}",
+                        BatchResponse.class))
+        .when(batchRequestHelper)
+        .executeRequest(any(), any());
+    Membership user1Membership =
+        new Membership()
+            .setPreferredMemberKey(new EntityKey().setId("user1@googledomain.com"))
+            .setRoles(O365IdentityRepository.MEMBER_ROLES);
+    IdentityGroup identityGroup1 =
+        new IdentityGroup.Builder()
+            .setGroupIdentity("o365Group1")
+            .setGroupKey(new EntityKey().setId("o365Group1").setNamespace("ns1"))
+            .setMembers(ImmutableSet.of(user1Membership))
+            .build();
+    IdentityGroup identityGroup2 =
+        new IdentityGroup.Builder()
+            .setGroupIdentity("o365Group2")
+            .setGroupKey(new EntityKey().setId("o365Group2").setNamespace("ns1"))
+            .setMembers(ImmutableSet.of())
+            .build();
+    doAnswer(
+            invocation -> {
+              assertEquals(
+                  ImmutableSet.of(user1Membership),
+                  ((Supplier<Set<Membership>>) invocation.getArgument(1)).get());
+              return identityGroup1;
+            })
+        .when(repositoryContext)
+        .buildIdentityGroup(eq("o365Group1"), any());
+    doAnswer(
+            invocation -> {
+              assertEquals(
+                  ImmutableSet.of(), ((Supplier<Set<Membership>>) invocation.getArgument(1)).get());
+              return identityGroup2;
+            })
+        .when(repositoryContext)
+        .buildIdentityGroup(eq("o365Group2"), any());
+    CheckpointCloseableIterable<IdentityGroup> listGroups = identityRepository.listGroups(null);
+    assertEquals(
+        ImmutableSet.of(identityGroup1, identityGroup2), ImmutableSet.copyOf(listGroups));
+    verify(batchRequestHelper, times(1)).executeRequest(any(), any());
+    verify(membersRequestHelper, never()).executeRequest(any(), any());
+    identityRepository.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testListGroupsDeltaSync() throws Exception {
+    O365RequestHelperFactory spyRquestHelperFactory = spy(new O365RequestHelperFactory());
+    O365IdentityRepository identityRepository = new O365IdentityRepository(spyRquestHelperFactory);
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.USER_DELTA_SYNC_CONFIG, "true");
+    config.put(O365IdentityRepository.GROUP_DELTA_SYNC_CONFIG, "true");
+    config.put(
+        O365IdentityRepository.STATE_DIRECTORY_CONFIG, temporaryFolder.getRoot().toString());
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    RequestHelper<Users> usersRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Users.class))
+        .thenReturn(usersRequestHelper);
+    RequestHelper<Groups> groupsRequestHelper = spy(new RequestHelper<>());
+    when(spyRquestHelperFactory.getO365RequestHelper(Groups.class))
+        .thenReturn(groupsRequestHelper);
+    User user1 =
+        new User.Builder()
+            .setId("user1")
+            .setMail("user1@googledomain.com")
+            .setUserPrincipalName("user1@o365domain.com")
+            .build();
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Users.Builder()
+                        .setValue(ImmutableList.of(user1))
+                        .setOdataDeltalink(
+                            O365IdentityRepository.USERS_DELTA_ENDPOINT + "?t=1")
+                        .build()))
+        .when(usersRequestHelper)
+        .executeRequest(
+            eq(buildUsersRequest(O365IdentityRepository.USERS_DELTA_ENDPOINT)),
+            any(),
+            any(),
+            any());
+    when(repositoryContext.buildIdentityUser("user1@googledomain.com", "user1@o365domain.com"))
+        .thenReturn(
+            new IdentityUser.Builder()
+                .setGoogleIdentity("user1@googledomain.com")
+                .setUserIdentity("user1@o365domain.com")
+                .setSchema("schema")
+                .setAttribute("attribute")
+                .build());
+
+    String groupsDelta = O365IdentityRepository.GROUPS_DELTA_ENDPOINT;
+    Member memberUser =
+        new Member.Builder().setId("user1").setMemberType("#microsoft.graph.user").build();
+    Member memberGroup =
+        new Member.Builder().setId("o365Group2").setMemberType("#microsoft.graph.group").build();
+    Group group1 =
+        new Group.Builder()
+            .setId("o365Group1")
+            .setMembersDelta(ImmutableList.of(memberUser, memberGroup))
+            .build();
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Groups.Builder()
+                        .setValue(ImmutableList.of(group1))
+                        .setOdataDeltalink(groupsDelta + "&t=1")
+                        .build()))
+        .when(groupsRequestHelper)
+        .executeRequest(eq(buildGroupsRequest(groupsDelta)), any(), any(), any());
+    Member removedMemberGroup =
+        new Member.Builder()
+            .setId("o365Group2")
+            .setMemberType("#microsoft.graph.group")
+            .setRemovedReason("deleted")
+            .build();
+    Group group1Changed =
+        new Group.Builder()
+            .setId("o365Group1")
+            .setMembersDelta(ImmutableList.of(removedMemberGroup))
+            .build();
+    doAnswer(
+            invocation ->
+                streamPage(
+                    invocation,
+                    new Groups.Builder()
+                        .setValue(ImmutableList.of(group1Changed))
+                        .setOdataDeltalink(groupsDelta + "&t=2")
+                        .build()))
+        .when(groupsRequestHelper)
+        .executeRequest(eq(buildGroupsRequest(groupsDelta + "&t=1")), any(), any(), any());
+
+    Membership userMembership =
+        new Membership()
+            .setPreferredMemberKey(new EntityKey().setId("user1@googledomain.com"))
+            .setRoles(O365IdentityRepository.MEMBER_ROLES);
+    EntityKey groupMemberKey = new EntityKey().setId("o365Group2").setNamespace("ns");
+    when(repositoryContext.buildEntityKeyForGroup("o365Group2")).thenReturn(groupMemberKey);
+    Membership groupMembership =
+        new Membership()
+            .setPreferredMemberKey(groupMemberKey)
+            .setRoles(O365IdentityRepository.MEMBER_ROLES);
+    IdentityGroup identityGroup1 =
+        new IdentityGroup.Builder()
+            .setGroupIdentity("o365Group1")
+            .setGroupKey(new EntityKey().setId("o365Group1").setNamespace("ns1"))
+            .setMembers(ImmutableSet.of(userMembership))
+            .build();
+    List<Set<Membership>> emittedMemberships = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              emittedMemberships.add(
+                  ((Supplier<Set<Membership>>) invocation.getArgument(1)).get());
+              return identityGroup1;
+            })
+        .when(repositoryContext)
+        .buildIdentityGroup(eq("o365Group1"), any());
+
+    ImmutableList.copyOf(identityRepository.listUsers(null));
+    CheckpointCloseableIterable<IdentityGroup> firstRound = identityRepository.listGroups(null);
+    assertEquals(ImmutableList.of(identityGroup1), ImmutableList.copyOf(firstRound));
+    assertFalse(firstRound.hasMore());
+    CheckpointCloseableIterable<IdentityGroup> secondRound = identityRepository.listGroups(null);
+    assertEquals(ImmutableList.of(identityGroup1), ImmutableList.copyOf(secondRound));
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSet.of(userMembership, groupMembership), ImmutableSet.of(userMembership)),
+        emittedMemberships);
+  }
+
+  @Test
+  public void testInitGroupDeltaSyncWithoutUserDeltaSync() throws Exception {
+    O365IdentityRepository identityRepository = new O365IdentityRepository();
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.GROUP_DELTA_SYNC_CONFIG, "true");
+    setupBaseConfiguration(config);
+    thrown.expect(InvalidConfigurationException.class);
+    identityRepository.init(repositoryContext);
+  }
+
+  @Test
+  public void testInitGroupSnapshotEnablesDirectoryStore() throws Exception {
+    Path stateDirectory = temporaryFolder.getRoot().toPath();
+    Path snapshotFile = stateDirectory.resolve(O365IdentityRepository.GROUP_SNAPSHOT_FILE);
+    Files.write(snapshotFile, new byte[] {1, 2, 3});
+    O365IdentityRepository identityRepository = new O365IdentityRepository();
+    Properties config = new Properties();
+    config.put(O365IdentityRepository.GROUP_SNAPSHOT_CONFIG, "true");
+    config.put(O365IdentityRepository.STATE_DIRECTORY_CONFIG, stateDirectory.toString());
+    setupBaseConfiguration(config);
+    identityRepository.init(repositoryContext);
+    identityRepository.close();
+    assertFalse(Files.exists(snapshotFile));
+    assertTrue(
+        Files.exists(stateDirectory.resolve(O365IdentityRepository.DIRECTORY_STORE_FILE)));
+  }
+
+  @Test
+  public void testInitInvalidMemberFetchConcurrency() throws Exception {
+    O365IdentityRepository identityRepository = new O365IdentityRepository();
     Properties config = new Properties();
+    config.put(O365IdentityRepository.MEMBER_FETCH_CONCURRENCY_CONFIG, "0");
+    setupBaseConfiguration(config);
+    thrown.expect(InvalidConfigurationException.class);
+    identityRepository.init(repositoryContext);
+  }
+
+  /** Answers a streaming page request by passing the objects of {@code page} to its consumer. */
+  private static PageLinks streamPage(InvocationOnMock invocation, DirectoryObjects page) {
+    Consumer<DirectoryObject> consumer = invocation.getArgument(3);
+    page.getValue().forEach(consumer);
+    return PageLinks.of(page);
+  }
+
+  private static Request<Users> buildUsersRequest(String url) throws Exception {
+    return new GetRequest.Builder<Users>()
+        .setRequestURL(new URL(url))
+        .setResponseClass(Users.class)
+        .build();
+  }
+
+  private static Request<Groups> buildGroupsRequest(String url) throws Exception {
+    return new GetRequest.Builder<Groups>()
+        .setRequestURL(new URL(url))
+        .setResponseClass(Groups.class)
+        .build();
+  }
+
+  private static Request<Members> buildMembersRequest(String groupId) throws Exception {
+    return new GetRequest.Builder<Members>()
+        .setRequestURL(
+            new URL(
+                String.format(
+                    O365IdentityRepository.MEMBERS_ENDPOINT_FORMAT,
+                    groupId,
+                    O365IdentityRepository.DEFAULT_MEMBER_PAGINATION_SIZE)))
+        .setResponseClass(Members.class)
+        .build();
+  }
+
+  private void setupBaseConfiguration() {
+    setupBaseConfiguration(new Properties());
+  }
+
+  private void setupBaseConfiguration(Properties config) {
     config.put(ApiConnection.CLIENT_ID, "client id");
     config.put(ApiConnection.CLIENT_SECRET, "secret");
     config.put(ApiConnection.TENANT, "tenant");
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ObjectIdSetTest {
+  private static final String GUID1 = "4562bcc8-c436-4f95-b7c0-4f8ce89dca5e";
+  private static final String GUID2 = "00000000-0000-4000-8000-00000000002a";
+  private static final String NIL_GUID = "00000000-0000-0000-0000-000000000000";
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testParse_roundTrips() {
+    String maxGuid = "ffffffff-ffff-ffff-ffff-ffffffffffff";
+    for (String id : new String[] {GUID1, GUID2, NIL_GUID, maxGuid}) {
+      assertEquals(id, ObjectId.parse(id).toString());
+    }
+    assertEquals(ObjectId.parse(GUID1), ObjectId.parse(GUID1));
+  }
+
+  @Test
+  public void testParse_notCanonical_null() {
+    assertNull(ObjectId.parse(GUID1.toUpperCase()));
+    assertNull(ObjectId.parse("4562bcc8c4364f95b7c04f8ce89dca5e"));
+    assertNull(ObjectId.parse("4562bcc8-c436-4f95-b7c0-4f8ce89dca5g"));
+    assertNull(ObjectId.parse("{562bcc8-c436-4f95-b7c0-4f8ce89dca5}"));
+    assertNull(ObjectId.parse("user@example.com"));
+  }
+
+  @Test
+  public void testGuidsAndOtherIds() {
+    Set<String> set = new ObjectIdSet();
+    assertTrue(set.add(GUID1));
+    assertTrue(set.add("not-a-guid"));
+    assertTrue(set.add(NIL_GUID));
+    assertTrue(set.add(GUID1.toUpperCase()));
+    assertFalse(set.add(GUID1));
+    assertEquals(ImmutableSet.of(GUID1, "not-a-guid", NIL_GUID, GUID1.toUpperCase()), set);
+    assertTrue(set.contains(GUID1));
+    assertFalse(set.contains(GUID2));
+    assertFalse(set.contains(42));
+  }
+
+  @Test
+  public void testRemove() {
+    Set<String> set = new ObjectIdSet();
+    assertFalse(set.remove(GUID1));
+    set.add(GUID1);
+    set.add(GUID2);
+    set.add("not-a-guid");
+    assertTrue(set.remove(GUID1));
+    assertFalse(set.remove(GUID1));
+    assertTrue(set.remove("not-a-guid"));
+    assertEquals(ImmutableSet.of(GUID2), set);
+  }
+
+  @Test
+  public void testManyIds_matchHashSet() {
+    Set<String> set = new ObjectIdSet();
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < 5000; i++) {
+      String id = UUID.randomUUID().toString();
+      set.add(id);
+      expected.add(id);
+    }
+    int removed = 0;
+    for (Iterator<String> ids = expected.iterator(); ids.hasNext(); ) {
+      String id = ids.next();
+      if (removed++ % 3 == 0) {
+        assertTrue(set.remove(id));
+        ids.remove();
+      }
+    }
+    assertEquals(expected, set);
+    for (String id : expected) {
+      assertTrue(set.contains(id));
+    }
+  }
+
+  @Test
+  public void testIteratorRemove_throwsException() {
+    Set<String> set = new ObjectIdSet();
+    set.add(GUID1);
+    Iterator<String> ids = set.iterator();
+    ids.next();
+    thrown.expect(UnsupportedOperationException.class);
+    ids.remove();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.o365.model.User;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UserDeltaStateTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path stateFile;
+
+  @Before
+  public void setUp() {
+    stateFile = temporaryFolder.getRoot().toPath().resolve("users.delta");
+  }
+
+  @Test
+  public void testApply_omittedFields_keptFromExistingUser() throws IOException {
+    UserDeltaState state = UserDeltaState.load(stateFile);
+    state.apply(
+        User.parse(
+            "{\"id\": \"id1\", \"mail\": \"user1@example.com\","
+                + " \"userPrincipalName\": \"user1@o365.com\", \"accountEnabled\": true}"));
+    state.apply(User.parse("{\"id\": \"id1\", \"mail\": \"renamed@example.com\"}"));
+
+    User user = state.getUser("id1");
+    assertEquals("renamed@example.com", user.getMail());
+    assertEquals("user1@o365.com", user.getUserPrincipalName());
+    assertTrue(user.isAccountEnabled());
+  }
+
+  @Test
+  public void testApply_accountDisabled_replacesExistingValue() throws IOException {
+    UserDeltaState state = UserDeltaState.load(stateFile);
+    state.apply(User.parse("{\"id\": \"id1\", \"accountEnabled\": true}"));
+    state.apply(User.parse("{\"id\": \"id1\", \"accountEnabled\": false}"));
+    assertFalse(state.getUser("id1").isAccountEnabled());
+  }
+
+  @Test
+  public void testCommit_reloaded() throws IOException {
+    UserDeltaState state = UserDeltaState.load(stateFile);
+    state.apply(User.parse("{\"id\": \"id1\", \"accountEnabled\": true}"));
+    state.apply(User.parse("{\"id\": \"id2\", \"accountEnabled\": true}"));
+    state.apply(User.parse("{\"id\": \"id2\", \"@removed\": {\"reason\": \"deleted\"}}"));
+    state.commit("https://delta");
+
+    UserDeltaState reloaded = UserDeltaState.load(stateFile);
+    assertEquals("https://delta", reloaded.getDeltaLink());
+    assertTrue(reloaded.getUser("id1").isAccountEnabled());
+    assertNull(reloaded.getUser("id2"));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.model;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.cloudsearch.o365.model.DirectoryObjectsDecoder.PageLinks;
+import com.google.enterprise.cloudsearch.o365.util.LoadTestJson;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/** Unit tests for {@link DirectoryObjectsDecoder}. */
+public class DirectoryObjectsDecoderTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void decodePage_users() throws IOException {
+    String json = LoadTestJson.loadTestJson("get_users.json", Users.class);
+    Users users = DirectoryObjectsDecoder.decodePage(toStream(json), Users.class);
+    assertEquals("https://graph.microsoft.com/v1.0/$metadata#users", users.getOdataContext());
+    assertNull(users.getOdataNextlink());
+    assertEquals(9, users.getValue().size());
+    assertEquals(
+        new User.Builder()
+            .setId("87726fae-5a66-4c14-96f0-27aad653970f")
+            .setMail("user1@test.onmicrosoft.com")
+            .setUserPrincipalName("user1@test.onmicrosoft.com")
+            .build(),
+        users.getValue().get(0));
+  }
+
+  @Test
+  public void decode_memberTypesShared() throws IOException {
+    String json =
+        "{\"value\": ["
+            + "{\"@odata.type\": \"#microsoft.graph.user\", \"id\": \"1\"},"
+            + "{\"@odata.type\": \"#microsoft.graph.device\", \"id\": \"2\"},"
+            + "{\"@odata.type\": \"#microsoft.graph.device\", \"id\": \"3\"}]}";
+    List<Member> members = new ArrayList<>();
+    DirectoryObjectsDecoder.MEMBERS.decode(toStream(json), members::add);
+    assertSame(Member.MEMBER_TYPE_USER, members.get(0).getMemberType());
+    assertEquals("#microsoft.graph.device", members.get(1).getMemberType());
+    assertSame(members.get(1).getMemberType(), members.get(2).getMemberType());
+  }
+
+  @Test
+  public void decode_usersDeltaPage() throws IOException {
+    String json =
+        "{\"value\": ["
+            + "{\"id\": \"1\", \"mail\": \"a@x.com\", \"accountEnabled\": true,"
+            + " \"department\": \"Sales\", \"businessPhones\": [\"1\", {\"a\": 2}]},"
+            + "null,"
+            + "{\"mail\": \"no-id@x.com\"},"
+            + "{\"id\": \"2\", \"@removed\": {\"reason\": \"deleted\"}}],"
+            + " \"@odata.nextLink\": \"https://next\"}";
+    List<User> users = new ArrayList<>();
+    PageLinks links = DirectoryObjectsDecoder.USERS.decode(toStream(json), users::add);
+    assertEquals("https://next", links.getOdataNextlink());
+    assertNull(links.getOdataDeltalink());
+    assertEquals(2, users.size());
+    User user = users.get(0);
+    assertEquals("1", user.getId());
+    assertEquals("a@x.com", user.getMail());
+    assertTrue(user.isAccountEnabled());
+    assertTrue(user.hasAccountEnabled());
+    assertFalse(user.isRemoved());
+    User removed = users.get(1);
+    assertEquals("2", removed.getId());
+    assertFalse(removed.hasAccountEnabled());
+    assertEquals("deleted", removed.getRemovedReason());
+  }
+
+  @Test
+  public void decode_groupsDeltaPage() throws IOException {
+    String group = LoadTestJson.loadTestJson("get_group_delta.json", Group.class);
+    String json =
+        "{\"@odata.context\": \"ctx\", \"value\": [" + group + "],"
+            + " \"@odata.deltaLink\": \"https://delta\"}";
+    List<Group> groups = new ArrayList<>();
+    PageLinks links = DirectoryObjectsDecoder.GROUPS.decode(toStream(json), groups::add);
+    assertEquals("ctx", links.getOdataContext());
+    assertEquals("https://delta", links.getOdataDeltalink());
+    assertEquals(1, groups.size());
+    List<Member> membersDelta = groups.get(0).getMembersDelta();
+    assertEquals(2, membersDelta.size());
+    assertTrue(membersDelta.get(0).isUser());
+    assertFalse(membersDelta.get(0).isRemoved());
+    assertTrue(membersDelta.get(1).isGroup());
+    assertEquals("deleted", membersDelta.get(1).getRemovedReason());
+  }
+
+  @Test
+  public void decode_truncatedPage() throws IOException {
+    thrown.expect(IOException.class);
+    DirectoryObjectsDecoder.MEMBERS.decode(toStream("{\"value\": [{\"id\": \"1\"}"), m -> {});
+  }
+
+  private static InputStream toStream(String json) {
+    return new ByteArrayInputStream(json.getBytes(UTF_8));
+  }
+}
@@ -16,6 +16,7 @@
 package com.google.enterprise.cloudsearch.o365.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.enterprise.cloudsearch.o365.util.LoadTestJson;
@@ -25,6 +26,7 @@ import org.junit.Test;
 public class GroupTest {
 
   private static final String GROUP_RESPONSE = "get_group.json";
+  private static final String GROUP_DELTA_RESPONSE = "get_group_delta.json";
 
   @Test
   public void test() throws IOException {
@@ -32,4 +34,19 @@ public class GroupTest {
     assertTrue(group.isValid());
     assertEquals("5433b4fc-bd1c-4c31-8ebd-77d1e294a217", group.getId());
   }
+
+  @Test
+  public void testMembersDelta() throws IOException {
+    Group group = Group.parse(LoadTestJson.loadTestJson(GROUP_DELTA_RESPONSE, GroupTest.class));
+    assertFalse(group.isRemoved());
+    assertEquals(2, group.getMembersDelta().size());
+    Member added = group.getMembersDelta().get(0);
+    assertTrue(added.isUser());
+    assertFalse(added.isRemoved());
+    assertEquals("87726fae-5a66-4c14-96f0-27aad653970f", added.getId());
+    Member removed = group.getMembersDelta().get(1);
+    assertTrue(removed.isGroup());
+    assertTrue(removed.isRemoved());
+    assertEquals("deleted", removed.getRemovedReason());
+  }
 }
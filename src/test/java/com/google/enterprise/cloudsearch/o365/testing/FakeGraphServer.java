@@ -0,0 +1,617 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.testing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.cloudsearch.o365.Endpoints;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Local HTTP server standing in for Microsoft Graph and the Azure AD token endpoint, serving a
+ * {@link SyntheticTenant}.
+ *
+ * <p>Point the connector at it by setting {@link Endpoints#GRAPH_BASE_URL_CONFIG} to {@link
+ * #getGraphBaseUrl} and {@link Endpoints#LOGIN_BASE_URL_CONFIG} to {@link #getLoginBaseUrl}. The
+ * server implements
+ *
+ * <ul>
+ *   <li>{@code POST /{tenant}/oauth2/v2.0/token}, issuing tokens for any client,
+ *   <li>{@code GET /users}, {@code /groups} and {@code /groups/{id}/members}, paged by {@code
+ *       $top} and {@code @odata.nextLink},
+ *   <li>{@code GET /users/delta} and {@code /groups/delta}, whose delta links report no further
+ *       changes, since the tenant does not change,
+ *   <li>{@code POST /$batch} of the above.
+ * </ul>
+ *
+ * <p>Graph requests without a token issued by this server fail with 401. Every response is
+ * delayed by the configured latency, a configured fraction of Graph requests and batched requests
+ * is answered with 429 and a {@code Retry-After}, and responses are gzip encoded when the client
+ * accepts it. {@code $select} is ignored.
+ */
+public final class FakeGraphServer implements Closeable {
+  private static final Logger logger = Logger.getLogger(FakeGraphServer.class.getName());
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  static final String GRAPH_PATH = "/v1.0";
+  static final String TOKEN_PREFIX = "fake-token-";
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_BATCH_SIZE = 20;
+  private static final String USER_TYPE = "#microsoft.graph.user";
+  private static final String GROUP_TYPE = "#microsoft.graph.group";
+
+  private final SyntheticTenant tenant;
+  private final long latencyMillis;
+  private final double throttleRate;
+  private final int retryAfterSeconds;
+  private final int maxPageSize;
+  private final int deltaPageSize;
+  private final int tokenExpiresInSeconds;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final String tokenPath;
+  private final Set<String> validTokens = ConcurrentHashMap.newKeySet();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong graphRequestCount = new AtomicLong();
+  private final AtomicLong throttledCount = new AtomicLong();
+  private final AtomicLong tokenRequestCount = new AtomicLong();
+
+  private FakeGraphServer(Builder builder) throws IOException {
+    tenant = builder.tenant;
+    latencyMillis = builder.latencyMillis;
+    throttleRate = builder.throttleRate;
+    retryAfterSeconds = builder.retryAfterSeconds;
+    maxPageSize = builder.maxPageSize;
+    deltaPageSize = builder.deltaPageSize;
+    tokenExpiresInSeconds = builder.tokenExpiresInSeconds;
+    tokenPath = "/" + tenant.getName() + "/oauth2/v2.0/token";
+    executor =
+        Executors.newFixedThreadPool(
+            builder.threads,
+            new ThreadFactoryBuilder().setNameFormat("fake-graph-%d").setDaemon(true).build());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** Returns the URL to configure as the Microsoft Graph base URL. */
+  public String getGraphBaseUrl() {
+    return getLoginBaseUrl() + GRAPH_PATH;
+  }
+
+  /** Returns the URL to configure as the Azure AD login base URL. */
+  public String getLoginBaseUrl() {
+    InetSocketAddress address = server.getAddress();
+    return "http://" + address.getHostString() + ":" + address.getPort();
+  }
+
+  public SyntheticTenant getTenant() {
+    return tenant;
+  }
+
+  /** Returns the number of HTTP requests received, including token and batch requests. */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /** Returns the number of Graph requests handled, counting every request of a batch. */
+  public long getGraphRequestCount() {
+    return graphRequestCount.get();
+  }
+
+  /** Returns the number of Graph requests answered with 429. */
+  public long getThrottledCount() {
+    return throttledCount.get();
+  }
+
+  public long getTokenRequestCount() {
+    return tokenRequestCount.get();
+  }
+
+  /** Invalidates all issued tokens, so that Graph requests fail with 401 until a new token. */
+  public void revokeTokens() {
+    validTokens.clear();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      requestCount.incrementAndGet();
+      sleep(latencyMillis);
+      write(exchange, respond(exchange));
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to handle " + exchange.getRequestURI(), e);
+      throw e;
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Response respond(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getRawPath();
+    if (path.equals(tokenPath)) {
+      return "POST".equals(method) ? issueToken() : error(405, "MethodNotAllowed");
+    }
+    if (!path.startsWith(GRAPH_PATH + "/")) {
+      return error(404, "NotFound");
+    }
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    if (authorization == null
+        || !authorization.startsWith("Bearer ")
+        || !validTokens.contains(authorization.substring("Bearer ".length()))) {
+      return error(401, "InvalidAuthenticationToken");
+    }
+    String graphPath = path.substring(GRAPH_PATH.length());
+    if ("POST".equals(method) && graphPath.equals("/$batch")) {
+      return batch(exchange.getRequestBody());
+    }
+    if (!"GET".equals(method)) {
+      return error(405, "MethodNotAllowed");
+    }
+    return get(graphPath, exchange.getRequestURI().getRawQuery());
+  }
+
+  private Response issueToken() {
+    String token = TOKEN_PREFIX + tokenRequestCount.incrementAndGet();
+    validTokens.add(token);
+    return new Response(
+        200,
+        generator -> {
+          generator.writeStartObject();
+          generator.writeFieldName("token_type");
+          generator.writeString("Bearer");
+          generator.writeFieldName("expires_in");
+          generator.writeNumber(tokenExpiresInSeconds);
+          generator.writeFieldName("ext_expires_in");
+          generator.writeNumber(tokenExpiresInSeconds);
+          generator.writeFieldName("access_token");
+          generator.writeString(token);
+          generator.writeEndObject();
+        });
+  }
+
+  /** Serves a Graph GET request, after counting it and possibly throttling it. */
+  private Response get(String path, String rawQuery) {
+    long request = graphRequestCount.incrementAndGet();
+    if (Math.floor(request * throttleRate) > Math.floor((request - 1) * throttleRate)) {
+      throttledCount.incrementAndGet();
+      Response response = error(429, "TooManyRequests");
+      response.headers.put("Retry-After", Integer.toString(retryAfterSeconds));
+      return response;
+    }
+    Map<String, String> query = parseQuery(rawQuery);
+    switch (path) {
+      case "/users":
+        return page(path, query, tenant.getUserCount(), getTop(query), this::writeUser);
+      case "/groups":
+        return page(path, query, tenant.getGroupCount(), getTop(query), this::writeGroup);
+      case "/users/delta":
+        return deltaPage(path, query, tenant.getUserCount(), this::writeUser);
+      case "/groups/delta":
+        return deltaPage(path, query, tenant.getGroupCount(), this::writeGroupDelta);
+      default:
+        if (path.startsWith("/groups/") && path.endsWith("/members")) {
+          return members(path, query);
+        }
+        return error(404, "Request_ResourceNotFound");
+    }
+  }
+
+  private Response members(String path, Map<String, String> query) {
+    String groupId = path.substring("/groups/".length(), path.length() - "/members".length());
+    int group = tenant.getGroupIndex(groupId);
+    if (group < 0) {
+      return error(404, "Request_ResourceNotFound");
+    }
+    int[] users = tenant.getUserMembers(group);
+    int[] groups = tenant.getGroupMembers(group);
+    return page(
+        path,
+        query,
+        users.length + groups.length,
+        getTop(query),
+        (generator, i) -> {
+          if (i < users.length) {
+            writeMember(generator, USER_TYPE, tenant.getUserId(users[i]), users[i]);
+          } else {
+            writeMember(generator, GROUP_TYPE, tenant.getGroupId(groups[i - users.length]), -1);
+          }
+        });
+  }
+
+  private Response page(
+      String path, Map<String, String> query, int total, int top, ItemWriter itemWriter) {
+    return page(path, query, total, top, itemWriter, null);
+  }
+
+  /**
+   * Returns the page of {@code total} items selected by the {@code $skiptoken} of {@code query},
+   * linking to the next page, or to {@code deltaLink} from the last page if it is not null.
+   */
+  private Response page(
+      String path,
+      Map<String, String> query,
+      int total,
+      int top,
+      ItemWriter itemWriter,
+      @Nullable String deltaLink) {
+    int skip = getInt(query, "$skiptoken", 0);
+    int end = (int) Math.min(total, (long) skip + top);
+    String nextLink = end < total ? link(path, query, "$skiptoken", Integer.toString(end)) : null;
+    return new Response(
+        200,
+        generator -> {
+          generator.writeStartObject();
+          generator.writeFieldName("@odata.context");
+          generator.writeString(getGraphBaseUrl() + "/$metadata#directoryObjects");
+          if (nextLink != null) {
+            generator.writeFieldName("@odata.nextLink");
+            generator.writeString(nextLink);
+          }
+          generator.writeFieldName("value");
+          generator.writeStartArray();
+          for (int i = skip; i < end; i++) {
+            itemWriter.write(generator, i);
+          }
+          generator.writeEndArray();
+          if (nextLink == null && deltaLink != null) {
+            generator.writeFieldName("@odata.deltaLink");
+            generator.writeString(deltaLink);
+          }
+          generator.writeEndObject();
+        });
+  }
+
+  private Response deltaPage(
+      String path, Map<String, String> query, int total, ItemWriter itemWriter) {
+    // A round that starts from a delta link has nothing left to report.
+    int totalInRound = query.containsKey("$deltatoken") ? 0 : total;
+    String deltaLink = getGraphBaseUrl() + path + "?$deltatoken=latest";
+    return page(path, query, totalInRound, deltaPageSize, itemWriter, deltaLink);
+  }
+
+  private Response batch(InputStream content) throws IOException {
+    GenericJson body = JSON_FACTORY.fromInputStream(content, UTF_8, GenericJson.class);
+    Object requestsValue = body.get("requests");
+    if (!(requestsValue instanceof List)) {
+      return error(400, "BadRequest");
+    }
+    List<?> requests = (List<?>) requestsValue;
+    if (requests.size() > MAX_BATCH_SIZE) {
+      return error(400, "BadRequest");
+    }
+    Map<String, Response> responses = new LinkedHashMap<>();
+    for (Object item : requests) {
+      Map<?, ?> request = (Map<?, ?>) item;
+      String id = String.valueOf(request.get("id"));
+      String url = String.valueOf(request.get("url"));
+      if (!"GET".equals(request.get("method"))) {
+        responses.put(id, error(405, "MethodNotAllowed"));
+        continue;
+      }
+      int queryStart = url.indexOf('?');
+      responses.put(
+          id,
+          queryStart < 0
+              ? get(url, null)
+              : get(url.substring(0, queryStart), url.substring(queryStart + 1)));
+    }
+    return new Response(
+        200,
+        generator -> {
+          generator.writeStartObject();
+          generator.writeFieldName("responses");
+          generator.writeStartArray();
+          for (Map.Entry<String, Response> response : responses.entrySet()) {
+            generator.writeStartObject();
+            generator.writeFieldName("id");
+            generator.writeString(response.getKey());
+            generator.writeFieldName("status");
+            generator.writeNumber(response.getValue().status);
+            generator.writeFieldName("headers");
+            generator.writeStartObject();
+            for (Map.Entry<String, String> header : response.getValue().headers.entrySet()) {
+              generator.writeFieldName(header.getKey());
+              generator.writeString(header.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeFieldName("body");
+            response.getValue().body.write(generator);
+            generator.writeEndObject();
+          }
+          generator.writeEndArray();
+          generator.writeEndObject();
+        });
+  }
+
+  private void writeUser(JsonGenerator generator, int user) throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("id");
+    generator.writeString(tenant.getUserId(user));
+    generator.writeFieldName("mail");
+    generator.writeString(tenant.getUserMail(user));
+    generator.writeFieldName("userPrincipalName");
+    generator.writeString(tenant.getUserPrincipalName(user));
+    generator.writeFieldName("accountEnabled");
+    generator.writeBoolean(true);
+    generator.writeEndObject();
+  }
+
+  private void writeGroup(JsonGenerator generator, int group) throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("id");
+    generator.writeString(tenant.getGroupId(group));
+    generator.writeEndObject();
+  }
+
+  private void writeGroupDelta(JsonGenerator generator, int group) throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("id");
+    generator.writeString(tenant.getGroupId(group));
+    generator.writeFieldName("members@delta");
+    generator.writeStartArray();
+    for (int user : tenant.getUserMembers(group)) {
+      writeMember(generator, USER_TYPE, tenant.getUserId(user), -1);
+    }
+    for (int member : tenant.getGroupMembers(group)) {
+      writeMember(generator, GROUP_TYPE, tenant.getGroupId(member), -1);
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+  }
+
+  /** Writes a member, with the mail of {@code user} unless it is negative. */
+  private void writeMember(JsonGenerator generator, String type, String id, int user)
+      throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("@odata.type");
+    generator.writeString(type);
+    generator.writeFieldName("id");
+    generator.writeString(id);
+    if (user >= 0) {
+      generator.writeFieldName("mail");
+      generator.writeString(tenant.getUserMail(user));
+    }
+    generator.writeEndObject();
+  }
+
+  private int getTop(Map<String, String> query) {
+    return Math.max(1, Math.min(maxPageSize, getInt(query, "$top", DEFAULT_PAGE_SIZE)));
+  }
+
+  private static int getInt(Map<String, String> query, String name, int defaultValue) {
+    String value = query.get(name);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /** Returns a link to {@code path} with {@code query}, replacing the value of {@code name}. */
+  private String link(String path, Map<String, String> query, String name, String value) {
+    StringBuilder link = new StringBuilder(getGraphBaseUrl()).append(path);
+    char separator = '?';
+    for (Map.Entry<String, String> parameter : query.entrySet()) {
+      if (!parameter.getKey().equals(name)) {
+        link.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+        separator = '&';
+      }
+    }
+    return link.append(separator).append(name).append('=').append(value).toString();
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    if (Strings.isNullOrEmpty(rawQuery)) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> query = new LinkedHashMap<>();
+    for (String parameter : rawQuery.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals < 0) {
+        query.put(decode(parameter), "");
+      } else {
+        query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+      }
+    }
+    return query;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Response error(int status, String code) {
+    return new Response(
+        status,
+        generator -> {
+          generator.writeStartObject();
+          generator.writeFieldName("error");
+          generator.writeStartObject();
+          generator.writeFieldName("code");
+          generator.writeString(code);
+          generator.writeFieldName("message");
+          generator.writeString(code);
+          generator.writeEndObject();
+          generator.writeEndObject();
+        });
+  }
+
+  private static void write(HttpExchange exchange, Response response) throws IOException {
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    response.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+    if (gzip) {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    // Length 0 sends a chunked body of any length.
+    exchange.sendResponseHeaders(response.status, 0);
+    OutputStream body = exchange.getResponseBody();
+    if (gzip) {
+      body = new GZIPOutputStream(body, 8192);
+    }
+    JsonGenerator generator = JSON_FACTORY.createJsonGenerator(body, UTF_8);
+    response.body.write(generator);
+    generator.flush();
+    body.close();
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @FunctionalInterface
+  private interface BodyWriter {
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface ItemWriter {
+    void write(JsonGenerator generator, int index) throws IOException;
+  }
+
+  private static class Response {
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<>();
+    final BodyWriter body;
+
+    Response(int status, BodyWriter body) {
+      this.status = status;
+      this.body = body;
+      headers.put("Content-Type", "application/json");
+    }
+  }
+
+  /** Builder for {@link FakeGraphServer}. */
+  public static final class Builder {
+    private final SyntheticTenant tenant;
+    private long latencyMillis = 0;
+    private double throttleRate = 0;
+    private int retryAfterSeconds = 1;
+    private int maxPageSize = 999;
+    private int deltaPageSize = 200;
+    private int tokenExpiresInSeconds = 3599;
+    private int threads = 16;
+
+    public Builder(SyntheticTenant tenant) {
+      this.tenant = checkNotNull(tenant, "tenant can not be null");
+    }
+
+    /** Sets the delay before every response. */
+    public Builder setLatencyMillis(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    /** Sets the fraction of Graph requests, from 0 to 1, answered with 429. */
+    public Builder setThrottleRate(double throttleRate) {
+      this.throttleRate = throttleRate;
+      return this;
+    }
+
+    public Builder setRetryAfterSeconds(int retryAfterSeconds) {
+      this.retryAfterSeconds = retryAfterSeconds;
+      return this;
+    }
+
+    /** Sets the largest {@code $top} honored. */
+    public Builder setMaxPageSize(int maxPageSize) {
+      this.maxPageSize = maxPageSize;
+      return this;
+    }
+
+    /** Sets the number of objects per delta page. */
+    public Builder setDeltaPageSize(int deltaPageSize) {
+      this.deltaPageSize = deltaPageSize;
+      return this;
+    }
+
+    /** Sets the {@code expires_in} of issued tokens. */
+    public Builder setTokenExpiresInSeconds(int tokenExpiresInSeconds) {
+      this.tokenExpiresInSeconds = tokenExpiresInSeconds;
+      return this;
+    }
+
+    /** Sets the number of requests served concurrently. */
+    public Builder setThreads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    /** Starts a server on a free loopback port. */
+    public FakeGraphServer start() throws IOException {
+      checkArgument(latencyMillis >= 0, "latency can not be negative");
+      checkArgument(throttleRate >= 0 && throttleRate <= 1, "throttle rate must be 0 to 1");
+      checkArgument(retryAfterSeconds >= 0, "retry after can not be negative");
+      checkArgument(maxPageSize > 0, "max page size must be positive");
+      checkArgument(deltaPageSize > 0, "delta page size must be positive");
+      checkArgument(threads > 0, "threads must be positive");
+      return new FakeGraphServer(this);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.enterprise.cloudsearch.o365.testing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Strings;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generated Azure AD tenant served by {@link FakeGraphServer}.
+ *
+ * <p>Users and groups are identified by their index. Ids, mails and user principal names are
+ * derived from the index, so only the memberships are stored, as sorted arrays of member indexes.
+ * Tenants built with the same parameters and seed are identical.
+ *
+ * <p>Group sizes follow a Pareto distribution with the configured mean, capped at the number of
+ * users, which gives many small groups and a few very large ones. Groups are spread over {@code
+ * nestingDepth + 1} levels by index, and every group above the last level contains a few groups
+ * of the level below it, so nesting is at most {@code nestingDepth} deep and never cyclic.
+ */
+public final class SyntheticTenant {
+  private static final double PARETO_SHAPE = 1.5;
+  private static final String USER_ID_PREFIX = "00000000-0000-4000-8000-";
+  private static final String GROUP_ID_PREFIX = "00000000-0000-4000-9000-";
+
+  private final String name;
+  private final int userCount;
+  private final int[][] userMembers;
+  private final int[][] groupMembers;
+  private final long membershipCount;
+
+  private SyntheticTenant(Builder builder) {
+    name = builder.name;
+    userCount = builder.users;
+    int groups = builder.groups;
+    userMembers = new int[groups][];
+    groupMembers = new int[groups][];
+    Random random = new Random(builder.seed);
+    int levels = builder.nestingDepth + 1;
+    // Pareto scale giving the requested mean before capping.
+    double scale = builder.meanGroupSize * (PARETO_SHAPE - 1) / PARETO_SHAPE;
+    long memberships = 0;
+    for (int group = 0; group < groups; group++) {
+      double size = scale / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE);
+      userMembers[group] = sample(random, (int) Math.min(userCount, Math.round(size)), userCount);
+      int childLevel = group % levels + 1;
+      int[] children = new int[0];
+      if (childLevel < levels) {
+        // Groups of the child level have the indexes childLevel, childLevel + levels, ...
+        int candidates = countAtLevel(childLevel, levels, groups);
+        children = sample(random, Math.min(builder.nestedGroupsPerGroup, candidates), candidates);
+        for (int i = 0; i < children.length; i++) {
+          children[i] = children[i] * levels + childLevel;
+        }
+      }
+      groupMembers[group] = children;
+      memberships += userMembers[group].length + children.length;
+    }
+    membershipCount = memberships;
+  }
+
+  /** Returns the tenant name, as used in the token endpoint path and the user domains. */
+  public String getName() {
+    return name;
+  }
+
+  public int getUserCount() {
+    return userCount;
+  }
+
+  public int getGroupCount() {
+    return userMembers.length;
+  }
+
+  /** Returns the number of direct user and group memberships of all groups. */
+  public long getMembershipCount() {
+    return membershipCount;
+  }
+
+  public String getUserId(int user) {
+    return USER_ID_PREFIX + String.format("%012x", user);
+  }
+
+  public String getUserMail(int user) {
+    return "user" + user + "@" + name + ".example.com";
+  }
+
+  public String getUserPrincipalName(int user) {
+    return "user" + user + "@" + name + ".onmicrosoft.com";
+  }
+
+  public String getGroupId(int group) {
+    return GROUP_ID_PREFIX + String.format("%012x", group);
+  }
+
+  /** Returns the index of the group with {@code id}, or -1 if there is no such group. */
+  public int getGroupIndex(String id) {
+    if (!id.startsWith(GROUP_ID_PREFIX) || id.length() != GROUP_ID_PREFIX.length() + 12) {
+      return -1;
+    }
+    try {
+      long group = Long.parseLong(id.substring(GROUP_ID_PREFIX.length()), 16);
+      return group < getGroupCount() ? (int) group : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Returns the indexes of the users that are direct members of {@code group}, ascending. */
+  public int[] getUserMembers(int group) {
+    return userMembers[group];
+  }
+
+  /** Returns the indexes of the groups that are direct members of {@code group}, ascending. */
+  public int[] getGroupMembers(int group) {
+    return groupMembers[group];
+  }
+
+  /** Returns the number of indexes in {@code [0, total)} that fall on {@code level}. */
+  private static int countAtLevel(int level, int levels, int total) {
+    return level >= total ? 0 : (total - level + levels - 1) / levels;
+  }
+
+  /** Returns {@code count} distinct values from {@code [0, range)}, ascending. */
+  private static int[] sample(Random random, int count, int range) {
+    int[] sample = new int[count];
+    if (count > range / 4) {
+      // Selection sampling: keep each value with the probability still needed.
+      int selected = 0;
+      for (int value = 0; value < range && selected < count; value++) {
+        if (random.nextInt(range - value) < count - selected) {
+          sample[selected++] = value;
+        }
+      }
+      return sample;
+    }
+    Set<Integer> seen = new HashSet<>();
+    for (int i = 0; i < count; ) {
+      int value = random.nextInt(range);
+      if (seen.add(value)) {
+        sample[i++] = value;
+      }
+    }
+    Arrays.sort(sample);
+    return sample;
+  }
+
+  /** Builder for {@link SyntheticTenant}. */
+  public static final class Builder {
+    private String name = "contoso";
+    private int users = 1000;
+    private int groups = 100;
+    private double meanGroupSize = 10;
+    private int nestingDepth = 0;
+    private int nestedGroupsPerGroup = 2;
+    private long seed = 1;
+
+    public Builder setName(String name) {
+      this.name = name;
+      return this;
+    }
+
+    public Builder setUsers(int users) {
+      this.users = users;
+      return this;
+    }
+
+    public Builder setGroups(int groups) {
+      this.groups = groups;
+      return this;
+    }
+
+    /** Sets the mean number of user members per group. */
+    public Builder setMeanGroupSize(double meanGroupSize) {
+      this.meanGroupSize = meanGroupSize;
+      return this;
+    }
+
+    /** Sets the maximum depth of group nesting. 0 creates no nested groups. */
+    public Builder setNestingDepth(int nestingDepth) {
+      this.nestingDepth = nestingDepth;
+      return this;
+    }
+
+    /** Sets the number of groups each group above the deepest level contains. */
+    public Builder setNestedGroupsPerGroup(int nestedGroupsPerGroup) {
+      this.nestedGroupsPerGroup = nestedGroupsPerGroup;
+      return this;
+    }
+
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public SyntheticTenant build() {
+      checkArgument(!Strings.isNullOrEmpty(name), "name can not be null or empty");
+      checkArgument(users >= 0, "users can not be negative");
+      checkArgument(groups >= 0, "groups can not be negative");
+      checkArgument(meanGroupSize >= 1, "mean group size must be at least 1");
+      checkArgument(nestingDepth >= 0, "nesting depth can not be negative");
+      checkArgument(nestedGroupsPerGroup >= 0, "nested groups per group can not be negative");
+      return new SyntheticTenant(this);
+    }
+  }
+}